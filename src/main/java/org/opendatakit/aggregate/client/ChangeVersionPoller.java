@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.opendatakit.aggregate.constants.common.UIConsts;
+
+import com.google.gwt.core.client.GWT;
+import com.google.gwt.http.client.Request;
+import com.google.gwt.http.client.RequestBuilder;
+import com.google.gwt.http.client.RequestCallback;
+import com.google.gwt.http.client.RequestException;
+import com.google.gwt.http.client.Response;
+import com.google.gwt.http.client.URL;
+import com.google.gwt.json.client.JSONObject;
+import com.google.gwt.json.client.JSONParser;
+import com.google.gwt.json.client.JSONString;
+import com.google.gwt.json.client.JSONValue;
+import com.google.gwt.user.client.Timer;
+
+/**
+ * Long-polls the server for changes to the areas shown by the current tab,
+ * so that the tab is refreshed only when its data has changed.
+ *
+ * The server holds each request until a version changes or its long-poll
+ * period elapses; the poller then immediately asks again. If the server
+ * answers unchanged requests at once (it cannot hold them) or fails, the
+ * poller waits RETRY_INTERVAL before asking again.
+ *
+ * The tab is refreshed at most once every MIN_REFRESH_INTERVAL; changes within
+ * that interval are folded into one deferred refresh. A changed answer that
+ * comes back at once is followed by the same wait before the next request, so
+ * versions that keep changing (e.g., server nodes that briefly disagree)
+ * cannot spin the poller.
+ */
+public class ChangeVersionPoller {
+
+  public interface ChangeHandler {
+    void onChange();
+  }
+
+  // an unchanged response sooner than this was not held by the server
+  private static final int MIN_HELD_INTERVAL = 5000; // ms
+
+  private static final int RETRY_INTERVAL = 10000; // ms
+
+  private static final int MIN_REFRESH_INTERVAL = 5000; // ms
+
+  private final HashMap<String, String> versions = new HashMap<String, String>();
+
+  private ArrayList<String> areas = new ArrayList<String>();
+  private ChangeHandler handler = null;
+
+  private Request pending = null;
+  // advanced to ignore the responses of abandoned requests
+  private int generation = 0;
+  private boolean failed = false;
+
+  private long lastRefresh = 0L;
+  private boolean refreshScheduled = false;
+
+  private final Timer retryTimer = new Timer() {
+    @Override
+    public void run() {
+      poll();
+    }
+  };
+
+  private final Timer refreshTimer = new Timer() {
+    @Override
+    public void run() {
+      refreshScheduled = false;
+      refresh();
+    }
+  };
+
+  /**
+   * Watch the given areas, replacing the areas watched before.
+   *
+   * @param newAreas
+   * @param newHandler
+   *          told when the version of any of the areas changes.
+   */
+  public void watch(ArrayList<String> newAreas, ChangeHandler newHandler) {
+    handler = newHandler;
+    if (!areas.isEmpty() && areas.equals(newAreas)) {
+      return;
+    }
+    stop();
+    areas = new ArrayList<String>(newAreas);
+    if (!areas.isEmpty()) {
+      poll();
+    }
+  }
+
+  /**
+   * Stop watching. The last versions seen are kept, so changes made in the
+   * meantime are reported when watching resumes.
+   */
+  public void stop() {
+    generation++;
+    if (pending != null) {
+      pending.cancel();
+      pending = null;
+    }
+    retryTimer.cancel();
+    refreshTimer.cancel();
+    refreshScheduled = false;
+    areas = new ArrayList<String>();
+  }
+
+  /**
+   * @return true if the last request to the server failed; the caller should
+   *         then fall back to refreshing periodically.
+   */
+  public boolean hasFailed() {
+    return failed;
+  }
+
+  private void poll() {
+    final int requestGeneration = generation;
+    final long start = System.currentTimeMillis();
+    boolean allKnown = true;
+    StringBuilder url = new StringBuilder(UIConsts.CHANGE_VERSIONS_ADDR);
+    char separator = '?';
+    for (String area : areas) {
+      String version = versions.get(area);
+      if (version == null) {
+        allKnown = false;
+        version = "";
+      }
+      url.append(separator).append("area=").append(URL.encodeQueryString(area))
+          .append("&version=").append(URL.encodeQueryString(version));
+      separator = '&';
+    }
+    final boolean expectHeld = allKnown;
+
+    RequestBuilder builder = new RequestBuilder(RequestBuilder.GET, url.toString());
+    try {
+      pending = builder.sendRequest(null, new RequestCallback() {
+        public void onError(Request request, Throwable e) {
+          if (requestGeneration != generation) {
+            return;
+          }
+          pending = null;
+          retry();
+        }
+
+        public void onResponseReceived(Request request, Response response) {
+          if (requestGeneration != generation) {
+            return;
+          }
+          pending = null;
+          if (response.getStatusCode() != Response.SC_OK) {
+            GWT.log("change version poll failed: " + response.getStatusCode());
+            retry();
+            return;
+          }
+          boolean changed;
+          try {
+            changed = recordVersions(response.getText());
+          } catch (Exception e) {
+            GWT.log("unable to parse change versions");
+            retry();
+            return;
+          }
+          failed = false;
+          if (changed) {
+            long sinceRefresh = System.currentTimeMillis() - lastRefresh;
+            if (sinceRefresh >= MIN_REFRESH_INTERVAL) {
+              refresh();
+            } else if (!refreshScheduled) {
+              refreshScheduled = true;
+              refreshTimer.schedule((int) (MIN_REFRESH_INTERVAL - sinceRefresh));
+            }
+          }
+          if (requestGeneration != generation) {
+            // the handler changed what is watched
+            return;
+          }
+          boolean answeredAtOnce = System.currentTimeMillis() - start < MIN_HELD_INTERVAL;
+          if (!changed && expectHeld && answeredAtOnce) {
+            // the server is not holding requests
+            retryTimer.schedule(RETRY_INTERVAL);
+          } else if (changed && expectHeld && answeredAtOnce) {
+            retryTimer.schedule(MIN_REFRESH_INTERVAL);
+          } else {
+            poll();
+          }
+        }
+      });
+    } catch (RequestException e) {
+      retry();
+    }
+  }
+
+  private void refresh() {
+    lastRefresh = System.currentTimeMillis();
+    if (handler != null) {
+      handler.onChange();
+    }
+  }
+
+  private void retry() {
+    failed = true;
+    retryTimer.schedule(RETRY_INTERVAL);
+  }
+
+  /**
+   * @return true if a previously seen version has changed.
+   */
+  private boolean recordVersions(String json) {
+    JSONObject obj = JSONParser.parseStrict(json).isObject();
+    boolean changed = false;
+    for (String area : areas) {
+      JSONValue value = obj.get(area);
+      JSONString str = (value == null) ? null : value.isString();
+      if (str == null) {
+        continue;
+      }
+      String old = versions.put(area, str.stringValue());
+      if (old != null && !old.equals(str.stringValue())) {
+        changed = true;
+      }
+    }
+    return changed;
+  }
+}
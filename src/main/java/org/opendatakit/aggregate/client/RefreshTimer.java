@@ -16,7 +16,10 @@
 
 package org.opendatakit.aggregate.client;
 
+import java.util.ArrayList;
+
 import org.opendatakit.aggregate.constants.common.SubTabs;
+import org.opendatakit.aggregate.constants.common.UIConsts;
 
 import com.google.gwt.core.client.GWT;
 import com.google.gwt.user.client.Timer;
@@ -26,6 +29,12 @@ import com.google.gwt.user.client.Timer;
  * whichever tab is currently selected. If no UI interaction has happened for 5
  * minutes, the refreshes stop.
  *
+ * The forms, submissions, export and publish tabs are refreshed only when the
+ * server reports a change to the data they show (see
+ * {@link ChangeVersionPoller}), falling back to periodic refreshes if the
+ * server cannot be asked. They keep following changes after the periodic
+ * refreshes stop.
+ *
  * @author wbrunette@gmail.com
  * @author mitchellsundt@gmail.com
  *
@@ -85,6 +94,8 @@ public class RefreshTimer extends Timer {
 
   private SubTabs currentSubTab;
 
+  private final ChangeVersionPoller changePoller = new ChangeVersionPoller();
+
   public RefreshTimer(AggregateUI ui) {
     aggregateUI = ui;
   }
@@ -109,6 +120,7 @@ public class RefreshTimer extends Timer {
 
   public void setCurrentSubTab(SubTabs subtab) {
     currentSubTab = subtab;
+    changePoller.stop();
     refreshNow();
   }
 
@@ -135,10 +147,48 @@ public class RefreshTimer extends Timer {
   @Override
   public void cancel() {
     super.cancel();
+    // long-polling is cheap, so the watched tab keeps following changes
     intervalsElapsed = 0;
     isActive = false;
   }
 
+  /**
+   * Update the tab when it is first shown and afterwards only when the server
+   * reports a change to one of the given areas. If the server cannot be asked,
+   * update the tab every multiplier intervals instead.
+   *
+   * @param tabPanel
+   * @param multiplier
+   * @param areas
+   *          the areas shown by the tab; null entries are ignored.
+   */
+  private void updateOnChange(final SubTabInterface tabPanel, int multiplier, String... areas) {
+    final SubTabs subTab = currentSubTab;
+    ArrayList<String> watched = new ArrayList<String>();
+    for (String area : areas) {
+      if (area != null) {
+        watched.add(area);
+      }
+    }
+    changePoller.watch(watched, new ChangeVersionPoller.ChangeHandler() {
+      @Override
+      public void onChange() {
+        if (currentSubTab == subTab) {
+          GWT.log(subTab.getHashString() + " changed");
+          tabPanel.update();
+        }
+      }
+    });
+    if (lastCompletionTime == 0L
+        || (changePoller.hasFailed() && (intervalsCount % multiplier) == 0)) {
+      tabPanel.update();
+    }
+  }
+
+  private static String submissionsArea(String formId) {
+    return (formId == null) ? null : UIConsts.CHANGE_AREA_SUBMISSIONS_PREFIX + formId;
+  }
+
   public void restartTimer() {
     if (isActive) {
       // just reset the intervalsElapsed
@@ -185,6 +235,8 @@ public class RefreshTimer extends Timer {
 
       switch (currentSubTab) {
       case FORMS:
+        updateOnChange(tabPanel, MISC_REFRESH_MULTIPLIER, UIConsts.CHANGE_AREA_FORMS);
+        break;
       case TABLES:
         if ((intervalsCount % MISC_REFRESH_MULTIPLIER) == 0) {
           GWT.log("forms/tables Refresh");
@@ -192,16 +244,19 @@ public class RefreshTimer extends Timer {
         }
         break;
       case SUBMISSION_ADMIN:
+        updateOnChange(tabPanel, SUBMISSIONS_REFRESH_MULTIPLIER, UIConsts.CHANGE_AREA_FORMS,
+            submissionsArea(((SubmissionAdminSubTab) tabPanel).getSelectedFormId()));
+        break;
       case FILTER:
-        if ((intervalsCount % SUBMISSIONS_REFRESH_MULTIPLIER) == 0) {
-          GWT.log("submissions Refresh");
-          tabPanel.update();
-        }
+        updateOnChange(tabPanel, SUBMISSIONS_REFRESH_MULTIPLIER, UIConsts.CHANGE_AREA_FORMS,
+            submissionsArea(((FilterSubTab) tabPanel).getDisplayedFilterGroup().getFormId()));
         break;
       case EXPORT:
+        updateOnChange(tabPanel, 1, UIConsts.CHANGE_AREA_EXPORTS);
+        break;
       case PUBLISH:
-        GWT.log("export/publish Refresh");
-        tabPanel.update();
+        updateOnChange(tabPanel, 1, UIConsts.CHANGE_AREA_FORMS,
+            UIConsts.CHANGE_AREA_PUBLISHERS);
         break;
       case PREFERENCES:
         if ((intervalsCount % PREFERENCES_REFRESH_MULTIPLIER) == 0) {
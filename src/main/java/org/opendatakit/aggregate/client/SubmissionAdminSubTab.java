@@ -105,6 +105,13 @@ public class SubmissionAdminSubTab extends AggregateSubTabBase {
     }
   };
 
+  /**
+   * @return the formId of the form whose submissions are shown, or null.
+   */
+  public String getSelectedFormId() {
+    return (selectedForm == null) ? null : selectedForm.getId();
+  }
+
   @Override
   public void update() {
     if ( AggregateUI.getUI().getUserInfo().getGrantedAuthorities().contains(GrantedAuthorityName.ROLE_DATA_OWNER)) {
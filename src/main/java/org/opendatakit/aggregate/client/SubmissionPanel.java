@@ -22,6 +22,7 @@ import org.opendatakit.aggregate.client.submission.SubmissionUISummary;
 import org.opendatakit.aggregate.client.table.SubmissionPaginationNavBar;
 import org.opendatakit.aggregate.client.table.SubmissionTable;
 import org.opendatakit.aggregate.constants.common.SubTabs;
+import org.opendatakit.common.persistence.client.UIQueryResumePoint;
 import org.opendatakit.common.security.common.GrantedAuthorityName;
 
 import com.google.gwt.user.client.rpc.AsyncCallback;
@@ -35,6 +36,11 @@ public class SubmissionPanel extends FlowPanel {
   
   private SubmissionTable submissionTable;
 
+  // the page following the displayed one, if it has already been retrieved
+  private UIQueryResumePoint prefetchedCursor = null;
+  private SubmissionUISummary prefetchedSummary = null;
+  private int requestGeneration = 0;
+
   public SubmissionPanel() {
     super();
     paginationNavBar = new SubmissionPaginationNavBar();
@@ -49,6 +55,17 @@ public class SubmissionPanel extends FlowPanel {
   public void update(FilterGroup filterGroup) {
     
     final FilterGroup fg = filterGroup;
+    // responses to earlier requests are discarded
+    final int generation = ++requestGeneration;
+
+    if (prefetchedSummary != null && filterGroup.getCursor() == prefetchedCursor) {
+      // the 'Next' button was pressed and that page has already been retrieved
+      SubmissionUISummary summary = prefetchedSummary;
+      clearPrefetch();
+      displaySubmissions(fg, summary, generation);
+      return;
+    }
+    clearPrefetch();
     
     // Set up the callback object.
     AsyncCallback<SubmissionUISummary> callback = new AsyncCallback<SubmissionUISummary>() {
@@ -64,15 +81,10 @@ public class SubmissionPanel extends FlowPanel {
       }
 
       public void onSuccess(SubmissionUISummary summary) {
-        AggregateUI.getUI().clearError();        
-        boolean addDeleteButton = AggregateUI.getUI().getUserInfo().getGrantedAuthorities()
-        .contains(GrantedAuthorityName.ROLE_DATA_OWNER);
-        
-        paginationNavBar.update(fg, summary);
-        
-        submissionTable = new SubmissionTable(summary, addDeleteButton);
-        submissionPanel.setWidget(submissionTable);
-        AggregateUI.resize();
+        if (generation != requestGeneration) {
+          return;
+        }
+        displaySubmissions(fg, summary, generation);
       }
     };
 
@@ -83,6 +95,51 @@ public class SubmissionPanel extends FlowPanel {
         submissionPanel.setWidget(submissionTable);
     }
   }
+
+  private void displaySubmissions(FilterGroup fg, SubmissionUISummary summary, int generation) {
+    AggregateUI.getUI().clearError();        
+    boolean addDeleteButton = AggregateUI.getUI().getUserInfo().getGrantedAuthorities()
+    .contains(GrantedAuthorityName.ROLE_DATA_OWNER);
+    
+    paginationNavBar.update(fg, summary);
+    
+    submissionTable = new SubmissionTable(summary, addDeleteButton);
+    submissionPanel.setWidget(submissionTable);
+    AggregateUI.resize();
+
+    prefetchNextPage(fg, summary, generation);
+  }
+
+  /**
+   * Retrieve the page the 'Next' button advances to while the user is looking
+   * at the current one.
+   */
+  private void prefetchNextPage(FilterGroup fg, SubmissionUISummary summary, final int generation) {
+    final UIQueryResumePoint cursor = summary.getResumeCursor();
+    if (!summary.hasMoreResults() || cursor == null) {
+      return;
+    }
+
+    AsyncCallback<SubmissionUISummary> callback = new AsyncCallback<SubmissionUISummary>() {
+      public void onFailure(Throwable caught) {
+        // ignore -- the page is requested again if the user advances to it
+      }
+
+      public void onSuccess(SubmissionUISummary nextSummary) {
+        if (generation == requestGeneration) {
+          prefetchedCursor = cursor;
+          prefetchedSummary = nextSummary;
+        }
+      }
+    };
+
+    SecureGWT.getSubmissionService().getSubmissions(new FilterGroup(fg, cursor), callback);
+  }
+
+  private void clearPrefetch() {
+    prefetchedCursor = null;
+    prefetchedSummary = null;
+  }
   
   public SubmissionTable getSubmissionTable() {
     return submissionTable;
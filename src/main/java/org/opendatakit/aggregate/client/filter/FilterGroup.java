@@ -70,6 +70,23 @@ public final class FilterGroup implements Serializable {
     this.queryFetchLimit = DEFAULT_FETCH_LIMIT;
   }
 
+  /**
+   * Copy of a filter group positioned at a different cursor. The filters are
+   * shared with the original.
+   *
+   * @param group
+   * @param cursor
+   */
+  public FilterGroup(FilterGroup group, UIQueryResumePoint cursor) {
+    this.uri = group.uri;
+    this.name = group.name;
+    this.formId = group.formId;
+    this.filters = group.filters;
+    this.includeMetadata = group.includeMetadata;
+    this.queryFetchLimit = group.queryFetchLimit;
+    this.cursor = cursor;
+  }
+
   /**
    * Used to clear the URI in the elements so it can be Saved As properly in the
    * server, as the server creates a new entity when uri is set to URI_DEFAULT
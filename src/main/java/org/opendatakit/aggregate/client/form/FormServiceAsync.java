@@ -32,13 +32,19 @@ public interface FormServiceAsync {
 
   void getGpsCoordnates(String formId, AsyncCallback<GeopointElementList> callback);
 
+  void getFormStatistics(String formId, AsyncCallback<FormStatistics> callback);
+
   void createCsvFromFilter(FilterGroup group, AsyncCallback<Boolean> callback);
 
+  void createIncrementalCsv(String baseExportUri, boolean compact, AsyncCallback<Boolean> callback);
+
   void createKmlFromFilter(FilterGroup group, ArrayList<KmlSelection> kmlElementsToInclude,
       AsyncCallback<Boolean> callback);
 
   void createJsonFileFromFilter(FilterGroup group, AsyncCallback<Boolean> callback);
 
+  void createArrowFileFromFilter(FilterGroup group, AsyncCallback<Boolean> callback);
+
   void deleteExport(String uri, AsyncCallback<Void> callback);
 
 }
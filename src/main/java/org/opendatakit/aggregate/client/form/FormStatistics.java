@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.client.form;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Submission counts and attachment totals of a form.
+ */
+public final class FormStatistics implements Serializable {
+
+  private static final long serialVersionUID = 4818203761928373391L;
+
+  private String formId;
+  private long submissionCount;
+  private long completeSubmissionCount;
+  private long attachmentCount;
+  private long attachmentSize;
+  private Date lastCompleteSubmissionDate;
+  private Date lastUpdateDate;
+
+  public FormStatistics() {
+    // GWT
+  }
+
+  public FormStatistics(String formId, long submissionCount, long completeSubmissionCount,
+      long attachmentCount, long attachmentSize, Date lastCompleteSubmissionDate,
+      Date lastUpdateDate) {
+    this.formId = formId;
+    this.submissionCount = submissionCount;
+    this.completeSubmissionCount = completeSubmissionCount;
+    this.attachmentCount = attachmentCount;
+    this.attachmentSize = attachmentSize;
+    this.lastCompleteSubmissionDate = lastCompleteSubmissionDate;
+    this.lastUpdateDate = lastUpdateDate;
+  }
+
+  public String getFormId() {
+    return formId;
+  }
+
+  /**
+   * @return the number of submissions, including incomplete ones.
+   */
+  public long getSubmissionCount() {
+    return submissionCount;
+  }
+
+  public long getCompleteSubmissionCount() {
+    return completeSubmissionCount;
+  }
+
+  /**
+   * @return the number of attachments received, over all submissions.
+   */
+  public long getAttachmentCount() {
+    return attachmentCount;
+  }
+
+  /**
+   * @return the total size of the attachments received, in bytes.
+   */
+  public long getAttachmentSize() {
+    return attachmentSize;
+  }
+
+  /**
+   * @return the most recent marked-as-complete date, or null if no submission
+   *         is complete.
+   */
+  public Date getLastCompleteSubmissionDate() {
+    return lastCompleteSubmissionDate;
+  }
+
+  /**
+   * @return the most recent update of any submission, or null if none.
+   */
+  public Date getLastUpdateDate() {
+    return lastUpdateDate;
+  }
+}
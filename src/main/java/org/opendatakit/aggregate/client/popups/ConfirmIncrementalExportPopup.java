@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.client.popups;
+
+import org.opendatakit.aggregate.client.AggregateUI;
+import org.opendatakit.aggregate.client.SecureGWT;
+import org.opendatakit.aggregate.client.form.ExportSummary;
+import org.opendatakit.aggregate.client.widgets.AggregateButton;
+import org.opendatakit.aggregate.client.widgets.ClosePopupButton;
+
+import com.google.gwt.event.dom.client.ClickEvent;
+import com.google.gwt.event.dom.client.ClickHandler;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.gwt.user.client.ui.FlexTable;
+import com.google.gwt.user.client.ui.HTML;
+
+/**
+ * Popup asking whether the submissions received since a csv export should be
+ * exported on their own or combined with that export's datafile.
+ * 
+ */
+public final class ConfirmIncrementalExportPopup extends AbstractPopupBase {
+
+  private static final String BUTTON_ICON = "<img src=\"images/green_right_arrow.png\" />";
+  private static final String SEGMENT_BUTTON_TXT = BUTTON_ICON + "new submissions only";
+  private static final String SEGMENT_TOOLTIP_TXT = "Export only the new submissions";
+  private static final String SEGMENT_HELP_BALLOON_TXT = "This creates a datafile holding only "
+      + "the submissions received since this datafile was created.";
+  private static final String COMPACT_BUTTON_TXT = BUTTON_ICON + "combine with this datafile";
+  private static final String COMPACT_TOOLTIP_TXT = "Export every submission, including the new ones";
+  private static final String COMPACT_HELP_BALLOON_TXT = "This creates a complete datafile holding "
+      + "every submission, each once, including those received since this datafile was created.";
+
+  private final ExportSummary export;
+
+  public ConfirmIncrementalExportPopup(ExportSummary export) {
+    super();
+
+    this.export = export;
+
+    AggregateButton segmentButton = new AggregateButton(SEGMENT_BUTTON_TXT, SEGMENT_TOOLTIP_TXT,
+        SEGMENT_HELP_BALLOON_TXT);
+    segmentButton.addClickHandler(new ExecuteExport(false));
+    AggregateButton compactButton = new AggregateButton(COMPACT_BUTTON_TXT, COMPACT_TOOLTIP_TXT,
+        COMPACT_HELP_BALLOON_TXT);
+    compactButton.addClickHandler(new ExecuteExport(true));
+
+    FlexTable layout = new FlexTable();
+
+    HTML message = new HTML("Export the submissions received since this datafile was created?");
+    layout.setWidget(0, 0, message);
+    layout.setWidget(0, 1, segmentButton);
+    layout.setWidget(0, 2, compactButton);
+    layout.setWidget(0, 3, new ClosePopupButton(this));
+
+    setWidget(layout);
+  }
+
+  private class ExecuteExport implements ClickHandler {
+
+    private final boolean compact;
+
+    ExecuteExport(boolean compact) {
+      this.compact = compact;
+    }
+
+    @Override
+    public void onClick(ClickEvent event) {
+
+      // OK -- we are to proceed.
+      // Set up the callback object.
+      AsyncCallback<Boolean> callback = new AsyncCallback<Boolean>() {
+        @Override
+        public void onFailure(Throwable caught) {
+          AggregateUI.getUI().reportError(caught);
+        }
+
+        @Override
+        public void onSuccess(Boolean result) {
+          AggregateUI.getUI().clearError();
+          AggregateUI.getUI().getTimer().refreshNow();
+        }
+      };
+      // Make the call to the form service.
+      SecureGWT.getFormService().createIncrementalCsv(export.getUri(), compact, callback);
+      hide();
+    }
+  }
+}
@@ -151,6 +151,8 @@ public final class ExportPopup extends AbstractPopupBase {
         SecureGWT.getFormService().createCsvFromFilter(filterGroup, new CreateExportCallback());
       } else if (type == ExportType.JSONFILE) {
         SecureGWT.getFormService().createJsonFileFromFilter(filterGroup, new CreateExportCallback());
+      } else if (type == ExportType.ARROW) {
+        SecureGWT.getFormService().createArrowFileFromFilter(filterGroup, new CreateExportCallback());
       } else if( type == ExportType.KML) {
         KmlOptionsPopup popup = new KmlOptionsPopup(formId, filterGroup);
         popup.setPopupPositionAndShow(popup.getPositionCallBack());
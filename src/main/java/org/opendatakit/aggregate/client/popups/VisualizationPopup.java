@@ -17,24 +17,23 @@
 package org.opendatakit.aggregate.client.popups;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 
 import org.opendatakit.aggregate.client.AggregateUI;
 import org.opendatakit.aggregate.client.FilterSubTab;
 import org.opendatakit.aggregate.client.SecureGWT;
+import org.opendatakit.aggregate.client.filter.FilterGroup;
 import org.opendatakit.aggregate.client.form.GeopointElementList;
+import org.opendatakit.aggregate.client.submission.AggregationRequest;
 import org.opendatakit.aggregate.client.submission.Column;
-import org.opendatakit.aggregate.client.submission.SubmissionUI;
-import org.opendatakit.aggregate.client.table.BinaryPopupClickHandler;
+import org.opendatakit.aggregate.client.submission.UIAggregateRow;
+import org.opendatakit.aggregate.client.submission.UIGeoCluster;
 import org.opendatakit.aggregate.client.widgets.AggregateButton;
 import org.opendatakit.aggregate.client.widgets.ClosePopupButton;
 import org.opendatakit.aggregate.client.widgets.ColumnListBox;
 import org.opendatakit.aggregate.client.widgets.EnumListBox;
 import org.opendatakit.aggregate.client.widgets.KmlSettingListBox;
-import org.opendatakit.aggregate.client.widgets.RepeatViewButton;
+import org.opendatakit.aggregate.constants.common.AggregationBucket;
 import org.opendatakit.aggregate.constants.common.ChartType;
-import org.opendatakit.aggregate.constants.common.GeoPointConsts;
-import org.opendatakit.aggregate.constants.common.UIConsts;
 import org.opendatakit.common.web.constants.BasicConsts;
 import org.opendatakit.common.web.constants.HtmlConsts;
 
@@ -48,6 +47,7 @@ import com.google.gwt.maps.client.MapTypeId;
 import com.google.gwt.maps.client.MapWidget;
 import com.google.gwt.maps.client.base.InfoWindow;
 import com.google.gwt.maps.client.base.LatLng;
+import com.google.gwt.maps.client.base.LatLngBounds;
 import com.google.gwt.maps.client.event.Event;
 import com.google.gwt.maps.client.event.HasMouseEvent;
 import com.google.gwt.maps.client.event.MouseEventCallback;
@@ -57,7 +57,6 @@ import com.google.gwt.user.client.rpc.AsyncCallback;
 import com.google.gwt.user.client.ui.FlexTable;
 import com.google.gwt.user.client.ui.FlowPanel;
 import com.google.gwt.user.client.ui.HTMLPanel;
-import com.google.gwt.user.client.ui.Image;
 import com.google.gwt.user.client.ui.Label;
 import com.google.gwt.user.client.ui.RadioButton;
 import com.google.gwt.user.client.ui.SimplePanel;
@@ -82,6 +81,9 @@ public final class VisualizationPopup extends AbstractPopupBase {
   private static final String SUM_COLUMNS_END = "?]";
   private static final String GEOPOINT_TOOLTIP = "Geopoint field to map";
   private static final String GEOPOINT_BALLOON = "Choose the geopoint field to map.";
+  private static final String BUCKET_TXT = "<h4 id=\"form_name\">Group Values By:</h4>";
+  private static final String BUCKET_TOOLTIP = "How to group the values of the column";
+  private static final String BUCKET_BALLOON = "Choose whether each value is counted separately, or numeric values are grouped into ranges, or dates by year, month or day.";
 
   private static final String TYPE_TXT = "<h2 id=\"form_name\">Type:</h2>";
   private static final String COLUMN_TXT = "<h2 id=\"form_name\">" + HtmlConsts.TAB
@@ -100,6 +102,8 @@ public final class VisualizationPopup extends AbstractPopupBase {
   private static int VALUE_TEXT = 0;
   private static int VALUE_LIST = 1;
 
+  private static int BUCKET_ROW = 2;
+
   private static int TALLY_CHOICE = 0;
 
   private static int SUM_CHOICE = 0;
@@ -109,14 +113,18 @@ public final class VisualizationPopup extends AbstractPopupBase {
   private static final String RADIO_GROUP = "vizRadioGroup";
   private static final String RESIZE_UNITS = "px";
 
+  /** the number of map grid cells along each axis of the map */
+  private static final int MAP_GRID_DIVISIONS = 20;
+
   private static final String VIZ_TYPE_TOOLTIP = "Type of Visualization";
   private static final String VIZ_TYPE_BALLOON = "Choose whether you would like a pie chart, bar graph, or map.";
 
   private final ArrayList<Column> headers;
-  private final ArrayList<SubmissionUI> submissions;
+  private final FilterGroup filterGroup;
 
   private final FlexTable typeControlBar;
   private final EnumListBox<ChartType> chartType;
+  private final EnumListBox<AggregationBucket> bucketType;
 
   private final ColumnListBox columnList;
   private final ColumnListBox dataList;
@@ -140,9 +148,9 @@ public final class VisualizationPopup extends AbstractPopupBase {
   public VisualizationPopup(FilterSubTab filterSubTab) {
     super();
 
-    formId = filterSubTab.getDisplayedFilterGroup().getFormId();
+    filterGroup = filterSubTab.getDisplayedFilterGroup();
+    formId = filterGroup.getFormId();
     headers = filterSubTab.getSubmissionTable().getHeaders();
-    submissions = filterSubTab.getSubmissionTable().getSubmissions();
 
     chartType = new EnumListBox<ChartType>(ChartType.values(), VIZ_TYPE_TOOLTIP, VIZ_TYPE_BALLOON);
     chartType.addChangeHandler(new ChangeHandler() {
@@ -159,6 +167,9 @@ public final class VisualizationPopup extends AbstractPopupBase {
         "Select the column to get the numerical values from.");
     dataList.addChangeHandler(new ColumnChangeHandler());
     geoPoints = new KmlSettingListBox(GEOPOINT_TOOLTIP, GEOPOINT_BALLOON);
+    bucketType = new EnumListBox<AggregationBucket>(AggregationBucket.values(), BUCKET_TOOLTIP,
+        BUCKET_BALLOON);
+    bucketType.setItemSelected(0, true);
 
     // The Maps API is always loaded.
 
@@ -221,6 +232,8 @@ public final class VisualizationPopup extends AbstractPopupBase {
     tabulationBar.setHTML(0, VALUE_TEXT, TABULATION_TXT);
     tabulationBar.setWidget(0, VALUE_LIST, tallyTable);
     tabulationBar.setWidget(1, VALUE_LIST, sumTable);
+    tabulationBar.setHTML(BUCKET_ROW, VALUE_TEXT, BUCKET_TXT);
+    tabulationBar.setWidget(BUCKET_ROW, VALUE_LIST, bucketType);
 
     FlexTable bottomSelectionRow = new FlexTable();
     bottomSelectionRow.addStyleName("stretch_popup_header");
@@ -257,6 +270,7 @@ public final class VisualizationPopup extends AbstractPopupBase {
       tallyOccurRadio.setEnabled(false);
       sumColumnsRadio.setEnabled(false);
       dataList.setEnabled(false);
+      bucketType.setEnabled(false);
     } else { // must be a chart if not MAP
       typeControlBar.setHTML(0, COLUMN_TEXT, COLUMN_TXT);
       typeControlBar.setWidget(0, COLUMN_LIST, columnList);
@@ -265,6 +279,7 @@ public final class VisualizationPopup extends AbstractPopupBase {
       tallyOccurRadio.setEnabled(true);
       sumColumnsRadio.setEnabled(true);
       dataList.setEnabled(sumColumnsRadio.getValue());
+      bucketType.setEnabled(true);
     }
     center();
   }
@@ -278,12 +293,14 @@ public final class VisualizationPopup extends AbstractPopupBase {
         + SUM_COLUMNS_END);
   }
 
-  private DataTable createDataTable() {
+  /**
+   * The groups are computed by the server across all the submissions matching
+   * the filter, not just those displayed.
+   */
+  private DataTable createDataTable(ArrayList<UIAggregateRow> rows, boolean tally) {
     Column firstDataValue = columnList.getSelectedColumn();
     Column secondDataValue = dataList.getSelectedColumn();
 
-    boolean tally = tallyOccurRadio.getValue();
-
     DataTable data = DataTable.create();
     data.addColumn(ColumnType.STRING, firstDataValue.getDisplayHeader());
     if (tally) {
@@ -292,47 +309,16 @@ public final class VisualizationPopup extends AbstractPopupBase {
       data.addColumn(ColumnType.NUMBER, "Sum of " + secondDataValue.getDisplayHeader());
     }
 
-    int firstIndex = 0;
-    int secondIndex = 0;
-    int index = 0;
-    for (Column c : headers) {
-      if (c.equals(firstDataValue))
-        firstIndex = index;
-      if (c.equals(secondDataValue))
-        secondIndex = index;
-      index++;
-    }
-
-    HashMap<String, Double> aggregation = new HashMap<String, Double>();
-    for (SubmissionUI s : submissions) {
-      String label = s.getValues().get(firstIndex);
-
-      // determine submissions value
-      double addend = 0;
-      if (tally) {
-        addend = 1;
-      } else {
-        try {
-          addend = Double.valueOf(s.getValues().get(secondIndex));
-        } catch (Exception e) {
-          // move on because we couldn't parse the value
-        }
-      }
-
-      // update running total
-      if (aggregation.containsKey(label)) {
-        aggregation.put(label, aggregation.get(label) + addend);
-      } else {
-        aggregation.put(label, addend);
-      }
-    }
-
     // output table
     int i = 0;
-    for (String s : aggregation.keySet()) {
+    for (UIAggregateRow row : rows) {
       data.addRow();
-      data.setValue(i, 0, s);
-      data.setValue(i, 1, aggregation.get(s));
+      data.setValue(i, 0, row.getLabel());
+      if (tally) {
+        data.setValue(i, 1, row.getCount());
+      } else {
+        data.setValue(i, 1, (row.getSum() == null) ? 0.0 : row.getSum());
+      }
       i++;
     }
 
@@ -344,8 +330,7 @@ public final class VisualizationPopup extends AbstractPopupBase {
    *
    * @return
    */
-  private PieChart createPieChart() {
-    DataTable data = createDataTable();
+  private PieChart createPieChart(DataTable data) {
     PieOptions options = PieChart.createPieOptions();
     options.setWidth(chartPanel.getOffsetWidth());
     options.setHeight(chartPanel.getOffsetHeight());
@@ -358,69 +343,64 @@ public final class VisualizationPopup extends AbstractPopupBase {
    *
    * @return
    */
-  private BarChart createBarChart() {
-    DataTable data = createDataTable();
+  private BarChart createBarChart(DataTable data) {
     Options options = Options.create();
     options.setWidth(chartPanel.getOffsetWidth());
     options.setHeight(chartPanel.getOffsetHeight());
     return new BarChart(data, options);
   }
 
-  private int findGpsIndex(String columnElementKey, Integer columnCode) {
-    int index = 0;
-    Long columnNum = columnCode.longValue();
-    for (Column col : headers) {
-      if (col.getColumnEncoding().equals(columnElementKey)
-          && col.getGeopointColumnCode().equals(columnNum)) {
-        return index;
-      }
-      index++;
-    }
-    return -1;
-  }
+  private void requestChart(final ChartType selected) {
+    final boolean tally = tallyOccurRadio.getValue();
+    String bucketString = bucketType.getSelectedValue();
+    AggregationBucket bucket = (bucketString == null) ? AggregationBucket.VALUE
+        : AggregationBucket.valueOf(bucketString);
+    AggregationRequest request = new AggregationRequest(columnList.getSelectedColumn(), bucket,
+        null, tally ? null : dataList.getSelectedColumn());
+
+    SecureGWT.getSubmissionService().getSubmissionAggregates(filterGroup, request,
+        new AsyncCallback<ArrayList<UIAggregateRow>>() {
+          public void onFailure(Throwable caught) {
+            AggregateUI.getUI().reportError(caught);
+          }
 
-  private LatLng getLatLonFromSubmission(int latIndex, int lonIndex, SubmissionUI sub) {
-    LatLng gpsPoint;
-    ArrayList<String> values = sub.getValues();
-    try {
-      Double lat = Double.valueOf(values.get(latIndex));
-      Double lon = Double.valueOf(values.get(lonIndex));
-      gpsPoint = new LatLng(lat, lon);
-    } catch (Exception e) {
-      // just set the gps point to null, no need to figure out problem
-      gpsPoint = null;
-    }
-    return gpsPoint;
+          public void onSuccess(ArrayList<UIAggregateRow> result) {
+            DataTable data = createDataTable(result, tally);
+            Widget chart = (selected == ChartType.PIE_CHART) ? createPieChart(data)
+                : createBarChart(data);
+            chartPanel.clear();
+            chartPanel.add(chart);
+          }
+        });
   }
 
-  private MapWidget createMap() {
-    int latIndex = findGpsIndex(geoPoints.getElementKey(),
-        GeoPointConsts.GEOPOINT_LATITUDE_ORDINAL_NUMBER);
-    int lonIndex = findGpsIndex(geoPoints.getElementKey(),
-        GeoPointConsts.GEOPOINT_LONGITUDE_ORDINAL_NUMBER);
-
-    // check to see if we have lat & long, if not display erro
-    if (latIndex < 0 || lonIndex < 0) {
-      String error = "ERROR:";
-      if (latIndex < 0) {
-        error = error + " The Latitude Coordinate is NOT included in the Filter.";
-      }
-      if (lonIndex < 0) {
-        error = error + " The Longitude Coordinate is NOT included in the Filter.";
-      }
-
-      Window.alert(error);
-      return null;
+  private void requestMap() {
+    String elementKey = geoPoints.getElementKey();
+    if (elementKey == null) {
+      Window.alert("ERROR: No GeoPoint field is selected.");
+      return;
     }
+    SecureGWT.getSubmissionService().getGeopointClusters(filterGroup, elementKey,
+        MAP_GRID_DIVISIONS, new AsyncCallback<ArrayList<UIGeoCluster>>() {
+          public void onFailure(Throwable caught) {
+            AggregateUI.getUI().reportError(caught);
+          }
 
-    // create a center point, stop at the first gps point found
+          public void onSuccess(ArrayList<UIGeoCluster> result) {
+            chartPanel.clear();
+            chartPanel.add(createMap(result));
+          }
+        });
+  }
+
+  /**
+   * One marker per cluster of submissions, at the centroid of the cluster.
+   */
+  private MapWidget createMap(ArrayList<UIGeoCluster> clusters) {
+    // center on the first cluster
     LatLng center = new LatLng(0.0, 0.0);
-    for (SubmissionUI sub : submissions) {
-      LatLng gpsPoint = getLatLonFromSubmission(latIndex, lonIndex, sub);
-      if (gpsPoint != null) {
-        center = gpsPoint;
-        break;
-      }
+    if (!clusters.isEmpty()) {
+      center = new LatLng(clusters.get(0).getLatitude(), clusters.get(0).getLongitude());
     }
 
     // create mapping area
@@ -440,108 +420,85 @@ public final class VisualizationPopup extends AbstractPopupBase {
     final HasMap map = mapWidget.getMap();
 
     // create the markers
-    for (SubmissionUI sub : submissions) {
-      LatLng gpsPoint = getLatLonFromSubmission(latIndex, lonIndex, sub);
-      if (gpsPoint != null) {
-        final Marker marker = new Marker();
-        marker.setPosition(gpsPoint);
-        marker.setMap(map);
-
-        // marker needs to be added to the map before calling
-        // InfoWindow.open(marker, ...)
-        final SubmissionUI tmpSub = sub;
-        Event.addListener(marker, "mouseover", new MouseEventCallback() {
-
-          @Override
-          public void callback(HasMouseEvent event) {
+    LatLngBounds bounds = null;
+    for (UIGeoCluster cluster : clusters) {
+      LatLng gpsPoint = new LatLng(cluster.getLatitude(), cluster.getLongitude());
+      if (bounds == null) {
+        bounds = new LatLngBounds(gpsPoint, gpsPoint);
+      } else {
+        bounds.extend(gpsPoint);
+      }
+      final Marker marker = new Marker();
+      marker.setPosition(gpsPoint);
+      marker.setTitle(Long.toString(cluster.getCount()));
+      marker.setMap(map);
+
+      // marker needs to be added to the map before calling
+      // InfoWindow.open(marker, ...)
+      final UIGeoCluster tmpCluster = cluster;
+      Event.addListener(marker, "mouseover", new MouseEventCallback() {
+
+        @Override
+        public void callback(HasMouseEvent event) {
+          if ( infoWindow != null ) {
+            infoWindow.close();
+          }
+          infoWindow = new InfoWindow();
+          InfoContentCluster w = new InfoContentCluster(tmpCluster);
+          HTMLPanel container = new HTMLPanel("<div></div>");
+          container.add(w);
+          infoWindow.setContent(container.getElement().getInnerHTML());
+          infoWindow.open(map, marker);
+        }});
+
+      Event.addListener(marker, "mouseout", new MouseEventCallback() {
+
+        @Override
+        public void callback(HasMouseEvent event) {
+          if ( !mapMarkerClicked ) {
             if ( infoWindow != null ) {
               infoWindow.close();
+              infoWindow = null;
             }
-            infoWindow = new InfoWindow();
-            InfoContentSubmission w = createInfoWindowWidget(tmpSub);
-            HTMLPanel container = new HTMLPanel("<div></div>");
-            container.add(w);
-            infoWindow.setContent(container.getElement().getInnerHTML());
-            infoWindow.open(map, marker);
-          }});
-
-        Event.addListener(marker, "mouseout", new MouseEventCallback() {
-
-          @Override
-          public void callback(HasMouseEvent event) {
-            if ( !mapMarkerClicked ) {
-              if ( infoWindow != null ) {
-                infoWindow.close();
-                infoWindow = null;
-              }
-            }
-            mapMarkerClicked = false;
-          }});
+          }
+          mapMarkerClicked = false;
+        }});
 
-        Event.addListener(marker, "click", new MouseEventCallback() {
+      Event.addListener(marker, "click", new MouseEventCallback() {
 
-          @Override
-          public void callback(HasMouseEvent event) {
-            mapMarkerClicked = true;
-          }
+        @Override
+        public void callback(HasMouseEvent event) {
+          mapMarkerClicked = true;
+        }
 
-        });
-      }
+      });
+    }
+    if (bounds != null && clusters.size() > 1) {
+      map.fitBounds(bounds);
     }
     return mapWidget;
   }
 
-  public class InfoContentSubmission extends FlexTable {
+  public class InfoContentCluster extends FlexTable {
 
-    public InfoContentSubmission(ArrayList<Column> tableHeaders, SubmissionUI row) {
+    public InfoContentCluster(UIGeoCluster cluster) {
 
       addStyleName("infoTable");
       getElement().setId("submission_info_table");
 
-      // setup header
-      ArrayList<String> values = row.getValues();
-      for (int headerIndex = 0; headerIndex < tableHeaders.size(); ++headerIndex) {
-        Column column = tableHeaders.get(headerIndex);
-
-        Label txt = new Label(column.getDisplayHeader());
-        txt.setStyleName("infoTableLabel");
-        setWidget(headerIndex, 0, txt);
-
-        String value = values.get(headerIndex);
-        switch (column.getUiDisplayType()) {
-        case BINARY:
-          if (value == null) {
-            Label val = new Label(BasicConsts.EMPTY_STRING);
-            setWidget(headerIndex, 1, val);
-          } else {
-            Image image = new Image(value + UIConsts.PREVIEW_SET);
-            image.addClickHandler(new BinaryPopupClickHandler(value, false));
-            image.setStyleName(UIConsts.PREVIEW_IMAGE_STYLENAME);
-            setWidget(headerIndex, 1, image);
-          }
-          break;
-        case REPEAT:
-          if (value == null) {
-            Label val = new Label(BasicConsts.EMPTY_STRING);
-            setWidget(headerIndex, 1, val);
-          } else {
-            RepeatViewButton repeat = new RepeatViewButton(value);
-            setWidget(headerIndex, 1, repeat);
-          }
-          break;
-        default:
-          {
-            Label val = new Label(value);
-            setWidget(headerIndex, 1, val);
-          }
-        }
-        getWidget(headerIndex, 1).addStyleName("infoTableData");
-      }
+      addRow(0, "Submissions", Long.toString(cluster.getCount()));
+      addRow(1, "Latitude", cluster.getMinLatitude() + " to " + cluster.getMaxLatitude());
+      addRow(2, "Longitude", cluster.getMinLongitude() + " to " + cluster.getMaxLongitude());
     }
-  }
 
-  private InfoContentSubmission createInfoWindowWidget(SubmissionUI submission) {
-    return new InfoContentSubmission(headers, submission);
+    private void addRow(int row, String header, String value) {
+      Label txt = new Label(header);
+      txt.setStyleName("infoTableLabel");
+      setWidget(row, 0, txt);
+      Label val = new Label(value);
+      val.addStyleName("infoTableData");
+      setWidget(row, 1, val);
+    }
   }
 
   private class ExecuteVisualization implements ClickHandler {
@@ -558,22 +515,17 @@ public final class VisualizationPopup extends AbstractPopupBase {
       String chartTypeString = chartType.getSelectedValue();
       ChartType selected = (chartTypeString == null) ? null : ChartType.valueOf(chartTypeString);
 
-      Widget chart;
       switch (selected) {
       case MAP:
-        chart = createMap();
+        requestMap();
         break;
       case PIE_CHART:
-        chart = createPieChart();
-        break;
       case BAR_GRAPH:
-        chart = createBarChart();
+        requestChart(selected);
         break;
       default:
-        chart = null;
+        chartPanel.clear();
       }
-      chartPanel.clear();
-      chartPanel.add(chart);
     }
 
   }
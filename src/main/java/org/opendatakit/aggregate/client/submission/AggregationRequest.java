@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.client.submission;
+
+import java.io.Serializable;
+
+import org.opendatakit.aggregate.constants.common.AggregationBucket;
+
+/**
+ * The grouping and measure of a server-side aggregation of the submissions
+ * matching a filter group.
+ */
+public final class AggregationRequest implements Serializable {
+
+  private static final long serialVersionUID = 6075012476207633186L;
+
+  private Column groupColumn;
+  private AggregationBucket bucket;
+  private String bucketWidth;
+  private Column valueColumn;
+
+  public AggregationRequest() {
+    // GWT
+  }
+
+  /**
+   * @param groupColumn
+   *          the column to group by.
+   * @param bucket
+   *          how the values of the column are grouped.
+   * @param bucketWidth
+   *          the width of RANGE buckets; null to choose one.
+   * @param valueColumn
+   *          the numeric column to sum and average; null to only count.
+   */
+  public AggregationRequest(Column groupColumn, AggregationBucket bucket, String bucketWidth,
+      Column valueColumn) {
+    this.groupColumn = groupColumn;
+    this.bucket = bucket;
+    this.bucketWidth = bucketWidth;
+    this.valueColumn = valueColumn;
+  }
+
+  public Column getGroupColumn() {
+    return groupColumn;
+  }
+
+  public AggregationBucket getBucket() {
+    return bucket;
+  }
+
+  public String getBucketWidth() {
+    return bucketWidth;
+  }
+
+  public Column getValueColumn() {
+    return valueColumn;
+  }
+}
@@ -16,6 +16,8 @@
 
 package org.opendatakit.aggregate.client.submission;
 
+import java.util.ArrayList;
+
 import org.opendatakit.aggregate.client.exception.FormNotAvailableException;
 import org.opendatakit.aggregate.client.exception.RequestFailureException;
 import org.opendatakit.aggregate.client.filter.FilterGroup;
@@ -33,4 +35,8 @@ public interface SubmissionService extends RemoteService {
   SubmissionUISummary getRepeatSubmissions(String keyString) throws AccessDeniedException, FormNotAvailableException, RequestFailureException, DatastoreFailureException;
 
   String getSubmissionAuditCSV(String keyString) throws AccessDeniedException, RequestFailureException, DatastoreFailureException;
+
+  ArrayList<UIAggregateRow> getSubmissionAggregates(FilterGroup filter, AggregationRequest request) throws AccessDeniedException, FormNotAvailableException, RequestFailureException, DatastoreFailureException;
+
+  ArrayList<UIGeoCluster> getGeopointClusters(FilterGroup filter, String geopointElementKey, int gridDivisions) throws AccessDeniedException, FormNotAvailableException, RequestFailureException, DatastoreFailureException;
 }
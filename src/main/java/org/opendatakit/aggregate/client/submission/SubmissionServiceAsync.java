@@ -16,6 +16,8 @@
 
 package org.opendatakit.aggregate.client.submission;
 
+import java.util.ArrayList;
+
 import org.opendatakit.aggregate.client.filter.FilterGroup;
 
 import com.google.gwt.user.client.rpc.AsyncCallback;
@@ -27,4 +29,10 @@ public interface SubmissionServiceAsync {
   void getRepeatSubmissions(String keyString, AsyncCallback<SubmissionUISummary> callback);
 
   void getSubmissionAuditCSV(String keyString, AsyncCallback<String> async);
+
+  void getSubmissionAggregates(FilterGroup filter, AggregationRequest request,
+      AsyncCallback<ArrayList<UIAggregateRow>> callback);
+
+  void getGeopointClusters(FilterGroup filter, String geopointElementKey, int gridDivisions,
+      AsyncCallback<ArrayList<UIGeoCluster>> callback);
 }
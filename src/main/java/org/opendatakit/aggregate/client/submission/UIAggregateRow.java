@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.client.submission;
+
+import java.io.Serializable;
+
+/**
+ * The aggregates of one group of submissions.
+ */
+public final class UIAggregateRow implements Serializable {
+
+  private static final long serialVersionUID = -2871939126083311642L;
+
+  private String label;
+  private long count;
+  private long valueCount;
+  private Double sum;
+  private Double min;
+  private Double max;
+
+  public UIAggregateRow() {
+    // GWT
+  }
+
+  public UIAggregateRow(String label, long count, long valueCount, Double sum, Double min,
+      Double max) {
+    this.label = label;
+    this.count = count;
+    this.valueCount = valueCount;
+    this.sum = sum;
+    this.min = min;
+    this.max = max;
+  }
+
+  public String getLabel() {
+    return label;
+  }
+
+  /**
+   * @return the number of submissions (or choices or repeats) in the group.
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * @return the number of non-empty values of the measured column.
+   */
+  public long getValueCount() {
+    return valueCount;
+  }
+
+  /**
+   * @return the sum of the measured column, or null if none.
+   */
+  public Double getSum() {
+    return sum;
+  }
+
+  /**
+   * @return the average of the measured column, or null if none.
+   */
+  public Double getAverage() {
+    if (sum == null || valueCount == 0L) {
+      return null;
+    }
+    return sum / valueCount;
+  }
+
+  public Double getMin() {
+    return min;
+  }
+
+  public Double getMax() {
+    return max;
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.client.submission;
+
+import java.io.Serializable;
+
+/**
+ * The submissions whose geopoints fall within one cell of a grid laid over
+ * their bounding box.
+ */
+public final class UIGeoCluster implements Serializable {
+
+  private static final long serialVersionUID = 8311476907402208315L;
+
+  private long count;
+  private double latitude;
+  private double longitude;
+  private double minLatitude;
+  private double maxLatitude;
+  private double minLongitude;
+  private double maxLongitude;
+
+  public UIGeoCluster() {
+    // GWT
+  }
+
+  public UIGeoCluster(long count, double latitude, double longitude, double minLatitude,
+      double maxLatitude, double minLongitude, double maxLongitude) {
+    this.count = count;
+    this.latitude = latitude;
+    this.longitude = longitude;
+    this.minLatitude = minLatitude;
+    this.maxLatitude = maxLatitude;
+    this.minLongitude = minLongitude;
+    this.maxLongitude = maxLongitude;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * @return the latitude of the centroid of the cluster.
+   */
+  public double getLatitude() {
+    return latitude;
+  }
+
+  /**
+   * @return the longitude of the centroid of the cluster.
+   */
+  public double getLongitude() {
+    return longitude;
+  }
+
+  public double getMinLatitude() {
+    return minLatitude;
+  }
+
+  public double getMaxLatitude() {
+    return maxLatitude;
+  }
+
+  public double getMinLongitude() {
+    return minLongitude;
+  }
+
+  public double getMaxLongitude() {
+    return maxLongitude;
+  }
+}
@@ -20,7 +20,9 @@ import java.util.ArrayList;
 
 import org.opendatakit.aggregate.client.form.ExportSummary;
 import org.opendatakit.aggregate.client.widgets.DeleteExportButton;
+import org.opendatakit.aggregate.client.widgets.ExportNewSubmissionsButton;
 import org.opendatakit.aggregate.constants.common.ExportStatus;
+import org.opendatakit.aggregate.constants.common.ExportType;
 
 import com.google.gwt.user.client.ui.FlexTable;
 import com.google.gwt.user.client.ui.HTML;
@@ -35,6 +37,7 @@ public class ExportTable extends FlexTable {
   private final static int TIME_COMPLETED = 2;
   private final static int DOWNLOAD_FILE = 3;
   private final static int DELETE = 4;
+  private final static int NEW_SUBMISSIONS = 5;
 
   private final static int HEADER_ROW = 1;
   private final static int STARTING_ROW = HEADER_ROW + 1;
@@ -47,6 +50,7 @@ public class ExportTable extends FlexTable {
     this.setText(HEADER_ROW, TIME_COMPLETED, "Time Completed");
     this.setText(HEADER_ROW, DOWNLOAD_FILE, "Download File");
     this.setText(HEADER_ROW, DELETE, "Delete");
+    this.setText(HEADER_ROW, NEW_SUBMISSIONS, "Export New Submissions");
     this.addStyleName("exportTable");
     this.getRowFormatter().addStyleName(1, "titleBar");
   }
@@ -69,6 +73,9 @@ public class ExportTable extends FlexTable {
         this.setText(i + STARTING_ROW, STATUS, e.getStatus().toString());
         if (e.getResultFile() != null && e.getStatus() == ExportStatus.AVAILABLE) {
           this.setWidget(i + STARTING_ROW, DOWNLOAD_FILE, new HTML(e.getResultFile()));
+          if (e.getFileType() == ExportType.CSV) {
+            this.setWidget(i + STARTING_ROW, NEW_SUBMISSIONS, new ExportNewSubmissionsButton(e));
+          }
         }
       }
       this.setWidget(i + STARTING_ROW, DELETE, new DeleteExportButton(e));
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.client.widgets;
+
+import org.opendatakit.aggregate.client.form.ExportSummary;
+import org.opendatakit.aggregate.client.popups.ConfirmIncrementalExportPopup;
+
+import com.google.gwt.event.dom.client.ClickEvent;
+import com.google.gwt.event.dom.client.ClickHandler;
+
+/**
+ * Export the submissions received since a completed csv export.
+ * 
+ */
+public final class ExportNewSubmissionsButton extends AggregateButton implements ClickHandler {
+
+  private static final String BUTTON_TXT = "<img src=\"images/yellow_plus.png\" /> New Submissions";
+  private static final String TOOLTIP_TEXT = "Export submissions received since this file";
+  private static final String HELP_BALLOON_TXT = "This exports only the submissions received since "
+      + "this datafile was created.";
+
+  private final ExportSummary export;
+
+  public ExportNewSubmissionsButton(ExportSummary export) {
+    super(BUTTON_TXT, TOOLTIP_TEXT, HELP_BALLOON_TXT);
+    this.export = export;
+  }
+
+  @Override
+  public void onClick(ClickEvent event) {
+    super.onClick(event);
+
+    ConfirmIncrementalExportPopup popup = new ConfirmIncrementalExportPopup(export);
+    popup.setPopupPositionAndShow(popup.getPositionCallBack());
+  }
+}
@@ -32,6 +32,7 @@ public class BeanDefs {
   public static final String KML_BEAN = "kml_task";
   public static final String CSV_BEAN = "csv_task";
   public static final String JSON_FILE_BEAN = "json_file_task";
+  public static final String ARROW_FILE_BEAN = "arrow_file_task";
   public static final String WORKSHEET_BEAN = "worksheet_creator";
   public static final String IMAGE_UTIL = "image_util";
   public static final String WATCHDOG = "watchdog";
@@ -36,6 +36,11 @@ public final class ErrorConsts {
       "Form not found";
   public static final String FORM_DEFINITION_INVALID =
       "Form definition incomplete or missing";
+  /**
+   * Error message if the older submissions of a form are still being summarized
+   */
+  public static final String SUBMISSION_SUMMARY_PENDING =
+      "The submissions of this form are still being tallied; try again in a few minutes";
   /**
    * Error message for if key was not successfully part of the request
    */
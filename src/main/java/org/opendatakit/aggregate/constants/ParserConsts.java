@@ -59,6 +59,12 @@ public final class ParserConsts {
    */
   public final static int FILE_SIZE_MAX = 5000000;
 
+  /**
+   * The max size of a file uploaded through the resumable upload protocol.
+   * Each chunk of the upload is limited to FILE_SIZE_MAX.
+   */
+  public final static long RESUMABLE_UPLOAD_LENGTH_MAX = 100000000L;
+
   /**
    * Namespace of ODK extensions to the OpenRosa standards
    */
@@ -41,6 +41,21 @@ public final class ServletConsts {
 
   public static final String OPEN_ROSA_ACCEPT_CONTENT_LENGTH_HEADER = "X-OpenRosa-Accept-Content-Length";
 
+  public static final String ETAG_HEADER = "ETag";
+  public static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+
+  public static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+  public static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+  public static final String GZIP_ENCODING = "gzip";
+
+  /**
+   * Headers of the resumable upload protocol (tus 1.0.0 subset)
+   */
+  public static final String TUS_RESUMABLE_HEADER = "Tus-Resumable";
+  public static final String TUS_VERSION = "1.0.0";
+  public static final String UPLOAD_LENGTH_HEADER = "Upload-Length";
+  public static final String UPLOAD_OFFSET_HEADER = "Upload-Offset";
+
   /**
    * Flag on submissions and form uploads indicating that this is
    * a partial submission or form upload.
@@ -64,6 +79,15 @@ public final class ServletConsts {
    */
   public static final String FORM_ID = "formId";
 
+  /**
+   * For resumable uploads:
+   * the uri of the upload, and the submission attachment being uploaded.
+   */
+  public static final String UPLOAD_ID = "uploadId";
+  public static final String INSTANCE_ID = "instanceID";
+  public static final String FILE_NAME = "fileName";
+  public static final String CONTENT_TYPE = "contentType";
+
   /**
    * For OdkTables:
    * The argument for a tableId.
@@ -116,10 +140,14 @@ public final class ServletConsts {
 
   public static final String CSV_FILENAME_APPEND = "_results.csv";
 
+  public static final String CSV_SEGMENT_FILENAME_APPEND = "_new_results.csv";
+
   public static final String KML_FILENAME_APPEND = "_results.kml";
 
   public static final String JSON_FILENAME_APPEND = "_results.json";
 
+  public static final String ARROW_FILENAME_APPEND = "_results_arrow.zip";
+
   public static final String RECORD_KEY = "record";
 
   public static final int EXPORT_CURSOR_CHUNK_SIZE = 100;
@@ -133,6 +161,11 @@ public final class ServletConsts {
    * cursor (fragmented Csv servlet).
    */
   public static final String NUM_ENTRIES = "numEntries";
+  /**
+   * The name of the parameter that selects the output format (json or xml) of
+   * the bulk submission download.
+   */
+  public static final String FORMAT = "format";
 
   public static final String CHECK_INTERVAL_PARAM = "checkIntervalMilliseconds";
 
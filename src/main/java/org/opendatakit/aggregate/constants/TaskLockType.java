@@ -30,6 +30,8 @@ public enum TaskLockType implements ITaskLockType {
   FORM_DELETION(120000, PersistConsts.MIN_SETTLE_MILLISECONDS),
   PURGE_OLDER_SUBMISSIONS(120000, PersistConsts.MIN_SETTLE_MILLISECONDS),
   STARTUP_SERIALIZATION(120000, PersistConsts.MIN_SETTLE_MILLISECONDS),
+  JOB_CLAIM(30000, PersistConsts.MIN_SETTLE_MILLISECONDS),
+  SUMMARIZE_SUBMISSIONS(120000, PersistConsts.MIN_SETTLE_MILLISECONDS),
   CREATE_FORM(60000+2*PersistConsts.MAX_SETTLE_MILLISECONDS, PersistConsts.MIN_SETTLE_MILLISECONDS); // 60 second request timeout, 2x settle for replication delay
   
   private long timeout;
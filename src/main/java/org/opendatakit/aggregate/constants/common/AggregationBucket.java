@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.constants.common;
+
+import java.io.Serializable;
+
+/**
+ * How the values of a column are grouped when submissions are aggregated.
+ */
+public enum AggregationBucket implements Serializable {
+  VALUE("Each Value"),
+  RANGE("Numeric Ranges"),
+  YEAR("Year"),
+  MONTH("Month"),
+  DAY("Day");
+
+  private String displayText;
+
+  private AggregationBucket() {
+    // GWT
+  }
+
+  private AggregationBucket(String display) {
+    displayText = display;
+  }
+
+  public String getDisplayText() {
+    return displayText;
+  }
+
+  public String toString() {
+    return displayText;
+  }
+}
@@ -40,6 +40,13 @@ public class UIConsts {
 
   public static final String ENKETO_SERVICE_ACCOUNT_PRIVATE_KEY_UPLOAD_ADDR = "ssl/enketo-service-account";
   public static final String ENKETO_API_HANDLER_ADDR = "enk/enketoApiHandler";
+  public static final String CHANGE_VERSIONS_ADDR = "changeVersions";
+  // areas whose change versions are served by CHANGE_VERSIONS_ADDR
+  public static final String CHANGE_AREA_FORMS = "forms";
+  public static final String CHANGE_AREA_EXPORTS = "exports";
+  public static final String CHANGE_AREA_PUBLISHERS = "publishers";
+  // followed by the formId
+  public static final String CHANGE_AREA_SUBMISSIONS_PREFIX = "submissions:";
 
   // url pattern for uploading files associated with ODKTables tables
   public static final String APP_LEVEL_FILE_UPLOAD_SERVLET_ADDR =
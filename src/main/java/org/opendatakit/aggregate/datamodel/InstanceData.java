@@ -70,6 +70,8 @@ public final class InstanceData extends DynamicBase {
      */
     public InstanceData(String databaseSchema, String tableName) {
         super(databaseSchema, tableName);
+        // supports filtering and aggregating submissions on the values in this table
+        addCompositeIndex(topLevelAuri, parentAuri);
     }
 
     /**
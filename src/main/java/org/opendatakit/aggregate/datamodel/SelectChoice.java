@@ -50,6 +50,8 @@ public final class SelectChoice extends DynamicBase {
     public SelectChoice(String databaseSchema, String tableName) {
         super(databaseSchema, tableName);
         fieldList.add(value = new DataField(VALUE));
+        // supports filtering and aggregating submissions on the chosen values
+        addCompositeIndex(topLevelAuri, parentAuri);
     }
     
     /**
@@ -84,6 +84,12 @@ public abstract class TopLevelDynamicBase extends DynamicCommonFieldsBase {
         fieldList.add(isComplete=new DataField(IS_COMPLETE));
         fieldList.add(submissionDate=new DataField(SUBMISSION_DATE));
         fieldList.add(markedAsCompleteDate=new DataField(MARKED_AS_COMPLETE_DATE));
+
+        // indexes for the cursor queries that list submissions; these sort by
+        // a date and then by _URI, generally restricted by _IS_COMPLETE
+        addCompositeIndex(isComplete, markedAsCompleteDate, primaryKey);
+        addCompositeIndex(isComplete, lastUpdateDate, primaryKey);
+        addCompositeIndex(lastUpdateDate, primaryKey);
     }
 
     /**
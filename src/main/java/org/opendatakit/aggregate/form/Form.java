@@ -29,6 +29,7 @@ import java.util.TreeSet;
 import org.opendatakit.aggregate.client.form.FormSummary;
 import org.opendatakit.aggregate.constants.HtmlUtil;
 import org.opendatakit.aggregate.constants.ServletConsts;
+import org.opendatakit.aggregate.datamodel.FormDataModel;
 import org.opendatakit.aggregate.datamodel.FormElementModel;
 import org.opendatakit.aggregate.datamodel.FormElementModel.ElementType;
 import org.opendatakit.aggregate.parser.MultiPartFormItem;
@@ -37,7 +38,9 @@ import org.opendatakit.aggregate.submission.SubmissionKey;
 import org.opendatakit.aggregate.submission.SubmissionKeyPart;
 import org.opendatakit.common.datamodel.BinaryContentManipulator;
 import org.opendatakit.common.datamodel.BinaryContentManipulator.BlobSubmissionOutcome;
+import org.opendatakit.common.datamodel.BinaryContentRefBlob;
 import org.opendatakit.common.datamodel.DynamicCommonFieldsBase;
+import org.opendatakit.common.datamodel.RefBlob;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.EntityKey;
@@ -183,6 +186,8 @@ class Form implements IForm {
     if (formDefinition != null) {
       formDefinition.persistSubmissionAssociation(cc);
     }
+    // also clears the FormResponseCache
+    FormFactory.formsChanged(cc);
   }
 
   /**
@@ -194,6 +199,7 @@ class Form implements IForm {
    */
   public synchronized void deleteForm(CallingContext cc) throws ODKDatastoreException {
     FormFactory.clearForm(this);
+    FormResponseCache.clear();
     if (formDefinition != null) {
       // delete the data model normally
       formDefinition.deleteDataModel(cc);
@@ -209,6 +215,7 @@ class Form implements IForm {
     xform.deleteAll(cc);
     ds.deleteEntity(filesetRow.getEntityKey(), user);
     ds.deleteEntity(infoRow.getEntityKey(), user);
+    FormFactory.formsChanged(cc);
   }
 
   /**
@@ -511,6 +518,26 @@ class Form implements IForm {
       getAllBackingObjectsHelper(m, set);
     }
   }
+
+  public Map<BinaryContentRefBlob, RefBlob> getAllAttachmentRelations() {
+    Map<BinaryContentRefBlob, RefBlob> map = new HashMap<BinaryContentRefBlob, RefBlob>();
+    getAllAttachmentRelationsHelper(getTopLevelGroupElement(), map);
+    return map;
+  }
+
+  private void getAllAttachmentRelationsHelper(FormElementModel current,
+      Map<BinaryContentRefBlob, RefBlob> map) {
+    for (FormElementModel m : current.getChildren()) {
+      if (m.getElementType() == ElementType.BINARY) {
+        // the _REF and _BLB tables are hidden beneath the binary element
+        FormDataModel ctntRefDataModel = m.getFormDataModel().getChildren().get(0);
+        FormDataModel blobModel = ctntRefDataModel.getChildren().get(0);
+        map.put((BinaryContentRefBlob) ctntRefDataModel.getBackingObjectPrototype(),
+            (RefBlob) blobModel.getBackingObjectPrototype());
+      }
+      getAllAttachmentRelationsHelper(m, map);
+    }
+  }
   
   public List<FormElementModel> getRepeatGroupsInModel() {
     List<FormElementModel> list = new ArrayList<FormElementModel>();
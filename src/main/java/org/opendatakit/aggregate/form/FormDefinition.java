@@ -20,6 +20,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,6 +35,7 @@ import org.opendatakit.common.datamodel.BinaryContentRefBlob;
 import org.opendatakit.common.datamodel.DeleteHelper;
 import org.opendatakit.common.datamodel.DynamicCommonFieldsBase;
 import org.opendatakit.common.datamodel.RefBlob;
+import org.opendatakit.common.persistence.CacheInvalidationBus;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.Datastore;
@@ -70,9 +72,29 @@ public class FormDefinition {
      * If forms are deleted and reloaded, they get a different key each time.
      * The key is defined in the SubmissionAssociationTable.
      *
-     * NOTE: should only be accessed via synchronized methods to get or remove forms.
+     * NOTE: entries are added only within synchronized methods; the invalidation bus
+     * may remove them at any time.
      */
-    private static final Map<String, FormDefinition> formDefinitions = new HashMap<String, FormDefinition>();
+    private static final Map<String, FormDefinition> formDefinitions = new ConcurrentHashMap<String, FormDefinition>();
+
+    /**
+     * Invalidation topic of a deleted definition; followed by its uriSubmissionDataModel.
+     */
+    private static final String DEFINITION_TOPIC_PREFIX = "formDefinition:";
+
+    static {
+        // definitions deleted on this or another server
+        CacheInvalidationBus.subscribe(DEFINITION_TOPIC_PREFIX, new CacheInvalidationBus.Listener() {
+            @Override
+            public void invalidated(String topic) {
+                if ( topic == null ) {
+                    formDefinitions.clear();
+                } else {
+                    formDefinitions.remove(topic.substring(DEFINITION_TOPIC_PREFIX.length()));
+                }
+            }
+        });
+    }
 
     /** the entity that defines the mapping of the form id to this data model */
     private final SubmissionAssociationTable submissionAssociation;
@@ -256,6 +278,14 @@ public class FormDefinition {
         formDefinitions.remove(uriSubmissionDataModel);
     }
 
+    /**
+     * Forget the definition here and on the other servers.
+     */
+    private static final void forgetEverywhere(String uriSubmissionDataModel, CallingContext cc) {
+        CacheInvalidationBus.publish(DEFINITION_TOPIC_PREFIX + uriSubmissionDataModel,
+            cc.getDatastore(), cc.getCurrentUser());
+    }
+
     public FormDefinition(SubmissionAssociationTable sa, String formId, List<?> formDataModelList, CallingContext cc) {
         this.submissionAssociation = sa;
         this.formId = formId;
@@ -561,7 +591,7 @@ public class FormDefinition {
                     // and delete the SA record
                     ds.deleteEntity(sa.getEntityKey(), user);
                     // just in case...
-                    forget(uriSubmissionDataModel);
+                    forgetEverywhere(uriSubmissionDataModel, cc);
 
                     // and see if we have anything more to clean up...
                     sa = getSubmissionAssociation( formId, true, cc );
@@ -588,6 +618,15 @@ public class FormDefinition {
         // forget us in the local cache...
         forget(submissionAssociation.getUriSubmissionDataModel());
 
+        // drop the tables while the FDM still describes them. A failure
+        // propagates so that the delete task fails and is retried; the
+        // retry skips the tables that are already gone.
+        for ( CommonFieldsBase b : getBackingTableSet()) {
+            if ( ds.hasRelation(b.getSchemaName(), b.getTableName(), user) ) {
+                ds.dropRelation(b, user);
+            }
+        }
+
         List<EntityKey> eks = new ArrayList<EntityKey>();
         // queue everything in the formDataModel for delete
         for ( FormDataModel m : elementList ) {
@@ -596,19 +635,10 @@ public class FormDefinition {
         // delete everything out of FDM
        DeleteHelper.deleteEntities(eks, cc);
 
-        // drop the tables...
-        for ( CommonFieldsBase b : getBackingTableSet()) {
-            try {
-                ds.dropRelation(b, user);
-            } catch ( ODKDatastoreException e ) {
-                e.printStackTrace();
-            }
-        }
-
         // delete the SA table linking to the model (orphans the model)...
         ds.deleteEntity(submissionAssociation.getEntityKey(), user);
-        // forget us in the local cache (optimization...)
-        forget(submissionAssociation.getUriSubmissionDataModel());
+        // forget us here and on the other servers
+        forgetEverywhere(submissionAssociation.getUriSubmissionDataModel(), cc);
     }
 
     public void persistSubmissionAssociation(CallingContext cc) throws ODKEntityPersistException, ODKOverQuotaException {
@@ -23,6 +23,7 @@ import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
 import org.opendatakit.aggregate.parser.FormParserForJavaRosa;
 import org.opendatakit.aggregate.submission.SubmissionKeyPart;
 import org.opendatakit.aggregate.util.BackendActionsTable;
+import org.opendatakit.common.persistence.CacheInvalidationBus;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.PersistConsts;
@@ -34,6 +35,7 @@ import org.opendatakit.common.security.User;
 import org.opendatakit.common.web.CallingContext;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Factory class for managing Form objects.
@@ -46,16 +48,43 @@ public class FormFactory {
 
   private static final Logger logger = LoggerFactory.getLogger(FormFactory.class);
 
+  /**
+   * Invalidation topic published whenever a form is created, changed or
+   * deleted.
+   */
+  public static final String FORMS_TOPIC = "forms";
+
+  /**
+   * Backstop for changes that were not published. 2 minutes.
+   */
+  private static final long CACHE_LIFETIME_MILLISECONDS = 2L * 60000L;
+
   private static long cacheTimestamp = 0L;
+  private static long lastWatchdogCheckTimestamp = 0L;
   private static final List<IForm> cache = new LinkedList<IForm>();
 
+  // advanced whenever FORMS_TOPIC is published; the cache is current if it
+  // was loaded at the latest value.
+  private static final AtomicLong invalidationCount = new AtomicLong(0L);
+  private static long cacheInvalidationCount = -1L;
+
+  static {
+    CacheInvalidationBus.subscribe(FORMS_TOPIC, new CacheInvalidationBus.Listener() {
+      @Override
+      public void invalidated(String topic) {
+        invalidationCount.incrementAndGet();
+      }
+    });
+  }
+
   private FormFactory() {};
 
   /**
    * Return the list of forms in the database.
    * If topLevelAuri is null, return all forms. Otherwise, return the form with the matching URI.
    * This is the main interface to the cache of form objects.  The cache is refreshed as a whole
-   * every PersistConsts.MAX_SETTLE_MILLISECONDS.
+   * when FORMS_TOPIC is published on this or another server, or every
+   * CACHE_LIFETIME_MILLISECONDS otherwise.
    *
    * @param topLevelAuri
    * @param cc
@@ -67,15 +96,11 @@ public class FormFactory {
       throws ODKOverQuotaException, ODKDatastoreException {
 
     List<IForm> forms = new ArrayList<IForm>();
-    if ( cacheTimestamp + PersistConsts.MAX_SETTLE_MILLISECONDS > System.currentTimeMillis() ) {
-      // TODO: This cache should reside in MemCache.  Right now, different running
-      // servers might see different Form definitions for up to the settle time.
-      //
-      // Since the datastore is treated as having a settle time of MAX_SETTLE_MILLISECONDS,
-      // we should rely on the cache for that time interval.  Without MemCache-style
-      // support, this is somewhat problematic since different server instances might
-      // see different versions of the same Form.
-      //
+    // pick up the changes made on other servers
+    CacheInvalidationBus.poll(cc.getDatastore(), cc.getCurrentUser());
+    long currentInvalidationCount = invalidationCount.get();
+    if ( cacheInvalidationCount == currentInvalidationCount &&
+         cacheTimestamp + CACHE_LIFETIME_MILLISECONDS > System.currentTimeMillis() ) {
       logger.info("FormCache: using cached list of Forms");
     } else {
       // we have a fairly stale list of forms -- interrogate the database
@@ -135,9 +160,14 @@ public class FormFactory {
       // space out the updates because the cacheTimestamp is established after all
       // the datastore accesses.
       cacheTimestamp = System.currentTimeMillis();
+      // a change published during the refresh forces another one.
+      cacheInvalidationCount = currentInvalidationCount;
+    }
 
+    if ( lastWatchdogCheckTimestamp + PersistConsts.MAX_SETTLE_MILLISECONDS < System.currentTimeMillis() ) {
       // test to see if we need to trigger the watchdog
       BackendActionsTable.triggerWatchdog(cc);
+      lastWatchdogCheckTimestamp = System.currentTimeMillis();
     }
 
     for (IForm v : cache) {
@@ -154,6 +184,15 @@ public class FormFactory {
     cacheTimestamp = System.currentTimeMillis();
   }
 
+  /**
+   * Tell this and the other servers to refresh their lists of forms.
+   *
+   * @param cc
+   */
+  public static void formsChanged(CallingContext cc) {
+    CacheInvalidationBus.publish(FORMS_TOPIC, cc.getDatastore(), cc.getCurrentUser());
+  }
+
   /**
    * Common private static method through which all Form objects are obtained.
    * This provides a cache of the form data.  If known, the top-level object's
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2018 University of Washington.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.form;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.opendatakit.common.persistence.CacheInvalidationBus;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of the rendered OpenRosa documents (form list, manifests and form
+ * definition files) that ODK Collect polls. Each cached document carries a
+ * strong ETag computed from its content, which includes the form versions and
+ * the xform and media file hashes. Clients presenting a matching ETag can be
+ * answered with 304 Not Modified without touching the datastore.
+ *
+ * The cache is cleared whenever a Form is persisted or deleted on this server.
+ * Changes made on other servers become visible once the entry ages past
+ * CACHE_VALIDITY_MILLISECONDS.
+ */
+public class FormResponseCache {
+
+  private static final Logger logger = LoggerFactory.getLogger(FormResponseCache.class);
+
+  /**
+   * How long a rendered document is served without re-reading the datastore.
+   */
+  public static final long CACHE_VALIDITY_MILLISECONDS = 30000L;
+
+  /**
+   * Bound on the number of cached documents (distinct server URLs, form ids
+   * and request options).
+   */
+  private static final int MAX_CACHED_RESPONSES = 500;
+
+  public static final class CachedResponse {
+    private final String etag;
+    private final String body;
+    private final String filename;
+    private final long timestamp;
+
+    private CachedResponse(String body, String filename) {
+      String md5 = CommonFieldsBase.newMD5HashUri(body);
+      this.etag = "\"" + md5.substring(md5.indexOf(':') + 1) + "\"";
+      this.body = body;
+      this.filename = filename;
+      this.timestamp = System.currentTimeMillis();
+    }
+
+    public String getETag() {
+      return etag;
+    }
+
+    public String getBody() {
+      return body;
+    }
+
+    /**
+     * @return the attachment filename to report, or null if none.
+     */
+    public String getFilename() {
+      return filename;
+    }
+
+    /**
+     * Determine whether the If-None-Match header value matches this document.
+     *
+     * @param ifNoneMatch
+     *          the header value (may be null, '*' or a list of ETags)
+     * @return true if the client already holds this document
+     */
+    public boolean matches(String ifNoneMatch) {
+      if (ifNoneMatch == null) {
+        return false;
+      }
+      for (String candidate : ifNoneMatch.split(",")) {
+        String tag = candidate.trim();
+        if (tag.equals("*") || tag.equals(etag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private static final Map<String, CachedResponse> cache = new HashMap<String, CachedResponse>();
+
+  static {
+    // forms changed on this or another server
+    CacheInvalidationBus.subscribe(FormFactory.FORMS_TOPIC, new CacheInvalidationBus.Listener() {
+      @Override
+      public void invalidated(String topic) {
+        clear();
+      }
+    });
+  }
+
+  private FormResponseCache() {
+  };
+
+  /**
+   * Construct the cache key for a document.
+   *
+   * @param addr
+   *          the servlet address producing the document
+   * @param serverUrl
+   *          the server URL embedded in download links
+   * @param parameters
+   *          the request options affecting the content
+   * @return
+   */
+  public static String getKey(String addr, String serverUrl, Object... parameters) {
+    StringBuilder b = new StringBuilder();
+    b.append(addr).append('|').append(serverUrl);
+    for (Object p : parameters) {
+      b.append('|').append(p);
+    }
+    return b.toString();
+  }
+
+  /**
+   * @param key
+   * @return the cached document if it is still within its validity window;
+   *         null otherwise.
+   */
+  public static synchronized CachedResponse get(String key) {
+    CachedResponse r = cache.get(key);
+    if (r == null) {
+      return null;
+    }
+    if (r.timestamp + CACHE_VALIDITY_MILLISECONDS < System.currentTimeMillis()) {
+      cache.remove(key);
+      return null;
+    }
+    return r;
+  }
+
+  public static synchronized CachedResponse put(String key, String body, String filename) {
+    if (cache.size() >= MAX_CACHED_RESPONSES) {
+      logger.info("FormResponseCache: clearing full cache");
+      cache.clear();
+    }
+    CachedResponse r = new CachedResponse(body, filename);
+    cache.put(key, r);
+    return r;
+  }
+
+  /**
+   * Called whenever any form definition, media file or form setting changes.
+   */
+  public static synchronized void clear() {
+    cache.clear();
+  }
+}
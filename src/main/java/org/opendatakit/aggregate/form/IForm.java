@@ -30,7 +30,9 @@ import org.opendatakit.aggregate.submission.SubmissionKey;
 import org.opendatakit.aggregate.submission.SubmissionKeyPart;
 import org.opendatakit.common.datamodel.BinaryContentManipulator;
 import org.opendatakit.common.datamodel.BinaryContentManipulator.BlobSubmissionOutcome;
+import org.opendatakit.common.datamodel.BinaryContentRefBlob;
 import org.opendatakit.common.datamodel.DynamicCommonFieldsBase;
+import org.opendatakit.common.datamodel.RefBlob;
 import org.opendatakit.common.persistence.EntityKey;
 import org.opendatakit.common.persistence.PersistConsts;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
@@ -233,6 +235,14 @@ public interface IForm {
    */
   public Set<DynamicCommonFieldsBase> getAllBackingObjects();
 
+  /**
+   * Used when recovering from data corruption
+   * 
+   * @return the blob relation of each binary element, keyed by the element's
+   *         reference relation.
+   */
+  public Map<BinaryContentRefBlob, RefBlob> getAllAttachmentRelations();
+
   public List<FormElementModel> getRepeatGroupsInModel();
   
   public Map<String, FormElementModel> getRepeatElementModels();
@@ -15,6 +15,7 @@
  */
 package org.opendatakit.aggregate.form;
 
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -40,6 +41,7 @@ import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.PersistConsts;
 import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.QueryResumePoint;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
@@ -61,6 +63,22 @@ public class PersistentResults {
 
   public static final String FORM_ID_PERSISTENT_RESULT = "aggregate.opendatakit.org:PersistentResults";
 
+  // Request parameters of CSV exports. The incremental export state is kept in
+  // the request parameters so that existing PersistentResults tables need not
+  // be altered.
+  /** lastUpdateDate cursor from which an incremental export of this CSV export continues */
+  public static final String CSV_RESUME_CURSOR = "csvResumeCursor";
+  /** uri of the export an incremental CSV export continues from */
+  public static final String CSV_BASE_EXPORT_URI = "csvBaseExportUri";
+  /** cursor of the base export at the time the incremental export was requested */
+  public static final String CSV_START_CURSOR = "csvStartCursor";
+  /** "true" if the export is a complete file rather than a segment of new submissions */
+  public static final String CSV_COMPACT = "csvCompact";
+
+  // the result file of an attempt is stored under the export's uri followed
+  // by this separator and the attempt count until it is committed
+  private static final String ATTEMPT_KEY_SEPARATOR = ":attempt:";
+
   private final PersistentResultsTable row;
 
   private final BinaryContentManipulator bcm;
@@ -176,6 +194,67 @@ public class PersistentResults {
     }
   }
 
+  private String getRequestParameter(String key) throws ODKDatastoreException {
+    return getRequestParameters().get(key);
+  }
+
+  private void setRequestParameter(String key, String value) throws ODKDatastoreException {
+    Map<String, String> parameters = getRequestParameters();
+    if (value == null) {
+      parameters.remove(key);
+    } else {
+      parameters.put(key, value);
+    }
+    setRequestParameters(parameters);
+  }
+
+  /**
+   * @return the lastUpdateDate cursor from which an incremental export of this
+   *         CSV export continues, or null if it should start from the first
+   *         submission.
+   * @throws ODKDatastoreException
+   */
+  public QueryResumePoint getCsvResumeCursor() throws ODKDatastoreException {
+    String cursor = getRequestParameter(CSV_RESUME_CURSOR);
+    return (cursor == null) ? null : QueryResumePoint.fromWebsafeCursor(cursor);
+  }
+
+  public void setCsvResumeCursor(QueryResumePoint cursor) throws ODKDatastoreException {
+    setRequestParameter(CSV_RESUME_CURSOR, (cursor == null) ? null : cursor.asWebsafeCursor());
+  }
+
+  /**
+   * @return the cursor from which an incremental CSV export starts, or null
+   *         if it should start from the first submission.
+   * @throws ODKDatastoreException
+   */
+  public QueryResumePoint getCsvStartCursor() throws ODKDatastoreException {
+    String cursor = getRequestParameter(CSV_START_CURSOR);
+    return (cursor == null) ? null : QueryResumePoint.fromWebsafeCursor(cursor);
+  }
+
+  /**
+   * @return the uri of the export this incremental CSV export continues from,
+   *         or null if this is a full export.
+   * @throws ODKDatastoreException
+   */
+  public String getCsvBaseExportUri() throws ODKDatastoreException {
+    return getRequestParameter(CSV_BASE_EXPORT_URI);
+  }
+
+  public boolean isCsvCompacted() throws ODKDatastoreException {
+    return Boolean.valueOf(getRequestParameter(CSV_COMPACT));
+  }
+
+  /**
+   * @return true if the file of this CSV export holds only the submissions
+   *         that followed its base export (i.e., it is not a complete file).
+   * @throws ODKDatastoreException
+   */
+  public boolean isCsvSegment() throws ODKDatastoreException {
+    return getCsvBaseExportUri() != null && !isCsvCompacted();
+  }
+
   public Date getLastRetryDate() {
     return row.getDateField(PersistentResultsTable.LAST_RETRY_DATE);
   }
@@ -269,6 +348,60 @@ public class PersistentResults {
     bcm.setValueFromByteArray(byteArray, contentType, unrootedFilePath, overwriteOK, cc);
   }
 
+  /**
+   * Open the result file of an attempt for writing. The file is stored as it
+   * is written, apart from the result file of this export and of any other
+   * attempt, and replaces the result file only when committed. A stale
+   * attempt that is still writing therefore cannot corrupt the file of a
+   * newer one. Anything left behind by an earlier run of the same attempt is
+   * deleted first.
+   *
+   * @param attemptCount
+   * @param contentType
+   * @param unrootedFilePath
+   * @param cc
+   * @return the stream to write the result file to.
+   * @throws ODKDatastoreException
+   */
+  public OutputStream openResultFile(Long attemptCount, String contentType,
+      String unrootedFilePath, CallingContext cc) throws ODKDatastoreException {
+    BinaryContentManipulator attemptBcm = getAttemptManipulator(attemptCount, cc);
+    attemptBcm.deleteAll(cc);
+    return attemptBcm.newAttachmentOutputStream(contentType, unrootedFilePath, cc);
+  }
+
+  /**
+   * Replace the result file with the one written by the given attempt. The
+   * caller must have just verified that the attempt is still the active one.
+   *
+   * @param attemptCount
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public void commitResultFile(Long attemptCount, CallingContext cc)
+      throws ODKDatastoreException {
+    bcm.replaceAttachments(getAttemptManipulator(attemptCount, cc), cc);
+  }
+
+  /**
+   * Delete the result file written by the given attempt, if it was not
+   * committed.
+   *
+   * @param attemptCount
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public void deleteResultFile(Long attemptCount, CallingContext cc)
+      throws ODKDatastoreException {
+    getAttemptManipulator(attemptCount, cc).deleteAll(cc);
+  }
+
+  private BinaryContentManipulator getAttemptManipulator(Long attemptCount, CallingContext cc)
+      throws ODKDatastoreException {
+    return PersistentResultsTable.assertManipulator(
+        getUri() + ATTEMPT_KEY_SEPARATOR + attemptCount, getUri(), cc);
+  }
+
   public String getUri() {
     return row.getUri();
   }
@@ -320,6 +453,10 @@ public class PersistentResults {
 
   public void delete(CallingContext cc) throws ODKDatastoreException {
     deleteResultFile(cc);
+    // and the files of any attempt still writing or abandoned part way
+    for (long attempt = 1L; attempt <= getAttemptCount(); ++attempt) {
+      deleteResultFile(attempt, cc);
+    }
     deleteFilterGroup(cc);
     Datastore ds = cc.getDatastore();
     User user = cc.getCurrentUser();
@@ -536,10 +673,15 @@ public class PersistentResults {
 
     static final BinaryContentManipulator assertManipulator(String uri, CallingContext cc)
         throws ODKDatastoreException {
+      return assertManipulator(uri, uri, cc);
+    }
+
+    static final BinaryContentManipulator assertManipulator(String parentKey,
+        String topLevelKey, CallingContext cc) throws ODKDatastoreException {
       // make sure the relations are defined...
       assertRelation(cc);
-      return new BinaryContentManipulator(uri, uri, binaryRelation, binaryRefBlobRelation,
-          refBlobRelation);
+      return new BinaryContentManipulator(parentKey, topLevelKey, binaryRelation,
+          binaryRefBlobRelation, refBlobRelation);
     }
   }
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.format.element;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opendatakit.aggregate.datamodel.FormElementModel;
+import org.opendatakit.aggregate.format.RepeatCallbackFormatter;
+import org.opendatakit.aggregate.format.Row;
+import org.opendatakit.aggregate.submission.SubmissionRepeat;
+import org.opendatakit.aggregate.submission.type.BlobSubmissionType;
+import org.opendatakit.aggregate.submission.type.GeoPoint;
+import org.opendatakit.common.persistence.WrappedBigDecimal;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.web.CallingContext;
+
+/**
+ * Captures the typed values of a submission set rather than formatting them
+ * into strings. Numbers, booleans and dates are kept as Long, Double, Boolean
+ * and Date values for the columnar export; only choices and binary attachments
+ * (as download links) are rendered as text.
+ *
+ * One instance captures one row. The Row passed to the callbacks is not
+ * modified.
+ */
+public class ArrowElementFormatter implements ElementFormatter {
+
+  private final ElementFormatter linkFormatter;
+
+  private final RepeatCallbackFormatter callbackFormatter;
+
+  private final Map<FormElementModel, Object> values = new HashMap<FormElementModel, Object>();
+
+  /**
+   * @param linkFormatter
+   *          formats binary attachments as links.
+   * @param callbackFormatter
+   *          receives the submission sets of each repeat group.
+   */
+  public ArrowElementFormatter(ElementFormatter linkFormatter,
+      RepeatCallbackFormatter callbackFormatter) {
+    this.linkFormatter = linkFormatter;
+    this.callbackFormatter = callbackFormatter;
+  }
+
+  /**
+   * @param element
+   * @return the captured value of the element, or null if it has none.
+   */
+  public Object getValue(FormElementModel element) {
+    return values.get(element);
+  }
+
+  @Override
+  public void formatUid(String uri, String propertyName, Row row) {
+    // the keys are taken from the submission sets themselves
+  }
+
+  @Override
+  public void formatBinary(BlobSubmissionType blobSubmission, FormElementModel element,
+      String ordinalValue, Row row, CallingContext cc) throws ODKDatastoreException {
+    Row link = new Row(row.getSubmissionKey());
+    linkFormatter.formatBinary(blobSubmission, element, ordinalValue, link, cc);
+    if (!link.getFormattedValues().isEmpty()) {
+      values.put(element, link.getFormattedValues().get(0));
+    }
+  }
+
+  @Override
+  public void formatBoolean(Boolean bool, FormElementModel element, String ordinalValue, Row row) {
+    values.put(element, bool);
+  }
+
+  @Override
+  public void formatChoices(List<String> choices, FormElementModel element, String ordinalValue,
+      Row row) {
+    StringBuilder b = new StringBuilder();
+    boolean first = true;
+    for (String s : choices) {
+      if (!first) {
+        b.append(" ");
+      }
+      first = false;
+      b.append(s);
+    }
+    values.put(element, b.toString());
+  }
+
+  @Override
+  public void formatDate(Date date, FormElementModel element, String ordinalValue, Row row) {
+    values.put(element, date);
+  }
+
+  @Override
+  public void formatDateTime(Date date, FormElementModel element, String ordinalValue, Row row) {
+    values.put(element, date);
+  }
+
+  @Override
+  public void formatTime(Date date, FormElementModel element, String ordinalValue, Row row) {
+    values.put(element, date);
+  }
+
+  @Override
+  public void formatDecimal(WrappedBigDecimal dub, FormElementModel element, String ordinalValue,
+      Row row) {
+    values.put(element, (dub == null) ? null : dub.doubleValue());
+  }
+
+  @Override
+  public void formatGeoPoint(GeoPoint coordinate, FormElementModel element, String ordinalValue,
+      Row row) {
+    values.put(element, coordinate);
+  }
+
+  @Override
+  public void formatLong(Long longInt, FormElementModel element, String ordinalValue, Row row) {
+    values.put(element, longInt);
+  }
+
+  @Override
+  public void formatString(String string, FormElementModel element, String ordinalValue, Row row) {
+    values.put(element, string);
+  }
+
+  @Override
+  public void formatRepeats(SubmissionRepeat repeat, FormElementModel repeatElement, Row row,
+      CallingContext cc) throws ODKDatastoreException {
+    callbackFormatter.processRepeatedSubmssionSetsIntoRow(repeat.getSubmissionSets(),
+        repeatElement, row, cc);
+  }
+}
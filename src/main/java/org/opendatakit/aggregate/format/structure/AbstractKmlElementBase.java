@@ -65,6 +65,31 @@ abstract class AbstractKmlElementBase {
 
   abstract boolean childVerifyFieldsArePresent(List<FormElementModel> elements);
 
+  /**
+   * Add the elements read to generate the placemarks.
+   *
+   * @param elements
+   */
+  void addElementsUsed(List<FormElementModel> elements) {
+    if (geoElement != null) {
+      elements.add(geoElement);
+    }
+  }
+
+  /**
+   * @param element
+   * @return true if the element is the geo element or one of its enclosing
+   *         groups.
+   */
+  boolean enclosesGeoElement(FormElementModel element) {
+    for (FormElementModel m = geoElement; m != null; m = m.getParent()) {
+      if (m.equals(element)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   abstract String generatePlacemarkSubmission(Submission sub, List<FormElementModel> propertyNames,
       CallingContext cc) throws ODKDatastoreException;
 
@@ -51,9 +51,27 @@ public class JsonFormatterWithFilters implements SubmissionFormatter, RepeatCall
 
   private PrintWriter output;
 
+  /**
+   * emit one JSON object per line rather than a JSON array
+   */
+  private final boolean newlineDelimited;
+
   public JsonFormatterWithFilters(PrintWriter printWriter, IForm form, FilterGroup filterGroup,
       BinaryOption binaryOption, boolean expandMultipleChoiceAsArray, String webServerUrl) {
+    this(printWriter, form, filterGroup, binaryOption, expandMultipleChoiceAsArray, webServerUrl,
+        false);
+  }
+
+  /**
+   * @param newlineDelimited
+   *          if true, the submissions are written as newline-delimited JSON
+   *          (one object per line) rather than as a JSON array.
+   */
+  public JsonFormatterWithFilters(PrintWriter printWriter, IForm form, FilterGroup filterGroup,
+      BinaryOption binaryOption, boolean expandMultipleChoiceAsArray, String webServerUrl,
+      boolean newlineDelimited) {
     output = printWriter;
+    this.newlineDelimited = newlineDelimited;
 
     if (binaryOption == BinaryOption.EMBED_BINARY) {
       elemFormatter = new JsonElementFormatter(true, true, true, expandMultipleChoiceAsArray, this);
@@ -70,7 +88,9 @@ public class JsonFormatterWithFilters implements SubmissionFormatter, RepeatCall
 
   @Override
   public void beforeProcessSubmissions(CallingContext cc) throws ODKDatastoreException {
-    output.append(BasicConsts.LEFT_BRACKET);
+    if (!newlineDelimited) {
+      output.append(BasicConsts.LEFT_BRACKET);
+    }
     first = true;
   }
 
@@ -79,18 +99,23 @@ public class JsonFormatterWithFilters implements SubmissionFormatter, RepeatCall
       throws ODKDatastoreException {
     // format row elements
     for (Submission sub : submissions) {
-      if (!first) {
+      if (!first && !newlineDelimited) {
         output.append(FormatConsts.JSON_VALUE_DELIMITER);
       }
       first = false;
       Row row = sub.getFormattedValuesAsRow(propertyNames, elemFormatter, false, cc);
       appendJsonObject(row.getFormattedValues().iterator());
+      if (newlineDelimited) {
+        output.append(BasicConsts.NEW_LINE);
+      }
     }
   }
 
   @Override
   public void afterProcessSubmissions(CallingContext cc) throws ODKDatastoreException {
-    output.append(BasicConsts.RIGHT_BRACKET);
+    if (!newlineDelimited) {
+      output.append(BasicConsts.RIGHT_BRACKET);
+    }
   }
 
   @Override
@@ -123,6 +123,23 @@ public class KmlFormatterWithFilters implements SubmissionFormatter {
     }
   }
 
+  /**
+   * @return the elements read by this formatter: the columns of the filter
+   *         group and the geo, title, name and image elements of the
+   *         placemarks. Only these need to be retrieved for each submission.
+   *         Null if every element is used.
+   */
+  public List<FormElementModel> getElementsUsed() {
+    if (propertyNames == null) {
+      return null;
+    }
+    List<FormElementModel> elements = new ArrayList<FormElementModel>(propertyNames);
+    for (AbstractKmlElementBase geoformat : geoformaters) {
+      geoformat.addElementsUsed(elements);
+    }
+    return elements;
+  }
+
   @Override
   public void beforeProcessSubmissions(CallingContext cc) throws ODKDatastoreException {
     output.write(String.format(KmlConsts.KML_PREAMBLE_TEMPLATE,
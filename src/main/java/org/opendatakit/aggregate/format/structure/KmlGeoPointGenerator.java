@@ -95,6 +95,17 @@ public class KmlGeoPointGenerator extends AbstractKmlElementBase implements Repe
     return true;
   }
 
+  @Override
+  void addElementsUsed(List<FormElementModel> elements) {
+    super.addElementsUsed(elements);
+    if (titleElement != null) {
+      elements.add(titleElement);
+    }
+    if (imgElement != null) {
+      elements.add(imgElement);
+    }
+  }
+
   @Override
   String generatePlacemarkSubmission(Submission sub, List<FormElementModel> propertyNames,
       CallingContext cc) throws ODKDatastoreException {
@@ -68,6 +68,14 @@ public class KmlGeoTraceNGeoShapeGenerator extends AbstractKmlElementBase {
     return true;
   }
 
+  @Override
+  void addElementsUsed(List<FormElementModel> elements) {
+    super.addElementsUsed(elements);
+    if (nameElement != null) {
+      elements.add(nameElement);
+    }
+  }
+
   @Override
   String generatePlacemarkSubmission(Submission sub, List<FormElementModel> propertyNames,
       CallingContext cc) throws ODKDatastoreException {
@@ -91,12 +99,12 @@ public class KmlGeoTraceNGeoShapeGenerator extends AbstractKmlElementBase {
 
   private void recursiveElementSearchToFindRepeats(SubmissionSet submissionSet,
       Queue<SubmissionSet> submissionSetLevelsToExamine, StringBuilder placemarks) {
-    List<SubmissionValue> values = submissionSet.getSubmissionValues();
-    if (values == null || values.isEmpty()) {
-      return;
-    }
-
-    for (SubmissionValue value : values) {
+    for (FormElementModel m : submissionSet.getFormElements()) {
+      // only descend into the repeats holding the trace/shape
+      if (m.getElementType() != FormElementModel.ElementType.REPEAT || !enclosesGeoElement(m)) {
+        continue;
+      }
+      SubmissionValue value = submissionSet.getElementValue(m);
       if (value instanceof SubmissionRepeat) {
         SubmissionRepeat repeat = (SubmissionRepeat) value;
         List<SubmissionSet> repeatSets = repeat.getSubmissionSets();
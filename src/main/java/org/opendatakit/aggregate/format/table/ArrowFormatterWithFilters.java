@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.format.table;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.opendatakit.aggregate.client.filter.FilterGroup;
+import org.opendatakit.aggregate.client.submission.Column;
+import org.opendatakit.aggregate.client.submission.SubmissionUISummary;
+import org.opendatakit.aggregate.constants.common.GeoPointConsts;
+import org.opendatakit.aggregate.constants.common.UIDisplayType;
+import org.opendatakit.aggregate.datamodel.FormElementKey;
+import org.opendatakit.aggregate.datamodel.FormElementModel;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.format.RepeatCallbackFormatter;
+import org.opendatakit.aggregate.format.Row;
+import org.opendatakit.aggregate.format.SubmissionFormatter;
+import org.opendatakit.aggregate.format.element.ArrowElementFormatter;
+import org.opendatakit.aggregate.format.element.ElementFormatter;
+import org.opendatakit.aggregate.format.element.LinkElementFormatter;
+import org.opendatakit.aggregate.format.table.ArrowStreamWriter.ColumnType;
+import org.opendatakit.aggregate.server.GenerateHeaderInfo;
+import org.opendatakit.aggregate.servlet.FormMultipleValueServlet;
+import org.opendatakit.aggregate.submission.Submission;
+import org.opendatakit.aggregate.submission.SubmissionSet;
+import org.opendatakit.aggregate.submission.type.GeoPoint;
+import org.opendatakit.common.persistence.WrappedBigDecimal;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.web.CallingContext;
+
+/**
+ * Writes the submissions of a form as typed columns in the Arrow IPC streaming
+ * format. Values are taken directly from the submission values rather than
+ * their string renderings, so numbers, booleans and dates keep their types.
+ *
+ * The output is a zip file holding one Arrow stream per table: the top-level
+ * submissions honor the column filters of the filter group, and every repeat
+ * group is written to a table of its own whose PARENT_KEY and KEY columns join
+ * it to its enclosing table (as in the fragmented CSV).
+ *
+ * A zip entry must be written in one piece, so the tables are written one at
+ * a time, each in its own pass over the submissions: the caller brackets each
+ * pass with {@link #beginTable(int)} and {@link #endTable()}. Only one record
+ * batch of one table is held in memory. A pass formats only the values of its
+ * own table and the repeat groups enclosing it.
+ */
+public class ArrowFormatterWithFilters implements SubmissionFormatter, RepeatCallbackFormatter {
+
+  public static final String ARROW_STREAM_FILE_EXTENSION = ".arrows";
+
+  private static final String PARENT_KEY_PROPERTY = "PARENT_KEY";
+  private static final String SELF_KEY_PROPERTY = "KEY";
+
+  private final IForm form;
+  private final OutputStream output;
+  private final ElementFormatter linkFormatter;
+  private final Table topLevelTable;
+  private final List<Table> tables = new ArrayList<Table>();
+  private final Map<FormElementModel, Table> repeatTables = new HashMap<FormElementModel, Table>();
+  private ZipOutputStream zip = null;
+  private Table current = null;
+
+  public ArrowFormatterWithFilters(IForm xform, String webServerUrl, OutputStream outputStream,
+      FilterGroup filterGroup) {
+    form = xform;
+    output = outputStream;
+    linkFormatter = new LinkElementFormatter(webServerUrl, FormMultipleValueServlet.ADDR, true,
+        true, true, false);
+
+    SubmissionUISummary summary = new SubmissionUISummary(form.getViewableName());
+    GenerateHeaderInfo headerGenerator = new GenerateHeaderInfo(filterGroup, summary, form);
+    headerGenerator.processForHeaderInfo(form.getTopLevelGroupElement());
+    topLevelTable = new Table(form.getViewableFormNameSuitableAsFileName(), summary, null, null);
+  }
+
+  /**
+   * @return the number of tables, each written in a pass of its own.
+   */
+  public int getTableCount() {
+    return tables.size();
+  }
+
+  /**
+   * Start the pass that writes the given table.
+   *
+   * @param index
+   *          the table, from 0 (the top-level submissions) to
+   *          {@link #getTableCount()} - 1.
+   */
+  public void beginTable(int index) {
+    if (current != null) {
+      throw new IllegalStateException("the previous table has not been ended");
+    }
+    current = tables.get(index);
+    try {
+      zip.putNextEntry(new ZipEntry(current.fileName));
+    } catch (IOException e) {
+      throw new IllegalStateException("unable to write Arrow export of " + form.getFormId(), e);
+    }
+    current.writer = new ArrowStreamWriter(zip, current.names, current.types);
+  }
+
+  /**
+   * @return the top-level elements read by the current pass; the submissions
+   *         need only retrieve these up front.
+   */
+  public List<FormElementModel> getElementsUsed() {
+    return topLevelTable.getElementsUsed();
+  }
+
+  /**
+   * Complete the table of the current pass.
+   */
+  public void endTable() {
+    try {
+      current.writer.finish();
+      zip.closeEntry();
+    } catch (IOException e) {
+      throw new IllegalStateException("unable to write Arrow export of " + form.getFormId(), e);
+    }
+    // release the column buffers
+    current.writer = null;
+    current = null;
+  }
+
+  @Override
+  public void beforeProcessSubmissions(CallingContext cc) throws ODKDatastoreException {
+    zip = new ZipOutputStream(output);
+  }
+
+  @Override
+  public void processSubmissionSegment(List<Submission> submissions, CallingContext cc)
+      throws ODKDatastoreException {
+    if (current == null) {
+      throw new IllegalStateException("no table has been begun");
+    }
+    for (Submission sub : submissions) {
+      topLevelTable.addRow(sub, cc);
+    }
+  }
+
+  @Override
+  public void processRepeatedSubmssionSetsIntoRow(List<SubmissionSet> repeats,
+      FormElementModel repeatElement, Row row, CallingContext cc) throws ODKDatastoreException {
+    Table table = repeatTables.get(repeatElement);
+    if (table == null || !table.encloses(current)) {
+      return;
+    }
+    for (SubmissionSet set : repeats) {
+      table.addRow(set, cc);
+    }
+  }
+
+  @Override
+  public void afterProcessSubmissions(CallingContext cc) throws ODKDatastoreException {
+    try {
+      zip.finish();
+    } catch (IOException e) {
+      throw new IllegalStateException("unable to write Arrow export of " + form.getFormId(), e);
+    }
+  }
+
+  @Override
+  public void processSubmissions(List<Submission> submissions, CallingContext cc)
+      throws ODKDatastoreException {
+    beforeProcessSubmissions(cc);
+    for (int i = 0; i < getTableCount(); ++i) {
+      beginTable(i);
+      processSubmissionSegment(submissions, cc);
+      endTable();
+    }
+    afterProcessSubmissions(cc);
+  }
+
+  private static ColumnType getColumnType(FormElementModel element) {
+    switch (element.getElementType()) {
+    case INTEGER:
+      return ColumnType.INT64;
+    case DECIMAL:
+    case GEOPOINT:
+      return ColumnType.FLOAT64;
+    case BOOLEAN:
+      return ColumnType.BOOLEAN;
+    case JRDATE:
+    case JRDATETIME:
+    case JRTIME:
+      return ColumnType.TIMESTAMP_MILLIS;
+    default:
+      return ColumnType.UTF8;
+    }
+  }
+
+  /**
+   * Convert a captured value to the Java type of its column. Values that do
+   * not fit a typed column are written as nulls.
+   */
+  private static Object toColumnValue(Object value, ColumnType type) {
+    if (value == null) {
+      return null;
+    }
+    switch (type) {
+    case INT64:
+      return (value instanceof Number) ? Long.valueOf(((Number) value).longValue()) : null;
+    case FLOAT64:
+      return (value instanceof Number) ? Double.valueOf(((Number) value).doubleValue()) : null;
+    case BOOLEAN:
+      return (value instanceof Boolean) ? value : null;
+    case TIMESTAMP_MILLIS:
+      return (value instanceof Date) ? value : null;
+    default:
+      return value.toString();
+    }
+  }
+
+  private static Double getCoordinate(GeoPoint point, int ordinal) {
+    WrappedBigDecimal value;
+    switch (ordinal) {
+    case GeoPointConsts.GEOPOINT_LATITUDE_ORDINAL_NUMBER:
+      value = point.getLatitude();
+      break;
+    case GeoPointConsts.GEOPOINT_LONGITUDE_ORDINAL_NUMBER:
+      value = point.getLongitude();
+      break;
+    case GeoPointConsts.GEOPOINT_ALTITUDE_ORDINAL_NUMBER:
+      value = point.getAltitude();
+      break;
+    case GeoPointConsts.GEOPOINT_ACCURACY_ORDINAL_NUMBER:
+      value = point.getAccuracy();
+      break;
+    default:
+      value = null;
+    }
+    return (value == null) ? null : value.doubleValue();
+  }
+
+  /**
+   * The column plan and Arrow stream of one table of the export.
+   */
+  private final class Table {
+    final String fileName;
+    // the enclosing table and the repeat group of it that this table holds;
+    // both null for the top-level table
+    final Table parent;
+    final FormElementModel repeatElement;
+    final boolean includeParentKey;
+    // the elements whose values are captured for each row
+    final List<FormElementModel> valueElements = new ArrayList<FormElementModel>();
+    // the element and geopoint ordinal of each value column
+    final List<FormElementModel> columnElements = new ArrayList<FormElementModel>();
+    final List<Integer> columnOrdinals = new ArrayList<Integer>();
+    final List<ColumnType> columnTypes = new ArrayList<ColumnType>();
+    final List<String> names = new ArrayList<String>();
+    final List<ColumnType> types = new ArrayList<ColumnType>();
+    // only set during the pass that writes this table
+    ArrowStreamWriter writer = null;
+
+    Table(String name, SubmissionUISummary summary, Table parent,
+        FormElementModel repeatElement) {
+      this.fileName = name + ARROW_STREAM_FILE_EXTENSION;
+      this.parent = parent;
+      this.repeatElement = repeatElement;
+      this.includeParentKey = (parent != null);
+      tables.add(this);
+
+      for (Column col : summary.getHeaders()) {
+        FormElementModel element = FormElementModel.retrieveFormElementModel(form,
+            new FormElementKey(col.getColumnEncoding()));
+        if (col.getUiDisplayType() == UIDisplayType.REPEAT) {
+          // repeat groups are written to tables of their own
+          addRepeatTable(name, element);
+          continue;
+        }
+        if (!valueElements.contains(element)) {
+          valueElements.add(element);
+        }
+        Long ordinal = col.getGeopointColumnCode();
+        columnElements.add(element);
+        columnOrdinals.add((ordinal == null) ? 0 : ordinal.intValue());
+        names.add(col.getDisplayHeader());
+        types.add(getColumnType(element));
+      }
+      columnTypes.addAll(types);
+      if (includeParentKey) {
+        names.add(PARENT_KEY_PROPERTY);
+        types.add(ColumnType.UTF8);
+      }
+      names.add(SELF_KEY_PROPERTY);
+      types.add(ColumnType.UTF8);
+    }
+
+    /**
+     * @param table
+     * @return true if table is this table or is nested within it.
+     */
+    boolean encloses(Table table) {
+      for (Table t = table; t != null; t = t.parent) {
+        if (t == this) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * @return the elements of this table read by the current pass: the value
+     *         elements if this is the current table, the repeat group leading
+     *         to the current table if it is nested within this one, and none
+     *         otherwise.
+     */
+    List<FormElementModel> getElementsUsed() {
+      if (current == this) {
+        return valueElements;
+      }
+      List<FormElementModel> used = new ArrayList<FormElementModel>();
+      for (Table t = current; t != null; t = t.parent) {
+        if (t.parent == this) {
+          used.add(t.repeatElement);
+        }
+      }
+      return used;
+    }
+
+    private void addRepeatTable(String parentName, FormElementModel repeatElement) {
+      if (repeatTables.containsKey(repeatElement)) {
+        return;
+      }
+      SubmissionUISummary repeatSummary = new SubmissionUISummary(form.getViewableName());
+      GenerateHeaderInfo headerGenerator = new GenerateHeaderInfo(null, repeatSummary, form);
+      headerGenerator.processForHeaderInfo(repeatElement);
+      String name = parentName + "-" + repeatElement.getElementName();
+      repeatTables.put(repeatElement, new Table(name, repeatSummary, this, repeatElement));
+    }
+
+    void addRow(SubmissionSet set, CallingContext cc) throws ODKDatastoreException {
+      List<FormElementModel> used = getElementsUsed();
+      ArrowElementFormatter elemFormatter = new ArrowElementFormatter(linkFormatter,
+          ArrowFormatterWithFilters.this);
+      if (!used.isEmpty()) {
+        set.getFormattedValuesAsRow(used, elemFormatter, false, cc);
+      }
+      if (current != this) {
+        // only passing through to the repeat groups of the current table
+        return;
+      }
+
+      int size = columnElements.size();
+      Object[] values = new Object[size + (includeParentKey ? 2 : 1)];
+      for (int i = 0; i < size; ++i) {
+        Object value = elemFormatter.getValue(columnElements.get(i));
+        if (value instanceof GeoPoint) {
+          value = getCoordinate((GeoPoint) value, columnOrdinals.get(i));
+        }
+        values[i] = toColumnValue(value, columnTypes.get(i));
+      }
+      if (includeParentKey) {
+        values[size++] = set.getEnclosingSet().getKey().getKey();
+      }
+      values[size] = set.getKey().getKey();
+
+      try {
+        writer.addRow(values);
+      } catch (IOException e) {
+        throw new IllegalStateException("unable to write Arrow export of " + form.getFormId(), e);
+      }
+    }
+  }
+}
@@ -0,0 +1,574 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.format.table;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Writes a table in the Apache Arrow IPC streaming format: a schema message,
+ * a record batch for every BATCH_ROWS rows and an end-of-stream marker. Each
+ * column is written as a typed Arrow array, so readers (pyarrow, R arrow,
+ * DuckDB, Spark) load the values without parsing them.
+ *
+ * Only the few column types the submission exports need are supported. The
+ * Arrow metadata is flatbuffer-encoded; the small encoder below is enough for
+ * the Message, Schema and RecordBatch tables and avoids pulling the Arrow Java
+ * libraries (and their Java 8 and off-heap memory requirements) into the
+ * server.
+ */
+public final class ArrowStreamWriter {
+
+  /** Arrow column types written by this writer. */
+  public enum ColumnType {
+    /** 64-bit signed integer */
+    INT64,
+    /** 64-bit IEEE floating point */
+    FLOAT64,
+    BOOLEAN,
+    /** UTF-8 string */
+    UTF8,
+    /** milliseconds since the epoch, UTC */
+    TIMESTAMP_MILLIS
+  };
+
+  /** rows buffered before a record batch is written */
+  public static final int BATCH_ROWS = 4096;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  // Arrow format constants (see format/Schema.fbs and format/Message.fbs)
+  private static final short METADATA_VERSION_V5 = 4;
+  private static final byte MESSAGE_HEADER_SCHEMA = 1;
+  private static final byte MESSAGE_HEADER_RECORD_BATCH = 3;
+  private static final byte TYPE_INT = 2;
+  private static final byte TYPE_FLOATING_POINT = 3;
+  private static final byte TYPE_UTF8 = 5;
+  private static final byte TYPE_BOOL = 6;
+  private static final byte TYPE_TIMESTAMP = 10;
+  private static final short PRECISION_DOUBLE = 2;
+  private static final short TIME_UNIT_MILLISECOND = 1;
+  private static final int CONTINUATION_MARKER = 0xFFFFFFFF;
+
+  private final OutputStream out;
+  private final List<String> names;
+  private final Column[] columns;
+  private int rowCount = 0;
+  private boolean schemaWritten = false;
+
+  public ArrowStreamWriter(OutputStream out, List<String> names, List<ColumnType> types) {
+    if (names.size() != types.size()) {
+      throw new IllegalArgumentException("column names and types do not match");
+    }
+    this.out = out;
+    this.names = names;
+    this.columns = new Column[types.size()];
+    for (int i = 0; i < columns.length; ++i) {
+      columns[i] = new Column(types.get(i));
+    }
+  }
+
+  /**
+   * Append a row. Values must be of the Java type matching the column type
+   * (Long, Double, Boolean, String or Date) or null.
+   *
+   * @param values
+   * @throws IOException
+   */
+  public void addRow(Object[] values) throws IOException {
+    if (values.length != columns.length) {
+      throw new IllegalArgumentException("row does not match the table schema");
+    }
+    for (int i = 0; i < columns.length; ++i) {
+      columns[i].append(values[i]);
+    }
+    if (++rowCount == BATCH_ROWS) {
+      flush();
+    }
+  }
+
+  /**
+   * Write the buffered rows as a record batch.
+   *
+   * @throws IOException
+   */
+  public void flush() throws IOException {
+    writeSchema();
+    if (rowCount == 0) {
+      return;
+    }
+
+    // lay out the body: the buffers of each column in schema order
+    int bufferCount = 0;
+    for (Column c : columns) {
+      bufferCount += c.getBuffers().length;
+    }
+    long[] bufferOffsets = new long[bufferCount];
+    long[] bufferLengths = new long[bufferCount];
+    long bodyLength = 0;
+    int b = 0;
+    for (Column c : columns) {
+      for (ByteBuffer buffer : c.getBuffers()) {
+        bufferOffsets[b] = bodyLength;
+        bufferLengths[b] = buffer.length;
+        bodyLength += align8(buffer.length);
+        ++b;
+      }
+    }
+
+    FlatBufferBuilder fbb = new FlatBufferBuilder();
+    fbb.startVector(16, columns.length, 8);
+    for (int i = columns.length - 1; i >= 0; --i) {
+      fbb.addStruct(columns[i].rowCount, columns[i].nullCount);
+    }
+    int nodes = fbb.endVector(columns.length);
+    fbb.startVector(16, bufferCount, 8);
+    for (int i = bufferCount - 1; i >= 0; --i) {
+      fbb.addStruct(bufferOffsets[i], bufferLengths[i]);
+    }
+    int buffers = fbb.endVector(bufferCount);
+    fbb.startTable(4);
+    fbb.addFieldLong(0, rowCount);
+    fbb.addFieldOffset(1, nodes);
+    fbb.addFieldOffset(2, buffers);
+    int recordBatch = fbb.endTable();
+    writeMessage(fbb, MESSAGE_HEADER_RECORD_BATCH, recordBatch, bodyLength);
+
+    for (Column c : columns) {
+      for (ByteBuffer buffer : c.getBuffers()) {
+        out.write(buffer.bytes, 0, buffer.length);
+        writePadding(align8(buffer.length) - buffer.length);
+      }
+      c.clear();
+    }
+    rowCount = 0;
+  }
+
+  /**
+   * Write any buffered rows and the end-of-stream marker. The underlying
+   * stream is not closed.
+   *
+   * @throws IOException
+   */
+  public void finish() throws IOException {
+    flush();
+    ByteBuffer eos = new ByteBuffer();
+    eos.putInt(CONTINUATION_MARKER);
+    eos.putInt(0);
+    out.write(eos.bytes, 0, eos.length);
+  }
+
+  private void writeSchema() throws IOException {
+    if (schemaWritten) {
+      return;
+    }
+    schemaWritten = true;
+
+    FlatBufferBuilder fbb = new FlatBufferBuilder();
+    int[] fields = new int[columns.length];
+    for (int i = 0; i < columns.length; ++i) {
+      int name = fbb.createString(names.get(i));
+      byte typeId;
+      int type;
+      switch (columns[i].type) {
+      case INT64:
+        typeId = TYPE_INT;
+        fbb.startTable(2);
+        fbb.addFieldInt(0, 64);
+        fbb.addFieldBoolean(1, true);
+        type = fbb.endTable();
+        break;
+      case FLOAT64:
+        typeId = TYPE_FLOATING_POINT;
+        fbb.startTable(1);
+        fbb.addFieldShort(0, PRECISION_DOUBLE);
+        type = fbb.endTable();
+        break;
+      case BOOLEAN:
+        typeId = TYPE_BOOL;
+        fbb.startTable(0);
+        type = fbb.endTable();
+        break;
+      case UTF8:
+        typeId = TYPE_UTF8;
+        fbb.startTable(0);
+        type = fbb.endTable();
+        break;
+      case TIMESTAMP_MILLIS:
+        typeId = TYPE_TIMESTAMP;
+        int timezone = fbb.createString("UTC");
+        fbb.startTable(2);
+        fbb.addFieldOffset(1, timezone);
+        fbb.addFieldShort(0, TIME_UNIT_MILLISECOND);
+        type = fbb.endTable();
+        break;
+      default:
+        throw new IllegalStateException("unhandled column type");
+      }
+      fbb.startVector(4, 0, 4);
+      int children = fbb.endVector(0);
+
+      fbb.startTable(7);
+      fbb.addFieldOffset(0, name);
+      fbb.addFieldOffset(3, type);
+      fbb.addFieldOffset(5, children);
+      fbb.addFieldBoolean(1, true);
+      fbb.addFieldByte(2, typeId);
+      fields[i] = fbb.endTable();
+    }
+    fbb.startVector(4, fields.length, 4);
+    for (int i = fields.length - 1; i >= 0; --i) {
+      fbb.addOffset(fields[i]);
+    }
+    int fieldVector = fbb.endVector(fields.length);
+    fbb.startTable(4);
+    fbb.addFieldOffset(1, fieldVector);
+    int schema = fbb.endTable();
+    writeMessage(fbb, MESSAGE_HEADER_SCHEMA, schema, 0L);
+  }
+
+  /**
+   * Write an encapsulated message: the continuation marker, the padded length
+   * of the Message flatbuffer and the flatbuffer itself. The body follows.
+   */
+  private void writeMessage(FlatBufferBuilder fbb, byte headerType, int header, long bodyLength)
+      throws IOException {
+    fbb.startTable(5);
+    fbb.addFieldLong(3, bodyLength);
+    fbb.addFieldOffset(2, header);
+    fbb.addFieldShort(0, METADATA_VERSION_V5);
+    fbb.addFieldByte(1, headerType);
+    int message = fbb.endTable();
+    byte[] metadata = fbb.finish(message);
+
+    int paddedLength = (int) align8(metadata.length);
+    ByteBuffer prefix = new ByteBuffer();
+    prefix.putInt(CONTINUATION_MARKER);
+    prefix.putInt(paddedLength);
+    out.write(prefix.bytes, 0, prefix.length);
+    out.write(metadata);
+    writePadding(paddedLength - metadata.length);
+  }
+
+  private void writePadding(long count) throws IOException {
+    for (long i = 0; i < count; ++i) {
+      out.write(0);
+    }
+  }
+
+  private static long align8(long length) {
+    return (length + 7L) & ~7L;
+  }
+
+  /**
+   * The buffered values of one column.
+   */
+  private static final class Column {
+    final ColumnType type;
+    final ByteBuffer validity = new ByteBuffer();
+    final ByteBuffer values = new ByteBuffer();
+    final ByteBuffer offsets = new ByteBuffer();
+    int rowCount = 0;
+    int nullCount = 0;
+
+    Column(ColumnType type) {
+      this.type = type;
+      clear();
+    }
+
+    void clear() {
+      validity.length = 0;
+      values.length = 0;
+      offsets.length = 0;
+      rowCount = 0;
+      nullCount = 0;
+      if (type == ColumnType.UTF8) {
+        offsets.putInt(0);
+      }
+    }
+
+    void append(Object value) {
+      if (value == null) {
+        ++nullCount;
+      } else {
+        validity.setBit(rowCount);
+      }
+      switch (type) {
+      case INT64:
+        values.putLong((value == null) ? 0L : ((Long) value).longValue());
+        break;
+      case FLOAT64:
+        values.putLong(Double.doubleToRawLongBits((value == null) ? 0.0 : ((Double) value)
+            .doubleValue()));
+        break;
+      case BOOLEAN:
+        values.ensureBit(rowCount);
+        if (value != null && ((Boolean) value).booleanValue()) {
+          values.setBit(rowCount);
+        }
+        break;
+      case UTF8:
+        if (value != null) {
+          values.put(((String) value).getBytes(UTF8));
+        }
+        offsets.putInt(values.length);
+        break;
+      case TIMESTAMP_MILLIS:
+        values.putLong((value == null) ? 0L : ((Date) value).getTime());
+        break;
+      default:
+        throw new IllegalStateException("unhandled column type");
+      }
+      validity.ensureBit(rowCount);
+      ++rowCount;
+    }
+
+    ByteBuffer[] getBuffers() {
+      if (type == ColumnType.UTF8) {
+        return new ByteBuffer[] { validity, offsets, values };
+      }
+      return new ByteBuffer[] { validity, values };
+    }
+  }
+
+  /**
+   * A growable little-endian byte buffer.
+   */
+  private static final class ByteBuffer {
+    byte[] bytes = new byte[64];
+    int length = 0;
+
+    private void reserve(int count) {
+      if (length + count > bytes.length) {
+        byte[] grown = new byte[Math.max(bytes.length * 2, length + count)];
+        System.arraycopy(bytes, 0, grown, 0, length);
+        bytes = grown;
+      }
+    }
+
+    void put(byte[] value) {
+      reserve(value.length);
+      System.arraycopy(value, 0, bytes, length, value.length);
+      length += value.length;
+    }
+
+    void putInt(int value) {
+      reserve(4);
+      for (int i = 0; i < 4; ++i) {
+        bytes[length++] = (byte) (value >>> (8 * i));
+      }
+    }
+
+    void putLong(long value) {
+      reserve(8);
+      for (int i = 0; i < 8; ++i) {
+        bytes[length++] = (byte) (value >>> (8 * i));
+      }
+    }
+
+    /** grow the buffer (with zeroed bytes) to hold the given bit of a bitmap */
+    void ensureBit(int bit) {
+      int needed = (bit >> 3) + 1;
+      if (needed > length) {
+        reserve(needed - length);
+        while (length < needed) {
+          bytes[length++] = 0;
+        }
+      }
+    }
+
+    void setBit(int bit) {
+      ensureBit(bit);
+      bytes[bit >> 3] |= (byte) (1 << (bit & 7));
+    }
+  }
+
+  /**
+   * Minimal FlatBuffers encoder. Like the reference implementation, it builds
+   * the buffer back to front so that every offset points forward.
+   */
+  private static final class FlatBufferBuilder {
+    private byte[] buf = new byte[1024];
+    /** index of the first written byte */
+    private int space = buf.length;
+    private int minAlign = 1;
+    private int[] vtable = null;
+    private int objectStart = 0;
+
+    int offset() {
+      return buf.length - space;
+    }
+
+    private void grow(int needed) {
+      while (space < needed) {
+        int oldLength = buf.length;
+        byte[] grown = new byte[oldLength * 2];
+        System.arraycopy(buf, 0, grown, oldLength, oldLength);
+        buf = grown;
+        space += oldLength;
+      }
+    }
+
+    /**
+     * Align so that once additionalBytes are written the next value of the
+     * given size is aligned.
+     */
+    private void prep(int size, int additionalBytes) {
+      if (size > minAlign) {
+        minAlign = size;
+      }
+      int alignSize = (-(offset() + additionalBytes)) & (size - 1);
+      grow(alignSize + size + additionalBytes);
+      for (int i = 0; i < alignSize; ++i) {
+        buf[--space] = 0;
+      }
+    }
+
+    private void putByte(byte value) {
+      buf[--space] = value;
+    }
+
+    private void putShort(short value) {
+      space -= 2;
+      buf[space] = (byte) value;
+      buf[space + 1] = (byte) (value >>> 8);
+    }
+
+    private void putInt(int value) {
+      space -= 4;
+      for (int i = 0; i < 4; ++i) {
+        buf[space + i] = (byte) (value >>> (8 * i));
+      }
+    }
+
+    private void putLong(long value) {
+      space -= 8;
+      for (int i = 0; i < 8; ++i) {
+        buf[space + i] = (byte) (value >>> (8 * i));
+      }
+    }
+
+    void addOffset(int target) {
+      prep(4, 0);
+      putInt(offset() - target + 4);
+    }
+
+    int createString(String value) {
+      byte[] bytes = value.getBytes(UTF8);
+      prep(4, bytes.length + 1);
+      putByte((byte) 0);
+      space -= bytes.length;
+      System.arraycopy(bytes, 0, buf, space, bytes.length);
+      putInt(bytes.length);
+      return offset();
+    }
+
+    void startVector(int elementSize, int count, int alignment) {
+      prep(4, elementSize * count);
+      prep(alignment, elementSize * count);
+    }
+
+    int endVector(int count) {
+      putInt(count);
+      return offset();
+    }
+
+    /** add a struct of two longs (an Arrow FieldNode or Buffer) */
+    void addStruct(long first, long second) {
+      prep(8, 16);
+      putLong(second);
+      putLong(first);
+    }
+
+    void startTable(int fieldCount) {
+      vtable = new int[fieldCount];
+      objectStart = offset();
+    }
+
+    void addFieldByte(int field, byte value) {
+      prep(1, 0);
+      putByte(value);
+      vtable[field] = offset();
+    }
+
+    void addFieldBoolean(int field, boolean value) {
+      addFieldByte(field, (byte) (value ? 1 : 0));
+    }
+
+    void addFieldShort(int field, short value) {
+      prep(2, 0);
+      putShort(value);
+      vtable[field] = offset();
+    }
+
+    void addFieldInt(int field, int value) {
+      prep(4, 0);
+      putInt(value);
+      vtable[field] = offset();
+    }
+
+    void addFieldLong(int field, long value) {
+      prep(8, 0);
+      putLong(value);
+      vtable[field] = offset();
+    }
+
+    void addFieldOffset(int field, int target) {
+      addOffset(target);
+      vtable[field] = offset();
+    }
+
+    int endTable() {
+      // placeholder for the offset to the vtable
+      prep(4, 0);
+      putInt(0);
+      int tableOffset = offset();
+
+      int last = vtable.length - 1;
+      while (last >= 0 && vtable[last] == 0) {
+        --last;
+      }
+      for (int i = last; i >= 0; --i) {
+        prep(2, 0);
+        putShort((short) ((vtable[i] != 0) ? tableOffset - vtable[i] : 0));
+      }
+      prep(2, 0);
+      putShort((short) (tableOffset - objectStart));
+      prep(2, 0);
+      putShort((short) ((last + 3) * 2));
+
+      int vtableOffset = offset();
+      int tablePosition = buf.length - tableOffset;
+      int delta = vtableOffset - tableOffset;
+      for (int i = 0; i < 4; ++i) {
+        buf[tablePosition + i] = (byte) (delta >>> (8 * i));
+      }
+      vtable = null;
+      return tableOffset;
+    }
+
+    byte[] finish(int root) {
+      prep(minAlign, 4);
+      addOffset(root);
+      byte[] result = new byte[offset()];
+      System.arraycopy(buf, space, result, 0, result.length);
+      return result;
+    }
+  }
+}
@@ -258,6 +258,7 @@ public class DataManager {
       // we need the filter to activate the sort...
       query.addFilter(table.getDataField(CommonFieldsBase.CREATION_DATE_COLUMN_NAME),
           org.opendatakit.common.persistence.Query.FilterOperation.GREATER_THAN, BasicConsts.EPOCH);
+      userPermissions.addRowFilterScope(appId, tableId, TablePermission.READ_ROW, query);
       result = query.execute(startCursor, fetchLimit);
 
     } finally {
@@ -269,14 +270,9 @@ public class DataManager {
     }
 
     ArrayList<Row> rows = new ArrayList<Row>();
+    // row-level access was applied by the query (see addRowFilterScope)
     for (Entity entity : result.entities) {
-      Row row = converter.toRow(entity, columns);
-      if (userPermissions.hasPermission(appId, tableId, TablePermission.UNFILTERED_READ)) {
-        rows.add(row);
-      } else if (userPermissions.hasFilterScope(appId, tableId, TablePermission.READ_ROW,
-          row.getRowId(), /* row.getFilterScope() */ Scope.EMPTY_SCOPE )) {
-        rows.add(row);
-      }
+      rows.add(converter.toRow(entity, columns));
     }
     return new WebsafeRows(rows, currentDataETag, result.websafeRefetchCursor, result.websafeBackwardCursor,
         result.websafeResumeCursor, result.hasMore, result.hasPrior);
@@ -355,6 +351,7 @@ public class DataManager {
             : startCursor.isForwardCursor()));
       }
 
+      userPermissions.addRowFilterScope(appId, tableId, TablePermission.READ_ROW, query);
       result = query.execute(startCursor, fetchLimit);
     } finally {
       propsLock.release();
@@ -368,14 +365,9 @@ public class DataManager {
     // access to because of a access / permissions change for that user and / or
     // row.
     ArrayList<Row> rows = new ArrayList<Row>();
+    // row-level access was applied by the query (see addRowFilterScope)
     for (Entity entity : result.entities) {
-      Row row = converter.toRowFromLogTable(entity, columns);
-      if (userPermissions.hasPermission(appId, tableId, TablePermission.UNFILTERED_READ)) {
-        rows.add(row);
-      } else if (userPermissions.hasFilterScope(appId, tableId, TablePermission.READ_ROW,
-          row.getRowId(), /* row.getFilterScope() */ Scope.EMPTY_SCOPE)) {
-        rows.add(row);
-      }
+      rows.add(converter.toRowFromLogTable(entity, columns));
     }
     return new WebsafeRows(computeDiff(rows), currentDataETag, result.websafeRefetchCursor,
         result.websafeBackwardCursor, result.websafeResumeCursor, result.hasMore, result.hasPrior);
@@ -478,6 +470,7 @@ public class DataManager {
             : startCursor.isForwardCursor()));
       }
 
+      userPermissions.addRowFilterScope(appId, tableId, TablePermission.READ_ROW, query);
       result = query.execute(startCursor, fetchLimit);
     } finally {
       propsLock.release();
@@ -491,14 +484,9 @@ public class DataManager {
     // access to because of a access / permissions change for that user and / or
     // row.
     ArrayList<Row> rows = new ArrayList<Row>();
+    // row-level access was applied by the query (see addRowFilterScope)
     for (Entity entity : result.entities) {
-      Row row = converter.toRowFromLogTable(entity, columns);
-      if (userPermissions.hasPermission(appId, tableId, TablePermission.UNFILTERED_READ)) {
-        rows.add(row);
-      } else if (userPermissions.hasFilterScope(appId, tableId, TablePermission.READ_ROW,
-          row.getRowId(), /* row.getFilterScope() */ Scope.EMPTY_SCOPE)) {
-        rows.add(row);
-      }
+      rows.add(converter.toRowFromLogTable(entity, columns));
     }
     
     List<Row> diffRows = computeDiff(rows);
@@ -1688,6 +1676,7 @@ public class DataManager {
           query.sortDescending(DbTable.ROW_ETAG);
         }
 
+        userPermissions.addRowFilterScope(appId, tableId, TablePermission.READ_ROW, query);
         result = query.execute(startCursor, fetchLimit);
         
       } else {
@@ -1702,6 +1691,7 @@ public class DataManager {
           query.sortDescending(DbLogTable.ROW_ID);
         }
         
+        userPermissions.addRowFilterScope(appId, tableId, TablePermission.READ_ROW, query);
         result = query.execute(startCursor, fetchLimit);
       }
 
@@ -1719,26 +1709,16 @@ public class DataManager {
     ArrayList<Row> rows = new ArrayList<Row>();
     if ( isActive ) {
       // query is against DbTable
+      // row-level access was applied by the query (see addRowFilterScope)
       for (Entity entity : result.entities) {
-        Row row = converter.toRow(entity, columns);
-        if (userPermissions.hasPermission(appId, tableId, TablePermission.UNFILTERED_READ)) {
-          rows.add(row);
-        } else if (userPermissions.hasFilterScope(appId, tableId, TablePermission.READ_ROW,
-            row.getRowId(), /* row.getFilterScope() */ Scope.EMPTY_SCOPE)) {
-          rows.add(row);
-        }
+        rows.add(converter.toRow(entity, columns));
       }
 
     } else {
       // query is against DbLogTable
+      // row-level access was applied by the query (see addRowFilterScope)
       for (Entity entity : result.entities) {
-        Row row = converter.toRowFromLogTable(entity, columns);
-        if (userPermissions.hasPermission(appId, tableId, TablePermission.UNFILTERED_READ)) {
-          rows.add(row);
-        } else if (userPermissions.hasFilterScope(appId, tableId, TablePermission.READ_ROW,
-            row.getRowId(), /* row.getFilterScope() */ Scope.EMPTY_SCOPE)) {
-          rows.add(row);
-        }
+        rows.add(converter.toRowFromLogTable(entity, columns));
       }
       
     }
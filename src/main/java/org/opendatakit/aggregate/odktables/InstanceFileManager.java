@@ -19,6 +19,7 @@ import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 import javax.ws.rs.core.MultivaluedMap;
 
@@ -55,6 +56,12 @@ public class InstanceFileManager {
 
   public interface FetchBlobHandler {
     byte[] getBlob() throws ODKDatastoreException;
+
+    /**
+     * Write the blob to the stream, one part at a time. May be called after
+     * getInstanceAttachments() returns, as blobs are never modified.
+     */
+    void writeBlob(OutputStream out) throws ODKDatastoreException, IOException;
   }
 
   public interface FileContentHandler {
@@ -315,6 +322,11 @@ public class InstanceFileManager {
             public byte[] getBlob() throws ODKDatastoreException {
               return instance.getBlob(iSafe, cc);
             }
+
+            @Override
+            public void writeBlob(OutputStream out) throws ODKDatastoreException, IOException {
+              instance.writeBlob(iSafe, out, cc);
+            }
           });
         }
       } finally {
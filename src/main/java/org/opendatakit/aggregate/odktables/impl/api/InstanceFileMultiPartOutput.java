@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.odktables.impl.api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.opendatakit.aggregate.odktables.FileContentInfo;
+import org.opendatakit.aggregate.odktables.InstanceFileManager.FetchBlobHandler;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.web.constants.HtmlConsts;
+
+/**
+ * Multipart body of the instance files of a row, written straight to the
+ * response stream. Unlike a BufferedOutMultiPart, the file contents are not
+ * read until the body is written, and each file is copied to the stream one
+ * blob part at a time, so only one part is held in memory.
+ *
+ * The parts are written in the order they were added, in the same format as
+ * the Wink multipart writer.
+ */
+final class InstanceFileMultiPartOutput implements StreamingOutput {
+
+  private static final String CRLF = "\r\n";
+
+  private static final String DASHES = "--";
+
+  private static final class Part {
+    final String name;
+    final FileContentInfo content;
+    final FetchBlobHandler fetcher;
+
+    Part(String name, FileContentInfo content, FetchBlobHandler fetcher) {
+      this.name = name;
+      this.content = content;
+      this.fetcher = fetcher;
+    }
+  }
+
+  private final String boundary;
+
+  private final List<Part> parts = new ArrayList<Part>();
+
+  InstanceFileMultiPartOutput(String boundary) {
+    this.boundary = boundary;
+  }
+
+  /**
+   * Add a file to the body. Its content is fetched when the body is written.
+   *
+   * @param name
+   *          the Name header of the part.
+   * @param content
+   *          the description of the file.
+   * @param fetcher
+   *          retrieves the file content.
+   */
+  void addPart(String name, FileContentInfo content, FetchBlobHandler fetcher) {
+    parts.add(new Part(name, content, fetcher));
+  }
+
+  @Override
+  public void write(OutputStream out) throws IOException, WebApplicationException {
+    for (Part part : parts) {
+      StringBuilder b = new StringBuilder();
+      b.append(DASHES).append(boundary).append(CRLF);
+      b.append("Name: ").append(part.name).append(CRLF);
+      b.append("Content-Disposition: file; filename=\"")
+          .append(part.content.partialPath.replace("\"", "\"\"")).append("\"").append(CRLF);
+      b.append("Content-Type: ").append(part.content.contentType).append(CRLF);
+      b.append(CRLF);
+      out.write(b.toString().getBytes(HtmlConsts.UTF8_ENCODE));
+      try {
+        part.fetcher.writeBlob(out);
+      } catch (ODKDatastoreException e) {
+        e.printStackTrace();
+        // the headers have been sent; abandon the response so that the
+        // client does not accept a truncated file.
+        throw new IOException("Unable to retrieve " + part.content.partialPath, e);
+      }
+      out.write(CRLF.getBytes(HtmlConsts.UTF8_ENCODE));
+      out.flush();
+    }
+    out.write((DASHES + boundary + DASHES + CRLF).getBytes(HtmlConsts.UTF8_ENCODE));
+    out.flush();
+  }
+}
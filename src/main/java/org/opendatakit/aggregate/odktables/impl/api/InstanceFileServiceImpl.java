@@ -28,6 +28,7 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.PathSegment;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
@@ -37,9 +38,7 @@ import javax.ws.rs.core.UriInfo;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.apache.wink.common.model.multipart.BufferedOutMultiPart;
 import org.apache.wink.common.model.multipart.InMultiPart;
-import org.apache.wink.common.model.multipart.OutPart;
 import org.opendatakit.aggregate.odktables.FileContentInfo;
 import org.opendatakit.aggregate.odktables.InstanceFileChangeDetail;
 import org.opendatakit.aggregate.odktables.InstanceFileManager;
@@ -339,10 +338,12 @@ public class InstanceFileServiceImpl implements InstanceFileService {
 
     try {
 
-      BufferedOutMultiPart mpEntity = new BufferedOutMultiPart();
-      mpEntity.setBoundary(boundary);
+      InstanceFileMultiPartOutput mpEntity = new InstanceFileMultiPartOutput(boundary);
 
-      final OutPart[] outParts = new OutPart[manifest.getFiles().size()];
+      // the files are fetched while the body is written. Blobs are never
+      // modified, so they can be read after the task lock is released.
+      final FileContentInfo[] contents = new FileContentInfo[manifest.getFiles().size()];
+      final FetchBlobHandler[] fetchers = new FetchBlobHandler[manifest.getFiles().size()];
 
       fm.getInstanceAttachments(tableId, rowId, new FileContentHandler() {
 
@@ -367,43 +368,24 @@ public class InstanceFileServiceImpl implements InstanceFileService {
             // verify that there is content
             if (content.contentType != null && content.contentLength != null
                 && content.contentLength != 0L) {
-
-              // get content
-              byte[] fileBlob;
-              try {
-                fileBlob = fetcher.getBlob();
-              } catch (ODKDatastoreException e) {
-                e.printStackTrace();
-                // silently ignore this -- error in this record
-                fileBlob = null;
-              }
-
-              if (fileBlob != null) {
-                // we got the content -- create an OutPart to hold it
-                OutPart op = new OutPart();
-                op.addHeader("Name", "file-" + Integer.toString(entryIndex));
-                String disposition = "file; filename=\"" + content.partialPath.replace("\"", "\"\"")
-                    + "\"";
-                op.addHeader("Content-Disposition", disposition);
-                op.addHeader("Content-Type", content.contentType);
-                op.setBody(fileBlob);
-                outParts[entryIndex] = op;
-              }
+              contents[entryIndex] = content;
+              fetchers[entryIndex] = fetcher;
             }
           }
 
         }
       }, userPermissions);
 
-      // assemble the outParts into the body.
-      // These are returned in the same order as they were called.
-      for (int i = 0; i < outParts.length; ++i) {
-        if (outParts[i] != null) {
-          mpEntity.addPart(outParts[i]);
+      // assemble the parts into the body.
+      // These are returned in the same order as they were requested.
+      for (int i = 0; i < contents.length; ++i) {
+        if (contents[i] != null) {
+          mpEntity.addPart("file-" + Integer.toString(i), contents[i], fetchers[i]);
         }
       }
 
       ResponseBuilder rBuild = Response.status(Status.OK).entity(mpEntity)
+          .type(MediaType.MULTIPART_FORM_DATA + "; boundary=" + boundary)
           .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
           .header("Access-Control-Allow-Origin", "*")
           .header("Access-Control-Allow-Credentials", "true");
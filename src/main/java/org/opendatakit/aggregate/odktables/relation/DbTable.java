@@ -17,6 +17,7 @@
 package org.opendatakit.aggregate.odktables.relation;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -27,6 +28,7 @@ import org.opendatakit.aggregate.odktables.rest.TableConstants;
 import org.opendatakit.common.ermodel.Entity;
 import org.opendatakit.common.ermodel.Query;
 import org.opendatakit.common.ermodel.Relation;
+import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.DataField.DataType;
 import org.opendatakit.common.persistence.DataField.IndexType;
@@ -50,6 +52,14 @@ public class DbTable extends Relation {
     super(namespace, tableName, fields, cc);
   }
 
+  @Override
+  protected List<List<String>> getCompositeIndexColumnNames() {
+    // DataManager pages through the undeleted rows in creation order
+    List<String> rowsByCreationDate = Arrays.asList(DELETED.getName(),
+        CommonFieldsBase.CREATION_DATE_COLUMN_NAME, CommonFieldsBase.URI_COLUMN_NAME);
+    return Collections.singletonList(rowsByCreationDate);
+  }
+
   /**
    * NOTE: the PK of this table is the ROW_ID of the DbLogTable entry
    * who's state matches this row.
@@ -16,16 +16,24 @@
 
 package org.opendatakit.aggregate.odktables.security;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.lang3.Validate;
 import org.opendatakit.aggregate.odktables.TableAclManager;
 import org.opendatakit.aggregate.odktables.exception.PermissionDeniedException;
+import org.opendatakit.aggregate.odktables.rest.TableConstants;
+import org.opendatakit.aggregate.odktables.rest.entity.RowFilterScope.Access;
 import org.opendatakit.aggregate.odktables.rest.entity.Scope;
 import org.opendatakit.aggregate.odktables.rest.entity.TableAcl;
 import org.opendatakit.aggregate.odktables.rest.entity.TableRole.TablePermission;
+import org.opendatakit.common.ermodel.Query;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.web.CallingContext;
@@ -36,6 +44,7 @@ public class AuthFilter {
   private TableAclManager am;
   private TablesUserPermissions userPermissions;
   private Set<TablePermission> permissions;
+  private List<String> groups;
 
   public AuthFilter(String appId, String tableId, TablesUserPermissions userPermissions, List<Scope> scopes, CallingContext cc) throws ODKEntityNotFoundException,
       ODKDatastoreException {
@@ -44,8 +53,12 @@ public class AuthFilter {
     this.am = new TableAclManager(appId, tableId, userPermissions, cc);
 
     permissions = new HashSet<TablePermission>();
+    groups = new ArrayList<String>();
 
     for ( Scope scope : scopes ) {
+      if (scope.getType() == Scope.Type.GROUP && scope.getValue() != null) {
+        groups.add(scope.getValue());
+      }
       TableAcl def = am.getAclForTablesUserPermissions(scope);
       if (def != null) {
         permissions.addAll(def.getRole().getPermissions());
@@ -138,6 +151,76 @@ public class AuthFilter {
     return true;
   }
 
+  /**
+   * Add the row-level access rules to the query so that only rows the user may
+   * access with the given permission are fetched. A row is accessible if its
+   * default access allows the permission, if the user is the row owner, or if
+   * the user belongs to one of the groups granted that permission on the row.
+   * A null default access is treated as {@link Access#FULL}.
+   *
+   * @param permission
+   *          one of {@link TablePermission#READ_ROW},
+   *          {@link TablePermission#WRITE_ROW}, or
+   *          {@link TablePermission#DELETE_ROW}.
+   * @param query
+   *          a query over a DbTable or DbLogTable relation
+   * @return true if a filter was added
+   * @throws ODKDatastoreException
+   */
+  public boolean addRowFilterScope(TablePermission permission, Query query)
+      throws ODKDatastoreException {
+    Validate.notNull(permission);
+    Validate.notNull(query);
+
+    List<Access> accessValues;
+    List<String> groupColumns;
+    switch (permission) {
+    case READ_ROW:
+      if (hasPermission(TablePermission.UNFILTERED_READ)) {
+        return false;
+      }
+      accessValues = Arrays.asList(null, Access.FULL, Access.MODIFY, Access.READ_ONLY);
+      groupColumns = Arrays.asList(TableConstants.GROUP_READ_ONLY, TableConstants.GROUP_MODIFY,
+          TableConstants.GROUP_PRIVILEGED);
+      break;
+    case WRITE_ROW:
+      if (hasPermission(TablePermission.UNFILTERED_WRITE)) {
+        return false;
+      }
+      accessValues = Arrays.asList(null, Access.FULL, Access.MODIFY);
+      groupColumns = Arrays.asList(TableConstants.GROUP_MODIFY, TableConstants.GROUP_PRIVILEGED);
+      break;
+    case DELETE_ROW:
+      if (hasPermission(TablePermission.UNFILTERED_DELETE)) {
+        return false;
+      }
+      accessValues = Arrays.asList(null, Access.FULL);
+      groupColumns = Arrays.asList(TableConstants.GROUP_PRIVILEGED);
+      break;
+    default:
+      throw new IllegalArgumentException("Not a row permission: " + permission);
+    }
+
+    Map<String, List<String>> valuesByFieldName = new LinkedHashMap<String, List<String>>();
+    List<String> accessNames = new ArrayList<String>();
+    for (Access access : accessValues) {
+      accessNames.add(access == null ? null : access.name());
+    }
+    valuesByFieldName.put(TableConstants.DEFAULT_ACCESS.toUpperCase(), accessNames);
+    String userId = userPermissions.getOdkTablesUserId();
+    if (userId != null) {
+      valuesByFieldName.put(TableConstants.ROW_OWNER.toUpperCase(),
+          Collections.singletonList(userId));
+    }
+    if (!groups.isEmpty()) {
+      for (String groupColumn : groupColumns) {
+        valuesByFieldName.put(groupColumn.toUpperCase(), groups);
+      }
+    }
+    query.includeAny(valuesByFieldName);
+    return true;
+  }
+
   private void throwPermissionDenied(String rowId, TablesUserPermissions userPermissions) throws PermissionDeniedException {
     throw new PermissionDeniedException(String.format(
         "Denied permission to access row %s to user %s", rowId, userPermissions.getOdkTablesUserId()));
@@ -3,6 +3,7 @@ package org.opendatakit.aggregate.odktables.security;
 import org.opendatakit.aggregate.odktables.exception.PermissionDeniedException;
 import org.opendatakit.aggregate.odktables.rest.entity.Scope;
 import org.opendatakit.aggregate.odktables.rest.entity.TableRole.TablePermission;
+import org.opendatakit.common.ermodel.Query;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 
@@ -67,4 +68,25 @@ public interface TablesUserPermissions {
    */
   public abstract boolean hasFilterScope(String appId, String tableId, TablePermission permission, String rowId, Scope filterScope) throws ODKEntityNotFoundException, ODKDatastoreException;
 
+  /**
+   * Restrict a query over the rows of this table (or its log table) to those
+   * rows the current user may access with the given permission, as determined
+   * by the row-level access columns. Nothing is added if the user holds the
+   * corresponding unfiltered permission.
+   *
+   * @param appId
+   * @param tableId
+   * @param permission
+   *          the permission that guards access to the rows. Should be one of
+   *          {@link TablePermission#READ_ROW},
+   *          {@link TablePermission#WRITE_ROW}, or
+   *          {@link TablePermission#DELETE_ROW}.
+   * @param query
+   *          the query to restrict
+   * @return true if a row filter was added to the query
+   * @throws ODKDatastoreException
+   * @throws ODKEntityNotFoundException
+   */
+  public abstract boolean addRowFilterScope(String appId, String tableId, TablePermission permission, Query query) throws ODKEntityNotFoundException, ODKDatastoreException;
+
 }
\ No newline at end of file
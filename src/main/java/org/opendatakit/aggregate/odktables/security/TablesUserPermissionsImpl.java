@@ -26,6 +26,7 @@ import org.opendatakit.aggregate.odktables.exception.PermissionDeniedException;
 import org.opendatakit.aggregate.odktables.rest.entity.Scope;
 import org.opendatakit.aggregate.odktables.rest.entity.Scope.Type;
 import org.opendatakit.aggregate.odktables.rest.entity.TableRole.TablePermission;
+import org.opendatakit.common.ermodel.Query;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKTaskLockException;
@@ -35,6 +36,8 @@ import org.springframework.security.core.GrantedAuthority;
 public class TablesUserPermissionsImpl implements TablesUserPermissions {
 
   private final CallingContext cc;
+  // ACLs resolved for the current user, keyed by appId and tableId. This object
+  // is created per request, so the lookups live for the request's lifetime.
   private final Map<String, AuthFilter> authFilters = new HashMap<String, AuthFilter>();
 
 
@@ -80,10 +83,11 @@ public class TablesUserPermissionsImpl implements TablesUserPermissions {
 
   private AuthFilter getAuthFilter(String appId, String tableId) throws ODKEntityNotFoundException,
       ODKDatastoreException {
-    AuthFilter auth = authFilters.get(tableId);
+    String key = appId + "/" + tableId;
+    AuthFilter auth = authFilters.get(key);
     if (auth == null) {
       auth = new AuthFilter(appId, tableId, this, getScopes(), cc);
-      authFilters.put(tableId, auth);
+      authFilters.put(key, auth);
     }
     return auth;
   }
@@ -133,4 +137,10 @@ public class TablesUserPermissionsImpl implements TablesUserPermissions {
     }
     return false;
   }
+
+  @Override
+  public boolean addRowFilterScope(String appId, String tableId, TablePermission permission,
+      Query query) throws ODKEntityNotFoundException, ODKDatastoreException {
+    return getAuthFilter(appId, tableId).addRowFilterScope(permission, query);
+  }
 }
@@ -24,6 +24,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -49,6 +50,7 @@ import org.opendatakit.aggregate.constants.ParserConsts;
 import org.opendatakit.aggregate.exception.ODKIncompleteSubmissionData;
 import org.opendatakit.aggregate.exception.ODKIncompleteSubmissionData.Reason;
 import org.opendatakit.aggregate.form.XFormParameters;
+import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.utils.WebUtils;
 import org.opendatakit.common.web.constants.BasicConsts;
 
@@ -65,13 +67,20 @@ public class BaseFormParserForJavaRosa {
   private static final String LEADING_QUESTION_XML_PATTERN = "^[^<]*<\\s*\\?\\s*xml.*";
   private static final Logger log = LoggerFactory.getLogger(BaseFormParserForJavaRosa.class.getName());
 
-  private static boolean isJavaRosaInitialized = false;
+  private static volatile boolean isJavaRosaInitialized = false;
   /**
    * The JR implementation here does not look thread-safe or
    * like something to be invoked more than once.
    * Moving it within a critical section and a do-once guard.
+   *
+   * Once the prototypes are registered, the JR parser only reads that
+   * static state, so every parse after this point works on its own
+   * Document and XFormParser instance and needs no further locking.
    */
   private static void initializeJavaRosa() {
+    if (isJavaRosaInitialized) {
+      return;
+    }
     synchronized (log) {
       if (!isJavaRosaInitialized) {
         // Register prototypes for classes that FormDef uses
@@ -261,7 +270,12 @@ public class BaseFormParserForJavaRosa {
     }
   }
 
-  private static synchronized final XFormParserWithBindEnhancements parseFormDefinition(String xml,
+  /**
+   * Build a parser for the given xml. The Document and parser returned are
+   * confined to the calling thread, so concurrent form uploads can parse in
+   * parallel once initializeJavaRosa() has run.
+   */
+  private static final XFormParserWithBindEnhancements parseFormDefinition(String xml,
       BaseFormParserForJavaRosa parser) throws ODKIncompleteSubmissionData {
 
     StringReader isr = null;
@@ -272,8 +286,50 @@ public class BaseFormParserForJavaRosa {
     } catch (Exception e) {
       throw new ODKIncompleteSubmissionData(e, Reason.BAD_JR_PARSE);
     } finally {
-      isr.close();
+      if (isr != null) {
+        isr.close();
+      }
+    }
+  }
+
+  // number of parsed existing form definitions retained for compareXml()
+  private static final int MAX_PARSED_FORM_CACHE_SIZE = 32;
+
+  /**
+   * Cache of parsed (existing) form definitions, keyed by the MD5 hash of the
+   * form xml without its ODK Aggregate timestamp comment. The cached parsers
+   * are only ever read (by compareXml), so they can be shared across threads.
+   */
+  private static final Map<String, BaseFormParserForJavaRosa> parsedFormCache = Collections
+      .synchronizedMap(new LinkedHashMap<String, BaseFormParserForJavaRosa>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, BaseFormParserForJavaRosa> eldest) {
+          return size() > MAX_PARSED_FORM_CACHE_SIZE;
+        }
+      });
+
+  /**
+   * Return the parsed form definition for the existing xml, re-using an
+   * earlier parse of the same (timestamp-independent) xml when available.
+   *
+   * @param existingXml
+   * @param existingTitle
+   * @return parser holding the FormDef and bindings of existingXml
+   * @throws ODKIncompleteSubmissionData
+   */
+  private static BaseFormParserForJavaRosa getExistingFormParser(String existingXml,
+      String existingTitle) throws ODKIncompleteSubmissionData {
+    String md5Hash = CommonFieldsBase.newMD5HashUri(xmlWithoutTimestampComment(existingXml));
+    BaseFormParserForJavaRosa existingParser = parsedFormCache.get(md5Hash);
+    if (existingParser == null) {
+      existingParser = new BaseFormParserForJavaRosa(existingXml, existingTitle, true);
+      parsedFormCache.put(md5Hash, existingParser);
+    } else {
+      log.info("Re-using cached parse of form " + existingParser.getFormId());
     }
+    return existingParser;
   }
 
   /**
@@ -693,8 +749,7 @@ public class BaseFormParserForJavaRosa {
 
     // parse XML
     FormDef formDef1, formDef2;
-    BaseFormParserForJavaRosa existingParser = new BaseFormParserForJavaRosa(existingXml,
-        existingTitle, true);
+    BaseFormParserForJavaRosa existingParser = getExistingFormParser(existingXml, existingTitle);
     formDef1 = incomingParser.rootJavaRosaFormDef;
     formDef2 = existingParser.rootJavaRosaFormDef;
     if (formDef1 == null || formDef2 == null) {
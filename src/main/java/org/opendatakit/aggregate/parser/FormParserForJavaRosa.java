@@ -560,15 +560,59 @@ public class FormParserForJavaRosa extends BaseFormParserForJavaRosa {
       // size for the persistence layer.
 
       // we do this by constructing the form definition from the fdmList
-      // and then testing for successful creation of each table it
-      // defines.
-      // If that table cannot be created, we subdivide it, rearranging
-      // the structure of the fdmList. Repeat until no errors.
+      // and asking the persistence layer whether each table it defines
+      // fits within its row-size and column-count limits. Tables that do
+      // not are subdivided, rearranging the structure of the fdmList,
+      // until every table fits. No table is created while planning.
+      //
+      // The planned tables are then created. If a table still cannot be
+      // created (the limits are estimates), we fall back to subdividing
+      // it and trying again. Repeat until no errors.
       // Very error prone!!!
       //
       FormDefinition fd = null;
       try {
         int nAttempts = 0;
+        for (;;) {
+          fd = new FormDefinition(sa, submissionElementDefn.formId, fdmList, cc);
+          applyFieldLengths(fdmList);
+
+          // place a limit on this process; the estimates may never be met
+          // (e.g., a single very wide column). Leave it to the database.
+          if (++nAttempts > MAX_FORM_CREATION_ATTEMPTS) {
+            log.warn("Abandoning form-layout due to fail-safe limit ("
+                + MAX_FORM_CREATION_ATTEMPTS + " attempts)!");
+            break;
+          }
+
+          List<CommonFieldsBase> wideTables = new ArrayList<CommonFieldsBase>();
+          for (CommonFieldsBase tbl : fd.getBackingTableSet()) {
+            if (((tbl instanceof DynamicBase) || (tbl instanceof TopLevelDynamicBase))
+                && !ds.isWithinRowLimits(tbl)) {
+              wideTables.add(tbl);
+            }
+          }
+
+          if (wideTables.isEmpty()) {
+            break;
+          }
+
+          for (CommonFieldsBase tbl : wideTables) {
+            log.info("Planning phantom table for " + tableKey(tbl));
+            orderlyDivideTable(fdmList, FormDataModel.assertRelation(cc), tbl, opaque, cc);
+          }
+
+          for (FormDataModel m : fdmList) {
+            m.resetDerivedFields();
+          }
+        }
+
+        // the tables are constructed afresh below
+        for (FormDataModel m : fdmList) {
+          m.resetDerivedFields();
+        }
+
+        nAttempts = 0;
         for (;;) {
           // place a limit on this process
           if (++nAttempts > MAX_FORM_CREATION_ATTEMPTS) {
@@ -579,25 +623,12 @@ public class FormParserForJavaRosa extends BaseFormParserForJavaRosa {
           }
 
           fd = new FormDefinition(sa, submissionElementDefn.formId, fdmList, cc);
+          applyFieldLengths(fdmList);
 
           List<CommonFieldsBase> badTables = new ArrayList<CommonFieldsBase>();
 
           for (CommonFieldsBase tbl : fd.getBackingTableSet()) {
             try {
-              // patch up tbl with desired lengths of string
-              // fields...
-              for (FormDataModel m : fdmList) {
-                if (m.getElementType().equals(ElementType.GEOTRACE) ||
-                    m.getElementType().equals(ElementType.GEOSHAPE) ||
-                    m.getElementType().equals(ElementType.STRING)) {
-                  DataField f = m.getBackingKey();
-                  Integer i = fieldLengths.get(m);
-                  if (f != null && i != null) {
-                    f.setMaxCharLen(new Long(i));
-                  }
-                }
-              }
-
               // CommonFieldsBase objects are re-constructed with each
               // call to new FormDefinition(...). We need to ensure the
               // datastore contains the table that each of these objects
@@ -780,6 +811,27 @@ public class FormParserForJavaRosa extends BaseFormParserForJavaRosa {
     }
   }
 
+  /**
+   * Patch up the backing keys of the string fields with their desired lengths.
+   * The backing keys are re-constructed with each call to new
+   * FormDefinition(...).
+   *
+   * @param fdmList
+   */
+  private void applyFieldLengths(List<FormDataModel> fdmList) {
+    for (FormDataModel m : fdmList) {
+      if (m.getElementType().equals(ElementType.GEOTRACE) ||
+          m.getElementType().equals(ElementType.GEOSHAPE) ||
+          m.getElementType().equals(ElementType.STRING)) {
+        DataField f = m.getBackingKey();
+        Integer i = fieldLengths.get(m);
+        if (f != null && i != null) {
+          f.setMaxCharLen(new Long(i));
+        }
+      }
+    }
+  }
+
   /**
    * The creation of the tbl relation has failed. We need to split it into
    * multiple sub-tables and try again.
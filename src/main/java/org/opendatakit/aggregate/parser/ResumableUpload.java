@@ -0,0 +1,473 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.parser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.common.datamodel.BinaryContentRefBlob;
+import org.opendatakit.common.datamodel.RefBlob;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.DataField.IndexType;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.EntityKey;
+import org.opendatakit.common.persistence.PersistConsts;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.Query.Direction;
+import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.QueryResult;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A submission attachment uploaded in chunks, ahead of the submission that
+ * references it.
+ *
+ * Each chunk is appended at the offset the client supplies, which must be the
+ * number of bytes already received, so an interrupted upload is resumed by
+ * asking for the current offset and sending the remainder. The chunks are
+ * stored as blob parts in the upload's own relations as they arrive. Once all
+ * the bytes are received, the upload is finalized, and a later submission of
+ * the same form and instanceID that names the file without including it takes
+ * its content from the upload (see {@link SubmissionParser}).
+ *
+ * An upload belongs to the user who started it; other users can neither see
+ * nor change it, and only that user's submission takes its content. (Anonymous
+ * submitters all share the anonymous user's uploads.)
+ *
+ * Callers serialize the changes to the uploads of a submission by holding the
+ * {@link SubmissionLockTemplate} of that submission.
+ */
+public final class ResumableUpload {
+
+  private static final Logger logger = LoggerFactory.getLogger(ResumableUpload.class);
+
+  /** uploads not updated for this long are deleted */
+  private static final long STALE_UPLOAD_MILLISECONDS = 7L * 24L * 60L * 60L * 1000L;
+
+  /** stale uploads deleted each time an upload is created */
+  private static final int STALE_UPLOAD_FETCH_LIMIT = 10;
+
+  private final UploadTable row;
+
+  private ResumableUpload(UploadTable row) {
+    this.row = row;
+  }
+
+  public String getUri() {
+    return row.getUri();
+  }
+
+  public String getFormId() {
+    return row.getStringField(UploadTable.FORM_ID);
+  }
+
+  public String getInstanceId() {
+    return row.getStringField(UploadTable.INSTANCE_ID);
+  }
+
+  public String getFileName() {
+    return row.getStringField(UploadTable.FILE_NAME);
+  }
+
+  public String getContentType() {
+    return row.getStringField(UploadTable.CONTENT_TYPE);
+  }
+
+  public long getUploadLength() {
+    return row.getLongField(UploadTable.UPLOAD_LENGTH);
+  }
+
+  /**
+   * @return the number of bytes received.
+   */
+  public long getUploadOffset() {
+    return row.getLongField(UploadTable.UPLOAD_OFFSET);
+  }
+
+  public boolean isFinalized() {
+    return Boolean.TRUE.equals(row.getBooleanField(UploadTable.IS_FINALIZED));
+  }
+
+  private boolean isCreatedBy(User user) {
+    return user.getUriUser().equals(row.getCreatorUriUser());
+  }
+
+  /**
+   * Start an upload, or return the current user's unfinished upload of the same
+   * file so that it can be resumed. An upload of the same file with a different
+   * length or content type is replaced.
+   *
+   * @param formId
+   * @param instanceId
+   * @param fileName
+   * @param contentType
+   * @param uploadLength
+   *          the size of the file, in bytes.
+   * @param cc
+   * @return the upload.
+   * @throws ODKDatastoreException
+   */
+  public static ResumableUpload create(String formId, String instanceId, String fileName,
+      String contentType, long uploadLength, CallingContext cc) throws ODKDatastoreException {
+    UploadTable relation = UploadTable.assertRelation(cc);
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+
+    deleteStaleUploads(cc);
+
+    ResumableUpload existing = findUpload(formId, instanceId, fileName, cc);
+    if (existing != null) {
+      if (existing.getUploadLength() == uploadLength
+          && existing.getContentType().equals(contentType)) {
+        return existing;
+      }
+      existing.delete(cc);
+    }
+
+    UploadTable row = ds.createEntityUsingRelation(relation, user);
+    row.setStringField(UploadTable.FORM_ID, formId);
+    row.setStringField(UploadTable.INSTANCE_ID, instanceId);
+    row.setStringField(UploadTable.FILE_NAME, fileName);
+    row.setStringField(UploadTable.CONTENT_TYPE, contentType);
+    row.setLongField(UploadTable.UPLOAD_LENGTH, uploadLength);
+    row.setLongField(UploadTable.UPLOAD_OFFSET, 0L);
+    row.setLongField(UploadTable.PART_COUNT, 0L);
+    row.setBooleanField(UploadTable.IS_FINALIZED, false);
+    ds.putEntity(row, user);
+    return new ResumableUpload(row);
+  }
+
+  /**
+   * @param uri
+   * @param cc
+   * @return the upload with the given uri.
+   * @throws ODKEntityNotFoundException
+   *           if the current user has no such upload.
+   * @throws ODKDatastoreException
+   */
+  public static ResumableUpload getUpload(String uri, CallingContext cc)
+      throws ODKDatastoreException {
+    UploadTable relation = UploadTable.assertRelation(cc);
+    User user = cc.getCurrentUser();
+    ResumableUpload upload = new ResumableUpload(cc.getDatastore().getEntity(relation, uri,
+        user));
+    if (!upload.isCreatedBy(user)) {
+      // report it as missing rather than reveal another user's upload
+      throw new ODKEntityNotFoundException("Upload " + uri + " belongs to another user");
+    }
+    return upload;
+  }
+
+  /**
+   * @param formId
+   * @param instanceId
+   * @param fileName
+   * @param cc
+   * @return the current user's finalized upload of the given attachment of a
+   *         submission, or null if there is none.
+   * @throws ODKDatastoreException
+   */
+  public static ResumableUpload findFinalizedUpload(String formId, String instanceId,
+      String fileName, CallingContext cc) throws ODKDatastoreException {
+    ResumableUpload upload = findUpload(formId, instanceId, fileName, cc);
+    if (upload != null && upload.isFinalized()) {
+      return upload;
+    }
+    return null;
+  }
+
+  private static ResumableUpload findUpload(String formId, String instanceId, String fileName,
+      CallingContext cc) throws ODKDatastoreException {
+    UploadTable relation = UploadTable.assertRelation(cc);
+    Query query = cc.getDatastore().createQuery(relation, "ResumableUpload.findUpload",
+        cc.getCurrentUser());
+    query.addFilter(UploadTable.INSTANCE_ID, FilterOperation.EQUAL, instanceId);
+    for (CommonFieldsBase b : query.executeQuery()) {
+      ResumableUpload upload = new ResumableUpload((UploadTable) b);
+      if (formId.equals(upload.getFormId()) && fileName.equals(upload.getFileName())
+          && upload.isCreatedBy(cc.getCurrentUser())) {
+        return upload;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Delete a few of the uploads that were abandoned by their clients.
+   */
+  private static void deleteStaleUploads(CallingContext cc) throws ODKDatastoreException {
+    UploadTable relation = UploadTable.assertRelation(cc);
+    Query query = cc.getDatastore().createQuery(relation, "ResumableUpload.deleteStaleUploads",
+        cc.getCurrentUser());
+    query.addFilter(relation.lastUpdateDate, FilterOperation.LESS_THAN,
+        new Date(System.currentTimeMillis() - STALE_UPLOAD_MILLISECONDS));
+    QueryResult result = query.executeQuery(null, STALE_UPLOAD_FETCH_LIMIT);
+    for (CommonFieldsBase b : result.getResultList()) {
+      ResumableUpload upload = new ResumableUpload((UploadTable) b);
+      logger.info("Deleting abandoned upload " + upload.getUri() + " of "
+          + upload.getFileName() + " for " + upload.getInstanceId());
+      upload.delete(cc);
+    }
+  }
+
+  /**
+   * Append a chunk to the upload.
+   *
+   * @param offset
+   *          the offset of the chunk within the file.
+   * @param chunk
+   *          the bytes of the chunk.
+   * @param cc
+   * @return false if the offset is not the number of bytes received so far.
+   * @throws ODKDatastoreException
+   */
+  public boolean append(long offset, byte[] chunk, CallingContext cc)
+      throws ODKDatastoreException {
+    if (isFinalized()) {
+      throw new IllegalStateException("upload is already finalized");
+    }
+    if (offset != getUploadOffset()) {
+      return false;
+    }
+    if (offset + chunk.length > getUploadLength()) {
+      throw new IllegalArgumentException("chunk extends beyond the length of the upload");
+    }
+    UploadTable.assertRelation(cc);
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+
+    // remove the parts of a chunk that was not completely stored
+    long partCount = row.getLongField(UploadTable.PART_COUNT);
+    List<EntityKey> keys = new ArrayList<EntityKey>();
+    for (BinaryContentRefBlob ref : getParts(cc)) {
+      if (ref.getPart() > partCount) {
+        keys.add(new EntityKey(UploadTable.refBlobRelation, ref.getSubAuri()));
+        keys.add(ref.getEntityKey());
+      }
+    }
+    if (!keys.isEmpty()) {
+      ds.deleteEntities(keys, user);
+    }
+
+    int partLimit = UploadTable.refBlobRelation.value.getMaxCharLen().intValue();
+    for (int start = 0; start < chunk.length; start += partLimit) {
+      byte[] part = Arrays.copyOfRange(chunk, start, Math.min(chunk.length, start + partLimit));
+      RefBlob blob = ds.createEntityUsingRelation(UploadTable.refBlobRelation, user);
+      blob.setTopLevelAuri(getUri());
+      blob.setValue(part);
+      BinaryContentRefBlob ref = ds.createEntityUsingRelation(
+          UploadTable.binaryRefBlobRelation, user);
+      ref.setTopLevelAuri(getUri());
+      ref.setDomAuri(getUri());
+      ref.setSubAuri(blob.getUri());
+      ref.setPart(++partCount);
+      ds.putEntity(blob, user);
+      ds.putEntity(ref, user);
+    }
+
+    // only now are the new parts counted
+    row.setLongField(UploadTable.PART_COUNT, partCount);
+    row.setLongField(UploadTable.UPLOAD_OFFSET, offset + chunk.length);
+    ds.putEntity(row, user);
+    return true;
+  }
+
+  /**
+   * Mark the upload as finalized, making it available to the submission.
+   *
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public void markFinalized(CallingContext cc) throws ODKDatastoreException {
+    if (getUploadOffset() != getUploadLength()) {
+      throw new IllegalStateException("upload is incomplete");
+    }
+    if (!isFinalized()) {
+      row.setBooleanField(UploadTable.IS_FINALIZED, true);
+      cc.getDatastore().putEntity(row, cc.getCurrentUser());
+    }
+  }
+
+  /**
+   * Write the uploaded bytes to the stream one part at a time, without
+   * reading them all into memory.
+   *
+   * @param out
+   * @param cc
+   * @throws ODKDatastoreException
+   * @throws IOException
+   */
+  public void writeContent(OutputStream out, CallingContext cc) throws ODKDatastoreException,
+      IOException {
+    UploadTable.assertRelation(cc);
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    long partCount = row.getLongField(UploadTable.PART_COUNT);
+    long written = 0L;
+    for (BinaryContentRefBlob ref : getParts(cc)) {
+      if (ref.getPart() <= partCount) {
+        RefBlob blob = ds.getEntity(UploadTable.refBlobRelation, ref.getSubAuri(), user);
+        byte[] value = blob.getValue();
+        out.write(value, 0, value.length);
+        written += value.length;
+      }
+    }
+    if (written != getUploadOffset()) {
+      throw new ODKEntityNotFoundException("Missing parts of upload " + getUri());
+    }
+  }
+
+  /**
+   * Delete the upload and its content.
+   *
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public void delete(CallingContext cc) throws ODKDatastoreException {
+    UploadTable.assertRelation(cc);
+    List<EntityKey> keys = new ArrayList<EntityKey>();
+    for (BinaryContentRefBlob ref : getParts(cc)) {
+      keys.add(new EntityKey(UploadTable.refBlobRelation, ref.getSubAuri()));
+      keys.add(ref.getEntityKey());
+    }
+    keys.add(row.getEntityKey());
+    cc.getDatastore().deleteEntities(keys, cc.getCurrentUser());
+  }
+
+  /**
+   * @return all the parts of the upload, including any not yet counted, in
+   *         order.
+   */
+  private List<BinaryContentRefBlob> getParts(CallingContext cc) throws ODKDatastoreException {
+    BinaryContentRefBlob bcbRef = UploadTable.binaryRefBlobRelation;
+    Query q = cc.getDatastore().createQuery(bcbRef, "ResumableUpload.getParts",
+        cc.getCurrentUser());
+    q.addFilter(bcbRef.domAuri, FilterOperation.EQUAL, getUri());
+    q.addSort(bcbRef.domAuri, Direction.ASCENDING); // gae optimization
+    q.addSort(bcbRef.part, Direction.ASCENDING);
+    List<BinaryContentRefBlob> parts = new ArrayList<BinaryContentRefBlob>();
+    for (CommonFieldsBase b : q.executeQuery()) {
+      parts.add((BinaryContentRefBlob) b);
+    }
+    return parts;
+  }
+
+  private static final class UploadTable extends CommonFieldsBase {
+
+    private static final String TABLE_NAME = "_resumable_upload";
+
+    private static final String UPLOAD_BINARY_CONTENT_REF_BLOB = "_resumable_upload_bin_cnt_ref";
+
+    private static final String UPLOAD_REF_BLOB = "_resumable_upload_ref_blob";
+
+    private static final DataField FORM_ID = new DataField("FORM_ID",
+        DataField.DataType.STRING, false, IForm.MAX_FORM_ID_LENGTH);
+
+    private static final DataField INSTANCE_ID = new DataField("INSTANCE_ID",
+        DataField.DataType.URI, false, PersistConsts.URI_STRING_LEN)
+        .setIndexable(IndexType.HASH);
+
+    private static final DataField FILE_NAME = new DataField("FILE_NAME",
+        DataField.DataType.STRING, false, 4096L);
+
+    private static final DataField CONTENT_TYPE = new DataField("CONTENT_TYPE",
+        DataField.DataType.STRING, false, 80L);
+
+    private static final DataField UPLOAD_LENGTH = new DataField("UPLOAD_LENGTH",
+        DataField.DataType.INTEGER, false);
+
+    private static final DataField UPLOAD_OFFSET = new DataField("UPLOAD_OFFSET",
+        DataField.DataType.INTEGER, false);
+
+    /** number of blob parts holding the bytes received */
+    private static final DataField PART_COUNT = new DataField("PART_COUNT",
+        DataField.DataType.INTEGER, false);
+
+    private static final DataField IS_FINALIZED = new DataField("IS_FINALIZED",
+        DataField.DataType.BOOLEAN, false);
+
+    /**
+     * Construct a relation prototype.
+     *
+     * @param databaseSchema
+     */
+    private UploadTable(String databaseSchema) {
+      super(databaseSchema, TABLE_NAME);
+      fieldList.add(FORM_ID);
+      fieldList.add(INSTANCE_ID);
+      fieldList.add(FILE_NAME);
+      fieldList.add(CONTENT_TYPE);
+      fieldList.add(UPLOAD_LENGTH);
+      fieldList.add(UPLOAD_OFFSET);
+      fieldList.add(PART_COUNT);
+      fieldList.add(IS_FINALIZED);
+    }
+
+    /**
+     * Construct an empty entity.
+     *
+     * @param ref
+     * @param user
+     */
+    private UploadTable(UploadTable ref, User user) {
+      super(ref, user);
+    }
+
+    @Override
+    public UploadTable getEmptyRow(User user) {
+      return new UploadTable(this, user);
+    }
+
+    private static UploadTable relation = null;
+    private static BinaryContentRefBlob binaryRefBlobRelation = null;
+    private static RefBlob refBlobRelation = null;
+
+    static synchronized final UploadTable assertRelation(CallingContext cc)
+        throws ODKDatastoreException {
+      if (relation == null) {
+        UploadTable relationPrototype;
+        Datastore ds = cc.getDatastore();
+        User user = cc.getUserService().getDaemonAccountUser();
+        relationPrototype = new UploadTable(ds.getDefaultSchemaName());
+        ds.assertRelation(relationPrototype, user); // may throw exception...
+        // at this point, the prototype has become fully populated
+        BinaryContentRefBlob bref = new BinaryContentRefBlob(ds.getDefaultSchemaName(),
+            UPLOAD_BINARY_CONTENT_REF_BLOB);
+        ds.assertRelation(bref, user);
+        RefBlob ref = new RefBlob(ds.getDefaultSchemaName(), UPLOAD_REF_BLOB);
+        ds.assertRelation(ref, user);
+        // everything is now fully populated
+        binaryRefBlobRelation = bref;
+        refBlobRelation = ref;
+        relation = relationPrototype; // set static variable only upon
+                                      // success...
+      }
+      return relation;
+    }
+  }
+}
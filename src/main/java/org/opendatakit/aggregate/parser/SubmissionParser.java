@@ -20,6 +20,7 @@ package org.opendatakit.aggregate.parser;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -106,6 +107,12 @@ public class SubmissionParser {
    */
   private MultiPartFormData submissionFormItems;
 
+  /**
+   * Resumable uploads supplying attachments of this submission. Deleted once
+   * the submission is persisted.
+   */
+  private List<ResumableUpload> attachedUploads = new ArrayList<ResumableUpload>();
+
   private EntityKey topLevelTableKey = null;
 
   /**
@@ -400,7 +407,8 @@ public class SubmissionParser {
               (e instanceof ODKEnumeratedElementException) ) {
             // this is a malformed submission...
             // try to clean this up...
-            DeleteHelper.deleteDamagedSubmission(fi, form.getAllBackingObjects(), cc);
+            DeleteHelper.deleteDamagedSubmission(fi, form.getAllBackingObjects(),
+                form.getAllAttachmentRelations(), cc);
           }
           throw e;
         }
@@ -435,6 +443,17 @@ public class SubmissionParser {
         }
         throw new ODKDatastoreException("Unable to persist data", e);
       }
+      // the attachments now hold the content of the uploads
+      for (ResumableUpload upload : attachedUploads) {
+        try {
+          upload.delete(cc);
+        } catch (ODKDatastoreException e) {
+          // it will be deleted once it is stale
+          Logger logger = LoggerFactory.getLogger(SubmissionParser.class);
+          logger.warn("Unable to delete resumable upload " + upload.getUri() + " - "
+              + e.getMessage());
+        }
+      }
     } finally {
       modificationLock.release();
     }
@@ -621,6 +640,31 @@ public class SubmissionParser {
         submissionElement.setValueFromByteArray(byteArray, binaryData.getContentType(),
             fileName, false, cc);
       } else {
+        // the file may have been sent ahead through the resumable upload
+        // servlet...
+        ResumableUpload upload = ResumableUpload.findFinalizedUpload(form.getFormId(),
+            topLevelTableKey.getKey(), value, cc);
+        if (upload != null) {
+          BlobSubmissionType blob = (BlobSubmissionType) submissionElement;
+          // as with setValueFromByteArray(), a stored attachment is not replaced
+          if (!hasStoredAttachment(blob, value, cc)) {
+            // copy the upload a part at a time. The attachment is only marked
+            // complete when the stream is closed, so it is not closed on failure.
+            try {
+              OutputStream out = blob.newAttachmentOutputStream(upload.getContentType(), value,
+                  cc);
+              upload.writeContent(out, cc);
+              out.close();
+            } catch (IOException e) {
+              if (e.getCause() instanceof ODKDatastoreException) {
+                throw (ODKDatastoreException) e.getCause();
+              }
+              throw new ODKDatastoreException("Unable to attach upload " + upload.getUri(), e);
+            }
+          }
+          attachedUploads.add(upload);
+          return true;
+        }
         // Assume the value is the filename...
         submissionElement.setValueFromByteArray(null, null, value, false, cc);
 
@@ -633,6 +677,20 @@ public class SubmissionParser {
     return true;
   }
 
+  /**
+   * @return true if the attachment with the given file name is already stored
+   *         completely.
+   */
+  private boolean hasStoredAttachment(BlobSubmissionType blob, String fileName,
+      CallingContext cc) throws ODKDatastoreException {
+    for (int i = 1; i <= blob.getAttachmentCount(cc); ++i) {
+      if (fileName.equals(blob.getUnrootedFilename(i, cc))) {
+        return blob.getContentHash(i, cc) != null;
+      }
+    }
+    return false;
+  }
+
   private List<Element> getElements(Element rootNode) {
     List<Element> elements = new ArrayList<Element>();
 
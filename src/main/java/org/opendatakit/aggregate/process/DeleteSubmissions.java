@@ -19,14 +19,17 @@ package org.opendatakit.aggregate.process;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 
 import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
 import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
 import org.opendatakit.aggregate.form.FormFactory;
 import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.server.ChangeVersions;
 import org.opendatakit.aggregate.submission.Submission;
 import org.opendatakit.aggregate.submission.SubmissionKey;
 import org.opendatakit.aggregate.submission.SubmissionKeyPart;
+import org.opendatakit.aggregate.submission.SubmissionSummary;
 import org.opendatakit.common.datamodel.DeleteHelper;
 import org.opendatakit.common.datamodel.DynamicCommonFieldsBase;
 import org.opendatakit.common.persistence.EntityKey;
@@ -52,6 +55,7 @@ public class DeleteSubmissions {
 
   public void deleteSubmissions(CallingContext cc) throws ODKOverQuotaException, ODKFormNotFoundException, ODKDatastoreException {
     List<EntityKey> deleteKeys = new ArrayList<EntityKey>();
+    Set<String> formIds = new TreeSet<String>();
 
     for (SubmissionKey submissionKey : submissionKeys) {
       List<SubmissionKeyPart> parts = submissionKey.splitSubmissionKey();
@@ -71,6 +75,7 @@ public class DeleteSubmissions {
       if ( tle != null ) {
         // we have the top-level entity. Construct the submission.
         IForm form = FormFactory.retrieveFormByFormId(parts.get(0).getElementName(), cc);
+        formIds.add(form.getFormId());
         try {
           Submission sub = new Submission(tle, form, cc);
           sub.recursivelyAddEntityKeysForDeletion(deleteKeys, cc);
@@ -79,10 +84,15 @@ public class DeleteSubmissions {
           // OK. We have a malformed or incompletely persisted Submission
           // Attempt to delete whatever portion is present.
           Set<DynamicCommonFieldsBase> backingObjects = form.getAllBackingObjects();
-          DeleteHelper.deleteDamagedSubmission(tle, backingObjects, cc);
+          DeleteHelper.deleteDamagedSubmission(tle, backingObjects,
+              form.getAllAttachmentRelations(), cc);
+          deleteKeys.add(SubmissionSummary.getEntityKey(tle.getUri(), cc));
         }
       }
     }
     DeleteHelper.deleteEntities(deleteKeys, cc);
+    for (String formId : formIds) {
+      ChangeVersions.submissionsChanged(formId, cc);
+    }
   }
 }
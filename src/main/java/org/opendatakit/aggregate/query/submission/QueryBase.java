@@ -15,20 +15,26 @@
  */
 package org.opendatakit.aggregate.query.submission;
 
+import java.math.BigDecimal;
 import java.util.List;
 
 import org.opendatakit.aggregate.datamodel.FormDataModel;
 import org.opendatakit.aggregate.datamodel.FormElementModel;
+import org.opendatakit.aggregate.datamodel.SelectChoice;
 import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
 import org.opendatakit.aggregate.exception.ODKIncompleteSubmissionData;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.submission.Submission;
+import org.opendatakit.common.datamodel.DynamicBase;
+import org.opendatakit.common.persistence.Aggregation;
+import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.Query.FilterOperation;
 import org.opendatakit.common.persistence.QueryResult;
 import org.opendatakit.common.persistence.QueryResumePoint;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
 import org.opendatakit.common.web.CallingContext;
 
 /**
@@ -49,7 +55,9 @@ public abstract class QueryBase {
   }
 
   /**
-   * CAUTION: the attribute must be in the top-level record!
+   * Filter on the value of a form element. Elements stored in phantom,
+   * nested-group or select-one choice tables are matched through the _TOP_LEVEL_AURI of those
+   * tables, so the filter is still applied by the database.
    * 
    * @param attribute
    * @param op
@@ -58,32 +66,51 @@ public abstract class QueryBase {
   public void addFilter(FormElementModel attribute, FilterOperation op,
                         Object value) {
     if ( attribute.isMetadata() ) {
-        DataField metaField;
-        TopLevelDynamicBase tlb = ((TopLevelDynamicBase) form.getTopLevelGroupElement().getFormDataModel().getBackingObjectPrototype());
-        switch ( attribute.getType() ) {
-        case META_INSTANCE_ID:
-            metaField = tlb.primaryKey;
-            break;
-        case META_IS_COMPLETE:
-            metaField = tlb.isComplete;
-            break;
-        case META_MODEL_VERSION:
-            metaField = tlb.modelVersion;
-            break;
-        case META_SUBMISSION_DATE:
-            metaField = tlb.submissionDate;
-            break;
-        case META_UI_VERSION:
-            metaField = tlb.uiVersion;
-            break;
-        case META_DATE_MARKED_AS_COMPLETE:
-            metaField = tlb.markedAsCompleteDate;
-        default:
-            throw new IllegalStateException("unknown Metadata type");
-        }
-        query.addFilter(metaField, op, value);
+        query.addFilter(getMetadataField(attribute), op, value);
+    } else {
+        addBackingKeyFilter(attribute.getFormDataModel(), op, value);
+    }
+  }
+
+  private DataField getMetadataField(FormElementModel attribute) {
+    TopLevelDynamicBase tlb = ((TopLevelDynamicBase) form.getTopLevelGroupElement().getFormDataModel().getBackingObjectPrototype());
+    switch ( attribute.getType() ) {
+    case META_INSTANCE_ID:
+        return tlb.primaryKey;
+    case META_IS_COMPLETE:
+        return tlb.isComplete;
+    case META_MODEL_VERSION:
+        return tlb.modelVersion;
+    case META_SUBMISSION_DATE:
+        return tlb.submissionDate;
+    case META_UI_VERSION:
+        return tlb.uiVersion;
+    case META_DATE_MARKED_AS_COMPLETE:
+        return tlb.markedAsCompleteDate;
+    default:
+        throw new IllegalStateException("unknown Metadata type");
+    }
+  }
+
+  private void addBackingKeyFilter(FormDataModel m, FilterOperation op, Object value) {
+    CommonFieldsBase backingObject = m.getBackingObjectPrototype();
+    DataField field;
+    if (backingObject instanceof SelectChoice) {
+      field = ((SelectChoice) backingObject).value;
+    } else {
+      field = m.getBackingKey();
+    }
+    if (field == null) {
+      throw new IllegalStateException("unable to filter on " + m.getElementName());
+    }
+    if (backingObject == form.getTopLevelGroupElement().getFormDataModel()
+        .getBackingObjectPrototype()) {
+      query.addFilter(field, op, value);
+    } else if (backingObject instanceof DynamicBase) {
+      query.addChildFilter(backingObject, ((DynamicBase) backingObject).topLevelAuri,
+          field, op, value);
     } else {
-        query.addFilter(attribute.getFormDataModel().getBackingKey(), op, value);
+      throw new IllegalStateException("unable to filter on " + m.getElementName());
     }
   }
   
@@ -94,11 +121,108 @@ public abstract class QueryBase {
 
     for ( FormDataModel m : geoList ) {
        if ( m.getOrdinalNumber().equals(Long.valueOf(ordinal)) ) {
-         query.addFilter(m.getBackingKey(), op, value);
+         addBackingKeyFilter(m, op, value);
        } 
     }
   }
 
+  /**
+   * Group the aggregation by the value of a form element. The choices of a
+   * multiple-choice element are each counted separately, as are the values
+   * of an element within a repeat group.
+   * 
+   * @param aggregation
+   * @param attribute
+   * @param geopointOrdinal
+   *          the component of a geopoint element; null otherwise.
+   * @param bucket
+   * @param width
+   *          the width of RANGE buckets; null otherwise.
+   */
+  public void addGroupBy(Aggregation aggregation, FormElementModel attribute,
+      Long geopointOrdinal, Aggregation.Bucket bucket, BigDecimal width) {
+    AggregatedField f = getAggregatedField(attribute, geopointOrdinal);
+    aggregation.addGroupBy(f.relation, f.joinField, f.field, bucket, width);
+  }
+
+  /**
+   * Compute the count, sum, minimum and maximum of a form element within each
+   * group of the aggregation.
+   * 
+   * @param aggregation
+   * @param attribute
+   * @param geopointOrdinal
+   *          the component of a geopoint element; null otherwise.
+   */
+  public void addMeasure(Aggregation aggregation, FormElementModel attribute, Long geopointOrdinal) {
+    AggregatedField f = getAggregatedField(attribute, geopointOrdinal);
+    aggregation.addMeasure(f.relation, f.joinField, f.field);
+  }
+
+  /**
+   * Aggregate the submissions matching the filters of this query.
+   * 
+   * @param aggregation
+   * @return one result per group.
+   * @throws ODKDatastoreException
+   * @throws ODKOverQuotaException
+   */
+  public List<Aggregation.Result> getAggregates(Aggregation aggregation)
+      throws ODKDatastoreException, ODKOverQuotaException {
+    return query.executeAggregateQuery(aggregation);
+  }
+
+  private static final class AggregatedField {
+    final CommonFieldsBase relation;
+    final DataField joinField;
+    final DataField field;
+
+    AggregatedField(CommonFieldsBase relation, DataField joinField, DataField field) {
+      this.relation = relation;
+      this.joinField = joinField;
+      this.field = field;
+    }
+  }
+
+  private AggregatedField getAggregatedField(FormElementModel attribute, Long geopointOrdinal) {
+    CommonFieldsBase topLevel = form.getTopLevelGroupElement().getFormDataModel()
+        .getBackingObjectPrototype();
+    if (attribute.isMetadata()) {
+      return new AggregatedField(topLevel, null, getMetadataField(attribute));
+    }
+    FormDataModel m = attribute.getFormDataModel();
+    if (geopointOrdinal != null) {
+      FormDataModel component = null;
+      for (FormDataModel c : m.getChildren()) {
+        if (c.getOrdinalNumber().equals(geopointOrdinal)) {
+          component = c;
+        }
+      }
+      if (component == null) {
+        throw new IllegalStateException("no component " + geopointOrdinal + " of "
+            + m.getElementName());
+      }
+      m = component;
+    }
+    CommonFieldsBase backingObject = m.getBackingObjectPrototype();
+    DataField field;
+    if (backingObject instanceof SelectChoice) {
+      field = ((SelectChoice) backingObject).value;
+    } else {
+      field = m.getBackingKey();
+    }
+    if (field == null) {
+      throw new IllegalStateException("unable to aggregate " + m.getElementName());
+    }
+    if (backingObject == topLevel) {
+      return new AggregatedField(backingObject, null, field);
+    } else if (backingObject instanceof DynamicBase) {
+      return new AggregatedField(backingObject, ((DynamicBase) backingObject).topLevelAuri, field);
+    } else {
+      throw new IllegalStateException("unable to aggregate " + m.getElementName());
+    }
+  }
+
   public abstract List<Submission> getResultSubmissions(CallingContext cc) throws ODKIncompleteSubmissionData, ODKDatastoreException;
 
   
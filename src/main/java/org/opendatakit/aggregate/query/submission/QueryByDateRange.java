@@ -26,6 +26,7 @@ import org.opendatakit.aggregate.exception.ODKIncompleteSubmissionData;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.server.ServerPreferencesProperties;
 import org.opendatakit.aggregate.submission.Submission;
+import org.opendatakit.aggregate.submission.SubmissionPrefetch;
 import org.opendatakit.common.datamodel.ODKEnumeratedElementException;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.PersistConsts;
@@ -108,12 +109,15 @@ public class QueryByDateRange extends QueryBase {
     
     // retrieve submissions
     List<? extends CommonFieldsBase> submissionEntities = result.getResultList();
+    // the publishers send every element, so fetch all the nested rows of the page
+    SubmissionPrefetch prefetch = SubmissionPrefetch.fetch(getForm(), submissionEntities, cc);
 
     // create a row for each submission
     for (int count = 0; count < submissionEntities.size(); count++) {
       CommonFieldsBase subEntity = submissionEntities.get(count);
       try {
-        retrievedSubmissions.add(new Submission((TopLevelDynamicBase) subEntity, getForm(), cc));
+        retrievedSubmissions.add(new Submission((TopLevelDynamicBase) subEntity, getForm(),
+            prefetch, cc));
       } catch ( ODKDatastoreException e ) {
         Logger logger = LoggerFactory.getLogger(QueryByUIFilterGroup.class);
         e.printStackTrace();
@@ -18,6 +18,7 @@ package org.opendatakit.aggregate.query.submission;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
@@ -41,6 +42,7 @@ import org.opendatakit.aggregate.server.ServerPreferencesProperties;
 import org.opendatakit.aggregate.server.UITrans;
 import org.opendatakit.aggregate.submission.Submission;
 import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.aggregate.submission.SubmissionPrefetch;
 import org.opendatakit.common.datamodel.ODKEnumeratedElementException;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.Query;
@@ -59,7 +61,13 @@ public class QueryByUIFilterGroup extends QueryBase {
   public enum CompletionFlag {
      ONLY_COMPLETE_SUBMISSIONS,
      ONLY_INCOMPLETE_SUBMISSIONS,
-     ALL_SUBMISSIONS
+     ALL_SUBMISSIONS,
+     /**
+      * complete submissions in the order the server last stored them. Unlike
+      * the markedAsCompleteDate, which a pushed submission brings with it, the
+      * lastUpdateDate is always assigned by the server.
+      */
+     ONLY_COMPLETE_SUBMISSIONS_BY_LAST_UPDATE
   };
 
   private static final String MISSING_ARGS = "Missing either Form or FilterGroup making it impossible to query";
@@ -83,6 +91,9 @@ public class QueryByUIFilterGroup extends QueryBase {
     case ALL_SUBMISSIONS:
       query.addFilter(tbl.lastUpdateDate, operation, dateToFilter);
       break;
+    case ONLY_COMPLETE_SUBMISSIONS_BY_LAST_UPDATE:
+      query.addFilter(tbl.lastUpdateDate, operation, dateToFilter);
+      break;
     default:
         throw new IllegalStateException("unhandled case");
     }
@@ -142,6 +153,16 @@ public class QueryByUIFilterGroup extends QueryBase {
       }
       query.addFilter(tbl.lastUpdateDate, Query.FilterOperation.GREATER_THAN, BasicConsts.EPOCH);
       break;
+    case ONLY_COMPLETE_SUBMISSIONS_BY_LAST_UPDATE:
+      // order by the last update date and filter against isComplete == true
+      if ( isForwardCursor ) {
+        query.addSort(tbl.lastUpdateDate, Query.Direction.ASCENDING);
+      } else {
+        query.addSort(tbl.lastUpdateDate, Query.Direction.DESCENDING);
+      }
+      query.addFilter(tbl.lastUpdateDate, Query.FilterOperation.GREATER_THAN, BasicConsts.EPOCH);
+      query.addFilter(tbl.isComplete, Query.FilterOperation.EQUAL, true);
+      break;
     default:
         throw new IllegalStateException("unhandled case");
     }
@@ -211,18 +232,35 @@ public class QueryByUIFilterGroup extends QueryBase {
    * 
    */
   public List<Submission> getResultSubmissions(CallingContext cc) throws ODKDatastoreException {
+    return getResultSubmissions(null, cc);
+  }
+
+  /**
+   * Retrieve the next page of submissions, constructing only the given
+   * elements up front. Any other element is retrieved when first accessed.
+   * Silently skip the submissions that are not retrievable due to
+   * malformations of some kind.
+   * 
+   * @param projection
+   *          the elements to construct; null constructs all of them.
+   */
+  public List<Submission> getResultSubmissions(Collection<FormElementModel> projection,
+      CallingContext cc) throws ODKDatastoreException {
     
     List<Submission> retrievedSubmissions = new ArrayList<Submission>();
 
     // retrieve submissions
     QueryResult results = getQueryResult(cursor, fetchLimit);
     List<? extends CommonFieldsBase> submissionEntities = results.getResultList();
+    SubmissionPrefetch prefetch = SubmissionPrefetch.fetch(getForm(), projection,
+        submissionEntities, cc);
 
     // create a row for each submission
     for (int count = 0; count < submissionEntities.size(); count++) {
       CommonFieldsBase subEntity = submissionEntities.get(count);
       try {
-        Submission sub = new Submission((TopLevelDynamicBase) subEntity, getForm(), cc);
+        Submission sub = new Submission((TopLevelDynamicBase) subEntity, getForm(), projection,
+            prefetch, cc);
         retrievedSubmissions.add(sub);
       } catch (ODKDatastoreException e ) {
         Logger logger = LoggerFactory.getLogger(QueryByUIFilterGroup.class);
@@ -250,6 +288,14 @@ public class QueryByUIFilterGroup extends QueryBase {
     return retrievedSubmissions;
   }
 
+  /**
+   * @return the cursor following the last page retrieved by
+   *         getResultSubmissions() or getTopLevelSubmissionObjects().
+   */
+  public QueryResumePoint getResumeCursor() {
+    return cursor;
+  }
+
   public static final class PartialResults {
     public List<Submission> retrievedSubmissions;
     public List<TopLevelDynamicBase> badTopLevelEntities;
@@ -357,10 +403,11 @@ public class QueryByUIFilterGroup extends QueryBase {
 
     List<SubmissionUI> submissionList = new ArrayList<SubmissionUI>();
 
-    // create a row for each submission
+    // create a row for each submission, retrieving only the displayed columns
     for (CommonFieldsBase subEntity : results.getResultList()) {
       try {
-        Submission sub = new Submission((TopLevelDynamicBase) subEntity, getForm(), cc);
+        Submission sub = new Submission((TopLevelDynamicBase) subEntity, getForm(),
+            filteredElements, cc);
         Row row = sub.getFormattedValuesAsRow(elementTypes, filteredElements, elemFormatter, false,
             cc);
   
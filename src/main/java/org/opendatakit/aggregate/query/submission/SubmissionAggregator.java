@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.query.submission;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opendatakit.aggregate.client.filter.Filter;
+import org.opendatakit.aggregate.client.filter.FilterGroup;
+import org.opendatakit.aggregate.client.filter.RowFilter;
+import org.opendatakit.aggregate.client.submission.AggregationRequest;
+import org.opendatakit.aggregate.client.submission.Column;
+import org.opendatakit.aggregate.client.submission.UIAggregateRow;
+import org.opendatakit.aggregate.client.submission.UIGeoCluster;
+import org.opendatakit.aggregate.constants.common.AggregationBucket;
+import org.opendatakit.aggregate.constants.common.GeoPointConsts;
+import org.opendatakit.aggregate.datamodel.FormElementKey;
+import org.opendatakit.aggregate.datamodel.FormElementModel;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup.CompletionFlag;
+import org.opendatakit.aggregate.server.ChangeVersions;
+import org.opendatakit.common.persistence.Aggregation;
+import org.opendatakit.common.persistence.CacheInvalidationBus;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.QueryResult;
+import org.opendatakit.common.persistence.WrappedBigDecimal;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
+import org.opendatakit.common.utils.WebUtils;
+import org.opendatakit.common.web.CallingContext;
+
+/**
+ * Summaries of the completed submissions matching a filter group, computed by
+ * the datastore rather than by retrieving the submissions, for the
+ * visualizations.
+ *
+ * Results are cached per form, filter and request. A cached result is used
+ * only while the most recently updated submission of the form is unchanged
+ * and no submission of the form has been saved or deleted since (as announced
+ * through the {@link CacheInvalidationBus} by
+ * ChangeVersions.submissionsChanged()).
+ */
+public final class SubmissionAggregator {
+
+  /** invalidation topic prefix for the submissions of a form */
+  private static final String TOPIC_PREFIX = ChangeVersions.SUBMISSIONS_PREFIX;
+
+  /** the approximate number of groups when no range width is given */
+  private static final int DEFAULT_RANGE_COUNT = 10;
+
+  private static final int MAX_CACHED_RESULTS = 200;
+
+  private static final class CachedResult {
+    final String formId;
+    final Long lastUpdate;
+    final Object value;
+
+    CachedResult(String formId, Long lastUpdate, Object value) {
+      this.formId = formId;
+      this.lastUpdate = lastUpdate;
+      this.value = value;
+    }
+  }
+
+  // guarded by itself; in access order, so the eldest entry is the least
+  // recently used
+  private static final LinkedHashMap<String, CachedResult> cache = new LinkedHashMap<String, CachedResult>(
+      16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+      return size() > MAX_CACHED_RESULTS;
+    }
+  };
+
+  static {
+    CacheInvalidationBus.subscribe(TOPIC_PREFIX, new CacheInvalidationBus.Listener() {
+      @Override
+      public void invalidated(String topic) {
+        String formId = (topic == null) ? null : topic.substring(TOPIC_PREFIX.length());
+        synchronized (cache) {
+          Iterator<CachedResult> it = cache.values().iterator();
+          while (it.hasNext()) {
+            if (formId == null || formId.equals(it.next().formId)) {
+              it.remove();
+            }
+          }
+        }
+      }
+    });
+  }
+
+  private SubmissionAggregator() {
+  }
+
+  /**
+   * Group the completed submissions matching the filter group and count (and
+   * optionally sum) each group.
+   *
+   * @param form
+   * @param filterGroup
+   * @param request
+   * @param cc
+   * @return the groups, in no particular order.
+   * @throws ODKDatastoreException
+   * @throws ODKOverQuotaException
+   */
+  @SuppressWarnings("unchecked")
+  public static ArrayList<UIAggregateRow> aggregate(IForm form, FilterGroup filterGroup,
+      AggregationRequest request, CallingContext cc) throws ODKDatastoreException,
+      ODKOverQuotaException {
+    Column groupColumn = request.getGroupColumn();
+    Column valueColumn = request.getValueColumn();
+    StringBuilder b = new StringBuilder();
+    b.append("aggregate|").append(getColumnSignature(groupColumn)).append("|")
+        .append(request.getBucket()).append("|").append(request.getBucketWidth()).append("|")
+        .append((valueColumn == null) ? null : getColumnSignature(valueColumn));
+    String key = getCacheKey(form, filterGroup, b.toString());
+
+    Long lastUpdate = getLastUpdate(form, cc);
+    Object cached = getCached(key, lastUpdate, cc);
+    if (cached != null) {
+      return (ArrayList<UIAggregateRow>) cached;
+    }
+
+    FormElementModel groupElement = getElement(form, groupColumn);
+    Aggregation.Bucket bucket = Aggregation.Bucket.valueOf(request.getBucket().name());
+    BigDecimal width = null;
+    if (bucket == Aggregation.Bucket.RANGE) {
+      if (request.getBucketWidth() != null && request.getBucketWidth().length() != 0) {
+        width = new BigDecimal(request.getBucketWidth());
+      } else {
+        width = chooseRangeWidth(form, filterGroup, groupElement,
+            groupColumn.getGeopointColumnCode(), cc);
+      }
+    }
+
+    QueryByUIFilterGroup query = new QueryByUIFilterGroup(form, filterGroup,
+        CompletionFlag.ONLY_COMPLETE_SUBMISSIONS, cc);
+    Aggregation aggregation = new Aggregation();
+    query.addGroupBy(aggregation, groupElement, groupColumn.getGeopointColumnCode(), bucket, width);
+    if (valueColumn != null) {
+      query.addMeasure(aggregation, getElement(form, valueColumn),
+          valueColumn.getGeopointColumnCode());
+    }
+
+    ArrayList<UIAggregateRow> rows = new ArrayList<UIAggregateRow>();
+    for (Aggregation.Result r : query.getAggregates(aggregation)) {
+      String label = getLabel(r.getKey(0), width);
+      if (valueColumn == null) {
+        rows.add(new UIAggregateRow(label, r.getCount(), 0L, null, null, null));
+      } else {
+        rows.add(new UIAggregateRow(label, r.getCount(), r.getValueCount(0),
+            toDouble(r.getSum(0)), toDouble(r.getMin(0)), toDouble(r.getMax(0))));
+      }
+    }
+    putCached(key, form, lastUpdate, rows);
+    return rows;
+  }
+
+  /**
+   * Cluster the geopoints of the completed submissions matching the filter
+   * group on a grid laid over their bounding box.
+   *
+   * @param form
+   * @param filterGroup
+   * @param geopointElementKey
+   *          the encoded FormElementKey of the geopoint element.
+   * @param gridDivisions
+   *          the number of grid cells along each axis.
+   * @param cc
+   * @return the non-empty grid cells.
+   * @throws ODKDatastoreException
+   * @throws ODKOverQuotaException
+   */
+  @SuppressWarnings("unchecked")
+  public static ArrayList<UIGeoCluster> cluster(IForm form, FilterGroup filterGroup,
+      String geopointElementKey, int gridDivisions, CallingContext cc)
+      throws ODKDatastoreException, ODKOverQuotaException {
+    if (gridDivisions < 1) {
+      throw new IllegalArgumentException("gridDivisions must be positive");
+    }
+    String key = getCacheKey(form, filterGroup, "cluster|" + geopointElementKey + "|"
+        + gridDivisions);
+
+    Long lastUpdate = getLastUpdate(form, cc);
+    Object cached = getCached(key, lastUpdate, cc);
+    if (cached != null) {
+      return (ArrayList<UIGeoCluster>) cached;
+    }
+
+    FormElementModel geopoint = FormElementModel.retrieveFormElementModel(form,
+        new FormElementKey(geopointElementKey));
+    Long latOrdinal = Long.valueOf(GeoPointConsts.GEOPOINT_LATITUDE_ORDINAL_NUMBER);
+    Long lonOrdinal = Long.valueOf(GeoPointConsts.GEOPOINT_LONGITUDE_ORDINAL_NUMBER);
+
+    ArrayList<UIGeoCluster> clusters = new ArrayList<UIGeoCluster>();
+
+    // the bounding box of all the points
+    QueryByUIFilterGroup query = new QueryByUIFilterGroup(form, filterGroup,
+        CompletionFlag.ONLY_COMPLETE_SUBMISSIONS, cc);
+    Aggregation extent = new Aggregation();
+    query.addMeasure(extent, geopoint, latOrdinal);
+    query.addMeasure(extent, geopoint, lonOrdinal);
+    List<Aggregation.Result> results = query.getAggregates(extent);
+    if (results.isEmpty() || results.get(0).getMin(0) == null
+        || results.get(0).getMin(1) == null) {
+      putCached(key, form, lastUpdate, clusters);
+      return clusters;
+    }
+    Aggregation.Result r = results.get(0);
+    BigDecimal latWidth = getCellWidth(r.getMin(0), r.getMax(0), gridDivisions);
+    BigDecimal lonWidth = getCellWidth(r.getMin(1), r.getMax(1), gridDivisions);
+
+    query = new QueryByUIFilterGroup(form, filterGroup, CompletionFlag.ONLY_COMPLETE_SUBMISSIONS,
+        cc);
+    Aggregation grid = new Aggregation();
+    query.addGroupBy(grid, geopoint, latOrdinal, Aggregation.Bucket.RANGE, latWidth);
+    query.addGroupBy(grid, geopoint, lonOrdinal, Aggregation.Bucket.RANGE, lonWidth);
+    query.addMeasure(grid, geopoint, latOrdinal);
+    query.addMeasure(grid, geopoint, lonOrdinal);
+    for (Aggregation.Result cell : query.getAggregates(grid)) {
+      if (cell.getKey(0) == null || cell.getKey(1) == null || cell.getValueCount(0) == 0L
+          || cell.getValueCount(1) == 0L) {
+        // submissions without a location
+        continue;
+      }
+      Double latSum = toDouble(cell.getSum(0));
+      Double lonSum = toDouble(cell.getSum(1));
+      if (latSum == null || lonSum == null) {
+        continue;
+      }
+      clusters.add(new UIGeoCluster(cell.getCount(), latSum / cell.getValueCount(0), lonSum
+          / cell.getValueCount(1), toDouble(cell.getMin(0)), toDouble(cell.getMax(0)),
+          toDouble(cell.getMin(1)), toDouble(cell.getMax(1))));
+    }
+    putCached(key, form, lastUpdate, clusters);
+    return clusters;
+  }
+
+  private static FormElementModel getElement(IForm form, Column column) {
+    FormElementModel fem = FormElementModel.retrieveFormElementModel(form, new FormElementKey(
+        column.getColumnEncoding()));
+    if (fem == null) {
+      throw new IllegalArgumentException("unknown column " + column.getDisplayHeader());
+    }
+    return fem;
+  }
+
+  /**
+   * Choose a width of the form 1, 2 or 5 times a power of ten that divides the
+   * range of the values into about DEFAULT_RANGE_COUNT buckets.
+   */
+  private static BigDecimal chooseRangeWidth(IForm form, FilterGroup filterGroup,
+      FormElementModel element, Long geopointOrdinal, CallingContext cc)
+      throws ODKDatastoreException, ODKOverQuotaException {
+    QueryByUIFilterGroup query = new QueryByUIFilterGroup(form, filterGroup,
+        CompletionFlag.ONLY_COMPLETE_SUBMISSIONS, cc);
+    Aggregation extent = new Aggregation();
+    query.addMeasure(extent, element, geopointOrdinal);
+    List<Aggregation.Result> results = query.getAggregates(extent);
+    if (results.isEmpty()) {
+      return BigDecimal.ONE;
+    }
+    Double min = toDouble(results.get(0).getMin(0));
+    Double max = toDouble(results.get(0).getMax(0));
+    if (min == null || max == null || !(max > min)) {
+      return BigDecimal.ONE;
+    }
+    double raw = (max - min) / DEFAULT_RANGE_COUNT;
+    BigDecimal magnitude = BigDecimal.ONE.scaleByPowerOfTen((int) Math.floor(Math.log10(raw)));
+    for (int step : new int[] { 1, 2, 5 }) {
+      BigDecimal width = magnitude.multiply(BigDecimal.valueOf(step));
+      if (width.doubleValue() >= raw) {
+        return width;
+      }
+    }
+    return magnitude.multiply(BigDecimal.TEN);
+  }
+
+  private static BigDecimal getCellWidth(Object min, Object max, int gridDivisions) {
+    Double lo = toDouble(min);
+    Double hi = toDouble(max);
+    if (lo == null || hi == null || !(hi > lo)) {
+      // a single point; any width puts it in one cell
+      return BigDecimal.ONE;
+    }
+    // slightly wider, so the maximum falls in the last cell
+    return new BigDecimal((hi - lo) / gridDivisions).multiply(new BigDecimal("1.000001"))
+        .setScale(9, RoundingMode.CEILING);
+  }
+
+  private static String getLabel(Object key, BigDecimal width) {
+    if (key == null) {
+      return "";
+    }
+    if (width != null) {
+      BigDecimal lo = width.multiply(BigDecimal.valueOf((Long) key));
+      BigDecimal hi = lo.add(width);
+      return "[" + lo.stripTrailingZeros().toPlainString() + ", "
+          + hi.stripTrailingZeros().toPlainString() + ")";
+    }
+    if (key instanceof Date) {
+      return WebUtils.iso8601Date((Date) key);
+    }
+    return key.toString();
+  }
+
+  private static Double toDouble(Object value) {
+    if (value instanceof WrappedBigDecimal) {
+      return ((WrappedBigDecimal) value).doubleValue();
+    } else if (value instanceof Number) {
+      return ((Number) value).doubleValue();
+    }
+    return null;
+  }
+
+  private static String getColumnSignature(Column column) {
+    return column.getColumnEncoding() + "#" + column.getGeopointColumnCode();
+  }
+
+  /**
+   * Only the row filters affect the result; the column filters only hide
+   * columns.
+   */
+  private static String getCacheKey(IForm form, FilterGroup filterGroup, String request) {
+    StringBuilder b = new StringBuilder();
+    b.append(form.getFormId()).append("|").append(request);
+    for (Filter filter : filterGroup.getFilters()) {
+      if (filter instanceof RowFilter) {
+        RowFilter rf = (RowFilter) filter;
+        b.append("|").append(getColumnSignature(rf.getColumn())).append(" ")
+            .append(rf.getOperation()).append(" ").append(rf.getVisibility()).append(" ")
+            .append(rf.getInput());
+      }
+    }
+    return b.toString();
+  }
+
+  /**
+   * @return the last update time of the most recently updated submission of
+   *         the form, or null if there are none.
+   */
+  private static Long getLastUpdate(IForm form, CallingContext cc) throws ODKDatastoreException,
+      ODKOverQuotaException {
+    CommonFieldsBase tbl = form.getTopLevelGroupElement().getFormDataModel()
+        .getBackingObjectPrototype();
+    Query query = cc.getDatastore().createQuery(tbl, "SubmissionAggregator.getLastUpdate",
+        cc.getCurrentUser());
+    query.addSort(tbl.lastUpdateDate, Query.Direction.DESCENDING);
+    QueryResult result = query.executeQuery(null, 1);
+    if (result.getResultList().isEmpty()) {
+      return null;
+    }
+    Date d = result.getResultList().get(0).getLastUpdateDate();
+    return (d == null) ? null : d.getTime();
+  }
+
+  private static Object getCached(String key, Long lastUpdate, CallingContext cc) {
+    CacheInvalidationBus.poll(cc.getDatastore(), cc.getCurrentUser());
+    synchronized (cache) {
+      CachedResult e = cache.get(key);
+      if (e == null) {
+        return null;
+      }
+      if ((e.lastUpdate == null) ? (lastUpdate != null) : !e.lastUpdate.equals(lastUpdate)) {
+        cache.remove(key);
+        return null;
+      }
+      return e.value;
+    }
+  }
+
+  private static void putCached(String key, IForm form, Long lastUpdate, Object value) {
+    synchronized (cache) {
+      cache.put(key, new CachedResult(form.getFormId(), lastUpdate, value));
+    }
+  }
+}
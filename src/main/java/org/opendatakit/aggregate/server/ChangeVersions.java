@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.opendatakit.aggregate.constants.common.UIConsts;
+import org.opendatakit.aggregate.form.FormFactory;
+import org.opendatakit.common.persistence.CacheInvalidationBus;
+import org.opendatakit.common.persistence.engine.CachingDatastore;
+import org.opendatakit.common.web.CallingContext;
+
+/**
+ * Change versions of the areas shown by the admin UI (the form list, the
+ * exports, the publishers and the submissions of each form), so that the UI
+ * can ask whether anything changed rather than re-fetching every area on a
+ * timer.
+ *
+ * The versions are advanced by the invalidation messages of the
+ * {@link CacheInvalidationBus}: the form, export and publisher areas follow
+ * the writes to their (cached) tables, and the submissions of a form follow
+ * {@link #submissionsChanged(String, CallingContext)}.
+ *
+ * A version is the publication time of the last change to the area: the
+ * creation date of its notification row, which every server node reads back
+ * the same. So the nodes behind a load balancer report the same versions once
+ * they have polled the bus. An area with no change within the bus's retention
+ * period (including every area of a node that has just started, whose first
+ * poll reads back that period) has version 0. Only a lost-notification reset
+ * (a null topic) advances the versions by the local clock; the nodes then
+ * disagree until the next change or the end of the retention period. Clients
+ * should treat any difference as a change.
+ */
+public final class ChangeVersions {
+
+  public static final String FORMS = UIConsts.CHANGE_AREA_FORMS;
+  public static final String EXPORTS = UIConsts.CHANGE_AREA_EXPORTS;
+  public static final String PUBLISHERS = UIConsts.CHANGE_AREA_PUBLISHERS;
+  /** the submissions of a form; followed by the formId */
+  public static final String SUBMISSIONS_PREFIX = UIConsts.CHANGE_AREA_SUBMISSIONS_PREFIX;
+
+  /** the areas followed by the writes to each table */
+  private static final Map<String, String> tableAreas = new HashMap<String, String>();
+
+  static {
+    tableAreas.put("_form_info", FORMS);
+    tableAreas.put("_form_info_fileset", FORMS);
+    tableAreas.put("_persistent_results", EXPORTS);
+    tableAreas.put("_form_service_cursor_2", PUBLISHERS);
+  }
+
+  /**
+   * Told whenever a version is advanced.
+   */
+  public interface Listener {
+    void changed();
+  }
+
+  private static final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+  /** the version of an area without a known change */
+  private static final long NO_CHANGE = 0L;
+
+  // guarded by the class lock
+  private static final Map<String, Long> versions = new HashMap<String, Long>();
+  /** the version of the areas not in versions */
+  private static long baseVersion = NO_CHANGE;
+
+  static {
+    // every topic
+    CacheInvalidationBus.subscribe("", new CacheInvalidationBus.TimedListener() {
+      @Override
+      public void invalidated(String topic, long publishedTime) {
+        String area = getArea(topic);
+        if (topic == null || area != null) {
+          advance(area, publishedTime);
+        }
+      }
+    });
+  }
+
+  private ChangeVersions() {
+  }
+
+  /**
+   * @param topic
+   * @return the area changed by the invalidation topic, or null if none.
+   */
+  private static String getArea(String topic) {
+    if (topic == null) {
+      return null;
+    }
+    if (topic.equals(FormFactory.FORMS_TOPIC)) {
+      return FORMS;
+    }
+    if (topic.startsWith(SUBMISSIONS_PREFIX)) {
+      return topic;
+    }
+    if (topic.startsWith(CachingDatastore.TOPIC_PREFIX)) {
+      String tableKey = topic.substring(CachingDatastore.TOPIC_PREFIX.length());
+      return tableAreas.get(tableKey.substring(tableKey.lastIndexOf('.') + 1));
+    }
+    return null;
+  }
+
+  /**
+   * Advance the version of an area. Notifications may arrive out of order, so
+   * the version only moves forward.
+   *
+   * @param area
+   *          the area, or null to advance every area.
+   * @param publishedTime
+   */
+  private static void advance(String area, long publishedTime) {
+    synchronized (ChangeVersions.class) {
+      if (area == null) {
+        baseVersion = Math.max(publishedTime, baseVersion);
+        versions.clear();
+      } else {
+        Long version = versions.get(area);
+        if (version == null || version < publishedTime) {
+          versions.put(area, publishedTime);
+        }
+      }
+    }
+    for (Listener l : listeners) {
+      l.changed();
+    }
+  }
+
+  /**
+   * @param area
+   * @return the current version of the area.
+   */
+  public static synchronized long getVersion(String area) {
+    Long version = versions.get(area);
+    if (version == null || version < baseVersion) {
+      version = baseVersion;
+    }
+    if (version + CacheInvalidationBus.RETENTION_MILLISECONDS < System.currentTimeMillis()) {
+      // a node started since then cannot know of the change
+      return NO_CHANGE;
+    }
+    return version;
+  }
+
+  /**
+   * @param listener
+   *          told whenever a version is advanced; must not block.
+   */
+  public static void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public static void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Tell this and the other servers that submissions of the form have been
+   * added, updated or deleted.
+   *
+   * @param formId
+   * @param cc
+   */
+  public static void submissionsChanged(String formId, CallingContext cc) {
+    CacheInvalidationBus.publish(SUBMISSIONS_PREFIX + formId, cc.getDatastore(),
+        cc.getCurrentUser());
+  }
+}
@@ -33,6 +33,7 @@ import org.opendatakit.aggregate.client.exception.FormNotAvailableException;
 import org.opendatakit.aggregate.client.exception.RequestFailureException;
 import org.opendatakit.aggregate.client.filter.FilterGroup;
 import org.opendatakit.aggregate.client.form.ExportSummary;
+import org.opendatakit.aggregate.client.form.FormStatistics;
 import org.opendatakit.aggregate.client.form.FormSummary;
 import org.opendatakit.aggregate.client.form.GeopointElementList;
 import org.opendatakit.aggregate.client.form.KmlOptionsSummary;
@@ -40,6 +41,7 @@ import org.opendatakit.aggregate.client.form.KmlSelection;
 import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.constants.ErrorConsts;
 import org.opendatakit.aggregate.constants.HtmlUtil;
+import org.opendatakit.aggregate.constants.common.ExportStatus;
 import org.opendatakit.aggregate.constants.common.ExportType;
 import org.opendatakit.aggregate.constants.common.FormActionStatusTimestamp;
 import org.opendatakit.aggregate.constants.format.FormTableConsts;
@@ -50,9 +52,12 @@ import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.form.MiscTasks;
 import org.opendatakit.aggregate.form.PersistentResults;
 import org.opendatakit.aggregate.form.PersistentResults.ResultFileInfo;
+import org.opendatakit.aggregate.submission.SubmissionSummary;
+import org.opendatakit.aggregate.task.ArrowFileGenerator;
 import org.opendatakit.aggregate.task.CsvGenerator;
 import org.opendatakit.aggregate.task.JsonFileGenerator;
 import org.opendatakit.aggregate.task.KmlGenerator;
+import org.opendatakit.common.persistence.QueryResumePoint;
 import org.opendatakit.common.persistence.client.exception.DatastoreFailureException;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
@@ -233,6 +238,35 @@ public class FormServiceImpl extends RemoteServiceServlet implements
     }
   }
 
+  @Override
+  public FormStatistics getFormStatistics(String formId) throws RequestFailureException, FormNotAvailableException, DatastoreFailureException {
+    HttpServletRequest req = this.getThreadLocalRequest();
+    CallingContext cc = ContextFactory.getCallingContext(this, req);
+
+    try {
+      IForm form = FormFactory.retrieveFormByFormId(formId, cc);
+      if (!form.hasValidFormDefinition()) {
+        throw new RequestFailureException(ErrorConsts.FORM_DEFINITION_INVALID); // ill-formed definition
+      }
+      if (!SubmissionSummary.isSummarized(form, cc)) {
+        // the watchdog is summarizing the older submissions
+        throw new RequestFailureException(ErrorConsts.SUBMISSION_SUMMARY_PENDING);
+      }
+
+      return SubmissionSummary.getFormStatistics(form, cc);
+
+    } catch (ODKFormNotFoundException e) {
+      e.printStackTrace();
+      throw new FormNotAvailableException(e);
+    } catch (ODKOverQuotaException e) {
+      e.printStackTrace();
+      throw new RequestFailureException(ErrorConsts.QUOTA_EXCEEDED);
+    } catch (ODKDatastoreException e) {
+      e.printStackTrace();
+      throw new DatastoreFailureException();
+    }
+  }
+
   @Override
   public Boolean createCsvFromFilter(FilterGroup group) throws AccessDeniedException, FormNotAvailableException, RequestFailureException, DatastoreFailureException {
     HttpServletRequest req = this.getThreadLocalRequest();
@@ -282,6 +316,78 @@ public class FormServiceImpl extends RemoteServiceServlet implements
     }
   }
 
+  @Override
+  public Boolean createIncrementalCsv(String baseExportUri, boolean compact)
+      throws AccessDeniedException, FormNotAvailableException, RequestFailureException,
+      DatastoreFailureException {
+    HttpServletRequest req = this.getThreadLocalRequest();
+    CallingContext cc = ContextFactory.getCallingContext(this, req);
+
+    try {
+      PersistentResults base = PersistentResults.getPersistentResult(baseExportUri, cc);
+      if (base.getResultType() != ExportType.CSV || base.getStatus() != ExportStatus.AVAILABLE) {
+        throw new RequestFailureException("Only a completed csv export can be extended with new submissions.");
+      }
+      if (compact && base.isCsvSegment()) {
+        throw new RequestFailureException("This csv export holds only new submissions and cannot be combined with them.");
+      }
+
+      FormActionStatusTimestamp deletionTimestamp = MiscTasks
+          .getFormDeletionStatusTimestampOfFormId(base.getFormId(), cc);
+      // Form is being deleted. Disallow exports.
+      if (deletionTimestamp != null) {
+        throw new RequestFailureException("Form is marked for deletion - csv export request aborted.");
+      }
+
+      IForm form = FormFactory.retrieveFormByFormId(base.getFormId(), cc);
+      if (!form.hasValidFormDefinition()) {
+        throw new RequestFailureException(ErrorConsts.FORM_DEFINITION_INVALID); // ill-formed definition
+      }
+
+      // save a copy of the base export's filter group so either export can be deleted
+      SubmissionFilterGroup filterGrp = null;
+      if (base.getFilterGroupUri() != null) {
+        FilterGroup group = SubmissionFilterGroup.getFilterGroup(base.getFilterGroupUri(), cc)
+            .transform();
+        group.resetUriToDefault();
+        filterGrp = SubmissionFilterGroup.transform(group, cc);
+        filterGrp.setIsPublic(false);
+        filterGrp.persist(cc);
+      }
+
+      // the new export resumes from where the base export stopped
+      Map<String, String> parameters = new HashMap<String, String>();
+      parameters.put(PersistentResults.CSV_BASE_EXPORT_URI, base.getUri());
+      QueryResumePoint startCursor = base.getCsvResumeCursor();
+      if (startCursor != null) {
+        parameters.put(PersistentResults.CSV_START_CURSOR, startCursor.asWebsafeCursor());
+      }
+      parameters.put(PersistentResults.CSV_COMPACT, Boolean.toString(compact));
+      PersistentResults r = new PersistentResults(ExportType.CSV, form, filterGrp, parameters, cc);
+      r.persist(cc);
+
+      // create csv task
+      CallingContext ccDaemon = ContextFactory.getCallingContext(this, req);
+      ccDaemon.setAsDaemon(true);
+      CsvGenerator generator = (CsvGenerator) cc.getBean(BeanDefs.CSV_BEAN);
+      generator.createCsvTask(form, r.getSubmissionKey(), 1L, ccDaemon);
+      return true;
+
+    } catch (ODKFormNotFoundException e) {
+      e.printStackTrace();
+      throw new FormNotAvailableException(e);
+    } catch (ODKEntityNotFoundException e) {
+      e.printStackTrace();
+      throw new RequestFailureException(ErrorConsts.EXPORTED_FILE_PROBLEM);
+    } catch (ODKOverQuotaException e) {
+      e.printStackTrace();
+      throw new RequestFailureException(ErrorConsts.QUOTA_EXCEEDED);
+    } catch (ODKDatastoreException e) {
+      e.printStackTrace();
+      throw new DatastoreFailureException();
+    }
+  }
+
   @Override
   public Boolean createJsonFileFromFilter(FilterGroup group) throws AccessDeniedException,
       FormNotAvailableException, RequestFailureException, DatastoreFailureException {
@@ -331,6 +437,55 @@ public class FormServiceImpl extends RemoteServiceServlet implements
     }
   }
 
+  @Override
+  public Boolean createArrowFileFromFilter(FilterGroup group) throws AccessDeniedException,
+      FormNotAvailableException, RequestFailureException, DatastoreFailureException {
+    HttpServletRequest req = this.getThreadLocalRequest();
+    CallingContext cc = ContextFactory.getCallingContext(this, req);
+
+    try {
+      FormActionStatusTimestamp deletionTimestamp = MiscTasks
+          .getFormDeletionStatusTimestampOfFormId(group.getFormId(), cc);
+      // Form is being deleted. Disallow exports.
+      if (deletionTimestamp != null) {
+        throw new RequestFailureException("Form is marked for deletion - Arrow File export request aborted.");
+      }
+
+      // clear uri so a copy can be saved
+      group.resetUriToDefault();
+
+      // save the filter group
+      SubmissionFilterGroup filterGrp = SubmissionFilterGroup.transform(group, cc);
+      filterGrp.setName("FilterForExport");
+      filterGrp.persist(cc);
+
+      // create arrow job
+      IForm form = FormFactory.retrieveFormByFormId(filterGrp.getFormId(), cc);
+      if (!form.hasValidFormDefinition()) {
+        throw new RequestFailureException(ErrorConsts.FORM_DEFINITION_INVALID); // ill-formed definition
+      }
+      PersistentResults r = new PersistentResults(ExportType.ARROW, form, filterGrp, null, cc);
+      r.persist(cc);
+
+      // create arrow task
+      CallingContext ccDaemon = ContextFactory.getCallingContext(this, req);
+      ccDaemon.setAsDaemon(true);
+      ArrowFileGenerator generator = (ArrowFileGenerator) cc.getBean(BeanDefs.ARROW_FILE_BEAN);
+      generator.createArrowFileTask(form, r.getSubmissionKey(), 1L, ccDaemon);
+      return true;
+
+    } catch (ODKFormNotFoundException e) {
+      e.printStackTrace();
+      throw new FormNotAvailableException(e);
+    } catch (ODKOverQuotaException e) {
+      e.printStackTrace();
+      throw new RequestFailureException(ErrorConsts.QUOTA_EXCEEDED);
+    } catch (ODKDatastoreException e) {
+      e.printStackTrace();
+      throw new DatastoreFailureException();
+    }
+  }
+
   @Override
   public Boolean createKmlFromFilter(FilterGroup group, ArrayList<KmlSelection> kmlElementsToInclude) throws FormNotAvailableException, RequestFailureException, DatastoreFailureException {
     HttpServletRequest req = this.getThreadLocalRequest();
@@ -24,8 +24,11 @@ import org.opendatakit.aggregate.ContextFactory;
 import org.opendatakit.aggregate.client.exception.FormNotAvailableException;
 import org.opendatakit.aggregate.client.exception.RequestFailureException;
 import org.opendatakit.aggregate.client.filter.FilterGroup;
+import org.opendatakit.aggregate.client.submission.AggregationRequest;
 import org.opendatakit.aggregate.client.submission.SubmissionUI;
 import org.opendatakit.aggregate.client.submission.SubmissionUISummary;
+import org.opendatakit.aggregate.client.submission.UIAggregateRow;
+import org.opendatakit.aggregate.client.submission.UIGeoCluster;
 import org.opendatakit.aggregate.constants.ErrorConsts;
 import org.opendatakit.aggregate.constants.common.FormElementNamespace;
 import org.opendatakit.aggregate.datamodel.FormElementModel;
@@ -38,6 +41,7 @@ import org.opendatakit.aggregate.format.element.ElementFormatter;
 import org.opendatakit.aggregate.format.element.UiElementFormatter;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup.CompletionFlag;
+import org.opendatakit.aggregate.query.submission.SubmissionAggregator;
 import org.opendatakit.aggregate.submission.*;
 import org.opendatakit.aggregate.submission.type.BlobSubmissionType;
 import org.opendatakit.aggregate.submission.type.RepeatSubmissionType;
@@ -48,6 +52,7 @@ import org.opendatakit.common.security.client.exception.AccessDeniedException;
 import org.opendatakit.common.web.CallingContext;
 
 import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
 import java.util.List;
 
 public class SubmissionServiceImpl extends RemoteServiceServlet implements
@@ -99,6 +104,75 @@ public class SubmissionServiceImpl extends RemoteServiceServlet implements
 
   }
 
+  @Override
+  public ArrayList<UIAggregateRow> getSubmissionAggregates(FilterGroup filterGroup,
+      AggregationRequest request) throws FormNotAvailableException, RequestFailureException,
+      DatastoreFailureException, AccessDeniedException {
+    HttpServletRequest req = this.getThreadLocalRequest();
+    CallingContext cc = ContextFactory.getCallingContext(this, req);
+
+    try {
+      IForm form = FormFactory.retrieveFormByFormId(filterGroup.getFormId(), cc);
+      if (!form.hasValidFormDefinition()) {
+        throw new RequestFailureException(ErrorConsts.FORM_DEFINITION_INVALID); // ill-formed
+                                                                                // definition
+      }
+      return SubmissionAggregator.aggregate(form, filterGroup, request, cc);
+
+    } catch (ODKFormNotFoundException e) {
+      e.printStackTrace();
+      throw new FormNotAvailableException(e);
+    } catch (ODKOverQuotaException e) {
+      e.printStackTrace();
+      throw new RequestFailureException(ErrorConsts.QUOTA_EXCEEDED);
+    } catch (ODKDatastoreException e) {
+      e.printStackTrace();
+      throw new DatastoreFailureException(e);
+    } catch (IllegalArgumentException e) {
+      // e.g., a non-numeric range width
+      e.printStackTrace();
+      throw new RequestFailureException(e);
+    } catch (IllegalStateException e) {
+      // e.g., a column that cannot be aggregated
+      e.printStackTrace();
+      throw new RequestFailureException(e);
+    }
+  }
+
+  @Override
+  public ArrayList<UIGeoCluster> getGeopointClusters(FilterGroup filterGroup,
+      String geopointElementKey, int gridDivisions) throws FormNotAvailableException,
+      RequestFailureException, DatastoreFailureException, AccessDeniedException {
+    HttpServletRequest req = this.getThreadLocalRequest();
+    CallingContext cc = ContextFactory.getCallingContext(this, req);
+
+    try {
+      IForm form = FormFactory.retrieveFormByFormId(filterGroup.getFormId(), cc);
+      if (!form.hasValidFormDefinition()) {
+        throw new RequestFailureException(ErrorConsts.FORM_DEFINITION_INVALID); // ill-formed
+                                                                                // definition
+      }
+      return SubmissionAggregator.cluster(form, filterGroup, geopointElementKey, gridDivisions,
+          cc);
+
+    } catch (ODKFormNotFoundException e) {
+      e.printStackTrace();
+      throw new FormNotAvailableException(e);
+    } catch (ODKOverQuotaException e) {
+      e.printStackTrace();
+      throw new RequestFailureException(ErrorConsts.QUOTA_EXCEEDED);
+    } catch (ODKDatastoreException e) {
+      e.printStackTrace();
+      throw new DatastoreFailureException(e);
+    } catch (IllegalArgumentException e) {
+      e.printStackTrace();
+      throw new RequestFailureException(e);
+    } catch (IllegalStateException e) {
+      e.printStackTrace();
+      throw new RequestFailureException(e);
+    }
+  }
+
   @Override
   public SubmissionUISummary getRepeatSubmissions(String keyString)
       throws FormNotAvailableException, RequestFailureException, DatastoreFailureException,
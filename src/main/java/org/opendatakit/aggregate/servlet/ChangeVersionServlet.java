@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.opendatakit.aggregate.ContextFactory;
+import org.opendatakit.aggregate.constants.common.UIConsts;
+import org.opendatakit.aggregate.server.ChangeVersions;
+import org.opendatakit.common.persistence.CacheInvalidationBus;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.constants.HtmlConsts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Long-poll endpoint for the change versions of the admin UI areas. The
+ * request names the areas (area=...) and the versions it last saw
+ * (version=..., in the same order). If any differ from the current
+ * versions, or none was given, the current versions are returned at once as
+ * a JSON object of area => version. Otherwise the request is held, without a
+ * thread, until a version changes or LONG_POLL_MILLISECONDS elapse.
+ *
+ * While requests are held, the {@link CacheInvalidationBus} is polled so that
+ * changes made on other server nodes are seen. Where asynchronous requests are
+ * not supported (e.g., on App Engine) the versions are always returned at once
+ * and the client falls back to polling.
+ */
+public class ChangeVersionServlet extends ServletUtilBase {
+
+  private static final long serialVersionUID = -3926580342096071753L;
+
+  private static final Logger logger = LoggerFactory.getLogger(ChangeVersionServlet.class);
+
+  public static final String ADDR = UIConsts.CHANGE_VERSIONS_ADDR;
+
+  private static final String AREA = "area";
+  private static final String VERSION = "version";
+
+  /** how long an unchanged request is held. 25 seconds. */
+  private static final long LONG_POLL_MILLISECONDS = 25000L;
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private static final class Waiter {
+    final AsyncContext context;
+    final Map<String, String> known;
+    final long deadline;
+    final AtomicBoolean done = new AtomicBoolean(false);
+
+    Waiter(AsyncContext context, Map<String, String> known) {
+      this.context = context;
+      this.known = known;
+      this.deadline = System.currentTimeMillis() + LONG_POLL_MILLISECONDS;
+    }
+
+    void complete() {
+      if (!done.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        writeVersions((HttpServletResponse) context.getResponse(), known);
+      } catch (IOException e) {
+        // client went away
+        logger.debug("Unable to write change versions", e);
+      } finally {
+        context.complete();
+      }
+    }
+  }
+
+  private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<Waiter>();
+
+  private final ChangeVersions.Listener listener = new ChangeVersions.Listener() {
+    @Override
+    public void changed() {
+      checkWaiters();
+    }
+  };
+
+  private ScheduledExecutorService scheduler = null;
+
+  // for polling the invalidation bus from the scheduler thread
+  private volatile Datastore datastore = null;
+  private volatile User daemonUser = null;
+
+  @Override
+  public void init() throws ServletException {
+    super.init();
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "change-version-poll");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (!waiters.isEmpty() && datastore != null) {
+            // delivers changes from the other server nodes to the listener
+            CacheInvalidationBus.poll(datastore, daemonUser);
+          }
+          checkWaiters();
+        } catch (Exception e) {
+          // keep the scheduler running
+          logger.error("Change version poll failed", e);
+        }
+      }
+    }, CacheInvalidationBus.POLL_INTERVAL_MILLISECONDS,
+        CacheInvalidationBus.POLL_INTERVAL_MILLISECONDS, TimeUnit.MILLISECONDS);
+    ChangeVersions.addListener(listener);
+  }
+
+  @Override
+  public void destroy() {
+    ChangeVersions.removeListener(listener);
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+    for (Waiter w : waiters) {
+      w.complete();
+    }
+    waiters.clear();
+    super.destroy();
+  }
+
+  /**
+   * Answer the held requests whose versions have changed or whose time is up.
+   */
+  private void checkWaiters() {
+    long now = System.currentTimeMillis();
+    Iterator<Waiter> it = waiters.iterator();
+    while (it.hasNext()) {
+      Waiter w = it.next();
+      if (w.done.get() || w.deadline <= now || !isCurrent(w.known)) {
+        it.remove();
+        w.complete();
+      }
+    }
+  }
+
+  private static boolean isCurrent(Map<String, String> known) {
+    for (Map.Entry<String, String> e : known.entrySet()) {
+      if (!Long.toString(ChangeVersions.getVersion(e.getKey())).equals(e.getValue())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void writeVersions(HttpServletResponse resp, Map<String, String> known)
+      throws IOException {
+    Map<String, String> versions = new LinkedHashMap<String, String>();
+    for (String area : known.keySet()) {
+      versions.put(area, Long.toString(ChangeVersions.getVersion(area)));
+    }
+    resp.setContentType(HtmlConsts.RESP_TYPE_JSON);
+    resp.setHeader("Cache-Control", "no-cache");
+    PrintWriter out = resp.getWriter();
+    out.write(mapper.writeValueAsString(versions));
+    out.flush();
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    CallingContext cc = ContextFactory.getCallingContext(this, req);
+
+    String[] areas = req.getParameterValues(AREA);
+    String[] versions = req.getParameterValues(VERSION);
+    if (areas == null || areas.length == 0) {
+      errorMissingParam(resp);
+      return;
+    }
+    Map<String, String> known = new LinkedHashMap<String, String>();
+    for (int i = 0; i < areas.length; ++i) {
+      known.put(areas[i], (versions != null && i < versions.length) ? versions[i] : "");
+    }
+
+    datastore = cc.getDatastore();
+    daemonUser = cc.getUserService().getDaemonAccountUser();
+    CacheInvalidationBus.poll(datastore, daemonUser);
+
+    if (!isCurrent(known) || !req.isAsyncSupported()) {
+      writeVersions(resp, known);
+      return;
+    }
+
+    AsyncContext context = req.startAsync();
+    // the scheduler normally answers the request at its deadline
+    context.setTimeout(LONG_POLL_MILLISECONDS + 2L * CacheInvalidationBus.POLL_INTERVAL_MILLISECONDS);
+    final Waiter w = new Waiter(context, known);
+    context.addListener(new AsyncListener() {
+      @Override
+      public void onTimeout(AsyncEvent event) throws IOException {
+        waiters.remove(w);
+        w.complete();
+      }
+
+      @Override
+      public void onError(AsyncEvent event) throws IOException {
+        // the container completes the request
+        w.done.set(true);
+        waiters.remove(w);
+      }
+
+      @Override
+      public void onComplete(AsyncEvent event) throws IOException {
+        w.done.set(true);
+      }
+
+      @Override
+      public void onStartAsync(AsyncEvent event) throws IOException {
+      }
+    });
+    waiters.add(w);
+    // a version may have changed before the request was added
+    checkWaiters();
+  }
+}
@@ -31,12 +31,11 @@ import org.opendatakit.aggregate.constants.HtmlUtil;
 import org.opendatakit.aggregate.constants.ServletConsts;
 import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
 import org.opendatakit.aggregate.form.FormFactory;
+import org.opendatakit.aggregate.form.FormResponseCache;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
 import org.opendatakit.common.web.CallingContext;
-import org.opendatakit.common.web.constants.BasicConsts;
-import org.opendatakit.common.web.constants.HtmlConsts;
 
 /**
  * Servlet to generate the XML file in plain text
@@ -87,6 +86,15 @@ public class FormXmlServlet extends ServletUtilBase {
 
     CallingContext cc = ContextFactory.getCallingContext(this, req);
 
+    String cacheKey = FormResponseCache.getKey(ADDR, cc.getServerURL(), formId);
+    if (!humanReadable) {
+      FormResponseCache.CachedResponse cached = FormResponseCache.get(cacheKey);
+      if (cached != null) {
+        writeCachedXmlResponse(req, resp, cached);
+        return;
+      }
+    }
+
     IForm form;
     try {
       form = FormFactory.retrieveFormByFormId(formId, cc);
@@ -134,19 +142,17 @@ public class FormXmlServlet extends ServletUtilBase {
         out.println("</PRE>");
         finishBasicHtmlResponse(resp); // footer info
       } else {
-        resp.setCharacterEncoding(HtmlConsts.UTF8_ENCODE);
-        resp.setContentType(HtmlConsts.RESP_TYPE_XML);
-        PrintWriter out = resp.getWriter();
-        if (form.getFormFilename(cc) != null) {
-          resp.setHeader(HtmlConsts.CONTENT_DISPOSITION,
-              HtmlConsts.ATTACHMENT_FILENAME_TXT + form.getFormFilename(cc) + BasicConsts.QUOTE
-                  + BasicConsts.SEMI_COLON);
-        } else {
-          resp.setHeader(HtmlConsts.CONTENT_DISPOSITION,
-              HtmlConsts.ATTACHMENT_FILENAME_TXT + form.getViewableFormNameSuitableAsFileName() + ".xml" + BasicConsts.QUOTE
-                  + BasicConsts.SEMI_COLON);
+        if (xmlString == null) {
+          odkIdNotFoundError(resp);
+          return;
+        }
+        String filename = form.getFormFilename(cc);
+        if (filename == null) {
+          filename = form.getViewableFormNameSuitableAsFileName() + ".xml";
         }
-        out.print(xmlString);
+        FormResponseCache.CachedResponse cached = FormResponseCache.put(cacheKey, xmlString,
+            filename);
+        writeCachedXmlResponse(req, resp, cached);
       }
     } catch (ODKOverQuotaException e) {
       e.printStackTrace();
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.opendatakit.aggregate.ContextFactory;
+import org.opendatakit.aggregate.constants.ErrorConsts;
+import org.opendatakit.aggregate.constants.ParserConsts;
+import org.opendatakit.aggregate.constants.ServletConsts;
+import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
+import org.opendatakit.aggregate.form.FormFactory;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.parser.ResumableUpload;
+import org.opendatakit.aggregate.parser.SubmissionLockTemplate;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
+import org.opendatakit.common.persistence.exception.ODKTaskLockException;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.constants.BasicConsts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Servlet to upload a large submission attachment in chunks, so that an
+ * interrupted upload can be resumed instead of restarted. The protocol follows
+ * the core of tus 1.0.0:
+ * <ul>
+ * <li>POST with the formId, instanceID, fileName and (optional) contentType
+ * parameters and an Upload-Length header starts an upload, or finds the
+ * unfinished upload of the same file. The Location of the response identifies
+ * the upload and the Upload-Offset header gives the bytes already received.</li>
+ * <li>HEAD on the upload returns its Upload-Offset and Upload-Length.</li>
+ * <li>PATCH on the upload, with the Upload-Offset of the chunk in the body,
+ * appends the chunk. An offset other than the bytes received is a conflict.</li>
+ * <li>POST on the upload finalizes it once all the bytes are received.</li>
+ * </ul>
+ * The submission is then posted to the submission servlet without the file;
+ * the finalized upload supplies the attachment of that name. An upload is only
+ * visible to the user who started it, and only supplies that user's
+ * submission.
+ */
+public class ResumableUploadServlet extends ServletUtilBase {
+
+  private static final Logger logger = LoggerFactory.getLogger(ResumableUploadServlet.class);
+
+  /**
+   * Serial number for serialization
+   */
+  private static final long serialVersionUID = -6093524745124325377L;
+
+  /**
+   * URI from base
+   */
+  public static final String ADDR = "resumableUpload";
+
+  private static final String PATCH_METHOD = "PATCH";
+
+  private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+  @Override
+  protected void service(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException {
+    if (PATCH_METHOD.equals(req.getMethod())) {
+      doPatch(req, resp);
+    } else {
+      super.service(req, resp);
+    }
+  }
+
+  /**
+   * Handler for HTTP Head request. Reports the progress of an upload.
+   */
+  @Override
+  public void doHead(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    CallingContext cc = ContextFactory.getCallingContext(this, req);
+
+    String uploadId = getParameter(req, ServletConsts.UPLOAD_ID);
+    if (uploadId == null) {
+      errorMissingKeyParam(resp);
+      return;
+    }
+    try {
+      ResumableUpload upload = ResumableUpload.getUpload(uploadId, cc);
+      addUploadHeaders(resp, upload);
+      resp.setHeader("Cache-Control", "no-store");
+      resp.setStatus(HttpServletResponse.SC_OK);
+    } catch (ODKEntityNotFoundException e) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND, ErrorConsts.INVALID_PARAMS);
+    } catch (ODKOverQuotaException e) {
+      quotaExceededError(resp);
+    } catch (ODKDatastoreException e) {
+      logger.error("Datastore failure - " + e.getMessage());
+      e.printStackTrace();
+      datastoreError(resp);
+    }
+  }
+
+  /**
+   * Handler for HTTP Post request. Starts an upload or, given the uploadId,
+   * finalizes it.
+   */
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    CallingContext cc = ContextFactory.getCallingContext(this, req);
+
+    String uploadId = getParameter(req, ServletConsts.UPLOAD_ID);
+    if (uploadId != null) {
+      finalizeUpload(uploadId, resp, cc);
+      return;
+    }
+
+    String formId = getParameter(req, ServletConsts.FORM_ID);
+    String instanceId = getParameter(req, ServletConsts.INSTANCE_ID);
+    String fileName = getParameter(req, ServletConsts.FILE_NAME);
+    String contentType = getParameter(req, ServletConsts.CONTENT_TYPE);
+    String uploadLengthString = req.getHeader(ServletConsts.UPLOAD_LENGTH_HEADER);
+    if (formId == null || instanceId == null || fileName == null || uploadLengthString == null) {
+      errorMissingParam(resp);
+      return;
+    }
+    if (contentType == null) {
+      contentType = DEFAULT_CONTENT_TYPE;
+    }
+    long uploadLength;
+    try {
+      uploadLength = Long.parseLong(uploadLengthString);
+    } catch (NumberFormatException e) {
+      errorBadParam(resp);
+      return;
+    }
+    if (uploadLength < 0) {
+      errorBadParam(resp);
+      return;
+    }
+    if (uploadLength > ParserConsts.RESUMABLE_UPLOAD_LENGTH_MAX) {
+      resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, ErrorConsts.INVALID_PARAMS);
+      return;
+    }
+
+    formId = formId.replaceAll(ParserConsts.FORWARD_SLASH, ParserConsts.FORWARD_SLASH_SUBSTITUTION);
+    try {
+      IForm form = FormFactory.retrieveFormByFormId(formId, cc);
+      if (!form.getSubmissionEnabled()) {
+        resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+            ErrorConsts.FORM_DOES_NOT_ALLOW_SUBMISSIONS);
+        return;
+      }
+
+      ResumableUpload upload;
+      SubmissionLockTemplate lock = new SubmissionLockTemplate(form.getFormId(), instanceId, cc);
+      try {
+        lock.acquire();
+        upload = ResumableUpload.create(form.getFormId(), instanceId, fileName, contentType,
+            uploadLength, cc);
+      } finally {
+        lock.release();
+      }
+
+      String url = cc.getServerURL() + BasicConsts.FORWARDSLASH + ADDR + "?"
+          + ServletConsts.UPLOAD_ID + "=" + encodeParameter(upload.getUri());
+      resp.setHeader("Location", url);
+      addUploadHeaders(resp, upload);
+      resp.setStatus(HttpServletResponse.SC_CREATED);
+    } catch (ODKFormNotFoundException e) {
+      logger.warn("Form not found - " + e.getMessage());
+      odkIdNotFoundError(resp);
+    } catch (ODKOverQuotaException e) {
+      quotaExceededError(resp);
+    } catch (ODKDatastoreException e) {
+      logger.error("Datastore failure - " + e.getMessage());
+      e.printStackTrace();
+      datastoreError(resp);
+    } catch (ODKTaskLockException e) {
+      logger.error("Task lock failure - " + e.getMessage());
+      e.printStackTrace();
+      resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, ErrorConsts.TASK_LOCK_PROBLEM);
+    }
+  }
+
+  private void finalizeUpload(String uploadId, HttpServletResponse resp, CallingContext cc)
+      throws IOException {
+    try {
+      ResumableUpload upload = ResumableUpload.getUpload(uploadId, cc);
+      SubmissionLockTemplate lock = new SubmissionLockTemplate(upload.getFormId(),
+          upload.getInstanceId(), cc);
+      try {
+        lock.acquire();
+        // re-read under the lock
+        upload = ResumableUpload.getUpload(uploadId, cc);
+        if (upload.getUploadOffset() != upload.getUploadLength()) {
+          addUploadHeaders(resp, upload);
+          resp.sendError(HttpServletResponse.SC_CONFLICT, "Upload is incomplete");
+          return;
+        }
+        upload.markFinalized(cc);
+      } finally {
+        lock.release();
+      }
+      addUploadHeaders(resp, upload);
+      resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    } catch (ODKEntityNotFoundException e) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND, ErrorConsts.INVALID_PARAMS);
+    } catch (ODKOverQuotaException e) {
+      quotaExceededError(resp);
+    } catch (ODKDatastoreException e) {
+      logger.error("Datastore failure - " + e.getMessage());
+      e.printStackTrace();
+      datastoreError(resp);
+    } catch (ODKTaskLockException e) {
+      logger.error("Task lock failure - " + e.getMessage());
+      e.printStackTrace();
+      resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, ErrorConsts.TASK_LOCK_PROBLEM);
+    }
+  }
+
+  /**
+   * Handler for HTTP Patch request. Appends a chunk to an upload.
+   */
+  protected void doPatch(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    CallingContext cc = ContextFactory.getCallingContext(this, req);
+
+    String uploadId = getParameter(req, ServletConsts.UPLOAD_ID);
+    String offsetString = req.getHeader(ServletConsts.UPLOAD_OFFSET_HEADER);
+    if (uploadId == null || offsetString == null) {
+      errorMissingParam(resp);
+      return;
+    }
+    long offset;
+    try {
+      offset = Long.parseLong(offsetString);
+    } catch (NumberFormatException e) {
+      errorBadParam(resp);
+      return;
+    }
+    if (req.getContentLength() > ParserConsts.FILE_SIZE_MAX) {
+      resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, ErrorConsts.INVALID_PARAMS);
+      return;
+    }
+    byte[] chunk = readChunk(req.getInputStream());
+    if (chunk == null) {
+      resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, ErrorConsts.INVALID_PARAMS);
+      return;
+    }
+
+    try {
+      ResumableUpload upload = ResumableUpload.getUpload(uploadId, cc);
+      SubmissionLockTemplate lock = new SubmissionLockTemplate(upload.getFormId(),
+          upload.getInstanceId(), cc);
+      try {
+        lock.acquire();
+        // re-read under the lock
+        upload = ResumableUpload.getUpload(uploadId, cc);
+        if (upload.isFinalized()) {
+          addUploadHeaders(resp, upload);
+          errorBadParam(resp);
+          return;
+        }
+        if (offset != upload.getUploadOffset()) {
+          addUploadHeaders(resp, upload);
+          resp.sendError(HttpServletResponse.SC_CONFLICT, "Upload-Offset does not match");
+          return;
+        }
+        if (offset + chunk.length > upload.getUploadLength()) {
+          addUploadHeaders(resp, upload);
+          errorBadParam(resp);
+          return;
+        }
+        upload.append(offset, chunk, cc);
+      } finally {
+        lock.release();
+      }
+      addUploadHeaders(resp, upload);
+      resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    } catch (ODKEntityNotFoundException e) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND, ErrorConsts.INVALID_PARAMS);
+    } catch (ODKOverQuotaException e) {
+      quotaExceededError(resp);
+    } catch (ODKDatastoreException e) {
+      logger.error("Datastore failure - " + e.getMessage());
+      e.printStackTrace();
+      datastoreError(resp);
+    } catch (ODKTaskLockException e) {
+      logger.error("Task lock failure - " + e.getMessage());
+      e.printStackTrace();
+      resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, ErrorConsts.TASK_LOCK_PROBLEM);
+    }
+  }
+
+  /**
+   * @return the body of the request, or null if it exceeds the chunk limit.
+   */
+  private byte[] readChunk(InputStream in) throws IOException {
+    ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int len;
+    while ((len = in.read(buffer)) != -1) {
+      chunk.write(buffer, 0, len);
+      if (chunk.size() > ParserConsts.FILE_SIZE_MAX) {
+        return null;
+      }
+    }
+    return chunk.toByteArray();
+  }
+
+  private void addUploadHeaders(HttpServletResponse resp, ResumableUpload upload) {
+    resp.setHeader(ServletConsts.TUS_RESUMABLE_HEADER, ServletConsts.TUS_VERSION);
+    resp.setHeader(ServletConsts.UPLOAD_OFFSET_HEADER, Long.toString(upload.getUploadOffset()));
+    resp.setHeader(ServletConsts.UPLOAD_LENGTH_HEADER, Long.toString(upload.getUploadLength()));
+  }
+}
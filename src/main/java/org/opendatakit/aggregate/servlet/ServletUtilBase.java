@@ -30,8 +30,10 @@ import javax.servlet.http.HttpServletResponse;
 import org.opendatakit.aggregate.constants.ErrorConsts;
 import org.opendatakit.aggregate.constants.HtmlUtil;
 import org.opendatakit.aggregate.constants.ServletConsts;
+import org.opendatakit.aggregate.form.FormResponseCache;
 import org.opendatakit.aggregate.odktables.rest.ApiConstants;
 import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.constants.BasicConsts;
 import org.opendatakit.common.web.constants.HtmlConsts;
 import org.opendatakit.common.web.servlet.CommonServletBase;
 
@@ -150,6 +152,32 @@ public class ServletUtilBase extends CommonServletBase {
     resp.setHeader(ServletConsts.OPEN_ROSA_ACCEPT_CONTENT_LENGTH_HEADER, "10485760"); // 10MB
   }
 
+  /**
+   * Write a cached xml document along with its ETag. If the client already
+   * holds that version (If-None-Match), answer with 304 Not Modified instead.
+   *
+   * @param req
+   * @param resp
+   * @param cached
+   * @throws IOException
+   */
+  protected final void writeCachedXmlResponse(HttpServletRequest req, HttpServletResponse resp,
+      FormResponseCache.CachedResponse cached) throws IOException {
+    resp.setHeader(ServletConsts.ETAG_HEADER, cached.getETag());
+    if (cached.matches(req.getHeader(ServletConsts.IF_NONE_MATCH_HEADER))) {
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    resp.setCharacterEncoding(HtmlConsts.UTF8_ENCODE);
+    resp.setContentType(HtmlConsts.RESP_TYPE_XML);
+    if (cached.getFilename() != null) {
+      resp.setHeader(HtmlConsts.CONTENT_DISPOSITION, HtmlConsts.ATTACHMENT_FILENAME_TXT
+          + cached.getFilename() + BasicConsts.QUOTE + BasicConsts.SEMI_COLON);
+    }
+    PrintWriter out = resp.getWriter();
+    out.print(cached.getBody());
+  }
+
   protected final void addOpenDataKitHeaders(HttpServletResponse resp) {
     resp.setHeader(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION);
     GregorianCalendar g = new GregorianCalendar(TimeZone.getTimeZone("GMT"));
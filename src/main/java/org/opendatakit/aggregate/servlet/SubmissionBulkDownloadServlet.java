@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.servlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.opendatakit.aggregate.ContextFactory;
+import org.opendatakit.aggregate.constants.ParserConsts;
+import org.opendatakit.aggregate.constants.ServletConsts;
+import org.opendatakit.aggregate.constants.common.BinaryOption;
+import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
+import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
+import org.opendatakit.aggregate.form.FormFactory;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.format.structure.JsonFormatterWithFilters;
+import org.opendatakit.aggregate.format.structure.XmlAttachmentFormatter;
+import org.opendatakit.aggregate.format.structure.XmlFormatter;
+import org.opendatakit.aggregate.server.ServerPreferencesProperties;
+import org.opendatakit.aggregate.submission.Submission;
+import org.opendatakit.aggregate.submission.SubmissionPrefetch;
+import org.opendatakit.common.datamodel.ODKEnumeratedElementException;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.QueryResult;
+import org.opendatakit.common.persistence.QueryResumePoint;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
+import org.opendatakit.common.utils.WebCursorUtils;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.constants.BasicConsts;
+import org.opendatakit.common.web.constants.HtmlConsts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Servlet to stream the submissions of a form in bulk. It replaces the
+ * per-submission round trips of the submissionList and downloadSubmission
+ * servlets: the submissions following a cursor are streamed in a single
+ * response.
+ * <p>
+ * The server request takes four parameters:
+ * </p>
+ * <ol>
+ * <li>FormId of the form submissions to download.</li>
+ * <li>A websafe cursor string, as returned by this servlet, after which to
+ * begin returning results (may be null).</li>
+ * <li>A numEntries value specifying the total number of submissions to
+ * retrieve.</li>
+ * <li>A format value of json (the default) or xml.</li>
+ * </ol>
+ * <p>
+ * In json format, each submission is written as a JSON object on a line of
+ * its own. In xml format, each submission is written as the submission
+ * document returned by the downloadSubmission servlet. The submissions are
+ * ordered by the date they were last updated on the server.
+ * </p>
+ * <p>
+ * The submissions are read and reconstructed a page at a time. After each
+ * page, a resumption cursor is written on a line of its own (a JSON object
+ * with a single resumptionCursor member, or a resumptionCursor element), so a
+ * client whose download is interrupted can resume after the last complete
+ * page. The response is gzip-encoded if the client accepts it.
+ * </p>
+ * <p>
+ * The last line of a response is always an end-of-stream record; a response
+ * without one was truncated. It is a JSON object with an endOfStream member
+ * and a resumptionCursor member, or an endOfStream element with a status
+ * attribute and an optional resumptionCursor element:
+ * </p>
+ * <ul>
+ * <li><code>{"endOfStream":"complete","resumptionCursor":null}</code> when
+ * every submission has been returned;</li>
+ * <li><code>{"endOfStream":"complete","resumptionCursor":"..."}</code> when
+ * numEntries submissions have been returned and more follow the cursor;</li>
+ * <li><code>{"endOfStream":"error","resumptionCursor":...}</code> when the
+ * server failed part way; the client retries from the cursor, which is that
+ * of the last complete page (or the requested cursor, possibly null).</li>
+ * </ul>
+ */
+public class SubmissionBulkDownloadServlet extends ServletUtilBase {
+
+  private static final Logger logger = LoggerFactory.getLogger(SubmissionBulkDownloadServlet.class);
+
+  private static final String CURSOR_TAG = "resumptionCursor";
+
+  private static final String END_OF_STREAM_TAG = "endOfStream";
+
+  private static final String STATUS_ATTR = "status";
+
+  private static final String END_COMPLETE = "complete";
+
+  private static final String END_ERROR = "error";
+
+  private static final String FORMAT_XML = "xml";
+
+  private static final int DEFAULT_NUM_ENTRIES = 180000;
+
+  /**
+   * Serial number for serialization
+   */
+  private static final long serialVersionUID = -7716084620355617294L;
+
+  /**
+   * URI from base
+   */
+  public static final String ADDR = "view/submissionBulk";
+
+  /**
+   * Handler for HTTP Get request that streams the submissions following the
+   * cursor.
+   *
+   * @see javax.servlet.http.HttpServlet#doGet(javax.servlet.http.HttpServletRequest,
+   *      javax.servlet.http.HttpServletResponse)
+   */
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    CallingContext cc = ContextFactory.getCallingContext(this, req);
+
+    // get parameters
+
+    // the formId of the form submissions to download
+    String formId = getParameter(req, ServletConsts.FORM_ID);
+    if (formId == null) {
+      errorMissingKeyParam(resp);
+      return;
+    }
+    if (formId.contains(ParserConsts.FORWARD_SLASH)) {
+      formId = formId.replaceAll(ParserConsts.FORWARD_SLASH,
+          ParserConsts.FORWARD_SLASH_SUBSTITUTION);
+    }
+
+    // the cursor string
+    String websafeCursorString = getParameter(req, ServletConsts.CURSOR);
+    QueryResumePoint cursor = WebCursorUtils.parseCursorParameter(websafeCursorString);
+
+    // the number of entries
+    int numEntries = DEFAULT_NUM_ENTRIES;
+    String numEntriesString = getParameter(req, ServletConsts.NUM_ENTRIES);
+    if (numEntriesString != null && numEntriesString.trim().length() != 0) {
+      try {
+        numEntries = Integer.valueOf(numEntriesString.trim());
+      } catch (NumberFormatException e) {
+        errorBadParam(resp);
+        return;
+      }
+    }
+
+    boolean asXml = FORMAT_XML.equals(getParameter(req, ServletConsts.FORMAT));
+
+    IForm form;
+    try {
+      form = FormFactory.retrieveFormByFormId(formId, cc);
+    } catch (ODKFormNotFoundException e) {
+      e.printStackTrace();
+      odkIdNotFoundError(resp);
+      return;
+    } catch (ODKOverQuotaException e) {
+      e.printStackTrace();
+      quotaExceededError(resp);
+      return;
+    } catch (ODKDatastoreException e) {
+      e.printStackTrace();
+      datastoreError(resp);
+      return;
+    }
+
+    if (!form.hasValidFormDefinition()) {
+      errorRetreivingData(resp);
+      return; // ill-formed definition
+    }
+
+    resp.setCharacterEncoding(HtmlConsts.UTF8_ENCODE);
+    resp.setContentType(asXml ? HtmlConsts.RESP_TYPE_XML : HtmlConsts.RESP_TYPE_NDJSON);
+    addOpenRosaHeaders(resp);
+
+    OutputStream stream = resp.getOutputStream();
+    String acceptEncoding = req.getHeader(ServletConsts.ACCEPT_ENCODING_HEADER);
+    if (acceptEncoding != null && acceptEncoding.contains(ServletConsts.GZIP_ENCODING)) {
+      resp.setHeader(ServletConsts.CONTENT_ENCODING_HEADER, ServletConsts.GZIP_ENCODING);
+      // sync-flush so that each page reaches the client as it is written
+      stream = new GZIPOutputStream(stream, true);
+    }
+    PrintWriter out = new PrintWriter(new OutputStreamWriter(stream, HtmlConsts.UTF8_ENCODE));
+
+    // the cursor of the last complete page; where a retry resumes
+    String resumeCursor = websafeCursorString;
+    try {
+      TopLevelDynamicBase tbl = (TopLevelDynamicBase) form.getTopLevelGroupElement()
+          .getFormDataModel().getBackingObjectPrototype();
+      JsonFormatterWithFilters jsonFormatter = new JsonFormatterWithFilters(out, form, null,
+          BinaryOption.PROVIDE_LINKS, true, cc.getServerURL(), true);
+
+      while (numEntries > 0) {
+        // ordered by the server's update date, so that a submission updated
+        // after a client's cursor is returned again when it resumes.
+        Query query = cc.getDatastore().createQuery(tbl, "SubmissionBulkDownloadServlet.doGet",
+            cc.getCurrentUser());
+        query.addSort(tbl.lastUpdateDate, Query.Direction.ASCENDING);
+        query.addFilter(tbl.isComplete, FilterOperation.EQUAL, true);
+
+        QueryResult result = query.executeQuery(cursor,
+            Math.min(numEntries, ServletConsts.EXPORT_CURSOR_CHUNK_SIZE));
+        List<? extends CommonFieldsBase> page = result.getResultList();
+        if (page.isEmpty()) {
+          resumeCursor = null;
+          break;
+        }
+
+        List<Submission> submissions = getSubmissions(form, page, cc);
+        if (asXml) {
+          for (Submission sub : submissions) {
+            out.write("<submission xmlns=\"http://opendatakit.org/submissions\" xmlns:orx=\"http://openrosa.org/xforms\" >");
+            out.write("<data>");
+            XmlFormatter formatter = new XmlFormatter(out, form, cc);
+            formatter.processSubmissions(Collections.singletonList(sub), cc);
+            out.write("</data>\n");
+            XmlAttachmentFormatter attach = new XmlAttachmentFormatter(out, form, cc);
+            attach.processSubmissions(Collections.singletonList(sub), cc);
+            out.write("</submission>\n");
+          }
+        } else {
+          jsonFormatter.processSubmissionSegment(submissions, cc);
+        }
+        numEntries -= page.size();
+
+        // the client may resume after this page
+        cursor = result.getResumeCursor();
+        if (cursor != null) {
+          resumeCursor = cursor.asWebsafeCursor();
+          writeCursor(out, resumeCursor, asXml);
+        }
+        out.flush();
+
+        if (!result.hasMoreResults() || cursor == null) {
+          resumeCursor = null;
+          break;
+        }
+      }
+      writeEndOfStream(out, END_COMPLETE, resumeCursor, asXml);
+      out.close();
+    } catch (ODKDatastoreException | RuntimeException e) {
+      // the response has been committed; end it with an error record. The
+      // client resumes from the last cursor it received.
+      e.printStackTrace();
+      logger.error("bulk download of " + formId + " aborted: " + e.toString());
+      writeEndOfStream(out, END_ERROR, resumeCursor, asXml);
+      out.close();
+    }
+  }
+
+  private List<Submission> getSubmissions(IForm form, List<? extends CommonFieldsBase> page,
+      CallingContext cc) throws ODKDatastoreException {
+    SubmissionPrefetch prefetch = SubmissionPrefetch.fetch(form, page, cc);
+    List<Submission> submissions = new ArrayList<Submission>();
+    for (CommonFieldsBase cb : page) {
+      try {
+        submissions.add(new Submission((TopLevelDynamicBase) cb, form, prefetch, cc));
+      } catch (ODKDatastoreException e) {
+        logger.error("Unable to reconstruct submission for " + cb.getSchemaName() + "."
+            + cb.getTableName() + " uri " + cb.getUri());
+        if ((e instanceof ODKEntityNotFoundException)
+            || (e instanceof ODKEnumeratedElementException)) {
+          // see if we should throw an error or skip processing...
+          Boolean skip = ServerPreferencesProperties.getSkipMalformedSubmissions(cc);
+          if (skip) {
+            continue;
+          }
+        }
+        throw e;
+      }
+    }
+    return submissions;
+  }
+
+  private void writeCursor(PrintWriter out, String websafeCursor, boolean asXml) {
+    if (asXml) {
+      out.write("<" + CURSOR_TAG + " xmlns=\"http://opendatakit.org/submissions\">" + websafeCursor
+          + "</" + CURSOR_TAG + ">");
+    } else {
+      out.write(BasicConsts.LEFT_BRACE + BasicConsts.QUOTE + CURSOR_TAG + BasicConsts.QUOTE
+          + BasicConsts.COLON + BasicConsts.QUOTE + websafeCursor + BasicConsts.QUOTE
+          + BasicConsts.RIGHT_BRACE);
+    }
+    out.write(BasicConsts.NEW_LINE);
+  }
+
+  private void writeEndOfStream(PrintWriter out, String status, String websafeCursor,
+      boolean asXml) {
+    if (asXml) {
+      out.write("<" + END_OF_STREAM_TAG + " xmlns=\"http://opendatakit.org/submissions\" "
+          + STATUS_ATTR + "=\"" + status + "\">");
+      if (websafeCursor != null) {
+        out.write("<" + CURSOR_TAG + ">" + websafeCursor + "</" + CURSOR_TAG + ">");
+      }
+      out.write("</" + END_OF_STREAM_TAG + ">");
+    } else {
+      out.write(BasicConsts.LEFT_BRACE + BasicConsts.QUOTE + END_OF_STREAM_TAG + BasicConsts.QUOTE
+          + BasicConsts.COLON + BasicConsts.QUOTE + status + BasicConsts.QUOTE + BasicConsts.COMMA
+          + BasicConsts.QUOTE + CURSOR_TAG + BasicConsts.QUOTE + BasicConsts.COLON
+          + ((websafeCursor == null) ? "null"
+              : BasicConsts.QUOTE + websafeCursor + BasicConsts.QUOTE)
+          + BasicConsts.RIGHT_BRACE);
+    }
+    out.write(BasicConsts.NEW_LINE);
+  }
+}
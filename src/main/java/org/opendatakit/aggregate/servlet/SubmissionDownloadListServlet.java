@@ -35,6 +35,7 @@ import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
 import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
 import org.opendatakit.aggregate.form.FormFactory;
 import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.submission.SubmissionSummary;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.Query.FilterOperation;
@@ -155,19 +156,24 @@ public class SubmissionDownloadListServlet extends ServletUtilBase {
 
     addOpenRosaHeaders(resp);
     try {
-      TopLevelDynamicBase tbl = (TopLevelDynamicBase) form.getTopLevelGroupElement()
-          .getFormDataModel().getBackingObjectPrototype();
-
       // Query by lastUpdateDate, ordered by lastUpdateDate and secondarily by
-      // uri
-      // Submissions may be partially uploaded and are marked completed once
-      // they
-      // are fully uploaded. We snarf everything.
-      Query query = cc.getDatastore().createQuery(tbl, "SubmissionDownloadListServlet.doGet", cc.getCurrentUser());
-      query.addSort(tbl.lastUpdateDate, Query.Direction.ASCENDING);
-      query.addFilter(tbl.isComplete, FilterOperation.EQUAL, true);
-
-      QueryResult result = query.executeQuery(cursor, numEntries);
+      // uri. Submissions may be partially uploaded and are marked completed
+      // once they are fully uploaded. We snarf everything that is complete.
+      // The submission summaries give the same listing, and the same cursors,
+      // without reading the form's table; until the form's older submissions
+      // are summarized, the form's table is read.
+      QueryResult result;
+      if (SubmissionSummary.isSummarized(form, cc)) {
+        result = SubmissionSummary.getCompleteSubmissions(form, cursor, numEntries, cc);
+      } else {
+        TopLevelDynamicBase tbl = (TopLevelDynamicBase) form.getTopLevelGroupElement()
+            .getFormDataModel().getBackingObjectPrototype();
+        Query query = cc.getDatastore().createQuery(tbl, "SubmissionDownloadListServlet.doGet",
+            cc.getCurrentUser());
+        query.addSort(tbl.lastUpdateDate, Query.Direction.ASCENDING);
+        query.addFilter(tbl.isComplete, FilterOperation.EQUAL, true);
+        result = query.executeQuery(cursor, numEntries);
+      }
       List<String> uriList = new ArrayList<String>();
       for (CommonFieldsBase cb : result.getResultList()) {
         uriList.add(cb.getUri());
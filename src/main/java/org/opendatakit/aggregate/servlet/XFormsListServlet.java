@@ -18,6 +18,8 @@
 package org.opendatakit.aggregate.servlet;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -26,12 +28,12 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.opendatakit.aggregate.ContextFactory;
 import org.opendatakit.aggregate.form.FormFactory;
+import org.opendatakit.aggregate.form.FormResponseCache;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.format.form.XFormsXmlTable;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
 import org.opendatakit.common.web.CallingContext;
-import org.opendatakit.common.web.constants.HtmlConsts;
 
 /**
  * Servlet to generate the OpenRosa-compliant XML list of forms to be presented
@@ -70,6 +72,13 @@ public class XFormsListServlet extends ServletUtilBase {
       verbose = true;
     }
 
+    String cacheKey = FormResponseCache.getKey(ADDR, cc.getServerURL(), formId, verbose);
+    FormResponseCache.CachedResponse cached = FormResponseCache.get(cacheKey);
+    if (cached != null) {
+      writeCachedXmlResponse(req, resp, cached);
+      return;
+    }
+
     try {
       List<IForm> formsList = FormFactory.getForms(false, cc);
       if (formId != null && formId.length() != 0) {
@@ -83,8 +92,10 @@ public class XFormsListServlet extends ServletUtilBase {
       }
       XFormsXmlTable formFormatter = new XFormsXmlTable(formsList, verbose, cc.getServerURL());
 
-      resp.setContentType(HtmlConsts.RESP_TYPE_XML);
-      formFormatter.generateXmlListOfForms(resp.getWriter(), cc);
+      StringWriter xml = new StringWriter();
+      formFormatter.generateXmlListOfForms(new PrintWriter(xml), cc);
+      cached = FormResponseCache.put(cacheKey, xml.toString(), null);
+      writeCachedXmlResponse(req, resp, cached);
     } catch (ODKOverQuotaException e) {
       e.printStackTrace();
       quotaExceededError(resp);
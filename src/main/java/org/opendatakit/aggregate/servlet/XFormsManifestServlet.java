@@ -19,6 +19,7 @@ package org.opendatakit.aggregate.servlet;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -27,12 +28,12 @@ import org.opendatakit.aggregate.ContextFactory;
 import org.opendatakit.aggregate.constants.ServletConsts;
 import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
 import org.opendatakit.aggregate.form.FormFactory;
+import org.opendatakit.aggregate.form.FormResponseCache;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.format.form.XFormsManifestXmlTable;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
 import org.opendatakit.common.web.CallingContext;
-import org.opendatakit.common.web.constants.HtmlConsts;
 
 /**
  * Servlet to generate the OpenRosa-compliant XML list of forms to be presented
@@ -72,6 +73,13 @@ public class XFormsManifestServlet extends ServletUtilBase {
       return;
     }
 
+    String cacheKey = FormResponseCache.getKey(ADDR, cc.getServerURL(), formId);
+    FormResponseCache.CachedResponse cached = FormResponseCache.get(cacheKey);
+    if (cached != null) {
+      writeCachedXmlResponse(req, resp, cached);
+      return;
+    }
+
     IForm form;
     try {
       form = FormFactory.retrieveFormByFormId(formId, cc);
@@ -90,10 +98,9 @@ public class XFormsManifestServlet extends ServletUtilBase {
     }
 
     XFormsManifestXmlTable formFormatter = new XFormsManifestXmlTable(form, cc.getServerURL());
-    resp.setContentType(HtmlConsts.RESP_TYPE_XML);
-    PrintWriter out = resp.getWriter();
+    StringWriter xml = new StringWriter();
     try {
-      formFormatter.generateXmlManifestList(out, cc);
+      formFormatter.generateXmlManifestList(new PrintWriter(xml), cc);
     } catch (ODKOverQuotaException e) {
       e.printStackTrace();
       quotaExceededError(resp);
@@ -103,6 +110,8 @@ public class XFormsManifestServlet extends ServletUtilBase {
       datastoreError(resp);
       return;
     }
+    cached = FormResponseCache.put(cacheKey, xml.toString(), null);
+    writeCachedXmlResponse(req, resp, cached);
   }
 
 }
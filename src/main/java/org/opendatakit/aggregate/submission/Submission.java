@@ -18,6 +18,7 @@
 package org.opendatakit.aggregate.submission;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -31,11 +32,15 @@ import org.opendatakit.aggregate.form.FormFactory;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.format.Row;
 import org.opendatakit.aggregate.format.element.ElementFormatter;
+import org.opendatakit.aggregate.server.ChangeVersions;
 import org.opendatakit.aggregate.server.ServerPreferencesProperties;
 import org.opendatakit.common.datamodel.ODKEnumeratedElementException;
 import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.EntityKey;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
+import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
 import org.opendatakit.common.security.User;
 import org.opendatakit.common.web.CallingContext;
 
@@ -68,6 +73,39 @@ public class Submission extends SubmissionSet {
     super(null, submission, form.getTopLevelGroupElement(), form, cc);
   }
 
+  /**
+   * Construct a read-only submission from an entity from the data store,
+   * retrieving and constructing only the given elements. Other elements are
+   * retrieved when first accessed.
+   * 
+   */
+  public Submission(TopLevelDynamicBase submission, IForm form,
+      Collection<FormElementModel> projection, CallingContext cc) throws ODKDatastoreException {
+    super(null, submission, form.getTopLevelGroupElement(), form, projection, cc);
+  }
+
+  /**
+   * Construct a submission from an entity from the data store, taking its
+   * nested rows from those prefetched for its page of submissions.
+   * 
+   */
+  public Submission(TopLevelDynamicBase submission, IForm form, SubmissionPrefetch prefetch,
+      CallingContext cc) throws ODKDatastoreException {
+    super(null, submission, form.getTopLevelGroupElement(), form, null, prefetch, cc);
+  }
+
+  /**
+   * Construct a read-only submission from an entity from the data store,
+   * constructing only the given elements and taking their nested rows from
+   * those prefetched for its page of submissions.
+   * 
+   */
+  public Submission(TopLevelDynamicBase submission, IForm form,
+      Collection<FormElementModel> projection, SubmissionPrefetch prefetch, CallingContext cc)
+      throws ODKDatastoreException {
+    super(null, submission, form.getTopLevelGroupElement(), form, projection, prefetch, cc);
+  }
+
   public Submission(String uri, IForm form, CallingContext cc) throws
       ODKDatastoreException {
     super(null, (TopLevelDynamicBase) cc.getDatastore().getEntity(
@@ -104,6 +142,25 @@ public class Submission extends SubmissionSet {
     ((TopLevelDynamicBase) getGroupBackingObject()).setMarkedAsCompleteDate(value);
   }
 
+  /**
+   * Persist the submission, update its summary and tell the servers that the
+   * submissions of its form have changed.
+   */
+  @Override
+  public void persist(CallingContext cc) throws ODKEntityPersistException, ODKOverQuotaException {
+    super.persist(cc);
+    SubmissionSummary.update(this, cc);
+    ChangeVersions.submissionsChanged(getFormId(), cc);
+  }
+
+  @Override
+  public void recursivelyAddEntityKeysForDeletion(List<EntityKey> keyList, CallingContext cc)
+      throws ODKOverQuotaException, ODKDatastoreException {
+    // the summary is deleted last, after the top-level row.
+    keyList.add(SubmissionSummary.getEntityKey(getKey().getKey(), cc));
+    super.recursivelyAddEntityKeysForDeletion(keyList, cc);
+  }
+
   public Date getMarkedAsCompleteDate() {
     return ((TopLevelDynamicBase) getGroupBackingObject()).getMarkedAsCompleteDate();
   }
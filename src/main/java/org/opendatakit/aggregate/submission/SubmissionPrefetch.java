@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.submission;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.opendatakit.aggregate.datamodel.FormDataModel;
+import org.opendatakit.aggregate.datamodel.FormDataModel.DDRelationName;
+import org.opendatakit.aggregate.datamodel.FormDataModel.ElementType;
+import org.opendatakit.aggregate.datamodel.FormElementModel;
+import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.common.datamodel.DynamicBase;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+
+/**
+ * The rows of the nested tables of a page of submissions, fetched together.
+ * Reconstructing a submission otherwise issues one query per phantom table,
+ * repeat group and multiple-choice field of every submission. Every nested
+ * row records the top-level submission it belongs to, so each nested table
+ * can instead be read once for the whole page with an IN filter on that
+ * column.
+ *
+ * The rows are grouped by the parent row they hang from, in ordinal order.
+ * Binary attachments are not prefetched.
+ */
+public final class SubmissionPrefetch {
+
+  // GAE limits the number of values of an IN filter
+  private static final int MAX_VALUE_SET_SIZE = 30;
+
+  private static final Comparator<DynamicBase> ORDINAL_ORDER = new Comparator<DynamicBase>() {
+    @Override
+    public int compare(DynamicBase a, DynamicBase b) {
+      Long lhs = a.getOrdinalNumber();
+      Long rhs = b.getOrdinalNumber();
+      if (lhs == null || rhs == null) {
+        return (lhs == null) ? ((rhs == null) ? 0 : -1) : 1;
+      }
+      return lhs.compareTo(rhs);
+    }
+  };
+
+  /**
+   * table key => (parent uri => rows under that parent)
+   */
+  private final Map<String, Map<String, List<DynamicBase>>> rows = new HashMap<String, Map<String, List<DynamicBase>>>();
+
+  private SubmissionPrefetch() {
+  }
+
+  private static String getTableKey(CommonFieldsBase relation) {
+    return relation.getSchemaName() + "." + relation.getTableName();
+  }
+
+  /**
+   * Fetch the nested rows of the given submissions.
+   *
+   * @param form
+   * @param submissions
+   *          the top-level rows of the submissions.
+   * @param cc
+   * @return the prefetched rows.
+   * @throws ODKDatastoreException
+   */
+  public static SubmissionPrefetch fetch(IForm form,
+      List<? extends CommonFieldsBase> submissions, CallingContext cc)
+      throws ODKDatastoreException {
+    return fetch(form, null, submissions, cc);
+  }
+
+  /**
+   * Fetch the nested rows of the given submissions that the given elements
+   * need. Repeat groups in the projection are fetched in full.
+   *
+   * @param form
+   * @param projection
+   *          the elements to be constructed; null fetches every nested row.
+   * @param submissions
+   *          the top-level rows of the submissions.
+   * @param cc
+   * @return the prefetched rows.
+   * @throws ODKDatastoreException
+   */
+  public static SubmissionPrefetch fetch(IForm form, Collection<FormElementModel> projection,
+      List<? extends CommonFieldsBase> submissions, CallingContext cc)
+      throws ODKDatastoreException {
+    SubmissionPrefetch prefetch = new SubmissionPrefetch();
+    if (submissions.isEmpty()) {
+      return prefetch;
+    }
+    List<String> uris = new ArrayList<String>();
+    for (CommonFieldsBase tl : submissions) {
+      uris.add(((TopLevelDynamicBase) tl).getUri());
+    }
+
+    Map<String, DynamicBase> relations = new HashMap<String, DynamicBase>();
+    Set<DDRelationName> wanted = (projection == null) ? null : SubmissionSet
+        .getProjectedRelations(projection);
+    collectNestedRelations(form.getTopLevelGroupElement().getFormDataModel(), wanted, relations);
+
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    for (Map.Entry<String, DynamicBase> e : relations.entrySet()) {
+      DynamicBase relation = e.getValue();
+      Map<String, List<DynamicBase>> byParent = new HashMap<String, List<DynamicBase>>();
+      for (int i = 0; i < uris.size(); i += MAX_VALUE_SET_SIZE) {
+        Query query = ds.createQuery(relation, "SubmissionPrefetch.fetch", user);
+        query.addValueSetFilter(relation.topLevelAuri,
+            uris.subList(i, Math.min(i + MAX_VALUE_SET_SIZE, uris.size())));
+        for (CommonFieldsBase cb : query.executeQuery()) {
+          DynamicBase row = (DynamicBase) cb;
+          List<DynamicBase> siblings = byParent.get(row.getParentAuri());
+          if (siblings == null) {
+            siblings = new ArrayList<DynamicBase>();
+            byParent.put(row.getParentAuri(), siblings);
+          }
+          siblings.add(row);
+        }
+      }
+      for (List<DynamicBase> siblings : byParent.values()) {
+        Collections.sort(siblings, ORDINAL_ORDER);
+      }
+      prefetch.rows.put(e.getKey(), byParent);
+    }
+    return prefetch;
+  }
+
+  /**
+   * Gather the tables holding the phantom, repeat group and multiple-choice
+   * rows nested below this element.
+   *
+   * @param wanted
+   *          the tables holding projected elements, or null for every table.
+   */
+  private static void collectNestedRelations(FormDataModel m, Set<DDRelationName> wanted,
+      Map<String, DynamicBase> relations) {
+    if (wanted != null && !wanted.contains(m.getDDRelationName())) {
+      // none of the projected elements are held in this table or below it
+      return;
+    }
+    CommonFieldsBase parentRelation = (m.getParent() == null) ? null : m.getParent()
+        .getBackingObjectPrototype();
+    CommonFieldsBase relation = m.getBackingObjectPrototype();
+    switch (m.getElementType()) {
+    case BINARY:
+    case BINARY_CONTENT_REF_BLOB:
+    case REF_BLOB:
+      // attachments are fetched through their own manipulator
+      return;
+    case SELECT1:
+    case SELECTN:
+      relations.put(getTableKey(relation), (DynamicBase) relation);
+      break;
+    case REPEAT:
+      relations.put(getTableKey(relation), (DynamicBase) relation);
+      // the submission sets of a repeat group are constructed in full
+      wanted = null;
+      break;
+    case PHANTOM:
+    case GROUP:
+    case GEOPOINT:
+      if (m.getPersistAsColumn() == null && parentRelation != null
+          && !parentRelation.equals(relation) && (relation instanceof DynamicBase)) {
+        relations.put(getTableKey(relation), (DynamicBase) relation);
+      }
+      break;
+    default:
+      break;
+    }
+    for (FormDataModel child : m.getChildren()) {
+      collectNestedRelations(child, wanted, relations);
+    }
+  }
+
+  /**
+   * @param relation
+   * @param parentUri
+   * @return the rows of the relation under the given parent in ordinal order,
+   *         or null if the relation was not prefetched.
+   */
+  public List<DynamicBase> getRows(CommonFieldsBase relation, String parentUri) {
+    Map<String, List<DynamicBase>> byParent = rows.get(getTableKey(relation));
+    if (byParent == null) {
+      return null;
+    }
+    List<DynamicBase> siblings = byParent.get(parentUri);
+    if (siblings == null) {
+      return Collections.emptyList();
+    }
+    return siblings;
+  }
+}
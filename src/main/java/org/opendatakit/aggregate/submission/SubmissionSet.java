@@ -107,6 +107,32 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
    */
   private final Map<FormElementModel, SubmissionValue> elementsToValues = new HashMap<FormElementModel, SubmissionValue>();
 
+  /**
+   * The elements constructed so far, together with their enclosing groups, or
+   * null if every element of this submission set is constructed. Elements
+   * outside the projection are added to it as they are faulted in. A
+   * submission set constructed from a projection is read-only.
+   */
+  private final Set<FormElementModel> projection;
+
+  /**
+   * The backing tables holding the projected elements, or null if every
+   * backing table is retrieved.
+   */
+  private final Set<DDRelationName> projectedRelations;
+
+  /**
+   * The prefetched nested rows of the page of submissions this set belongs
+   * to, or null if the rows are queried per submission set.
+   */
+  private final SubmissionPrefetch prefetch;
+
+  /**
+   * The context used to fault in the elements outside the projection when
+   * they are first accessed, or null if every element was constructed.
+   */
+  private final CallingContext faultInContext;
+
   /**
    * Construct an empty repeating group.
    *
@@ -123,6 +149,10 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
     this.form = form;
     this.group = group;
     this.enclosingSet = enclosingSet;
+    this.projection = null;
+    this.projectedRelations = null;
+    this.prefetch = null;
+    this.faultInContext = null;
     Datastore datastore = cc.getDatastore();
     User user = cc.getCurrentUser();
     DynamicBase tlg = (DynamicBase) datastore.createEntityUsingRelation(group.getFormDataModel()
@@ -149,6 +179,10 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
     this.form = form;
     this.group = form.getTopLevelGroupElement();
     this.enclosingSet = null;
+    this.projection = null;
+    this.projectedRelations = null;
+    this.prefetch = null;
+    this.faultInContext = null;
     Datastore datastore = cc.getDatastore();
     User user = cc.getCurrentUser();
     // this is a top level table...
@@ -228,9 +262,52 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
    */
   public SubmissionSet(SubmissionSet enclosingSet, DynamicCommonFieldsBase row,
                        FormElementModel group, IForm form, CallingContext cc) throws ODKDatastoreException {
+    this(enclosingSet, row, group, form, null, null, cc);
+  }
+
+  /**
+   * Construct a submission set from the datastore, retrieving only the
+   * backing tables needed by the given elements and constructing only
+   * those elements. Any other element is retrieved and constructed when it
+   * is first accessed. The resulting submission set cannot be persisted.
+   *
+   * @param enclosingSet   - the enclosing submission set.
+   * @param row            - the base record for this submission set.
+   * @param group          - the form group mapped to the base record.
+   * @param formDefinition - the definition of the form.
+   * @param projection     - the elements to construct; null constructs all of them.
+   * @param cc             - the CallingContext of this request.
+   * @throws ODKDatastoreException
+   */
+  public SubmissionSet(SubmissionSet enclosingSet, DynamicCommonFieldsBase row,
+                       FormElementModel group, IForm form, Collection<FormElementModel> projection,
+                       CallingContext cc) throws ODKDatastoreException {
+    this(enclosingSet, row, group, form, projection, null, cc);
+  }
+
+  /**
+   * Construct a submission set from the datastore, taking its nested rows
+   * from those prefetched for its page of submissions where available.
+   *
+   * @param enclosingSet   - the enclosing submission set.
+   * @param row            - the base record for this submission set.
+   * @param group          - the form group mapped to the base record.
+   * @param formDefinition - the definition of the form.
+   * @param projection     - the elements to construct; null constructs all of them.
+   * @param prefetch       - the prefetched nested rows; may be null.
+   * @param cc             - the CallingContext of this request.
+   * @throws ODKDatastoreException
+   */
+  public SubmissionSet(SubmissionSet enclosingSet, DynamicCommonFieldsBase row,
+                       FormElementModel group, IForm form, Collection<FormElementModel> projection,
+                       SubmissionPrefetch prefetch, CallingContext cc) throws ODKDatastoreException {
     this.form = form;
     this.group = group;
     this.enclosingSet = enclosingSet;
+    this.projection = expandProjection(projection);
+    this.projectedRelations = getProjectedRelations(this.projection);
+    this.prefetch = prefetch;
+    this.faultInContext = (projection == null) ? null : cc;
     this.key = row.getEntityKey();
     Datastore datastore = cc.getDatastore();
     User user = cc.getCurrentUser();
@@ -255,6 +332,44 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
     buildSubmissionFields(group, cc);
   }
 
+  /**
+   * @param elements
+   * @return the elements and all of their enclosing groups, or null if
+   *         elements is null.
+   */
+  private static Set<FormElementModel> expandProjection(Collection<FormElementModel> elements) {
+    if (elements == null) {
+      return null;
+    }
+    Set<FormElementModel> expanded = new HashSet<FormElementModel>();
+    for (FormElementModel m : elements) {
+      // the enclosing groups are needed to reach the element
+      FormElementModel p = m;
+      while (p != null && expanded.add(p)) {
+        p = p.getParent();
+      }
+    }
+    return expanded;
+  }
+
+  /**
+   * @param projection
+   * @return the backing tables of the projected elements, or null if
+   *         projection is null.
+   */
+  static Set<DDRelationName> getProjectedRelations(Collection<FormElementModel> projection) {
+    if (projection == null) {
+      return null;
+    }
+    Set<DDRelationName> relations = new HashSet<DDRelationName>();
+    for (FormElementModel m : projection) {
+      for (FormDataModel d = m.getFormDataModel(); d != null; d = d.getParent()) {
+        relations.add(d.getDDRelationName());
+      }
+    }
+    return relations;
+  }
+
   private void recursivelyGetEntities(String uriTopLevel, String uriParent,
                                       FormDataModel groupDataModel, Datastore datastore, User user) throws ODKDatastoreException {
     DynamicCommonFieldsBase groupRelation = (DynamicCommonFieldsBase) groupDataModel
@@ -275,12 +390,22 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
           }
           nestedGroupUriParent = uriParent;
         } else {
+          if (projectedRelations != null && !projectedRelations.contains(m.getDDRelationName())) {
+            // none of the projected elements are held in this table or below it
+            continue;
+          }
           if (mBackingObject == null) {
             DynamicBase mBaseRelation = (DynamicBase) mRelation;
-            Query query = datastore.createQuery(mBaseRelation,
-                "SubmissionSet.recursivelyGetEntities", user);
-            query.addFilter(mBaseRelation.parentAuri, FilterOperation.EQUAL, uriParent);
-            List<? extends CommonFieldsBase> rows = query.executeQuery();
+            List<? extends CommonFieldsBase> rows = null;
+            if (prefetch != null) {
+              rows = prefetch.getRows(mBaseRelation, uriParent);
+            }
+            if (rows == null) {
+              Query query = datastore.createQuery(mBaseRelation,
+                  "SubmissionSet.recursivelyGetEntities", user);
+              query.addFilter(mBaseRelation.parentAuri, FilterOperation.EQUAL, uriParent);
+              rows = query.executeQuery();
+            }
             if (rows.size() > 1) {
               throw new IllegalStateException(
                   "Expected exactly one match in phantom reconstruction! " + " SELECT * FROM "
@@ -328,6 +453,10 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
       throws ODKDatastoreException {
     DynamicCommonFieldsBase groupRowGroup = getGroupBackingObject();
     for (FormElementModel m : group.getChildren()) {
+      if (projection != null && (!projection.contains(m) || elementsToValues.containsKey(m))) {
+        // outside the projection, or constructed before it was extended
+        continue;
+      }
       SubmissionField<?> submissionField;
       if (m.isMetadata()) {
         // all metadata is at the top-level (submission) level...
@@ -454,20 +583,20 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
             elementsToValues.put(m, submissionField);
             break;
           case SELECT1: // identifies SelectChoice table
-            submissionField = new ChoiceSubmissionType(m, groupRowGroup.getUri(), topLevelTableKey); // pass
-            // in row we occur under to access parentAuri
+            submissionField = new ChoiceSubmissionType(m, groupRowGroup.getUri(), topLevelTableKey,
+                prefetch); // pass in row we occur under to access parentAuri
             submissionField.getValueFromEntity(cc);
             elementsToValues.put(m, submissionField);
             break;
           case SELECTN: // identifies SelectChoice table
-            submissionField = new ChoiceSubmissionType(m, groupRowGroup.getUri(), topLevelTableKey); // pass
-            // in row we occur under to access parentAuri
+            submissionField = new ChoiceSubmissionType(m, groupRowGroup.getUri(), topLevelTableKey,
+                prefetch); // pass in row we occur under to access parentAuri
             submissionField.getValueFromEntity(cc);
             elementsToValues.put(m, submissionField);
             break;
           case REPEAT:
             RepeatSubmissionType repeatNode = new RepeatSubmissionType(this, m,
-                groupRowGroup.getUri(), form);
+                groupRowGroup.getUri(), form, prefetch);
             repeatNode.getValueFromEntity(cc);
             elementsToValues.put(m, repeatNode);
             break;
@@ -483,7 +612,71 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
   }
 
   public SubmissionValue getElementValue(FormElementModel element) {
-    return elementsToValues.get(element);
+    SubmissionValue value = elementsToValues.get(element);
+    if (value == null && faultInContext != null && !projection.contains(element)
+        && isElementOfSubmissionSet(element)) {
+      faultIn(Collections.singletonList(element));
+      value = elementsToValues.get(element);
+    }
+    return value;
+  }
+
+  /**
+   * @param element
+   * @return true if the element is held in this submission set rather than
+   *         in a nested repeat group.
+   */
+  private boolean isElementOfSubmissionSet(FormElementModel element) {
+    if (element == null) {
+      return false;
+    }
+    FormElementModel p = element.getParent();
+    while (p != null && !p.equals(group)) {
+      if (p.getElementType() == FormElementModel.ElementType.REPEAT) {
+        return false;
+      }
+      p = p.getParent();
+    }
+    return p != null;
+  }
+
+  /**
+   * Extend the projection with the given elements, retrieving the backing
+   * tables and constructing the values they need.
+   *
+   * @param elements
+   */
+  private void faultIn(Collection<FormElementModel> elements) {
+    Set<FormElementModel> added = expandProjection(elements);
+    projection.addAll(added);
+    projectedRelations.addAll(getProjectedRelations(added));
+    try {
+      recursivelyGetEntities(topLevelTableKey.getKey(), getGroupBackingObject().getUri(),
+          group.getFormDataModel(), faultInContext.getDatastore(),
+          faultInContext.getCurrentUser());
+      buildSubmissionFields(group, faultInContext);
+    } catch (ODKDatastoreException e) {
+      throw new IllegalStateException("unable to retrieve the elements of "
+          + getFullyQualifiedElementName(null), e);
+    }
+  }
+
+  /**
+   * Construct every element outside the projection.
+   */
+  private void faultInAll() {
+    if (faultInContext == null) {
+      return;
+    }
+    List<FormElementModel> missing = new ArrayList<FormElementModel>();
+    for (FormElementModel m : getFormElements()) {
+      if (!projection.contains(m)) {
+        missing.add(m);
+      }
+    }
+    if (!missing.isEmpty()) {
+      faultIn(missing);
+    }
   }
 
   private final String getFullyQualifiedElementName(FormElementModel element) {
@@ -560,6 +753,7 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
 
     if (i + 1 == parts.size())
       return this;
+    faultInAll();
     String elementName = parts.get(i + 1).getElementName();
     for (Map.Entry<FormElementModel, SubmissionValue> entry : elementsToValues.entrySet()) {
       if (elementName.equals(entry.getKey().getGroupQualifiedElementName())) {
@@ -645,6 +839,7 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
    * @return list of populated submission values
    */
   public List<SubmissionValue> getSubmissionValues() {
+    faultInAll();
     List<SubmissionValue> valueList = new ArrayList<SubmissionValue>();
     recursivelyGetSubmissionValues(group, valueList);
     return valueList;
@@ -702,6 +897,7 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
    * @return map of submission values
    */
   public Map<FormElementModel, SubmissionValue> getSubmissionValuesMap() {
+    faultInAll();
     return elementsToValues;
   }
 
@@ -744,7 +940,7 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
 
   protected void populateFormattedValueInRow(Row row, FormElementModel propertyName,
                                              ElementFormatter elemFormatter, CallingContext cc) throws ODKDatastoreException {
-    SubmissionValue value = elementsToValues.get(propertyName);
+    SubmissionValue value = getElementValue(propertyName);
     if (value != null) {
       value.formatValue(elemFormatter, row, getOrdinalNumAsStr(), cc);
     }
@@ -852,6 +1048,9 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
   }
 
   public void persist(CallingContext cc) throws ODKEntityPersistException, ODKOverQuotaException {
+    if (projection != null) {
+      throw new IllegalStateException("a partially constructed submission cannot be persisted");
+    }
     // persist everything underneath us...
     for (Map.Entry<FormElementModel, SubmissionValue> entry : elementsToValues.entrySet()) {
       FormElementModel m = entry.getKey();
@@ -0,0 +1,608 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.submission;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.opendatakit.aggregate.client.form.FormStatistics;
+import org.opendatakit.aggregate.constants.TaskLockType;
+import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.server.ServerPreferencesProperties;
+import org.opendatakit.aggregate.submission.type.BlobSubmissionType;
+import org.opendatakit.common.persistence.Aggregation;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.DataField.IndexType;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.EntityKey;
+import org.opendatakit.common.persistence.PersistConsts;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.QueryResult;
+import org.opendatakit.common.persistence.QueryResumePoint;
+import org.opendatakit.common.persistence.TaskLock;
+import org.opendatakit.common.persistence.WrappedBigDecimal;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
+import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
+import org.opendatakit.common.persistence.exception.ODKTaskLockException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One row per submission, across all forms, holding what is needed to list,
+ * cursor and count submissions without touching the form's own tables.
+ *
+ * The row has the URI (instanceID) of the submission. It is written by
+ * {@link Submission#persist(CallingContext)} after the submission's own rows,
+ * and deleted along with the submission's top-level row. The datastore sets
+ * the row's own _LAST_UPDATE_DATE whenever the row is written, a moment after
+ * the submission's, so the row also keeps a copy of the submission's
+ * _LAST_UPDATE_DATE (SUBMISSION_UPDATE_DATE). Submissions are listed by that
+ * copy, and the listing's cursors are expressed in terms of _LAST_UPDATE_DATE,
+ * so they are the same as the cursors over the form's top-level table.
+ *
+ * The submissions received before this table existed are summarized in the
+ * background, a bounded number at a time, by the watchdog (see
+ * {@link #continueSummarizing(IForm, CallingContext)}). Until a form is
+ * summarized ({@link #isSummarized(IForm, CallingContext)}), the callers read
+ * the form's own tables instead.
+ */
+public final class SubmissionSummary extends CommonFieldsBase {
+
+  private static final Logger logger = LoggerFactory.getLogger(SubmissionSummary.class);
+
+  private static final String TABLE_NAME = "_submission_summary";
+
+  /**
+   * server preference recording the progress of summarizing the existing
+   * submissions of a form: the cursor to resume from, or SUMMARIZED when done.
+   */
+  private static final String SUMMARIZED_PROPERTY_PREFIX = "SUBMISSION_SUMMARY_";
+
+  private static final String SUMMARIZED = Boolean.toString(true);
+
+  /** submissions read per query when summarizing the existing submissions of a form */
+  private static final int SUMMARIZE_FETCH_LIMIT = 100;
+
+  /** queries per call to continueSummarizing, bounding the work of one watchdog run */
+  private static final int SUMMARIZE_FETCHES_PER_CALL = 10;
+
+  /** summaries deleted per batch when deleting those of a form */
+  private static final int DELETE_FETCH_LIMIT = 500;
+
+  private static final DataField FORM_ID = new DataField("FORM_ID", DataField.DataType.STRING,
+      false, IForm.MAX_FORM_ID_LENGTH).setIndexable(IndexType.HASH);
+
+  private static final DataField IS_COMPLETE = new DataField("IS_COMPLETE",
+      DataField.DataType.BOOLEAN, true);
+
+  private static final DataField MARKED_AS_COMPLETE_DATE = new DataField(
+      "MARKED_AS_COMPLETE_DATE", DataField.DataType.DATETIME, true);
+
+  /** the _LAST_UPDATE_DATE of the submission */
+  private static final DataField SUBMISSION_UPDATE_DATE = new DataField(
+      "SUBMISSION_UPDATE_DATE", DataField.DataType.DATETIME, false);
+
+  private static final DataField SUBMITTER = new DataField("SUBMITTER", DataField.DataType.URI,
+      true, PersistConsts.URI_STRING_LEN);
+
+  private static final DataField ATTACHMENT_COUNT = new DataField("ATTACHMENT_COUNT",
+      DataField.DataType.INTEGER, false);
+
+  /** total size of the attachments, in bytes */
+  private static final DataField ATTACHMENT_SIZE = new DataField("ATTACHMENT_SIZE",
+      DataField.DataType.INTEGER, false);
+
+  /** forms known to be summarized by this server */
+  private static final Set<String> summarizedForms = Collections
+      .synchronizedSet(new HashSet<String>());
+
+  /**
+   * Construct a relation prototype.
+   *
+   * @param databaseSchema
+   */
+  private SubmissionSummary(String databaseSchema) {
+    super(databaseSchema, TABLE_NAME);
+    fieldList.add(FORM_ID);
+    fieldList.add(IS_COMPLETE);
+    fieldList.add(MARKED_AS_COMPLETE_DATE);
+    fieldList.add(SUBMISSION_UPDATE_DATE);
+    fieldList.add(SUBMITTER);
+    fieldList.add(ATTACHMENT_COUNT);
+    fieldList.add(ATTACHMENT_SIZE);
+
+    // indexes for listing the submissions of a form by update and by
+    // completion
+    addCompositeIndex(FORM_ID, IS_COMPLETE, SUBMISSION_UPDATE_DATE, primaryKey);
+    addCompositeIndex(FORM_ID, IS_COMPLETE, MARKED_AS_COMPLETE_DATE, primaryKey);
+  }
+
+  /**
+   * Construct an empty entity.
+   *
+   * @param ref
+   * @param user
+   */
+  private SubmissionSummary(SubmissionSummary ref, User user) {
+    super(ref, user);
+  }
+
+  @Override
+  public SubmissionSummary getEmptyRow(User user) {
+    return new SubmissionSummary(this, user);
+  }
+
+  public String getFormId() {
+    return getStringField(FORM_ID);
+  }
+
+  public Boolean isComplete() {
+    return getBooleanField(IS_COMPLETE);
+  }
+
+  public Date getMarkedAsCompleteDate() {
+    return getDateField(MARKED_AS_COMPLETE_DATE);
+  }
+
+  /**
+   * @return the user that created the submission.
+   */
+  public String getSubmitter() {
+    return getStringField(SUBMITTER);
+  }
+
+  public Long getAttachmentCount() {
+    return getLongField(ATTACHMENT_COUNT);
+  }
+
+  public Long getAttachmentSize() {
+    return getLongField(ATTACHMENT_SIZE);
+  }
+
+  /**
+   * Write the summary of a submission whose rows have just been persisted.
+   *
+   * @param submission
+   * @param cc
+   * @throws ODKEntityPersistException
+   * @throws ODKOverQuotaException
+   */
+  static void update(Submission submission, CallingContext cc) throws ODKEntityPersistException,
+      ODKOverQuotaException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    try {
+      SubmissionSummary relation = assertRelation(cc);
+      String uri = submission.getKey().getKey();
+      SubmissionSummary row;
+      boolean isNew = false;
+      try {
+        row = ds.getEntity(relation, uri, user);
+      } catch (ODKEntityNotFoundException e) {
+        row = ds.createEntityUsingRelation(relation, user);
+        row.setStringField(relation.primaryKey, uri);
+        isNew = true;
+      }
+      row.setStringField(FORM_ID, submission.getFormId());
+      row.setDateField(SUBMISSION_UPDATE_DATE, submission.getLastUpdateDate());
+      row.setBooleanField(IS_COMPLETE, submission.isComplete());
+      row.setDateField(MARKED_AS_COMPLETE_DATE, submission.getMarkedAsCompleteDate());
+      row.setStringField(SUBMITTER, submission.getCreatorUriUser());
+
+      // gather the attachments of the submission, including those of its
+      // repeat groups.
+      final List<BlobSubmissionType> blobs = new ArrayList<BlobSubmissionType>();
+      submission.depthFirstTraversal(new SubmissionVisitor() {
+        @Override
+        public boolean traverse(SubmissionElement element) {
+          if (element instanceof BlobSubmissionType) {
+            blobs.add((BlobSubmissionType) element);
+          }
+          return false;
+        }
+      });
+      long attachmentCount = 0L;
+      long attachmentSize = 0L;
+      for (BlobSubmissionType blob : blobs) {
+        int count = blob.getAttachmentCount(cc);
+        for (int ordinal = 1; ordinal <= count; ++ordinal) {
+          if (blob.getContentHash(ordinal, cc) == null) {
+            // not yet received
+            continue;
+          }
+          ++attachmentCount;
+          Long length = blob.getContentLength(ordinal, cc);
+          if (length != null) {
+            attachmentSize += length;
+          }
+        }
+      }
+      row.setLongField(ATTACHMENT_COUNT, attachmentCount);
+      row.setLongField(ATTACHMENT_SIZE, attachmentSize);
+
+      try {
+        ds.putEntity(row, user);
+      } catch (ODKEntityPersistException e) {
+        if (!isNew) {
+          throw e;
+        }
+        // the background summarizer may have inserted the row meanwhile;
+        // write over it.
+        SubmissionSummary existing;
+        try {
+          existing = ds.getEntity(relation, uri, user);
+        } catch (ODKEntityNotFoundException ex) {
+          throw e;
+        }
+        existing.setStringField(FORM_ID, row.getFormId());
+        existing.setDateField(SUBMISSION_UPDATE_DATE, row.getDateField(SUBMISSION_UPDATE_DATE));
+        existing.setStringField(SUBMITTER, row.getSubmitter());
+        existing.setBooleanField(IS_COMPLETE, row.isComplete());
+        existing.setDateField(MARKED_AS_COMPLETE_DATE, row.getMarkedAsCompleteDate());
+        existing.setLongField(ATTACHMENT_COUNT, attachmentCount);
+        existing.setLongField(ATTACHMENT_SIZE, attachmentSize);
+        ds.putEntity(existing, user);
+      }
+    } catch (ODKOverQuotaException e) {
+      throw e;
+    } catch (ODKEntityPersistException e) {
+      throw e;
+    } catch (ODKDatastoreException e) {
+      throw new ODKEntityPersistException(e);
+    }
+  }
+
+  /**
+   * @param uri
+   *          the URI of a submission.
+   * @param cc
+   * @return the key of the summary of the submission.
+   * @throws ODKDatastoreException
+   */
+  public static EntityKey getEntityKey(String uri, CallingContext cc)
+      throws ODKDatastoreException {
+    return new EntityKey(assertRelation(cc), uri);
+  }
+
+  /**
+   * Delete the summaries of the submissions of a form. For use when the
+   * form's tables are dropped rather than its submissions deleted one by one.
+   *
+   * @param formId
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public static void deleteForm(String formId, CallingContext cc) throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    SubmissionSummary relation = assertRelation(cc);
+    QueryResumePoint cursor = null;
+    QueryResult result;
+    do {
+      Query query = ds.createQuery(relation, "SubmissionSummary.deleteForm", user);
+      query.addFilter(FORM_ID, FilterOperation.EQUAL, formId);
+      query.addSort(relation.lastUpdateDate, Query.Direction.ASCENDING);
+      result = query.executeQuery(cursor, DELETE_FETCH_LIMIT);
+      List<EntityKey> keys = new ArrayList<EntityKey>();
+      for (CommonFieldsBase cb : result.getResultList()) {
+        keys.add(cb.getEntityKey());
+      }
+      if (!keys.isEmpty()) {
+        ds.deleteEntities(keys, user);
+      }
+      cursor = result.getResumeCursor();
+    } while (result.hasMoreResults());
+  }
+
+  /**
+   * @param form
+   * @param cc
+   * @return true if every submission of the form is summarized, so that the
+   *         summary queries below may be used for it.
+   * @throws ODKDatastoreException
+   */
+  public static boolean isSummarized(IForm form, CallingContext cc)
+      throws ODKDatastoreException {
+    String formUri = form.getUri();
+    if (summarizedForms.contains(formUri)) {
+      return true;
+    }
+    String value = ServerPreferencesProperties.getServerPreferencesProperty(cc,
+        SUMMARIZED_PROPERTY_PREFIX + formUri);
+    if (SUMMARIZED.equals(value)) {
+      summarizedForms.add(formUri);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Summarize some of the submissions of the form that predate this table,
+   * resuming where the last call left off. Only one server works on a form at
+   * a time; the others return at once.
+   *
+   * @param form
+   *          a form with a valid definition.
+   * @param cc
+   * @return true if the form is now summarized.
+   * @throws ODKDatastoreException
+   */
+  public static boolean continueSummarizing(IForm form, CallingContext cc)
+      throws ODKDatastoreException {
+    if (isSummarized(form, cc)) {
+      return true;
+    }
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    String lockId = UUID.randomUUID().toString();
+    String lockedResourceName = SUMMARIZED_PROPERTY_PREFIX + form.getUri();
+    TaskLock taskLock = ds.createTaskLock(user);
+    try {
+      if (!taskLock.obtainLock(lockId, lockedResourceName, TaskLockType.SUMMARIZE_SUBMISSIONS)) {
+        return false;
+      }
+    } catch (ODKTaskLockException e) {
+      logger.warn("Unable to lock the summarizing of form " + form.getFormId(), e);
+      return false;
+    }
+    try {
+      return summarize(form, lockId, lockedResourceName, cc);
+    } finally {
+      try {
+        ds.createTaskLock(user).releaseLock(lockId, lockedResourceName,
+            TaskLockType.SUMMARIZE_SUBMISSIONS);
+      } catch (ODKTaskLockException e) {
+        // the lock expires
+        logger.warn("Unable to release the summarizing lock of form " + form.getFormId(), e);
+      }
+    }
+  }
+
+  private static boolean summarize(IForm form, String lockId, String lockedResourceName,
+      CallingContext cc) throws ODKDatastoreException {
+    String propertyName = SUMMARIZED_PROPERTY_PREFIX + form.getUri();
+    // read under the lock: another server may have made progress
+    String value = ServerPreferencesProperties.getServerPreferencesProperty(cc, propertyName);
+    if (SUMMARIZED.equals(value)) {
+      summarizedForms.add(form.getUri());
+      return true;
+    }
+    logger.info("Summarizing the submissions of form " + form.getFormId());
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    SubmissionSummary relation = assertRelation(cc);
+    TopLevelDynamicBase tbl = (TopLevelDynamicBase) form.getTopLevelGroupElement()
+        .getFormDataModel().getBackingObjectPrototype();
+    int count = 0;
+    QueryResumePoint cursor = (value == null) ? null : QueryResumePoint.fromWebsafeCursor(value);
+    QueryResult result;
+    int fetches = 0;
+    do {
+      Query query = ds.createQuery(tbl, "SubmissionSummary.summarize", user);
+      query.addSort(tbl.lastUpdateDate, Query.Direction.ASCENDING);
+      result = query.executeQuery(cursor, SUMMARIZE_FETCH_LIMIT);
+      for (CommonFieldsBase cb : result.getResultList()) {
+        try {
+          ds.getEntity(relation, cb.getUri(), user);
+          // already summarized (e.g., updated since this table was created)
+          continue;
+        } catch (ODKEntityNotFoundException e) {
+          // summarize it below
+        }
+        try {
+          update(new Submission((TopLevelDynamicBase) cb, form, cc), cc);
+        } catch (ODKEntityPersistException e) {
+          // the submission may have been persisted and summarized meanwhile
+          try {
+            ds.getEntity(relation, cb.getUri(), user);
+            continue;
+          } catch (ODKEntityNotFoundException ex) {
+            throw e;
+          }
+        }
+        ++count;
+      }
+      if (result.getResumeCursor() != null) {
+        cursor = result.getResumeCursor();
+      }
+      ServerPreferencesProperties.setServerPreferencesProperty(cc, propertyName,
+          result.hasMoreResults() ? cursor.asWebsafeCursor() : SUMMARIZED);
+      try {
+        ds.createTaskLock(user).renewLock(lockId, lockedResourceName,
+            TaskLockType.SUMMARIZE_SUBMISSIONS);
+      } catch (ODKTaskLockException e) {
+        logger.warn("Lost the summarizing lock of form " + form.getFormId(), e);
+        return false;
+      }
+    } while (result.hasMoreResults() && ++fetches < SUMMARIZE_FETCHES_PER_CALL);
+    logger.info("Summarized " + count + " submissions of form " + form.getFormId());
+    if (result.hasMoreResults()) {
+      return false;
+    }
+    summarizedForms.add(form.getUri());
+    return true;
+  }
+
+  /**
+   * @return the cursor over this table equivalent to one over a top-level
+   *         table's _LAST_UPDATE_DATE.
+   */
+  private static QueryResumePoint toSummaryCursor(QueryResumePoint cursor,
+      SubmissionSummary relation) {
+    if (cursor == null || !cursor.getAttributeName().equals(relation.lastUpdateDate.getName())) {
+      return cursor;
+    }
+    return new QueryResumePoint(SUBMISSION_UPDATE_DATE.getName(), cursor.getValue(),
+        cursor.getUriLastReturnedValue(), cursor.isForwardCursor());
+  }
+
+  /**
+   * @return the cursor over a top-level table's _LAST_UPDATE_DATE equivalent
+   *         to one over this table.
+   */
+  private static QueryResumePoint fromSummaryCursor(QueryResumePoint cursor,
+      SubmissionSummary relation) {
+    if (cursor == null || !cursor.getAttributeName().equals(SUBMISSION_UPDATE_DATE.getName())) {
+      return cursor;
+    }
+    return new QueryResumePoint(relation.lastUpdateDate.getName(), cursor.getValue(),
+        cursor.getUriLastReturnedValue(), cursor.isForwardCursor());
+  }
+
+  /**
+   * List the complete submissions of a form, ordered by the submissions'
+   * _LAST_UPDATE_DATE and then by _URI (both ascending).
+   *
+   * @param form
+   *          a summarized form.
+   * @param cursor
+   *          where to resume the listing; null to start from the beginning.
+   *          Cursors over the form's top-level table sorted by
+   *          _LAST_UPDATE_DATE are accepted, and the cursors returned are of
+   *          that kind.
+   * @param fetchLimit
+   * @param cc
+   * @return the summaries of the submissions.
+   * @throws ODKDatastoreException
+   */
+  public static QueryResult getCompleteSubmissions(IForm form, QueryResumePoint cursor,
+      int fetchLimit, CallingContext cc) throws ODKDatastoreException {
+    SubmissionSummary relation = assertRelation(cc);
+    Query query = cc.getDatastore().createQuery(relation,
+        "SubmissionSummary.getCompleteSubmissions", cc.getCurrentUser());
+    query.addFilter(FORM_ID, FilterOperation.EQUAL, form.getFormId());
+    query.addFilter(IS_COMPLETE, FilterOperation.EQUAL, true);
+    query.addSort(SUBMISSION_UPDATE_DATE, Query.Direction.ASCENDING);
+    QueryResult result = query.executeQuery(toSummaryCursor(cursor, relation), fetchLimit);
+    return new QueryResult(fromSummaryCursor(result.getStartCursor(), relation),
+        result.getResultList(), fromSummaryCursor(result.getBackwardCursor(), relation),
+        fromSummaryCursor(result.getResumeCursor(), relation), result.hasMoreResults());
+  }
+
+  /**
+   * @param form
+   *          a summarized form.
+   * @param limitDate
+   *          only submissions marked as complete before this date are
+   *          considered.
+   * @param cc
+   * @return the summary of the complete submission of the form that was most
+   *         recently marked as complete, or null if there is none.
+   * @throws ODKDatastoreException
+   */
+  public static SubmissionSummary getLastCompleteSubmission(IForm form, Date limitDate,
+      CallingContext cc) throws ODKDatastoreException {
+    SubmissionSummary relation = assertRelation(cc);
+    Query query = cc.getDatastore().createQuery(relation,
+        "SubmissionSummary.getLastCompleteSubmission", cc.getCurrentUser());
+    query.addFilter(FORM_ID, FilterOperation.EQUAL, form.getFormId());
+    query.addFilter(IS_COMPLETE, FilterOperation.EQUAL, true);
+    query.addFilter(MARKED_AS_COMPLETE_DATE, FilterOperation.LESS_THAN, limitDate);
+    query.addSort(MARKED_AS_COMPLETE_DATE, Query.Direction.DESCENDING);
+    List<? extends CommonFieldsBase> results = query.executeQuery(null, 1).getResultList();
+    if (results.isEmpty()) {
+      return null;
+    }
+    return (SubmissionSummary) results.get(0);
+  }
+
+  /**
+   * @param form
+   *          a summarized form.
+   * @param cc
+   * @return the submission counts and attachment totals of the form.
+   * @throws ODKDatastoreException
+   */
+  public static FormStatistics getFormStatistics(IForm form, CallingContext cc)
+      throws ODKDatastoreException {
+    SubmissionSummary relation = assertRelation(cc);
+    Query query = cc.getDatastore().createQuery(relation,
+        "SubmissionSummary.getFormStatistics", cc.getCurrentUser());
+    query.addFilter(FORM_ID, FilterOperation.EQUAL, form.getFormId());
+
+    Aggregation aggregation = new Aggregation();
+    aggregation.addGroupBy(relation, null, IS_COMPLETE, Aggregation.Bucket.VALUE, null);
+    aggregation.addMeasure(relation, null, ATTACHMENT_COUNT);
+    aggregation.addMeasure(relation, null, ATTACHMENT_SIZE);
+    aggregation.addMeasure(relation, null, MARKED_AS_COMPLETE_DATE);
+    aggregation.addMeasure(relation, null, SUBMISSION_UPDATE_DATE);
+
+    long submissionCount = 0L;
+    long completeSubmissionCount = 0L;
+    long attachmentCount = 0L;
+    long attachmentSize = 0L;
+    Date lastCompleteSubmissionDate = null;
+    Date lastUpdateDate = null;
+    for (Aggregation.Result r : query.executeAggregateQuery(aggregation)) {
+      submissionCount += r.getCount();
+      if (Boolean.TRUE.equals(r.getKey(0))) {
+        completeSubmissionCount += r.getCount();
+        lastCompleteSubmissionDate = later(lastCompleteSubmissionDate, (Date) r.getMax(2));
+      }
+      attachmentCount += longValue(r.getSum(0));
+      attachmentSize += longValue(r.getSum(1));
+      lastUpdateDate = later(lastUpdateDate, (Date) r.getMax(3));
+    }
+    return new FormStatistics(form.getFormId(), submissionCount, completeSubmissionCount,
+        attachmentCount, attachmentSize, lastCompleteSubmissionDate, lastUpdateDate);
+  }
+
+  private static long longValue(WrappedBigDecimal value) {
+    if (value == null) {
+      return 0L;
+    }
+    return (value.bd == null) ? (long) value.doubleValue() : value.bd.longValue();
+  }
+
+  private static Date later(Date a, Date b) {
+    if (a == null) {
+      return b;
+    }
+    if (b == null) {
+      return a;
+    }
+    return a.after(b) ? a : b;
+  }
+
+  private static SubmissionSummary relation = null;
+
+  public static synchronized final SubmissionSummary assertRelation(CallingContext cc)
+      throws ODKDatastoreException {
+    if (relation == null) {
+      SubmissionSummary relationPrototype;
+      Datastore ds = cc.getDatastore();
+      User user = cc.getUserService().getDaemonAccountUser();
+      relationPrototype = new SubmissionSummary(ds.getDefaultSchemaName());
+      ds.assertRelation(relationPrototype, user); // may throw exception...
+      // at this point, the prototype has become fully populated
+      relation = relationPrototype; // set static variable only upon success...
+    }
+    return relation;
+  }
+}
@@ -17,6 +17,7 @@
 
 package org.opendatakit.aggregate.submission.type;
 
+import java.io.OutputStream;
 import java.util.Date;
 import java.util.List;
 
@@ -101,7 +102,9 @@ public class BlobSubmissionType extends SubmissionFieldBase<SubmissionKey> {
     FormDataModel blobModel = ctntRefDataModel.getChildren().get(0);
     RefBlob blb = (RefBlob) blobModel.getBackingObjectPrototype();
 
-    this.bcm = new BinaryContentManipulator(parentKey, topLevelTableKey.getKey(), ctnt, ref, blb);
+    // identical attachments (e.g., re-sent or shared images) are stored once.
+    this.bcm = new BinaryContentManipulator(parentKey, topLevelTableKey.getKey(), ctnt, ref, blb,
+        true);
   }
 
   /**
@@ -134,6 +137,22 @@ public class BlobSubmissionType extends SubmissionFieldBase<SubmissionKey> {
     return bcm.setValueFromByteArray(byteArray, contentType, unrootedFilePath, overwriteOK, cc);
   }
 
+  /**
+   * Save an attachment from the stream returned, without holding its content
+   * in memory; see
+   * {@link BinaryContentManipulator#newAttachmentOutputStream(String, String, CallingContext)}.
+   * 
+   * @param contentType
+   * @param unrootedFilePath
+   * @param cc
+   * @return the stream to write the attachment to.
+   * @throws ODKDatastoreException
+   */
+  public OutputStream newAttachmentOutputStream(String contentType, String unrootedFilePath,
+      CallingContext cc) throws ODKDatastoreException {
+    return bcm.newAttachmentOutputStream(contentType, unrootedFilePath, cc);
+  }
+
   /**
    * Cannot convert blob from a string
    * 
@@ -63,6 +63,9 @@ public class RepeatSubmissionType implements SubmissionRepeat {
   private final FormElementModel repeatGroup;
 
   private final String uriAssociatedRow;
+
+  // the prefetched repeat rows; used for the initial load only
+  private SubmissionPrefetch prefetch;
   /**
    * List of submission sets that are a part of this submission set Ordered by
    * OrdinalNumber...
@@ -72,10 +75,16 @@ public class RepeatSubmissionType implements SubmissionRepeat {
 
   public RepeatSubmissionType(SubmissionSet enclosingSet, FormElementModel repeatGroup,
                               String uriAssociatedRow, IForm form) {
+    this(enclosingSet, repeatGroup, uriAssociatedRow, form, null);
+  }
+
+  public RepeatSubmissionType(SubmissionSet enclosingSet, FormElementModel repeatGroup,
+                              String uriAssociatedRow, IForm form, SubmissionPrefetch prefetch) {
     this.enclosingSet = enclosingSet;
     this.form = form;
     this.repeatGroup = repeatGroup;
     this.uriAssociatedRow = uriAssociatedRow;
+    this.prefetch = prefetch;
   }
 
   @Override
@@ -129,18 +138,27 @@ public class RepeatSubmissionType implements SubmissionRepeat {
   public void getValueFromEntity(CallingContext cc) throws ODKDatastoreException {
     DynamicBase submission = (DynamicBase) repeatGroup.getFormDataModel().getBackingObjectPrototype();
 
-    List<CommonFieldsBase> repeatRows = getRepeatRows(cc, submission);
+    SubmissionPrefetch rowPrefetch = prefetch;
+    prefetch = null;
+    List<? extends CommonFieldsBase> repeatRows = null;
+    if (rowPrefetch != null) {
+      repeatRows = rowPrefetch.getRows(submission, uriAssociatedRow);
+    }
+    if (repeatRows == null) {
+      repeatRows = getRepeatRows(cc, submission);
+    }
 
     for (List<DynamicBase> groupOfRepeatRows : groupPerOrdinalNumber(submission, repeatRows)) {
       DynamicBase row = chooseOneFrom(groupOfRepeatRows);
-      SubmissionSet submissionSet = new SubmissionSet(enclosingSet, row, repeatGroup, form, cc);
+      SubmissionSet submissionSet = new SubmissionSet(enclosingSet, row, repeatGroup, form, null,
+          rowPrefetch, cc);
       submissionSets.add(submissionSet);
       submissionSetIndex.put(row.getOrdinalNumber(), submissionSet);
     }
 
   }
 
-  private Collection<List<DynamicBase>> groupPerOrdinalNumber(DynamicBase submission, List<CommonFieldsBase> repeatRows) {
+  private Collection<List<DynamicBase>> groupPerOrdinalNumber(DynamicBase submission, List<? extends CommonFieldsBase> repeatRows) {
     // We don't have the logic to handle fractional returns of rows.
     long maxOrdinalNumber = 0;
     Map<Long, List<DynamicBase>> repeatRowsPerOrdinalNumber = new HashMap<>();
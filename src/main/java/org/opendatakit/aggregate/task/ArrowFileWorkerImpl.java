@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task;
+
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.opendatakit.aggregate.client.filter.FilterGroup;
+import org.opendatakit.aggregate.constants.ServletConsts;
+import org.opendatakit.aggregate.constants.common.ExportStatus;
+import org.opendatakit.aggregate.constants.common.UIConsts;
+import org.opendatakit.aggregate.datamodel.FormElementModel;
+import org.opendatakit.aggregate.filter.SubmissionFilterGroup;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.form.PersistentResults;
+import org.opendatakit.aggregate.format.table.ArrowFormatterWithFilters;
+import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup;
+import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup.CompletionFlag;
+import org.opendatakit.aggregate.submission.Submission;
+import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.constants.HtmlConsts;
+
+/**
+ * Common worker implementation for the generation of Arrow (columnar) files.
+ * The submissions are read through the same cursor-paged query as the other
+ * exports, once for each table of the zip file, and the file is stored as it
+ * is written.
+ */
+public class ArrowFileWorkerImpl {
+
+  private final Logger logger = LoggerFactory.getLogger(ArrowFileWorkerImpl.class);
+  private final IForm form;
+  private final SubmissionKey persistentResultsKey;
+  private final Long attemptCount;
+  private final CallingContext cc;
+
+  public ArrowFileWorkerImpl(IForm form, SubmissionKey persistentResultsKey, Long attemptCount,
+      CallingContext cc) {
+    this.form = form;
+    this.persistentResultsKey = persistentResultsKey;
+    this.attemptCount = attemptCount;
+    this.cc = cc;
+    if (attemptCount == null) {
+      throw new IllegalArgumentException("attempt count cannot be null");
+    }
+  }
+
+  public void generateArrowFile() {
+    logger.info("Beginning Arrow File generation: " + persistentResultsKey.toString() +
+                " form " + form.getFormId());
+
+    try {
+      PersistentResults r = new PersistentResults(persistentResultsKey, cc);
+      if (!attemptCount.equals(r.getAttemptCount())) {
+        logger.warn("stale Arrow activity - do not generate file for " + form.getFormId());
+        return;
+      }
+      // the file is stored as it is written, and replaces the result file
+      // only if this is still the active attempt once it is complete
+      OutputStream stream = r.openResultFile(attemptCount, HtmlConsts.RESP_TYPE_ZIP,
+          form.getViewableFormNameSuitableAsFileName() + ServletConsts.ARROW_FILENAME_APPEND, cc);
+
+      String filterGroupUri = r.getFilterGroupUri();
+
+      // placeholder for clean-up...
+      SubmissionFilterGroup subFilterGroup = null;
+
+      ArrowFormatterWithFilters formatter;
+      FilterGroup filterGroup;
+
+      // figure out the filterGroup...
+      if (filterGroupUri == null) {
+        filterGroup = new FilterGroup(UIConsts.FILTER_NONE, form.getFormId(), null);
+      } else {
+        subFilterGroup = SubmissionFilterGroup.getFilterGroup(filterGroupUri, cc);
+        filterGroup = subFilterGroup.transform();
+      }
+      filterGroup.setQueryFetchLimit(ServletConsts.EXPORT_CURSOR_CHUNK_SIZE);
+
+      formatter = new ArrowFormatterWithFilters(form, cc.getServerURL(), stream, filterGroup);
+      // every pass reads the submissions last stored on the server before the
+      // export began, so the tables agree on the submissions they hold. The
+      // client's completion date cannot bound them: it is set by the device.
+      Date exportStart = new Date();
+
+      logger.info("after setup of Arrow file generation for " + form.getFormId());
+      formatter.beforeProcessSubmissions(cc);
+      for (int table = 0; table < formatter.getTableCount(); ++table) {
+        formatter.beginTable(table);
+        QueryByUIFilterGroup query = new QueryByUIFilterGroup(form, filterGroup,
+            CompletionFlag.ONLY_COMPLETE_SUBMISSIONS_BY_LAST_UPDATE, cc);
+        query.addFilterByPrimaryDate(FilterOperation.LESS_THAN, exportStart);
+        List<FormElementModel> projection = formatter.getElementsUsed();
+        List<Submission> submissions;
+        int count = 0;
+        for (;;) {
+          count++;
+          logger.info("table " + Integer.toString(table) + " iteration " + Integer.toString(count)
+              + " before issuing query for " + form.getFormId());
+          submissions = query.getResultSubmissions(projection, cc);
+          if ( submissions.isEmpty()) break;
+          logger.info("table " + Integer.toString(table) + " iteration " + Integer.toString(count)
+              + " before emitting Arrow for " + form.getFormId());
+          formatter.processSubmissionSegment(submissions, cc);
+        }
+        formatter.endTable();
+      }
+      logger.info("wrapping up Arrow generation for " + form.getFormId());
+      formatter.afterProcessSubmissions(cc);
+
+      // completes the output file
+      stream.close();
+
+      // refetch because this might have taken a while...
+      r = new PersistentResults(persistentResultsKey, cc);
+      if (attemptCount.equals(r.getAttemptCount())) {
+        logger.info("saving Arrow into PersistentResults table for " + form.getFormId());
+        r.setStatus(ExportStatus.AVAILABLE);
+        r.setCompletionDate(new Date());
+        r.commitResultFile(attemptCount, cc);
+        if(subFilterGroup != null) {
+          subFilterGroup.delete(cc);
+        }
+        r.persist(cc);
+      } else {
+        r.deleteResultFile(attemptCount, cc);
+        logger.warn("stale Arrow activity - do not save file in PersistentResults table for " + form.getFormId());
+      }
+    } catch (Exception e) {
+      failureRecovery(e);
+    }
+  }
+
+  private void failureRecovery(Exception e) {
+    // four possible exceptions:
+    // ODKFormNotFoundException, ODKDatastoreException,
+    // ODKIncompleteSubmissionData, Exception
+    logger.error("Exception caught: " + e.toString() + " for " + form.getFormId());
+    e.printStackTrace();
+    try {
+      PersistentResults r = new PersistentResults(persistentResultsKey, cc);
+      r.deleteResultFile(attemptCount, cc);
+      if (attemptCount.equals(r.getAttemptCount())) {
+        logger.info("Exception recovery during Arrow generation - mark as failed for " + form.getFormId());
+        r.deleteResultFile(cc);
+        r.setStatus(ExportStatus.FAILED);
+        r.persist(cc);
+      } else {
+        logger.warn("Exception recovery during Arrow generation - skipped - not the active attempt! for " + form.getFormId());
+      }
+    } catch (Exception ex) {
+      // something is hosed -- don't attempt to continue.
+      // watchdog: find this once lastRetryDate is late
+      logger.error("Exception during exception recovery: " + ex.toString() + " for " + form.getFormId());
+    }
+  }
+
+}
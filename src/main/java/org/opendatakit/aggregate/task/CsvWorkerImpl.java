@@ -15,7 +15,7 @@
  */
 package org.opendatakit.aggregate.task;
 
-import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.util.Date;
@@ -27,16 +27,21 @@ import org.opendatakit.aggregate.client.filter.FilterGroup;
 import org.opendatakit.aggregate.constants.ServletConsts;
 import org.opendatakit.aggregate.constants.common.ExportStatus;
 import org.opendatakit.aggregate.constants.common.UIConsts;
+import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
 import org.opendatakit.aggregate.filter.SubmissionFilterGroup;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.form.PersistentResults;
 import org.opendatakit.aggregate.format.SubmissionFormatter;
 import org.opendatakit.aggregate.format.table.CsvFormatterWithFilters;
-import org.opendatakit.aggregate.query.submission.QueryBase;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup.CompletionFlag;
 import org.opendatakit.aggregate.submission.Submission;
 import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.aggregate.task.PartitionedExportWriter.SegmentFormatterFactory;
+import org.opendatakit.common.persistence.PersistConsts;
+import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.QueryResumePoint;
+import org.opendatakit.common.persistence.engine.EngineUtils;
 import org.opendatakit.common.web.CallingContext;
 import org.opendatakit.common.web.constants.HtmlConsts;
 
@@ -53,13 +58,25 @@ public class CsvWorkerImpl {
   private final IForm form;
   private final SubmissionKey persistentResultsKey;
   private final Long attemptCount;
+  private final PartitionedExportWriter.SliceExecutor partitionExecutor;
   private final CallingContext cc;
 
   public CsvWorkerImpl(IForm form, SubmissionKey persistentResultsKey, Long attemptCount,
       CallingContext cc) {
+    this(form, persistentResultsKey, attemptCount, null, cc);
+  }
+
+  /**
+   * @param partitionExecutor
+   *          if not null, large forms are exported in slices, some of which
+   *          are formatted concurrently on this executor.
+   */
+  public CsvWorkerImpl(IForm form, SubmissionKey persistentResultsKey, Long attemptCount,
+      PartitionedExportWriter.SliceExecutor partitionExecutor, CallingContext cc) {
     this.form = form;
     this.persistentResultsKey = persistentResultsKey;
     this.attemptCount = attemptCount;
+    this.partitionExecutor = partitionExecutor;
     this.cc = cc;
     if (attemptCount == null) {
       throw new IllegalArgumentException("attempt count cannot be null");
@@ -71,64 +88,117 @@ public class CsvWorkerImpl {
                 " form " + form.getFormId());
 
     try {
-      ByteArrayOutputStream stream = new ByteArrayOutputStream();
-      PrintWriter pw = new PrintWriter(new OutputStreamWriter(stream, HtmlConsts.UTF8_ENCODE));
-
       PersistentResults r = new PersistentResults(persistentResultsKey, cc);
+      if (!attemptCount.equals(r.getAttemptCount())) {
+        logger.warn("stale CSV activity - do not generate file for " + form.getFormId());
+        return;
+      }
       String filterGroupUri = r.getFilterGroupUri();
-
-      // placeholder for clean-up...
-      SubmissionFilterGroup subFilterGroup = null;
+      // a segment writes only the submissions after its base export. A
+      // compacted export is written in full, as a full export is: appending the
+      // new submissions to the base export's file would repeat any submission
+      // that was updated, or stored within the settle interval, since then.
+      boolean isSegment = r.isCsvSegment();
+      TopLevelDynamicBase tbl = (TopLevelDynamicBase) form.getTopLevelGroupElement()
+          .getFormDataModel().getBackingObjectPrototype();
 
       // create CSV
-      QueryBase query;
+      QueryByUIFilterGroup query;
       SubmissionFormatter formatter;
-      FilterGroup filterGroup;
+      final FilterGroup filterGroup;
 
       // figure out the filterGroup...
       if (filterGroupUri == null) {
         filterGroup = new FilterGroup(UIConsts.FILTER_NONE, form.getFormId(), null);
       } else {
-        subFilterGroup = SubmissionFilterGroup.getFilterGroup(filterGroupUri, cc);
+        SubmissionFilterGroup subFilterGroup = SubmissionFilterGroup.getFilterGroup(filterGroupUri, cc);
         filterGroup = subFilterGroup.transform();
       }
       filterGroup.setQueryFetchLimit(ServletConsts.EXPORT_CURSOR_CHUNK_SIZE);
+      // Incremental exports follow the server-assigned lastUpdateDate. The
+      // markedAsCompleteDate of a pushed submission comes from the client and
+      // can precede a cursor that has already been recorded.
+      Date settledDate = new Date(System.currentTimeMillis() - PersistConsts.MAX_SETTLE_MILLISECONDS);
+      QueryResumePoint resumeCursor;
+      if (isSegment) {
+        resumeCursor = asLastUpdateCursor(r.getCsvStartCursor(), tbl);
+        filterGroup.setCursor((resumeCursor == null) ? null : resumeCursor.transform());
+        query = new QueryByUIFilterGroup(form, filterGroup,
+            CompletionFlag.ONLY_COMPLETE_SUBMISSIONS_BY_LAST_UPDATE, cc);
+        // Only export submissions that have settled so that none can later appear
+        // before the resume cursor recorded for the next incremental export.
+        query.addFilterByPrimaryDate(FilterOperation.LESS_THAN, settledDate);
+      } else {
+        // A full or compacted export writes every submission. An incremental
+        // export from it starts with the submissions stored within the settle
+        // interval before it began, so a submission stored while it ran may
+        // appear in both.
+        resumeCursor = new QueryResumePoint(tbl.lastUpdateDate.getName(),
+            EngineUtils.getAttributeValueAsString(settledDate, tbl.lastUpdateDate), null, true);
+        query = new QueryByUIFilterGroup(form, filterGroup,
+            CompletionFlag.ONLY_COMPLETE_SUBMISSIONS, cc);
+      }
 
-      query = new QueryByUIFilterGroup(form, filterGroup, CompletionFlag.ONLY_COMPLETE_SUBMISSIONS, cc);
+      // the file is stored as it is written, and replaces the result file
+      // only if this is still the active attempt once it is complete
+      String filenameAppend = isSegment ?
+          ServletConsts.CSV_SEGMENT_FILENAME_APPEND : ServletConsts.CSV_FILENAME_APPEND;
+      OutputStream stream = r.openResultFile(attemptCount, HtmlConsts.RESP_TYPE_CSV,
+          form.getViewableFormNameSuitableAsFileName() + filenameAppend, cc);
+      PrintWriter pw = new PrintWriter(new OutputStreamWriter(stream, HtmlConsts.UTF8_ENCODE));
       formatter = new CsvFormatterWithFilters(form, cc.getServerURL(), pw, filterGroup);
 
       logger.info("after setup of CSV file generation for " + form.getFormId());
       formatter.beforeProcessSubmissions(cc);
-      List<Submission> submissions;
-      int count = 0;
-      for (;;) {
-        count++;
-        logger.info("iteration " + Integer.toString(count) + " before issuing query for " + form.getFormId());
-        submissions = query.getResultSubmissions(cc);
-        if ( submissions.isEmpty()) break;
-        logger.info("iteration " + Integer.toString(count) + " before emitting csv for " + form.getFormId());
-        formatter.processSubmissionSegment(submissions, cc);
+      boolean isPartitioned = false;
+      if (partitionExecutor != null && !isSegment) {
+        PartitionedExportWriter writer = new PartitionedExportWriter(form, filterGroup,
+            partitionExecutor, cc);
+        isPartitioned = writer.writeSegments(new SegmentFormatterFactory() {
+          @Override
+          public SubmissionFormatter createSegmentFormatter(PrintWriter segmentPw) {
+            return new CsvFormatterWithFilters(form, cc.getServerURL(), segmentPw, filterGroup);
+          }
+        }, pw, stream);
+      }
+      if (!isPartitioned) {
+        List<Submission> submissions;
+        int count = 0;
+        for (;;) {
+          count++;
+          logger.info("iteration " + Integer.toString(count) + " before issuing query for " + form.getFormId());
+          submissions = query.getResultSubmissions(cc);
+          if ( submissions.isEmpty()) break;
+          if (isSegment) {
+            // remember where this page ended; the cursor after the final (empty) page is not usable
+            resumeCursor = query.getResumeCursor();
+          }
+          logger.info("iteration " + Integer.toString(count) + " before emitting csv for " + form.getFormId());
+          formatter.processSubmissionSegment(submissions, cc);
+        }
       }
       logger.info("wrapping up csv generation for " + form.getFormId());
       formatter.afterProcessSubmissions(cc);
 
-      // output file
+      // completes the output file
       pw.close();
-      byte[] outputFile = stream.toByteArray();
+      if (pw.checkError()) {
+        throw new IllegalStateException("unable to store the csv file for " + form.getFormId());
+      }
 
       // refetch because this might have taken a while...
       r = new PersistentResults(persistentResultsKey, cc);
       if (attemptCount.equals(r.getAttemptCount())) {
         logger.info("saving csv into PersistentResults table for " + form.getFormId());
-        r.setResultFile(outputFile, HtmlConsts.RESP_TYPE_CSV,
-            form.getViewableFormNameSuitableAsFileName() + ServletConsts.CSV_FILENAME_APPEND, false, cc);
         r.setStatus(ExportStatus.AVAILABLE);
         r.setCompletionDate(new Date());
-        if(subFilterGroup != null) {
-          subFilterGroup.delete(cc);
-        }
+        r.commitResultFile(attemptCount, cc);
+        // the filter group is retained for incremental exports from this one;
+        // it is deleted along with the PersistentResults.
+        r.setCsvResumeCursor(resumeCursor);
         r.persist(cc);
       } else {
+        r.deleteResultFile(attemptCount, cc);
         logger.warn("stale CSV activity - do not save file in PersistentResults table for " + form.getFormId());
       }
     } catch (Exception e) {
@@ -136,6 +206,23 @@ public class CsvWorkerImpl {
     }
   }
 
+  /**
+   * Exports made before incremental exports followed the lastUpdateDate
+   * recorded a markedAsCompleteDate cursor. Such a cursor is resumed from the
+   * same time, without skipping any submission stored at that time.
+   *
+   * @param cursor
+   * @param tbl
+   * @return a cursor on the lastUpdateDate, or null if cursor is null.
+   */
+  private static QueryResumePoint asLastUpdateCursor(QueryResumePoint cursor,
+      TopLevelDynamicBase tbl) {
+    if (cursor == null || cursor.getAttributeName().equals(tbl.lastUpdateDate.getName())) {
+      return cursor;
+    }
+    return new QueryResumePoint(tbl.lastUpdateDate.getName(), cursor.getValue(), null, true);
+  }
+
   private void failureRecovery(Exception e) {
     // four possible exceptions:
     // ODKFormNotFoundException, ODKDatastoreException,
@@ -144,6 +231,7 @@ public class CsvWorkerImpl {
     e.printStackTrace();
     try {
       PersistentResults r = new PersistentResults(persistentResultsKey, cc);
+      r.deleteResultFile(attemptCount, cc);
       if (attemptCount.equals(r.getAttemptCount())) {
         logger.info("Exception recovery during CSV generation - mark as failed for " + form.getFormId());
         r.deleteResultFile(cc);
@@ -36,6 +36,7 @@ import org.opendatakit.aggregate.form.MiscTasks.TaskType;
 import org.opendatakit.aggregate.form.PersistentResults;
 import org.opendatakit.aggregate.process.DeleteSubmissions;
 import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.aggregate.submission.SubmissionSummary;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.PersistConsts;
@@ -65,12 +66,29 @@ public class FormDeleteWorkerImpl {
   private final SubmissionKey miscTasksKey;
   private final CallingContext cc;
   private final String pFormIdLockId;
+  private final boolean dropTables;
   private final Logger logger = LoggerFactory.getLogger(FormDeleteWorkerImpl.class);
 
   public FormDeleteWorkerImpl(IForm form, SubmissionKey miscTasksKey, long attemptCount,
       CallingContext cc) {
+    this(form, miscTasksKey, attemptCount, false, cc);
+  }
+
+  /**
+   * @param form
+   * @param miscTasksKey
+   * @param attemptCount
+   * @param dropTables
+   *          true if dropping a relation also removes its rows (the JDBC
+   *          engines). The submissions are then removed with the form's
+   *          tables rather than deleted a page at a time.
+   * @param cc
+   */
+  public FormDeleteWorkerImpl(IForm form, SubmissionKey miscTasksKey, long attemptCount,
+      boolean dropTables, CallingContext cc) {
     this.form = form;
     this.miscTasksKey = miscTasksKey;
+    this.dropTables = dropTables;
     this.cc = cc;
     pFormIdLockId = UUID.randomUUID().toString();
   }
@@ -338,7 +356,16 @@ public class FormDeleteWorkerImpl {
       relation = null;
     }
 
-    if (relation != null) {
+    if (relation != null && dropTables) {
+      // stop accepting submissions. The submissions, their repeat groups and
+      // attachments are removed when form.deleteForm() drops the form's
+      // tables below.
+      logger.info("Dropping the tables of form " + form.getFormId()
+          + " without deleting its submissions");
+      form.setSubmissionEnabled(false);
+      form.setDownloadEnabled(false);
+      form.persist(cc);
+    } else if (relation != null) {
       QueryResumePoint startCursor = null;
       for (;;) {
         // retrieve submissions
@@ -388,6 +415,11 @@ public class FormDeleteWorkerImpl {
     // wait until the end because a task could be using a filter.
     deleteFilters();
 
+    if (relation != null && dropTables) {
+      // the submissions go with the dropped tables; their summaries do not.
+      SubmissionSummary.deleteForm(form.getFormId(), cc);
+    }
+
     // delete the form.
     form.deleteForm(cc);
 
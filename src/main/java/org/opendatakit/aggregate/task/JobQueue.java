@@ -0,0 +1,540 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.opendatakit.aggregate.constants.TaskLockType;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.form.MiscTasks;
+import org.opendatakit.aggregate.form.PersistentResults;
+import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.PersistConsts;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.Query.Direction;
+import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.QueryResult;
+import org.opendatakit.common.persistence.TaskLock;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.persistence.exception.ODKTaskLockException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Durable queue of the background jobs that carry out export requests
+ * (PersistentResults) and miscellaneous tasks (MiscTasks).
+ *
+ * A job is claimed by a worker for a visibility timeout. While claimed, no
+ * other worker can claim it; if the worker does not complete or fail the job
+ * before the timeout (e.g., its server stopped), the job becomes claimable
+ * again. A worker running a job for longer renews its claim before the
+ * timeout. A failed job is retried after an exponentially increasing delay and
+ * is dead-lettered once it has used up the attempts allowed for its type.
+ * Dead-lettered jobs are kept in the table for inspection.
+ *
+ * Claims are made under a TaskLock on the job, which each persistence layer
+ * implements as a non-blocking lock on its own lock table. A job locked by
+ * another claimant is skipped rather than waited for, so workers on several
+ * servers can pull from the queue at the same time.
+ *
+ * The attempt count of a job is also the attempt count handed to the task
+ * worker, which only records its outcome if the attempt count of the request
+ * still matches. A worker whose claim expired therefore cannot overwrite the
+ * work of a later attempt.
+ */
+public class JobQueue {
+
+  private static final Logger logger = LoggerFactory.getLogger(JobQueue.class);
+
+  /** delay before the first retry of a failed job; doubled for each later retry */
+  private static final long BASE_RETRY_DELAY_MILLISECONDS = 30000L;
+
+  /** upper bound on the delay between retries */
+  private static final long MAX_RETRY_DELAY_MILLISECONDS = 15L * 60L * 1000L;
+
+  /** maximum number of claimable jobs of each type fetched by one claim */
+  private static final int CLAIM_FETCH_LIMIT = 50;
+
+  private static final int MAX_ERROR_LENGTH = 1024;
+
+  /**
+   * The kinds of job. Each kind sets the visibility timeout of a claim and
+   * the number of attempts made before the job is dead-lettered; these match
+   * the limits the watchdog applies to the corresponding requests.
+   */
+  public enum JobType {
+    EXPORT(PersistentResults.RETRY_INTERVAL_MILLISECONDS, PersistentResults.MAX_RETRY_ATTEMPTS),
+    WORKSHEET_CREATE(MiscTasks.TaskType.WORKSHEET_CREATE),
+    DELETE_FORM(MiscTasks.TaskType.DELETE_FORM),
+    PURGE_OLDER_SUBMISSIONS(MiscTasks.TaskType.PURGE_OLDER_SUBMISSIONS);
+
+    private final long visibilityTimeout;
+    private final long maxAttemptCount;
+
+    private JobType(long visibilityTimeout, long maxAttemptCount) {
+      this.visibilityTimeout = visibilityTimeout;
+      this.maxAttemptCount = maxAttemptCount;
+    }
+
+    private JobType(MiscTasks.TaskType taskType) {
+      this(taskType.getLockType().getLockExpirationTimeout() + PersistConsts.MAX_SETTLE_MILLISECONDS,
+          taskType.getMaxAttemptCount());
+    }
+
+    public long getVisibilityTimeout() {
+      return visibilityTimeout;
+    }
+
+    public long getMaxAttemptCount() {
+      return maxAttemptCount;
+    }
+
+    public static JobType valueOf(MiscTasks.TaskType taskType) {
+      return valueOf(taskType.name());
+    }
+  }
+
+  private enum State {
+    /** waiting to be claimed, or claimed until its available date */
+    PENDING,
+    /** out of attempts; kept for inspection */
+    DEAD
+  }
+
+  /**
+   * A claimed job.
+   */
+  public static final class Job {
+    private final String uri;
+    private final JobType type;
+    private final SubmissionKey requestKey;
+    private final String formId;
+    private final long attemptCount;
+    private final String owner;
+
+    private Job(JobQueueTable row) {
+      this.uri = row.getUri();
+      this.type = JobType.valueOf(row.getStringField(JobQueueTable.JOB_TYPE));
+      this.requestKey = new SubmissionKey(row.getStringField(JobQueueTable.REQUEST_KEY));
+      this.formId = row.getStringField(JobQueueTable.FORM_ID);
+      this.attemptCount = row.getLongField(JobQueueTable.ATTEMPT_COUNT);
+      this.owner = row.getStringField(JobQueueTable.LEASE_OWNER);
+    }
+
+    public JobType getType() {
+      return type;
+    }
+
+    /**
+     * @return the submission key of the PersistentResults or MiscTasks request.
+     */
+    public SubmissionKey getRequestKey() {
+      return requestKey;
+    }
+
+    public String getFormId() {
+      return formId;
+    }
+
+    /**
+     * @return the attempt number of this claim, starting at 1.
+     */
+    public long getAttemptCount() {
+      return attemptCount;
+    }
+
+    @Override
+    public String toString() {
+      return type.name() + " job " + uri + " attempt " + attemptCount + " for " + requestKey;
+    }
+  }
+
+  private JobQueue() {
+  }
+
+  /**
+   * Add a job for a request, unless the request already has a pending job.
+   *
+   * @param type
+   * @param requestKey
+   *          the submission key of the PersistentResults or MiscTasks request.
+   * @param formId
+   * @param attemptCount
+   *          the attempt number the first claim of the job should have.
+   * @param cc
+   * @return true if a job was added.
+   * @throws ODKDatastoreException
+   */
+  public static synchronized boolean enqueue(JobType type, SubmissionKey requestKey, String formId,
+      long attemptCount, CallingContext cc) throws ODKDatastoreException {
+    if (hasActiveJob(requestKey, cc)) {
+      return false;
+    }
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    JobQueueTable relation = JobQueueTable.assertRelation(cc);
+    JobQueueTable row = ds.createEntityUsingRelation(relation, user);
+    row.setStringField(JobQueueTable.JOB_TYPE, type.name());
+    if (!row.setStringField(JobQueueTable.REQUEST_KEY, requestKey.toString())) {
+      throw new IllegalArgumentException("requestKey is too long");
+    }
+    row.setStringField(JobQueueTable.FORM_ID, formId);
+    row.setStringField(JobQueueTable.STATE, State.PENDING.name());
+    row.setLongField(JobQueueTable.ATTEMPT_COUNT, Math.max(0L, attemptCount - 1L));
+    row.setDateField(JobQueueTable.AVAILABLE_DATE, new Date());
+    ds.putEntity(row, user);
+    return true;
+  }
+
+  /**
+   * @param requestKey
+   * @param cc
+   * @return true if the request has a job that is waiting, running or due for
+   *         a retry.
+   * @throws ODKDatastoreException
+   */
+  public static boolean hasActiveJob(SubmissionKey requestKey, CallingContext cc)
+      throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    JobQueueTable relation = JobQueueTable.assertRelation(cc);
+    Query q = ds.createQuery(relation, "JobQueue.hasActiveJob", user);
+    q.addFilter(JobQueueTable.REQUEST_KEY, FilterOperation.EQUAL, requestKey.toString());
+    q.addFilter(JobQueueTable.STATE, FilterOperation.EQUAL, State.PENDING.name());
+    return !q.executeQuery().isEmpty();
+  }
+
+  /**
+   * Claim the jobs that are available now, oldest first, up to the given
+   * number of each type. Each type is queried on its own, so a backlog of one
+   * type cannot keep the jobs of another from being claimed. Jobs that
+   * another worker is claiming at the same time are skipped.
+   *
+   * @param capacity
+   *          the maximum number of jobs of each type to claim; types that are
+   *          absent are not claimed.
+   * @param cc
+   * @return the claimed jobs.
+   * @throws ODKDatastoreException
+   */
+  public static List<Job> claim(Map<JobType, Integer> capacity, CallingContext cc)
+      throws ODKDatastoreException {
+    List<Job> claimed = new ArrayList<Job>();
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    JobQueueTable relation = JobQueueTable.assertRelation(cc);
+    String owner = UUID.randomUUID().toString();
+    Date now = new Date();
+    for (Map.Entry<JobType, Integer> entry : capacity.entrySet()) {
+      JobType type = entry.getKey();
+      int remaining = entry.getValue();
+      if (remaining <= 0) {
+        continue;
+      }
+      Query q = ds.createQuery(relation, "JobQueue.claim", user);
+      q.addFilter(JobQueueTable.STATE, FilterOperation.EQUAL, State.PENDING.name());
+      q.addFilter(JobQueueTable.JOB_TYPE, FilterOperation.EQUAL, type.name());
+      q.addFilter(JobQueueTable.AVAILABLE_DATE, FilterOperation.LESS_THAN_OR_EQUAL, now);
+      q.addSort(JobQueueTable.AVAILABLE_DATE, Direction.ASCENDING);
+      QueryResult candidates = q.executeQuery(null, CLAIM_FETCH_LIMIT);
+
+      for (CommonFieldsBase b : candidates.getResultList()) {
+        Job job = claim(b.getUri(), owner, type, cc);
+        if (job != null) {
+          claimed.add(job);
+          if (--remaining == 0) {
+            break;
+          }
+        }
+      }
+      entry.setValue(remaining);
+    }
+    return claimed;
+  }
+
+  private static Job claim(String uri, String owner, JobType type, CallingContext cc)
+      throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    TaskLock lock = ds.createTaskLock(user);
+    try {
+      if (!lock.obtainLock(owner, uri, TaskLockType.JOB_CLAIM)) {
+        // another worker is claiming this job
+        return null;
+      }
+    } catch (ODKTaskLockException e) {
+      logger.warn("Unable to lock " + uri + " for claiming: " + e.getMessage());
+      return null;
+    }
+    try {
+      // re-read under the lock -- the job may have been claimed since the query
+      JobQueueTable relation = JobQueueTable.assertRelation(cc);
+      JobQueueTable row;
+      try {
+        row = ds.getEntity(relation, uri, user);
+      } catch (ODKEntityNotFoundException e) {
+        return null;
+      }
+      Date now = new Date();
+      if (!State.PENDING.name().equals(row.getStringField(JobQueueTable.STATE))
+          || row.getDateField(JobQueueTable.AVAILABLE_DATE).after(now)) {
+        return null;
+      }
+      row.setLongField(JobQueueTable.ATTEMPT_COUNT,
+          row.getLongField(JobQueueTable.ATTEMPT_COUNT) + 1L);
+      row.setStringField(JobQueueTable.LEASE_OWNER, owner);
+      row.setDateField(JobQueueTable.AVAILABLE_DATE,
+          new Date(now.getTime() + type.getVisibilityTimeout()));
+      ds.putEntity(row, user);
+      return new Job(row);
+    } finally {
+      try {
+        lock = ds.createTaskLock(user);
+        lock.releaseLock(owner, uri, TaskLockType.JOB_CLAIM);
+      } catch (ODKTaskLockException e) {
+        // the lock expires on its own
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Extend the claim on a running job by the visibility timeout of its type,
+   * so that a job running for longer than the timeout is not claimed again.
+   *
+   * @param job
+   * @param cc
+   * @return false if the claim has already been lost.
+   * @throws ODKDatastoreException
+   */
+  public static boolean renew(Job job, CallingContext cc) throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    TaskLock lock = ds.createTaskLock(user);
+    try {
+      if (!lock.obtainLock(job.owner, job.uri, TaskLockType.JOB_CLAIM)) {
+        // another worker is claiming the job, which it can only do once the
+        // claim has expired
+        logger.warn("Unable to renew the claim on " + job + " while it is being claimed");
+        return true;
+      }
+    } catch (ODKTaskLockException e) {
+      logger.warn("Unable to lock " + job + " for renewal: " + e.getMessage());
+      return true;
+    }
+    try {
+      JobQueueTable row = getClaimedRow(job, cc);
+      if (row == null) {
+        return false;
+      }
+      row.setDateField(JobQueueTable.AVAILABLE_DATE,
+          new Date(System.currentTimeMillis() + job.type.getVisibilityTimeout()));
+      ds.putEntity(row, user);
+      return true;
+    } finally {
+      try {
+        lock = ds.createTaskLock(user);
+        lock.releaseLock(job.owner, job.uri, TaskLockType.JOB_CLAIM);
+      } catch (ODKTaskLockException e) {
+        // the lock expires on its own
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Fetch the job row if it is still held by the given claim.
+   *
+   * @return the row, or null if the claim has expired and been superseded.
+   */
+  private static JobQueueTable getClaimedRow(Job job, CallingContext cc)
+      throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    JobQueueTable relation = JobQueueTable.assertRelation(cc);
+    JobQueueTable row;
+    try {
+      row = ds.getEntity(relation, job.uri, user);
+    } catch (ODKEntityNotFoundException e) {
+      return null;
+    }
+    if (!State.PENDING.name().equals(row.getStringField(JobQueueTable.STATE))
+        || row.getLongField(JobQueueTable.ATTEMPT_COUNT) != job.attemptCount
+        || !job.owner.equals(row.getStringField(JobQueueTable.LEASE_OWNER))) {
+      logger.warn("Claim on " + job + " was lost");
+      return null;
+    }
+    return row;
+  }
+
+  /**
+   * Remove a finished job from the queue.
+   *
+   * @param job
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public static void complete(Job job, CallingContext cc) throws ODKDatastoreException {
+    JobQueueTable row = getClaimedRow(job, cc);
+    if (row != null) {
+      cc.getDatastore().deleteEntity(row.getEntityKey(), cc.getCurrentUser());
+    }
+  }
+
+  /**
+   * Record the failure of a job. The job is retried after a delay that
+   * doubles with each attempt, or dead-lettered if it has no attempts left.
+   *
+   * @param job
+   * @param reason
+   * @param cc
+   * @return true if the job was dead-lettered.
+   * @throws ODKDatastoreException
+   */
+  public static boolean fail(Job job, String reason, CallingContext cc)
+      throws ODKDatastoreException {
+    JobQueueTable row = getClaimedRow(job, cc);
+    if (row == null) {
+      return false;
+    }
+    if (reason != null && reason.length() > MAX_ERROR_LENGTH) {
+      reason = reason.substring(0, MAX_ERROR_LENGTH);
+    }
+    row.setStringField(JobQueueTable.LAST_ERROR, reason);
+    row.setStringField(JobQueueTable.LEASE_OWNER, null);
+    boolean dead = job.attemptCount >= job.type.getMaxAttemptCount();
+    if (dead) {
+      row.setStringField(JobQueueTable.STATE, State.DEAD.name());
+      logger.warn("Dead-lettering " + job + ": " + reason);
+    } else {
+      long delay = BASE_RETRY_DELAY_MILLISECONDS << Math.min(job.attemptCount - 1L, 20L);
+      delay = Math.min(delay, MAX_RETRY_DELAY_MILLISECONDS);
+      row.setDateField(JobQueueTable.AVAILABLE_DATE, new Date(System.currentTimeMillis() + delay));
+      logger.info("Retrying " + job + " in " + delay + "ms: " + reason);
+    }
+    cc.getDatastore().putEntity(row, cc.getCurrentUser());
+    return dead;
+  }
+
+  /**
+   * Return a claimed job to the queue without counting the attempt, e.g.,
+   * because the worker had no room to run it.
+   *
+   * @param job
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public static void release(Job job, CallingContext cc) throws ODKDatastoreException {
+    JobQueueTable row = getClaimedRow(job, cc);
+    if (row != null) {
+      row.setLongField(JobQueueTable.ATTEMPT_COUNT, job.attemptCount - 1L);
+      row.setStringField(JobQueueTable.LEASE_OWNER, null);
+      row.setDateField(JobQueueTable.AVAILABLE_DATE, new Date());
+      cc.getDatastore().putEntity(row, cc.getCurrentUser());
+    }
+  }
+
+  private static final class JobQueueTable extends CommonFieldsBase {
+
+    static final String TABLE_NAME = "_job_queue";
+
+    private static final DataField JOB_TYPE = new DataField("JOB_TYPE",
+        DataField.DataType.STRING, false, 80L);
+
+    private static final DataField REQUEST_KEY = new DataField("REQUEST_KEY",
+        DataField.DataType.STRING, false, 1024L);
+
+    private static final DataField FORM_ID = new DataField("FORM_ID",
+        DataField.DataType.STRING, true, IForm.MAX_FORM_ID_LENGTH);
+
+    private static final DataField STATE = new DataField("STATE",
+        DataField.DataType.STRING, false, 80L);
+
+    private static final DataField ATTEMPT_COUNT = new DataField("ATTEMPT_COUNT",
+        DataField.DataType.INTEGER, false);
+
+    /** the time at which the job may next be claimed */
+    private static final DataField AVAILABLE_DATE = new DataField("AVAILABLE_DATE",
+        DataField.DataType.DATETIME, false);
+
+    private static final DataField LEASE_OWNER = new DataField("LEASE_OWNER",
+        DataField.DataType.STRING, true, 80L);
+
+    private static final DataField LAST_ERROR = new DataField("LAST_ERROR",
+        DataField.DataType.STRING, true, (long) MAX_ERROR_LENGTH);
+
+    /**
+     * Construct a relation prototype.
+     *
+     * @param databaseSchema
+     */
+    private JobQueueTable(String databaseSchema) {
+      super(databaseSchema, TABLE_NAME);
+      fieldList.add(JOB_TYPE);
+      fieldList.add(REQUEST_KEY);
+      fieldList.add(FORM_ID);
+      fieldList.add(STATE);
+      fieldList.add(ATTEMPT_COUNT);
+      fieldList.add(AVAILABLE_DATE);
+      fieldList.add(LEASE_OWNER);
+      fieldList.add(LAST_ERROR);
+
+      // index for claiming the available jobs of each type, oldest first
+      addCompositeIndex(STATE, JOB_TYPE, AVAILABLE_DATE);
+    }
+
+    /**
+     * Construct an empty entity.
+     *
+     * @param ref
+     * @param user
+     */
+    private JobQueueTable(JobQueueTable ref, User user) {
+      super(ref, user);
+    }
+
+    @Override
+    public JobQueueTable getEmptyRow(User user) {
+      return new JobQueueTable(this, user);
+    }
+
+    private static JobQueueTable relation = null;
+
+    static synchronized final JobQueueTable assertRelation(CallingContext cc)
+        throws ODKDatastoreException {
+      if (relation == null) {
+        JobQueueTable relationPrototype;
+        Datastore ds = cc.getDatastore();
+        User user = cc.getUserService().getDaemonAccountUser();
+        relationPrototype = new JobQueueTable(ds.getDefaultSchemaName());
+        ds.assertRelation(relationPrototype, user); // may throw exception...
+        // at this point, the prototype has become fully populated
+        relation = relationPrototype; // set static variable only upon success...
+      }
+      return relation;
+    }
+  }
+}
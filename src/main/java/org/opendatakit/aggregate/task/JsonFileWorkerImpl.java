@@ -15,7 +15,7 @@
  */
 package org.opendatakit.aggregate.task;
 
-import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.util.Date;
@@ -28,6 +28,7 @@ import org.opendatakit.aggregate.constants.ServletConsts;
 import org.opendatakit.aggregate.constants.common.BinaryOption;
 import org.opendatakit.aggregate.constants.common.ExportStatus;
 import org.opendatakit.aggregate.constants.common.UIConsts;
+import org.opendatakit.aggregate.constants.format.FormatConsts;
 import org.opendatakit.aggregate.filter.SubmissionFilterGroup;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.form.PersistentResults;
@@ -38,6 +39,7 @@ import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup.CompletionFlag;
 import org.opendatakit.aggregate.submission.Submission;
 import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.aggregate.task.PartitionedExportWriter.SegmentFormatterFactory;
 import org.opendatakit.common.web.CallingContext;
 import org.opendatakit.common.web.constants.HtmlConsts;
 
@@ -54,13 +56,25 @@ public class JsonFileWorkerImpl {
   private final IForm form;
   private final SubmissionKey persistentResultsKey;
   private final Long attemptCount;
+  private final PartitionedExportWriter.SliceExecutor partitionExecutor;
   private final CallingContext cc;
 
   public JsonFileWorkerImpl(IForm form, SubmissionKey persistentResultsKey, Long attemptCount,
       CallingContext cc) {
+    this(form, persistentResultsKey, attemptCount, null, cc);
+  }
+
+  /**
+   * @param partitionExecutor
+   *          if not null, large forms are exported in slices, some of which
+   *          are formatted concurrently on this executor.
+   */
+  public JsonFileWorkerImpl(IForm form, SubmissionKey persistentResultsKey, Long attemptCount,
+      PartitionedExportWriter.SliceExecutor partitionExecutor, CallingContext cc) {
     this.form = form;
     this.persistentResultsKey = persistentResultsKey;
     this.attemptCount = attemptCount;
+    this.partitionExecutor = partitionExecutor;
     this.cc = cc;
     if (attemptCount == null) {
       throw new IllegalArgumentException("attempt count cannot be null");
@@ -72,10 +86,17 @@ public class JsonFileWorkerImpl {
                 " form " + form.getFormId());
 
     try {
-      ByteArrayOutputStream stream = new ByteArrayOutputStream();
+      PersistentResults r = new PersistentResults(persistentResultsKey, cc);
+      if (!attemptCount.equals(r.getAttemptCount())) {
+        logger.warn("stale JSON activity - do not generate file for " + form.getFormId());
+        return;
+      }
+      // the file is stored as it is written, and replaces the result file
+      // only if this is still the active attempt once it is complete
+      OutputStream stream = r.openResultFile(attemptCount, HtmlConsts.RESP_TYPE_JSON,
+          form.getViewableFormNameSuitableAsFileName() + ServletConsts.JSON_FILENAME_APPEND, cc);
       PrintWriter pw = new PrintWriter(new OutputStreamWriter(stream, HtmlConsts.UTF8_ENCODE));
 
-      PersistentResults r = new PersistentResults(persistentResultsKey, cc);
       String filterGroupUri = r.getFilterGroupUri();
 
       // placeholder for clean-up...
@@ -84,7 +105,7 @@ public class JsonFileWorkerImpl {
       // create CSV
       QueryBase query;
       SubmissionFormatter formatter;
-      FilterGroup filterGroup;
+      final FilterGroup filterGroup;
 
       // figure out the filterGroup...
       if (filterGroupUri == null) {
@@ -100,36 +121,53 @@ public class JsonFileWorkerImpl {
 
       logger.info("after setup of JSON file generation for " + form.getFormId());
       formatter.beforeProcessSubmissions(cc);
-      List<Submission> submissions;
-      int count = 0;
-      for (;;) {
-        count++;
-        logger.info("iteration " + Integer.toString(count) + " before issuing query for " + form.getFormId());
-        submissions = query.getResultSubmissions(cc);
-        if ( submissions.isEmpty()) break;
-        logger.info("iteration " + Integer.toString(count) + " before emitting JSON for " + form.getFormId());
-        formatter.processSubmissionSegment(submissions, cc);
+      boolean isPartitioned = false;
+      if (partitionExecutor != null) {
+        PartitionedExportWriter writer = new PartitionedExportWriter(form, filterGroup,
+            partitionExecutor, cc);
+        writer.setSegmentDelimiter(FormatConsts.JSON_VALUE_DELIMITER);
+        isPartitioned = writer.writeSegments(new SegmentFormatterFactory() {
+          @Override
+          public SubmissionFormatter createSegmentFormatter(PrintWriter segmentPw) {
+            return new JsonFormatterWithFilters(segmentPw, form, filterGroup,
+                BinaryOption.PROVIDE_LINKS, true, cc.getServerURL());
+          }
+        }, pw, stream);
+      }
+      if (!isPartitioned) {
+        List<Submission> submissions;
+        int count = 0;
+        for (;;) {
+          count++;
+          logger.info("iteration " + Integer.toString(count) + " before issuing query for " + form.getFormId());
+          submissions = query.getResultSubmissions(cc);
+          if ( submissions.isEmpty()) break;
+          logger.info("iteration " + Integer.toString(count) + " before emitting JSON for " + form.getFormId());
+          formatter.processSubmissionSegment(submissions, cc);
+        }
       }
       logger.info("wrapping up JSON generation for " + form.getFormId());
       formatter.afterProcessSubmissions(cc);
 
-      // output file
+      // completes the output file
       pw.close();
-      byte[] outputFile = stream.toByteArray();
+      if (pw.checkError()) {
+        throw new IllegalStateException("unable to store the JSON file for " + form.getFormId());
+      }
 
       // refetch because this might have taken a while...
       r = new PersistentResults(persistentResultsKey, cc);
       if (attemptCount.equals(r.getAttemptCount())) {
         logger.info("saving JSON into PersistentResults table for " + form.getFormId());
-        r.setResultFile(outputFile, HtmlConsts.RESP_TYPE_JSON,
-            form.getViewableFormNameSuitableAsFileName() + ServletConsts.JSON_FILENAME_APPEND, false, cc);
         r.setStatus(ExportStatus.AVAILABLE);
         r.setCompletionDate(new Date());
+        r.commitResultFile(attemptCount, cc);
         if(subFilterGroup != null) {
           subFilterGroup.delete(cc);
         }
         r.persist(cc);
       } else {
+        r.deleteResultFile(attemptCount, cc);
         logger.warn("stale JSON activity - do not save file in PersistentResults table for " + form.getFormId());
       }
     } catch (Exception e) {
@@ -145,6 +183,7 @@ public class JsonFileWorkerImpl {
     e.printStackTrace();
     try {
       PersistentResults r = new PersistentResults(persistentResultsKey, cc);
+      r.deleteResultFile(attemptCount, cc);
       if (attemptCount.equals(r.getAttemptCount())) {
         logger.info("Exception recovery during JSON generation - mark as failed for " + form.getFormId());
         r.deleteResultFile(cc);
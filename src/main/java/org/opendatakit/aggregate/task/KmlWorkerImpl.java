@@ -15,7 +15,7 @@
  */
 package org.opendatakit.aggregate.task;
 
-import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.util.Date;
@@ -28,16 +28,17 @@ import org.opendatakit.aggregate.client.form.KmlSelection;
 import org.opendatakit.aggregate.constants.ServletConsts;
 import org.opendatakit.aggregate.constants.common.ExportStatus;
 import org.opendatakit.aggregate.constants.common.UIConsts;
+import org.opendatakit.aggregate.datamodel.FormElementModel;
 import org.opendatakit.aggregate.filter.SubmissionFilterGroup;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.form.PersistentResults;
 import org.opendatakit.aggregate.format.SubmissionFormatter;
 import org.opendatakit.aggregate.format.structure.KmlFormatterWithFilters;
-import org.opendatakit.aggregate.query.submission.QueryBase;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup.CompletionFlag;
 import org.opendatakit.aggregate.submission.Submission;
 import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.aggregate.task.PartitionedExportWriter.SegmentFormatterFactory;
 import org.opendatakit.common.web.CallingContext;
 import org.opendatakit.common.web.constants.HtmlConsts;
 
@@ -55,14 +56,27 @@ public class KmlWorkerImpl {
   private final SubmissionKey persistentResultsKey;
   private final Long attemptCount;
   private final List<KmlSelection> kmlElementsToInclude;
+  private final PartitionedExportWriter.SliceExecutor partitionExecutor;
   private final CallingContext cc;
 
   public KmlWorkerImpl(IForm form, SubmissionKey persistentResultsKey, long attemptCount,
       List<KmlSelection> kmlElementsToInclude, CallingContext cc) {
+    this(form, persistentResultsKey, attemptCount, kmlElementsToInclude, null, cc);
+  }
+
+  /**
+   * @param partitionExecutor
+   *          if not null, large forms are exported in slices, some of which
+   *          are formatted concurrently on this executor.
+   */
+  public KmlWorkerImpl(IForm form, SubmissionKey persistentResultsKey, long attemptCount,
+      List<KmlSelection> kmlElementsToInclude, PartitionedExportWriter.SliceExecutor partitionExecutor,
+      CallingContext cc) {
     this.form = form;
     this.persistentResultsKey = persistentResultsKey;
     this.attemptCount = attemptCount;
     this.kmlElementsToInclude = kmlElementsToInclude;
+    this.partitionExecutor = partitionExecutor;
     this.cc = cc;
   }
 
@@ -71,19 +85,26 @@ public class KmlWorkerImpl {
         + form.getFormId());
 
     try {
-      ByteArrayOutputStream stream = new ByteArrayOutputStream();
+      PersistentResults r = new PersistentResults(persistentResultsKey, cc);
+      if (!attemptCount.equals(r.getAttemptCount())) {
+        logger.warn("stale KML activity - do not generate file for " + form.getFormId());
+        return;
+      }
+      // the file is stored as it is written, and replaces the result file
+      // only if this is still the active attempt once it is complete
+      OutputStream stream = r.openResultFile(attemptCount, HtmlConsts.RESP_TYPE_KML,
+          form.getViewableFormNameSuitableAsFileName() + ServletConsts.KML_FILENAME_APPEND, cc);
       PrintWriter pw = new PrintWriter(new OutputStreamWriter(stream, HtmlConsts.UTF8_ENCODE));
 
-      PersistentResults r = new PersistentResults(persistentResultsKey, cc);
       String filterGroupUri = r.getFilterGroupUri();
 
       // placeholder for clean-up...
       SubmissionFilterGroup subFilterGroup = null;
 
       // create KML
-      QueryBase query;
-      SubmissionFormatter formatter;
-      FilterGroup filterGroup;
+      QueryByUIFilterGroup query;
+      KmlFormatterWithFilters formatter;
+      final FilterGroup filterGroup;
 
       // figure out the filterGroup...
       if (filterGroupUri == null) {
@@ -99,42 +120,61 @@ public class KmlWorkerImpl {
       formatter = new KmlFormatterWithFilters(form, cc.getServerURL(), kmlElementsToInclude, pw,
           filterGroup, cc);
 
+      // only the columns and placemark fields are retrieved for each submission
+      List<FormElementModel> projection = formatter.getElementsUsed();
+
       logger.info("after setup of KML file generation for " + form.getFormId());
       formatter.beforeProcessSubmissions(cc);
-      List<Submission> submissions;
-      int count = 0;
-      for (;;) {
-        count++;
-        logger.info("iteration " + Integer.toString(count) + " before issuing query for "
-            + form.getFormId());
-        submissions = query.getResultSubmissions(cc);
-        if (submissions.isEmpty())
-          break;
-        logger.info("iteration " + Integer.toString(count) + " before emitting kml for "
-            + form.getFormId());
-        formatter.processSubmissionSegment(submissions, cc);
+      boolean isPartitioned = false;
+      if (partitionExecutor != null) {
+        PartitionedExportWriter writer = new PartitionedExportWriter(form, filterGroup,
+            partitionExecutor, cc);
+        writer.setProjection(projection);
+        isPartitioned = writer.writeSegments(new SegmentFormatterFactory() {
+          @Override
+          public SubmissionFormatter createSegmentFormatter(PrintWriter segmentPw) {
+            return new KmlFormatterWithFilters(form, cc.getServerURL(), kmlElementsToInclude,
+                segmentPw, filterGroup, cc);
+          }
+        }, pw, stream);
+      }
+      if (!isPartitioned) {
+        List<Submission> submissions;
+        int count = 0;
+        for (;;) {
+          count++;
+          logger.info("iteration " + Integer.toString(count) + " before issuing query for "
+              + form.getFormId());
+          submissions = query.getResultSubmissions(projection, cc);
+          if (submissions.isEmpty())
+            break;
+          logger.info("iteration " + Integer.toString(count) + " before emitting kml for "
+              + form.getFormId());
+          formatter.processSubmissionSegment(submissions, cc);
+        }
       }
       logger.info("wrapping up kml generation for " + form.getFormId());
       formatter.afterProcessSubmissions(cc);
 
-      // output file
+      // completes the output file
       pw.close();
-      byte[] outputFile = stream.toByteArray();
+      if (pw.checkError()) {
+        throw new IllegalStateException("unable to store the kml file for " + form.getFormId());
+      }
 
       // refetch because this might have taken a while...
       r = new PersistentResults(persistentResultsKey, cc);
       if (attemptCount.equals(r.getAttemptCount())) {
         logger.info("saving kml into PersistentResults table for " + form.getFormId());
-        r.setResultFile(outputFile, HtmlConsts.RESP_TYPE_KML,
-            form.getViewableFormNameSuitableAsFileName() + ServletConsts.KML_FILENAME_APPEND,
-            false, cc);
         r.setStatus(ExportStatus.AVAILABLE);
         r.setCompletionDate(new Date());
+        r.commitResultFile(attemptCount, cc);
         if (subFilterGroup != null) {
           subFilterGroup.delete(cc);
         }
         r.persist(cc);
       } else {
+        r.deleteResultFile(attemptCount, cc);
         logger.warn("stale KML activity - do not save file in PersistentResults table for "
             + form.getFormId());
       }
@@ -150,6 +190,7 @@ public class KmlWorkerImpl {
     e.printStackTrace();
     try {
       PersistentResults r = new PersistentResults(persistentResultsKey, cc);
+      r.deleteResultFile(attemptCount, cc);
       if (attemptCount.equals(r.getAttemptCount())) {
         logger.info("Exception recovery during KML generation - mark as failed for "
             + form.getFormId());
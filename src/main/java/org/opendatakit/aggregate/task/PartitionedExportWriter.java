@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.opendatakit.aggregate.ContextFactory;
+import org.opendatakit.aggregate.client.filter.FilterGroup;
+import org.opendatakit.aggregate.datamodel.FormElementModel;
+import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.format.SubmissionFormatter;
+import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup;
+import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup.CompletionFlag;
+import org.opendatakit.aggregate.submission.Submission;
+import org.opendatakit.common.persistence.Aggregation;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.constants.BasicConsts;
+import org.opendatakit.common.web.constants.HtmlConsts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Formats the completed submissions of a form concurrently for the export
+ * workers. The markedAsCompleteDate range of the submissions is split into
+ * disjoint slices that are written to the export file in order, so the file
+ * matches a single-threaded export.
+ *
+ * The export's own thread writes each slice straight to the export file in
+ * turn. A few slices ahead of it are offered to the {@link SliceExecutor};
+ * a slice taken up there is spooled to a temporary file and copied into the
+ * export file when its turn comes. A slice that has not started by then is
+ * written by the export's thread instead, so the export never waits on a
+ * slice that is still queued.
+ *
+ * Only the submission rows are written; the caller still writes whatever
+ * precedes and follows them (e.g., the CSV header or the KML preamble).
+ */
+public final class PartitionedExportWriter {
+
+  /**
+   * Formats the submissions of one slice into the given writer.
+   */
+  public interface SegmentFormatterFactory {
+    SubmissionFormatter createSegmentFormatter(PrintWriter pw) throws ODKDatastoreException;
+  }
+
+  /**
+   * Runs slices of an export on other threads while there is spare capacity
+   * for exports.
+   */
+  public interface SliceExecutor {
+    /**
+     * @param slice
+     * @return true if the slice was queued; false if there is no spare
+     *         capacity.
+     */
+    boolean offer(Runnable slice);
+  }
+
+  /**
+   * Writes the rows of one slice.
+   */
+  interface SliceWriter {
+    /**
+     * @param pw
+     * @param delimiter
+     *          if not null, written before the first row.
+     * @param cc
+     *          the calling context of the thread writing the slice.
+     * @return true if any rows were written.
+     * @throws Exception
+     */
+    boolean write(PrintWriter pw, String delimiter, CallingContext cc) throws Exception;
+  }
+
+  /** the target size of a slice, in pages of the export's fetch limit */
+  private static final int PAGES_PER_SLICE = 4;
+
+  /** the most slices an export is split into */
+  private static final int MAX_SLICES = 256;
+
+  /** the most slices offered ahead of the one being written to the export file */
+  static final int MAX_SLICES_AHEAD = 4;
+
+  private final Logger logger = LoggerFactory.getLogger(PartitionedExportWriter.class);
+  private final IForm form;
+  private final FilterGroup filterGroup;
+  private final SliceExecutor executor;
+  private final CallingContext cc;
+
+  private String segmentDelimiter = null;
+  private Collection<FormElementModel> projection = null;
+  private volatile boolean cancelled = false;
+
+  /**
+   * @param form
+   * @param filterGroup
+   *          filter group of the export; its fetch limit sets the page size
+   *          used within each slice.
+   * @param executor
+   *          runs slices on other threads while there is spare capacity.
+   * @param cc
+   */
+  public PartitionedExportWriter(IForm form, FilterGroup filterGroup, SliceExecutor executor,
+      CallingContext cc) {
+    this.form = form;
+    this.filterGroup = filterGroup;
+    this.executor = executor;
+    this.cc = cc;
+  }
+
+  /**
+   * @param segmentDelimiter
+   *          text written between the rows of two non-empty slices (e.g., the
+   *          comma separating JSON objects).
+   */
+  public void setSegmentDelimiter(String segmentDelimiter) {
+    this.segmentDelimiter = segmentDelimiter;
+  }
+
+  /**
+   * @param projection
+   *          the elements read by the formatters; only these are retrieved up
+   *          front. Null (the default) retrieves every element.
+   */
+  public void setProjection(Collection<FormElementModel> projection) {
+    this.projection = projection;
+  }
+
+  /**
+   * Write the formatted submission rows to the export file.
+   *
+   * @param factory
+   *          creates the formatter of each slice.
+   * @param pw
+   *          writer of the export file.
+   * @param stream
+   *          the stream underlying pw; spooled slices are copied into it.
+   * @return false if the form has too few submissions to be worth partitioning.
+   *         Nothing has been written in that case.
+   * @throws Exception
+   */
+  public boolean writeSegments(SegmentFormatterFactory factory, PrintWriter pw,
+      OutputStream stream) throws Exception {
+    TopLevelDynamicBase tbl = (TopLevelDynamicBase) form.getTopLevelGroupElement()
+        .getFormDataModel().getBackingObjectPrototype();
+
+    // the count and date range of the completed submissions, in one query
+    Query query = cc.getDatastore().createQuery(tbl, "PartitionedExportWriter.writeSegments",
+        cc.getCurrentUser());
+    query.addFilter(tbl.markedAsCompleteDate, FilterOperation.GREATER_THAN, BasicConsts.EPOCH);
+    query.addFilter(tbl.isComplete, FilterOperation.EQUAL, true);
+    Aggregation range = new Aggregation();
+    range.addMeasure(tbl, null, tbl.markedAsCompleteDate);
+    List<Aggregation.Result> results = query.executeAggregateQuery(range);
+    long count = results.isEmpty() ? 0L : results.get(0).getCount();
+
+    // a form that fits within a single page is exported faster on one thread
+    int pageSize = filterGroup.getQueryFetchLimit();
+    if (count <= pageSize) {
+      return false;
+    }
+    long start = ((Date) results.get(0).getMin(0)).getTime();
+    long end = ((Date) results.get(0).getMax(0)).getTime() + 1L;
+
+    List<SliceWriter> slices = new ArrayList<SliceWriter>();
+    for (long[] bounds : getSliceBounds(start, end, count, (long) pageSize * PAGES_PER_SLICE)) {
+      slices.add(new DateRangeSlice(new Date(bounds[0]), new Date(bounds[1]), factory));
+    }
+    logger.info("writing " + slices.size() + " slices of " + count + " submissions for "
+        + form.getFormId());
+    writeSlices(slices, pw, stream);
+    return true;
+  }
+
+  /**
+   * Split the range [start, end) into contiguous, disjoint slices.
+   *
+   * @param start
+   * @param end
+   * @param count
+   *          the number of submissions in the range.
+   * @param sliceSize
+   *          the number of submissions wanted in each slice.
+   * @return the [lo, hi) bounds of each slice, in order.
+   */
+  static List<long[]> getSliceBounds(long start, long end, long count, long sliceSize) {
+    long sliceCount = Math.max(1L, Math.min(MAX_SLICES, (count + sliceSize - 1L) / sliceSize));
+    long sliceSpan = Math.max(1L, (end - start + sliceCount - 1L) / sliceCount);
+    List<long[]> bounds = new ArrayList<long[]>();
+    for (long lo = start; lo < end; lo += sliceSpan) {
+      bounds.add(new long[] { lo, Math.min(lo + sliceSpan, end) });
+    }
+    return bounds;
+  }
+
+  /**
+   * Write the slices to the export file in order.
+   *
+   * @param slices
+   * @param pw
+   *          writer of the export file.
+   * @param stream
+   *          the stream underlying pw.
+   * @throws Exception
+   *           the failure of the first slice that failed.
+   */
+  void writeSlices(List<SliceWriter> slices, PrintWriter pw, OutputStream stream)
+      throws Exception {
+    List<Slice> pending = new ArrayList<Slice>();
+    for (SliceWriter writer : slices) {
+      pending.add(new Slice(writer));
+    }
+    boolean isEmpty = true;
+    int nextOffered = 1;
+    try {
+      for (int i = 0; i < pending.size(); ++i) {
+        // keep the next few slices running on other threads
+        nextOffered = Math.max(nextOffered, i + 1);
+        while (nextOffered < pending.size() && nextOffered <= i + MAX_SLICES_AHEAD
+            && executor.offer(pending.get(nextOffered))) {
+          ++nextOffered;
+        }
+
+        Slice slice = pending.get(i);
+        if (slice.claimed.compareAndSet(false, true)) {
+          // not started elsewhere; write it straight to the export file
+          if (slice.writer.write(pw, isEmpty ? null : segmentDelimiter, cc)) {
+            isEmpty = false;
+          }
+          continue;
+        }
+        slice.done.await();
+        if (slice.failure != null) {
+          throw slice.failure;
+        }
+        if (slice.hasRows) {
+          if (!isEmpty && segmentDelimiter != null) {
+            pw.append(segmentDelimiter);
+          }
+          isEmpty = false;
+          pw.flush();
+          slice.copySpoolTo(stream);
+        }
+        slice.deleteSpool();
+      }
+    } finally {
+      // stop the slices still queued or running if any of them failed
+      cancelled = true;
+      for (Slice slice : pending) {
+        if (!slice.claimed.compareAndSet(false, true) && slice.done.getCount() == 0) {
+          slice.deleteSpool();
+        }
+      }
+    }
+  }
+
+  /**
+   * The submissions of one range of markedAsCompleteDate values.
+   */
+  private final class DateRangeSlice implements SliceWriter {
+    final Date lo;
+    final Date hi;
+    final SegmentFormatterFactory factory;
+
+    DateRangeSlice(Date lo, Date hi, SegmentFormatterFactory factory) {
+      this.lo = lo;
+      this.hi = hi;
+      this.factory = factory;
+    }
+
+    @Override
+    public boolean write(PrintWriter pw, String delimiter, CallingContext sliceCc)
+        throws Exception {
+      QueryByUIFilterGroup query = new QueryByUIFilterGroup(form, filterGroup,
+          CompletionFlag.ONLY_COMPLETE_SUBMISSIONS, sliceCc);
+      query.addFilterByPrimaryDate(FilterOperation.GREATER_THAN_OR_EQUAL, lo);
+      query.addFilterByPrimaryDate(FilterOperation.LESS_THAN, hi);
+      SubmissionFormatter formatter = factory.createSegmentFormatter(pw);
+      boolean hasRows = false;
+      for (;;) {
+        if (cancelled) {
+          throw new InterruptedException("export slice cancelled for " + form.getFormId());
+        }
+        List<Submission> submissions = query.getResultSubmissions(projection, sliceCc);
+        if (submissions.isEmpty()) {
+          break;
+        }
+        if (!hasRows && delimiter != null) {
+          pw.append(delimiter);
+        }
+        hasRows = true;
+        formatter.processSubmissionSegment(submissions, sliceCc);
+      }
+      return hasRows;
+    }
+  }
+
+  /**
+   * A slice run on another thread, spooled to a temporary file. Whichever
+   * thread claims the slice first writes it.
+   */
+  private final class Slice implements Runnable {
+    final SliceWriter writer;
+    final AtomicBoolean claimed = new AtomicBoolean(false);
+    final CountDownLatch done = new CountDownLatch(1);
+    volatile File spool = null;
+    volatile boolean hasRows = false;
+    volatile Exception failure = null;
+
+    Slice(SliceWriter writer) {
+      this.writer = writer;
+    }
+
+    @Override
+    public void run() {
+      if (!claimed.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        spool = File.createTempFile("odk-export-slice", ".tmp");
+        PrintWriter spoolPw = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(
+            new FileOutputStream(spool)), HtmlConsts.UTF8_ENCODE));
+        try {
+          // each thread has its own calling context
+          hasRows = writer.write(spoolPw, null, ContextFactory.duplicateContext(cc));
+        } finally {
+          spoolPw.close();
+        }
+        if (spoolPw.checkError()) {
+          throw new IllegalStateException("unable to spool an export slice for "
+              + form.getFormId());
+        }
+      } catch (Exception e) {
+        failure = e;
+      } finally {
+        if (cancelled || failure != null) {
+          deleteSpool();
+        }
+        done.countDown();
+      }
+    }
+
+    void copySpoolTo(OutputStream stream) throws Exception {
+      InputStream in = new FileInputStream(spool);
+      try {
+        byte[] buffer = new byte[8192];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+          stream.write(buffer, 0, len);
+        }
+      } finally {
+        in.close();
+      }
+    }
+
+    void deleteSpool() {
+      File f = spool;
+      if (f != null && !f.delete() && f.exists()) {
+        logger.warn("unable to delete export slice " + f.getAbsolutePath());
+      }
+    }
+  }
+}
@@ -75,4 +75,13 @@ public interface Watchdog {
    * @return implemented only on Tomcat for getting CC in task context.
    */
   public CallingContext getCallingContext();
+
+  /**
+   * On Tomcat, exports and miscellaneous tasks are run as jobs of the
+   * JobQueue, which retries them itself. The watchdog then only relaunches the
+   * stalled requests that have no pending job.
+   *
+   * @return true if exports and miscellaneous tasks are run through the JobQueue.
+   */
+  public boolean usesJobQueue();
 }
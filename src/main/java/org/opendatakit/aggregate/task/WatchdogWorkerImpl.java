@@ -15,6 +15,7 @@
  */
 package org.opendatakit.aggregate.task;
 
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -32,6 +33,7 @@ import org.opendatakit.aggregate.constants.externalservice.JsonServerConsts;
 import org.opendatakit.aggregate.constants.externalservice.OhmageJsonServerConsts;
 import org.opendatakit.aggregate.constants.externalservice.REDCapServerConsts;
 import org.opendatakit.aggregate.constants.externalservice.SpreadsheetConsts;
+import org.opendatakit.aggregate.datamodel.FormElementModel;
 import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
 import org.opendatakit.aggregate.exception.ODKExternalServiceException;
 import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
@@ -44,6 +46,7 @@ import org.opendatakit.aggregate.form.PersistentResults;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup.CompletionFlag;
 import org.opendatakit.aggregate.submission.Submission;
+import org.opendatakit.aggregate.submission.SubmissionSummary;
 import org.opendatakit.aggregate.util.BackendActionsTable;
 import org.opendatakit.common.persistence.PersistConsts;
 import org.opendatakit.common.persistence.QueryResumePoint;
@@ -97,6 +100,21 @@ public class WatchdogWorkerImpl {
     // compute the upper limit for data we want to process
     // limitDate is the datastore's settle time into the past.
     Date limitDate = new Date(System.currentTimeMillis() - PersistConsts.MAX_SETTLE_MILLISECONDS);
+
+    if (SubmissionSummary.isSummarized(form, cc)) {
+      // query the submission summaries for the most recent submission that was
+      // marked-as-complete for this form
+      SubmissionSummary lastSubmission = SubmissionSummary.getLastCompleteSubmission(form,
+          limitDate, cc);
+      if (lastSubmission != null) {
+        metadata = new SubmissionMetadata(lastSubmission.getUri(),
+            lastSubmission.getMarkedAsCompleteDate());
+        formSubmissionsMap.put(form.getUri(), metadata);
+        return metadata;
+      }
+      return null;
+    }
+
     QueryResumePoint qrp = new QueryResumePoint(
         TopLevelDynamicBase.FIELD_NAME_MARKED_AS_COMPLETE_DATE, WebUtils.iso8601Date(limitDate),
         null, false);
@@ -110,7 +128,9 @@ public class WatchdogWorkerImpl {
     QueryByUIFilterGroup query = new QueryByUIFilterGroup(form, filterGroup,
         CompletionFlag.ONLY_COMPLETE_SUBMISSIONS, cc);
 
-    List<Submission> submissions = query.getResultSubmissions(cc);
+    // only the top-level row is needed; construct none of the elements.
+    List<Submission> submissions = query.getResultSubmissions(
+        Collections.<FormElementModel> emptyList(), cc);
     if (submissions != null && submissions.size() >= 1) {
       Submission lastSubmission = submissions.get(0);
       metadata = new SubmissionMetadata(lastSubmission.getKey().getKey(),
@@ -141,13 +161,16 @@ public class WatchdogWorkerImpl {
       PurgeOlderSubmissions purgeSubmissions = (PurgeOlderSubmissions) cc
           .getBean(BeanDefs.PURGE_OLDER_SUBMISSIONS_BEAN);
       JsonFileGenerator jsonGenerator = (JsonFileGenerator) cc.getBean(BeanDefs.JSON_FILE_BEAN);
+      ArrowFileGenerator arrowGenerator = (ArrowFileGenerator) cc.getBean(BeanDefs.ARROW_FILE_BEAN);
       boolean foundActiveTasks = false;
       // NOTE: do not short-circuit these check actions...
       foundActiveTasks = foundActiveTasks | checkFormServiceCursors(uploadSubmissions, cc);
       foundActiveTasks = foundActiveTasks
-          | checkPersistentResults(csvGenerator, kmlGenerator, jsonGenerator, cc);
+          | checkPersistentResults(csvGenerator, kmlGenerator, jsonGenerator, arrowGenerator,
+              wd.usesJobQueue(), cc);
       foundActiveTasks = foundActiveTasks
-          | checkMiscTasks(worksheetCreator, formDelete, purgeSubmissions, cc);
+          | checkMiscTasks(worksheetCreator, formDelete, purgeSubmissions, wd.usesJobQueue(), cc);
+      foundActiveTasks = foundActiveTasks | checkSubmissionSummaries(cc);
       activeTasks = foundActiveTasks;
     } finally {
       // NOTE: if the above threw an exception, we re-start the watchdog.
@@ -157,6 +180,32 @@ public class WatchdogWorkerImpl {
     }
   }
 
+  /**
+   * Summarize some of the submissions that predate the submission summary
+   * table. Each form is summarized under a task lock, a bounded number of
+   * submissions per watchdog run.
+   *
+   * @return true if any form remains to be summarized.
+   */
+  private boolean checkSubmissionSummaries(CallingContext cc) throws ODKDatastoreException {
+    boolean activeTasks = false;
+    for (IForm form : FormFactory.getForms(false, cc)) {
+      if (!form.hasValidFormDefinition()) {
+        continue;
+      }
+      try {
+        if (!SubmissionSummary.continueSummarizing(form, cc)) {
+          activeTasks = true;
+        }
+      } catch (ODKDatastoreException e) {
+        // retried on the next run
+        logger.warn("Unable to summarize the submissions of " + form.getFormId(), e);
+        activeTasks = true;
+      }
+    }
+    return activeTasks;
+  }
+
   private boolean checkFormServiceCursors(UploadSubmissions uploadSubmissions, CallingContext cc)
       throws ODKExternalServiceException, ODKFormNotFoundException, ODKDatastoreException,
       ODKIncompleteSubmissionData {
@@ -330,14 +379,18 @@ public class WatchdogWorkerImpl {
   }
 
   private boolean checkPersistentResults(CsvGenerator csvGenerator, KmlGenerator kmlGenerator,
-      JsonFileGenerator jsonGenerator, CallingContext cc) throws ODKDatastoreException,
-      ODKFormNotFoundException {
+      JsonFileGenerator jsonGenerator, ArrowFileGenerator arrowGenerator, boolean useJobQueue,
+      CallingContext cc) throws ODKDatastoreException, ODKFormNotFoundException {
     try {
       logger.info("Checking all persistent results");
       boolean activeTasks = false;
       List<PersistentResults> persistentResults = PersistentResults.getStalledRequests(cc);
       for (PersistentResults persistentResult : persistentResults) {
         logger.info("Found stalled request: " + persistentResult.getSubmissionKey());
+        if (useJobQueue && JobQueue.hasActiveJob(persistentResult.getSubmissionKey(), cc)) {
+          // waiting for a retry by the job queue
+          continue;
+        }
         long attemptCount = persistentResult.getAttemptCount();
         persistentResult.setAttemptCount(++attemptCount);
         persistentResult.persist(cc);
@@ -359,6 +412,10 @@ public class WatchdogWorkerImpl {
           jsonGenerator.createJsonFileTask(form, persistentResult.getSubmissionKey(), attemptCount,
               cc);
           break;
+        case ARROW:
+          arrowGenerator.createArrowFileTask(form, persistentResult.getSubmissionKey(),
+              attemptCount, cc);
+          break;
         default:
           this.logger.equals("No generator defined for Persisted Result Type: "
               + persistentResult.getResultType().name());
@@ -372,14 +429,18 @@ public class WatchdogWorkerImpl {
   }
 
   private boolean checkMiscTasks(WorksheetCreator wsCreator, FormDelete formDelete,
-      PurgeOlderSubmissions purgeSubmissions, CallingContext cc) throws ODKDatastoreException,
-      ODKFormNotFoundException {
+      PurgeOlderSubmissions purgeSubmissions, boolean useJobQueue, CallingContext cc)
+      throws ODKDatastoreException, ODKFormNotFoundException {
     try {
       logger.info("Checking miscellaneous tasks");
       boolean activeTasks = false;
       List<MiscTasks> miscTasks = MiscTasks.getStalledRequests(cc);
       for (MiscTasks aTask : miscTasks) {
         logger.info("Found stalled request: " + aTask.getSubmissionKey());
+        if (useJobQueue && JobQueue.hasActiveJob(aTask.getSubmissionKey(), cc)) {
+          // waiting for a retry by the job queue
+          continue;
+        }
         long attemptCount = aTask.getAttemptCount();
         aTask.setAttemptCount(++attemptCount);
         aTask.persist(cc);
@@ -24,6 +24,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.server.ServerPreferencesProperties;
+import org.opendatakit.aggregate.task.ArrowFileGenerator;
 import org.opendatakit.aggregate.task.CsvGenerator;
 import org.opendatakit.aggregate.task.FormDelete;
 import org.opendatakit.aggregate.task.JsonFileGenerator;
@@ -69,6 +70,7 @@ public class WatchdogImpl implements Watchdog, InitializingBean {
   CsvGenerator csvGenerator = null;
   KmlGenerator kmlGenerator = null;
   JsonFileGenerator jsonFileGenerator = null;
+  ArrowFileGenerator arrowFileGenerator = null;
   PurgeOlderSubmissions purgeSubmissions = null;
   FormDelete formDelete = null;
   WorksheetCreator worksheetCreator = null;
@@ -164,6 +166,8 @@ public class WatchdogImpl implements Watchdog, InitializingBean {
            return csvGenerator;
         } else if ( BeanDefs.JSON_FILE_BEAN.equals(beanName) ) {
            return jsonFileGenerator;
+        } else if ( BeanDefs.ARROW_FILE_BEAN.equals(beanName) ) {
+           return arrowFileGenerator;
         } else if ( BeanDefs.DATASTORE_BEAN.equals(beanName)) {
            return datastore;
         } else if ( BeanDefs.FORM_DELETE_BEAN.equals(beanName)) {
@@ -298,6 +302,14 @@ public class WatchdogImpl implements Watchdog, InitializingBean {
     this.jsonFileGenerator = jsonFileGenerator;
   }
 
+  public ArrowFileGenerator getArrowFileGenerator() {
+    return arrowFileGenerator;
+  }
+
+  public void setArrowFileGenerator(ArrowFileGenerator arrowFileGenerator) {
+    this.arrowFileGenerator = arrowFileGenerator;
+  }
+
   public FormDelete getFormDelete() {
      return formDelete;
   }
@@ -347,6 +359,7 @@ public class WatchdogImpl implements Watchdog, InitializingBean {
      if ( csvGenerator == null ) throw new IllegalStateException("no csvGenerator specified");
      if ( kmlGenerator == null ) throw new IllegalStateException("no kmlGenerator specified");
      if ( jsonFileGenerator == null ) throw new IllegalStateException("no jsonFileGenerator specified");
+     if ( arrowFileGenerator == null ) throw new IllegalStateException("no arrowFileGenerator specified");
      if ( formDelete == null ) throw new IllegalStateException("no formDelete specified");
      if ( purgeSubmissions == null ) throw new IllegalStateException("no purgeSubmissions specified");
      if ( worksheetCreator == null ) throw new IllegalStateException("no worksheetCreator specified");
@@ -359,6 +372,12 @@ public class WatchdogImpl implements Watchdog, InitializingBean {
      return new CallingContextImpl();
   }
 
+  @Override
+  public boolean usesJobQueue() {
+    // the task queue service retries the deferred tasks
+    return false;
+  }
+
   @Override
   public void setFasterWatchdogCycleEnabled(boolean value) {
     if ( lastFasterWatchdogCycleEnabledFlag != value ) {
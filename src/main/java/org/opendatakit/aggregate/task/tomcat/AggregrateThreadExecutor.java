@@ -16,8 +16,13 @@
 package org.opendatakit.aggregate.task.tomcat;
 
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledFuture;
 
+import org.opendatakit.aggregate.task.PartitionedExportWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.scheduling.TaskScheduler;
 
 /**
@@ -28,12 +33,14 @@ import org.springframework.scheduling.TaskScheduler;
  */
 public class AggregrateThreadExecutor {
 
+  private static final Logger logger = LoggerFactory.getLogger(AggregrateThreadExecutor.class);
+
   private static AggregrateThreadExecutor classInstance = null;
 
-  public synchronized static void initialize( TaskScheduler taskScheduler ) {
+  public synchronized static void initialize( TaskScheduler taskScheduler, BackgroundTaskExecutor taskExecutor ) {
       if ( classInstance != null ) throw new IllegalStateException("called after having set the task scheduler");
 
-      classInstance = new AggregrateThreadExecutor(taskScheduler);
+      classInstance = new AggregrateThreadExecutor(taskScheduler, taskExecutor);
   }
 
   public synchronized static AggregrateThreadExecutor getAggregateThreadExecutor() {
@@ -43,15 +50,63 @@ public class AggregrateThreadExecutor {
   }
 
   private TaskScheduler exec;
+
+  private BackgroundTaskExecutor taskExec;
 
-  private AggregrateThreadExecutor(TaskScheduler taskScheduler) {
+  private AggregrateThreadExecutor(TaskScheduler taskScheduler, BackgroundTaskExecutor taskExecutor) {
     exec = taskScheduler;
+    taskExec = taskExecutor;
   }
 
-  public void execute(Runnable task) {
-      exec.schedule(task, new Date(System.currentTimeMillis() + 100));
+  /**
+   * Queues a background task behind the other tasks of its type. If too many
+   * tasks of that type are already waiting, the task is not queued and the
+   * caller must arrange for it to be re-issued.
+   *
+   * @param type
+   *          - the kind of task, which sets its priority and limits.
+   * @param task
+   *          - the task to execute.
+   * @return true if the task was queued.
+   */
+  public boolean execute(TaskType type, Runnable task) {
+    try {
+      taskExec.execute(type, task);
+      return true;
+    } catch ( RejectedExecutionException e ) {
+      logger.warn("Deferring " + type.name() + " task: " + e.getMessage());
+      return false;
+    }
   }
 
+  /**
+   * @param type
+   *          - the kind of task.
+   * @return the number of tasks of that kind that could start running now.
+   */
+  public int getIdleCapacity(TaskType type) {
+    return taskExec.getIdleCapacity(type);
+  }
+
+  /**
+   * @return the queue depth and latency of each type of background task.
+   */
+  public List<BackgroundTaskExecutor.Statistics> getTaskStatistics() {
+    return taskExec.getStatistics();
+  }
+
+  /**
+   * Executes a one-time action on the task scheduler.
+   *
+   * @param command
+   *          - the task to execute.
+   * @param delayInMilliseconds
+   *          - the delay before the task is executed.
+   */
+  public void schedule( Runnable command, long delayInMilliseconds ) {
+    exec.schedule(command, new Date(System.currentTimeMillis() + delayInMilliseconds));
+  }
+
   /**
    * Creates and executes a periodic action whose executions will commence every
    * period milliseconds.  I.e., at t, t+period, t+2*period, and so on. If any
@@ -69,4 +124,23 @@ public class AggregrateThreadExecutor {
   public ScheduledFuture<?> scheduleAtFixedRate( Runnable command, long periodInMilliseconds ) {
     return exec.scheduleAtFixedRate(command, periodInMilliseconds);
   }
+
+  /**
+   * Returns the executor on which the export workers format the slices of a
+   * partitioned export. A slice is only queued as an EXPORT task while the
+   * EXPORT type has idle capacity, so slices count against the same
+   * concurrency limit as the exports themselves. An export writes any slice
+   * that has not started by its turn on its own thread, so it never waits on
+   * a queued slice.
+   *
+   * @return the executor for export slices.
+   */
+  public PartitionedExportWriter.SliceExecutor getExportSliceExecutor() {
+    return new PartitionedExportWriter.SliceExecutor() {
+      @Override
+      public boolean offer(Runnable slice) {
+        return getIdleCapacity(TaskType.EXPORT) > 0 && execute(TaskType.EXPORT, slice);
+      }
+    };
+  }
 }
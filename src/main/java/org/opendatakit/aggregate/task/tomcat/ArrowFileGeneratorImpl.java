@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.task.tomcat;
+
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.aggregate.task.ArrowFileGenerator;
+import org.opendatakit.aggregate.task.ArrowFileWorkerImpl;
+import org.opendatakit.aggregate.task.JobQueue.JobType;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.web.CallingContext;
+
+/**
+ * This is a singleton bean. It cannot have any per-request state. It uses a
+ * static inner class to encapsulate the per-request state of a running
+ * background task.
+ */
+public class ArrowFileGeneratorImpl implements ArrowFileGenerator {
+
+  static class ArrowRunner implements Runnable {
+    final ArrowFileWorkerImpl impl;
+
+    public ArrowRunner(IForm form, SubmissionKey persistentResultsKey, long attemptCount,
+        CallingContext cc) {
+      impl = new ArrowFileWorkerImpl(form, persistentResultsKey, attemptCount, cc);
+    }
+
+    @Override
+    public void run() {
+      impl.generateArrowFile();
+    }
+  }
+
+  @Override
+  public void createArrowFileTask(IForm form, SubmissionKey persistentResultsKey,
+      long attemptCount, CallingContext cc) throws ODKDatastoreException {
+    // the JobDispatcher runs the ArrowRunner under the watchdog's calling context
+    JobDispatcher.enqueue(JobType.EXPORT, persistentResultsKey, form, attemptCount, cc);
+  }
+
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task.tomcat;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Runs the background tasks (exports, publishing, worksheet creation, form
+ * deletes and purges) on a fixed set of worker threads.
+ *
+ * Each TaskType has its own FIFO queue, a limit on the number of its tasks
+ * that may run at once and a limit on the number that may wait. A free worker
+ * takes the next task of the highest-priority type that is below its
+ * concurrency limit, so one large export cannot hold every thread while
+ * publishers wait, and bulk publishing cannot delay an interactive export. A
+ * task that has waited longer than {@link #STARVATION_MILLISECONDS} is taken
+ * ahead of the priority order so that low-priority work still progresses.
+ *
+ * When a type's queue is full, {@link #execute(TaskType, Runnable)} rejects the
+ * task. Every task run here is recorded in the datastore, so a rejected task
+ * is not lost: publisher uploads are re-issued by the watchdog and the jobs of
+ * the JobQueue are returned to the queue.
+ *
+ * The limits are configured in odk-settings.xml; types without a configured
+ * limit use the defaults in TaskType.
+ */
+public class BackgroundTaskExecutor implements InitializingBean, DisposableBean {
+
+  private static final Logger logger = LoggerFactory.getLogger(BackgroundTaskExecutor.class);
+
+  /** tasks are held this long before they run, so the requester can commit first */
+  private static final long START_DELAY_MILLISECONDS = 100L;
+
+  /** a task waiting longer than this is run ahead of higher-priority tasks */
+  public static final long STARVATION_MILLISECONDS = 5L * 60L * 1000L;
+
+  /**
+   * Snapshot of the queue depth and latency of one task type.
+   */
+  public static final class Statistics {
+    public final TaskType type;
+    public final int queued;
+    public final int active;
+    public final long completed;
+    public final long rejected;
+    /** mean time from execute() to the start of the task */
+    public final long averageWaitMillis;
+    public final long maxWaitMillis;
+    /** mean run time of the completed tasks */
+    public final long averageRunMillis;
+
+    private Statistics(TaskType type, TypeState s) {
+      this.type = type;
+      this.queued = s.queue.size();
+      this.active = s.active;
+      this.completed = s.completed;
+      this.rejected = s.rejected;
+      this.averageWaitMillis = (s.started == 0) ? 0L : s.totalWaitMillis / s.started;
+      this.maxWaitMillis = s.maxWaitMillis;
+      this.averageRunMillis = (s.completed == 0) ? 0L : s.totalRunMillis / s.completed;
+    }
+
+    @Override
+    public String toString() {
+      return type.name() + "[queued=" + queued + " active=" + active + " completed=" + completed
+          + " rejected=" + rejected + " avgWait=" + averageWaitMillis + "ms maxWait="
+          + maxWaitMillis + "ms avgRun=" + averageRunMillis + "ms]";
+    }
+  }
+
+  private static final class Entry {
+    final Runnable task;
+    final long enqueuedAt;
+
+    Entry(Runnable task, long enqueuedAt) {
+      this.task = task;
+      this.enqueuedAt = enqueuedAt;
+    }
+  }
+
+  private static final class TypeState {
+    final ArrayDeque<Entry> queue = new ArrayDeque<Entry>();
+    int concurrency;
+    int queueLimit;
+    int active = 0;
+    long started = 0L;
+    long completed = 0L;
+    long rejected = 0L;
+    long totalWaitMillis = 0L;
+    long maxWaitMillis = 0L;
+    long totalRunMillis = 0L;
+  }
+
+  private final Object lock = new Object();
+
+  private final EnumMap<TaskType, TypeState> states = new EnumMap<TaskType, TypeState>(TaskType.class);
+
+  private final List<Thread> workers = new ArrayList<Thread>();
+
+  private int maxThreads = 4;
+
+  private Map<TaskType, Integer> concurrencyLimits = null;
+
+  private Map<TaskType, Integer> queueLimits = null;
+
+  private boolean shutdown = false;
+
+  public BackgroundTaskExecutor() {
+    for (TaskType type : TaskType.values()) {
+      states.put(type, new TypeState());
+    }
+  }
+
+  public int getMaxThreads() {
+    return maxThreads;
+  }
+
+  public void setMaxThreads(int maxThreads) {
+    this.maxThreads = maxThreads;
+  }
+
+  public Map<TaskType, Integer> getConcurrencyLimits() {
+    return concurrencyLimits;
+  }
+
+  public void setConcurrencyLimits(Map<TaskType, Integer> concurrencyLimits) {
+    this.concurrencyLimits = concurrencyLimits;
+  }
+
+  public Map<TaskType, Integer> getQueueLimits() {
+    return queueLimits;
+  }
+
+  public void setQueueLimits(Map<TaskType, Integer> queueLimits) {
+    this.queueLimits = queueLimits;
+  }
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    if (maxThreads < 1)
+      throw new IllegalStateException("maxThreads must be at least 1");
+    for (TaskType type : TaskType.values()) {
+      TypeState s = states.get(type);
+      s.concurrency = limit(concurrencyLimits, type, type.defaultConcurrency);
+      s.queueLimit = limit(queueLimits, type, type.defaultQueueLimit);
+      if (s.concurrency < 1)
+        throw new IllegalStateException("concurrency limit of " + type.name() + " must be at least 1");
+      if (s.queueLimit < 0)
+        throw new IllegalStateException("queue limit of " + type.name() + " must not be negative");
+    }
+    synchronized (lock) {
+      for (int i = 1; i <= maxThreads; ++i) {
+        Thread t = new Thread(new Worker(), "aggregate-task-" + i);
+        t.setDaemon(true);
+        workers.add(t);
+        t.start();
+      }
+    }
+  }
+
+  private static int limit(Map<TaskType, Integer> limits, TaskType type, int defaultLimit) {
+    if (limits == null) {
+      return defaultLimit;
+    }
+    Integer value = limits.get(type);
+    return (value == null) ? defaultLimit : value;
+  }
+
+  @Override
+  public void destroy() throws Exception {
+    synchronized (lock) {
+      shutdown = true;
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * Queue a task to run on a worker thread.
+   *
+   * @param type
+   *          the kind of task, which determines its priority and limits.
+   * @param task
+   *          the task to run.
+   * @throws RejectedExecutionException
+   *           if the queue of this type of task is full or the executor has
+   *           been shut down.
+   */
+  public void execute(TaskType type, Runnable task) {
+    synchronized (lock) {
+      TypeState s = states.get(type);
+      if (shutdown) {
+        throw new RejectedExecutionException("background task executor has been shut down");
+      }
+      if (s.queue.size() >= s.queueLimit) {
+        ++s.rejected;
+        throw new RejectedExecutionException("queue of " + type.name() + " tasks is full ("
+            + s.queueLimit + " waiting)");
+      }
+      s.queue.addLast(new Entry(task, System.currentTimeMillis()));
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * @param type
+   * @return the number of tasks of this type that could start running now.
+   */
+  public int getIdleCapacity(TaskType type) {
+    synchronized (lock) {
+      TypeState s = states.get(type);
+      return Math.max(0, s.concurrency - s.active - s.queue.size());
+    }
+  }
+
+  /**
+   * @return the queue depth and latency of each task type, in priority order.
+   */
+  public List<Statistics> getStatistics() {
+    List<Statistics> stats = new ArrayList<Statistics>();
+    synchronized (lock) {
+      for (Map.Entry<TaskType, TypeState> e : states.entrySet()) {
+        stats.add(new Statistics(e.getKey(), e.getValue()));
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * Remove the next task to run from its queue, or return null if no task is
+   * ready. Must be called while holding the lock.
+   *
+   * @param now
+   *          the current time.
+   * @return the type of the task and the task itself.
+   */
+  private Map.Entry<TaskType, Entry> takeNext(long now) {
+    TaskType chosen = null;
+    // a starved task goes first, oldest first...
+    long oldest = now - STARVATION_MILLISECONDS;
+    for (Map.Entry<TaskType, TypeState> e : states.entrySet()) {
+      TypeState s = e.getValue();
+      Entry head = s.queue.peekFirst();
+      if (head != null && s.active < s.concurrency && head.enqueuedAt < oldest) {
+        chosen = e.getKey();
+        oldest = head.enqueuedAt;
+      }
+    }
+    // ...otherwise the first ready task in priority order
+    if (chosen == null) {
+      for (Map.Entry<TaskType, TypeState> e : states.entrySet()) {
+        TypeState s = e.getValue();
+        Entry head = s.queue.peekFirst();
+        if (head != null && s.active < s.concurrency
+            && head.enqueuedAt + START_DELAY_MILLISECONDS <= now) {
+          chosen = e.getKey();
+          break;
+        }
+      }
+    }
+    if (chosen == null) {
+      return null;
+    }
+    TypeState s = states.get(chosen);
+    Entry entry = s.queue.removeFirst();
+    long waitMillis = now - entry.enqueuedAt;
+    ++s.active;
+    ++s.started;
+    s.totalWaitMillis += waitMillis;
+    s.maxWaitMillis = Math.max(s.maxWaitMillis, waitMillis);
+    return new AbstractMap.SimpleImmutableEntry<TaskType, Entry>(chosen, entry);
+  }
+
+  /**
+   * @return true if any task is waiting. Must be called while holding the lock.
+   */
+  private boolean hasQueuedTasks() {
+    for (TypeState s : states.values()) {
+      if (!s.queue.isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private final class Worker implements Runnable {
+
+    @Override
+    public void run() {
+      for (;;) {
+        Map.Entry<TaskType, Entry> next;
+        synchronized (lock) {
+          for (;;) {
+            if (shutdown) {
+              return;
+            }
+            next = takeNext(System.currentTimeMillis());
+            if (next != null) {
+              break;
+            }
+            try {
+              // a waiting task may be in its start delay; otherwise sleep
+              // until a task is queued or completes.
+              lock.wait(hasQueuedTasks() ? START_DELAY_MILLISECONDS : 0L);
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+        }
+
+        long startedAt = System.currentTimeMillis();
+        try {
+          next.getValue().task.run();
+        } catch (Throwable t) {
+          logger.error("Background " + next.getKey().name() + " task failed", t);
+        } finally {
+          synchronized (lock) {
+            TypeState s = states.get(next.getKey());
+            --s.active;
+            ++s.completed;
+            s.totalRunMillis += System.currentTimeMillis() - startedAt;
+            lock.notifyAll();
+          }
+        }
+      }
+    }
+  }
+}
@@ -15,11 +15,11 @@
  */
 package org.opendatakit.aggregate.task.tomcat;
 
-import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.submission.SubmissionKey;
 import org.opendatakit.aggregate.task.CsvGenerator;
 import org.opendatakit.aggregate.task.CsvWorkerImpl;
+import org.opendatakit.aggregate.task.JobQueue.JobType;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.web.CallingContext;
 
@@ -38,7 +38,8 @@ public class CsvGeneratorImpl implements CsvGenerator {
         final CsvWorkerImpl impl;
         
         public CsvRunner( IForm form, SubmissionKey persistentResultsKey, long attemptCount, CallingContext cc) {
-            impl = new CsvWorkerImpl(form, persistentResultsKey, attemptCount, cc );
+            impl = new CsvWorkerImpl(form, persistentResultsKey, attemptCount,
+                AggregrateThreadExecutor.getAggregateThreadExecutor().getExportSliceExecutor(), cc );
         }
 
         @Override
@@ -51,10 +52,7 @@ public class CsvGeneratorImpl implements CsvGenerator {
   public void createCsvTask(IForm form, SubmissionKey persistentResultsKey,
         long attemptCount, CallingContext cc)
         throws ODKDatastoreException {
-    WatchdogImpl wd = (WatchdogImpl) cc.getBean(BeanDefs.WATCHDOG);
-    // use watchdog's calling context in runner...
-    CsvRunner runner = new CsvRunner(form, persistentResultsKey, attemptCount, wd.getCallingContext() );
-    AggregrateThreadExecutor exec = AggregrateThreadExecutor.getAggregateThreadExecutor();
-    exec.execute(runner);
+    // the JobDispatcher runs the CsvRunner under the watchdog's calling context
+    JobDispatcher.enqueue(JobType.EXPORT, persistentResultsKey, form, attemptCount, cc);
   }
 }
@@ -15,12 +15,12 @@
  */
 package org.opendatakit.aggregate.task.tomcat;
 
-import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.submission.SubmissionKey;
 import org.opendatakit.aggregate.task.FormDelete;
 import org.opendatakit.aggregate.task.FormDeleteWorkerImpl;
+import org.opendatakit.aggregate.task.JobQueue.JobType;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.web.CallingContext;
 
@@ -40,7 +40,8 @@ public class FormDeleteImpl implements FormDelete {
 
         public FormDeleteRunner(IForm form, SubmissionKey miscTasksKey,
                 long attemptCount, CallingContext cc) {
-            impl = new FormDeleteWorkerImpl( form, miscTasksKey, attemptCount, cc);
+            // the JDBC datastores remove the submissions when the form's tables are dropped
+            impl = new FormDeleteWorkerImpl( form, miscTasksKey, attemptCount, true, cc);
         }
 
         @Override
@@ -57,10 +58,7 @@ public class FormDeleteImpl implements FormDelete {
   @Override
   public final void createFormDeleteTask(IForm form, SubmissionKey miscTasksKey,
             long attemptCount, CallingContext cc) throws ODKDatastoreException, ODKFormNotFoundException {
-    WatchdogImpl wd = (WatchdogImpl) cc.getBean(BeanDefs.WATCHDOG);
-    // use watchdog's calling context in runner...
-    FormDeleteRunner dr = new FormDeleteRunner(form, miscTasksKey, attemptCount, wd.getCallingContext());
-    AggregrateThreadExecutor exec = AggregrateThreadExecutor.getAggregateThreadExecutor();
-    exec.execute(dr);
+    // the JobDispatcher runs the FormDeleteRunner under the watchdog's calling context
+    JobDispatcher.enqueue(JobType.DELETE_FORM, miscTasksKey, form, attemptCount, cc);
   }
 }
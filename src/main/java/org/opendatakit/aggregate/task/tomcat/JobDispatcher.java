@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task.tomcat;
+
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.opendatakit.aggregate.constants.BeanDefs;
+import org.opendatakit.aggregate.constants.common.ExportStatus;
+import org.opendatakit.aggregate.constants.common.FormActionStatus;
+import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
+import org.opendatakit.aggregate.form.FormFactory;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.form.MiscTasks;
+import org.opendatakit.aggregate.form.PersistentResults;
+import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.aggregate.task.JobQueue;
+import org.opendatakit.aggregate.task.JobQueue.Job;
+import org.opendatakit.aggregate.task.JobQueue.JobType;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.web.CallingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pulls jobs from the JobQueue and runs them on the BackgroundTaskExecutor.
+ *
+ * The queue is polled as soon as a job is added on this server or a job
+ * finishes, and every {@link #POLL_INTERVAL_MILLISECONDS} to pick up jobs
+ * added on other servers, retries whose delay has passed and claims that have
+ * expired. Only as many jobs are claimed as the executor can start right
+ * away, so a claimed job does not use up its claim waiting for a thread.
+ * Each poll also renews the claims of the running jobs that are halfway to
+ * expiring, so a long-running job is not claimed again by another server.
+ *
+ * A job is complete once its PersistentResults or MiscTasks request is no
+ * longer active. If the request is still active after the task has run, the
+ * job has failed and is retried by the queue; when it is dead-lettered, the
+ * request is marked as abandoned.
+ */
+public class JobDispatcher {
+
+  private static final Logger logger = LoggerFactory.getLogger(JobDispatcher.class);
+
+  public static final long POLL_INTERVAL_MILLISECONDS = 15000L;
+
+  /**
+   * Add a job for a request and wake the dispatcher of this server.
+   *
+   * @param type
+   * @param requestKey
+   *          the submission key of the PersistentResults or MiscTasks request.
+   * @param form
+   * @param attemptCount
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  static void enqueue(JobType type, SubmissionKey requestKey, IForm form, long attemptCount,
+      CallingContext cc) throws ODKDatastoreException {
+    JobQueue.enqueue(type, requestKey, form.getFormId(), attemptCount, cc);
+    WatchdogImpl wd = (WatchdogImpl) cc.getBean(BeanDefs.WATCHDOG);
+    JobDispatcher dispatcher = wd.getJobDispatcher();
+    // if not yet started, the first poll will claim the job
+    if (dispatcher != null) {
+      dispatcher.wake();
+    }
+  }
+
+  private static TaskType getTaskType(JobType type) {
+    switch (type) {
+    case EXPORT:
+      return TaskType.EXPORT;
+    case WORKSHEET_CREATE:
+      return TaskType.WORKSHEET;
+    case DELETE_FORM:
+      return TaskType.FORM_DELETE;
+    case PURGE_OLDER_SUBMISSIONS:
+      return TaskType.PURGE;
+    default:
+      throw new IllegalStateException("no task type for job type " + type.name());
+    }
+  }
+
+  private final CallingContext cc;
+
+  private final AtomicBoolean pollScheduled = new AtomicBoolean(false);
+
+  private final Runnable pollTask = new Runnable() {
+    @Override
+    public void run() {
+      poll();
+    }
+  };
+
+  private ScheduledFuture<?> pollFuture = null;
+
+  /** the running jobs, and when their claims were last made or renewed */
+  private final Map<Job, Long> running = new ConcurrentHashMap<Job, Long>();
+
+  /**
+   * @param cc
+   *          the calling context the jobs run under.
+   */
+  JobDispatcher(CallingContext cc) {
+    this.cc = cc;
+  }
+
+  synchronized void start() {
+    if (pollFuture == null) {
+      pollFuture = AggregrateThreadExecutor.getAggregateThreadExecutor().scheduleAtFixedRate(
+          pollTask, POLL_INTERVAL_MILLISECONDS);
+    }
+  }
+
+  synchronized void stop() {
+    if (pollFuture != null) {
+      pollFuture.cancel(false);
+      pollFuture = null;
+    }
+  }
+
+  /**
+   * Poll the queue soon rather than at the next poll interval.
+   */
+  void wake() {
+    if (pollScheduled.compareAndSet(false, true)) {
+      AggregrateThreadExecutor.getAggregateThreadExecutor().schedule(pollTask, 0L);
+    }
+  }
+
+  private void poll() {
+    pollScheduled.set(false);
+    renewClaims();
+    AggregrateThreadExecutor exec = AggregrateThreadExecutor.getAggregateThreadExecutor();
+    List<Job> jobs;
+    synchronized (this) {
+      Map<JobType, Integer> capacity = new EnumMap<JobType, Integer>(JobType.class);
+      for (JobType type : JobType.values()) {
+        capacity.put(type, exec.getIdleCapacity(getTaskType(type)));
+      }
+      try {
+        jobs = JobQueue.claim(capacity, cc);
+      } catch (Exception e) {
+        logger.error("Unable to claim jobs", e);
+        return;
+      }
+    }
+    for (Job job : jobs) {
+      dispatch(job);
+    }
+  }
+
+  private void renewClaims() {
+    long now = System.currentTimeMillis();
+    for (Map.Entry<Job, Long> entry : running.entrySet()) {
+      Job job = entry.getKey();
+      if (now - entry.getValue() < job.getType().getVisibilityTimeout() / 2) {
+        continue;
+      }
+      try {
+        if (JobQueue.renew(job, cc)) {
+          running.replace(job, entry.getValue(), now);
+        } else {
+          // the attempt is stale; its worker will not record its outcome
+          running.remove(job);
+        }
+      } catch (ODKDatastoreException e) {
+        // retried at the next poll
+        logger.warn("Unable to renew the claim on " + job, e);
+      }
+    }
+  }
+
+  private void dispatch(Job job) {
+    Runnable task;
+    try {
+      task = prepare(job);
+    } catch (ODKFormNotFoundException e) {
+      // the form has been deleted; there is nothing left to do
+      task = null;
+    } catch (ODKEntityNotFoundException e) {
+      // the request has been deleted
+      task = null;
+    } catch (Exception e) {
+      logger.warn("Unable to start " + job, e);
+      failed(job, e.toString());
+      return;
+    }
+
+    try {
+      if (task == null) {
+        JobQueue.complete(job, cc);
+      } else if (!AggregrateThreadExecutor.getAggregateThreadExecutor().execute(
+          getTaskType(job.getType()), new JobRunner(job, task))) {
+        JobQueue.release(job, cc);
+      }
+    } catch (ODKDatastoreException e) {
+      // the claim expires and the job is claimed again
+      logger.error("Unable to update " + job, e);
+    }
+  }
+
+  /**
+   * Record the attempt on the request and construct the task that carries it
+   * out.
+   *
+   * @param job
+   * @return the task, or null if the request is no longer active.
+   */
+  private Runnable prepare(Job job) throws ODKDatastoreException, ODKFormNotFoundException {
+    SubmissionKey key = job.getRequestKey();
+    long attemptCount = job.getAttemptCount();
+    if (job.getType() == JobType.EXPORT) {
+      PersistentResults r = new PersistentResults(key, cc);
+      if (r.getStatus() == ExportStatus.AVAILABLE || r.getStatus() == ExportStatus.ABANDONED) {
+        return null;
+      }
+      IForm form = FormFactory.retrieveFormByFormId(r.getFormId(), cc);
+      if (!form.hasValidFormDefinition()) {
+        throw new IllegalStateException("form definition is ill-formed: " + r.getFormId());
+      }
+      r.setAttemptCount(attemptCount);
+      r.setLastRetryDate(new Date());
+      r.persist(cc);
+      switch (r.getResultType()) {
+      case CSV:
+        return new CsvGeneratorImpl.CsvRunner(form, key, attemptCount, cc);
+      case KML:
+        return new KmlGeneratorImpl.KmlRunner(form, r, attemptCount, cc);
+      case JSONFILE:
+        return new JsonFileGeneratorImpl.JsonRunner(form, key, attemptCount, cc);
+      case ARROW:
+        return new ArrowFileGeneratorImpl.ArrowRunner(form, key, attemptCount, cc);
+      default:
+        throw new IllegalStateException("no generator for " + r.getResultType().name());
+      }
+    }
+
+    MiscTasks t = new MiscTasks(key, cc);
+    if (!t.getStatus().isActiveRequest()) {
+      return null;
+    }
+    IForm form = FormFactory.retrieveFormByFormId(t.getFormId(), cc);
+    if (t.getTaskType() != MiscTasks.TaskType.DELETE_FORM && !form.hasValidFormDefinition()) {
+      throw new IllegalStateException("form definition is ill-formed: " + t.getFormId());
+    }
+    t.setAttemptCount(attemptCount);
+    t.setLastActivityDate(new Date());
+    t.persist(cc);
+    switch (t.getTaskType()) {
+    case WORKSHEET_CREATE:
+      return new WorksheetCreatorImpl.WorksheetCreatorRunner(form, t, attemptCount, cc);
+    case DELETE_FORM:
+      return new FormDeleteImpl.FormDeleteRunner(form, key, attemptCount, cc);
+    case PURGE_OLDER_SUBMISSIONS:
+      return new PurgeOlderSubmissionsImpl.PurgeOlderSubmissionsRunner(form, key, attemptCount,
+          cc);
+    default:
+      throw new IllegalStateException("no worker for " + t.getTaskType().name());
+    }
+  }
+
+  /**
+   * @param job
+   * @return the status of the request if it is still active, otherwise null.
+   */
+  private String getActiveStatus(Job job) throws ODKDatastoreException {
+    try {
+      if (job.getType() == JobType.EXPORT) {
+        ExportStatus status = new PersistentResults(job.getRequestKey(), cc).getStatus();
+        if (status == ExportStatus.AVAILABLE || status == ExportStatus.ABANDONED) {
+          return null;
+        }
+        return status.name();
+      }
+      FormActionStatus status = new MiscTasks(job.getRequestKey(), cc).getStatus();
+      return status.isActiveRequest() ? status.name() : null;
+    } catch (ODKEntityNotFoundException e) {
+      return null;
+    }
+  }
+
+  private void finish(Job job) {
+    try {
+      String status = getActiveStatus(job);
+      if (status == null) {
+        JobQueue.complete(job, cc);
+      } else {
+        failed(job, "request is " + status + " after the task ran");
+      }
+    } catch (ODKDatastoreException e) {
+      // the claim expires and the job is claimed again
+      logger.error("Unable to update " + job, e);
+    }
+  }
+
+  private void failed(Job job, String reason) {
+    try {
+      if (JobQueue.fail(job, reason, cc)) {
+        abandon(job);
+      }
+    } catch (ODKDatastoreException e) {
+      // the claim expires and the job is claimed again
+      logger.error("Unable to update " + job, e);
+    }
+  }
+
+  /**
+   * Mark the request of a dead-lettered job as abandoned.
+   */
+  private void abandon(Job job) throws ODKDatastoreException {
+    Date now = new Date();
+    try {
+      if (job.getType() == JobType.EXPORT) {
+        PersistentResults r = new PersistentResults(job.getRequestKey(), cc);
+        if (r.getStatus() != ExportStatus.AVAILABLE) {
+          r.setStatus(ExportStatus.ABANDONED);
+          r.setCompletionDate(now);
+          r.persist(cc);
+        }
+      } else {
+        MiscTasks t = new MiscTasks(job.getRequestKey(), cc);
+        if (t.getStatus().isActiveRequest()) {
+          t.setStatus(FormActionStatus.ABANDONED);
+          t.setCompletionDate(now);
+          t.persist(cc);
+        }
+      }
+    } catch (ODKEntityNotFoundException e) {
+      // nothing to mark
+    }
+  }
+
+  private final class JobRunner implements Runnable {
+    private final Job job;
+    private final Runnable task;
+
+    JobRunner(Job job, Runnable task) {
+      this.job = job;
+      this.task = task;
+    }
+
+    @Override
+    public void run() {
+      running.put(job, System.currentTimeMillis());
+      try {
+        task.run();
+      } finally {
+        running.remove(job);
+        finish(job);
+        // a slot has freed up
+        wake();
+      }
+    }
+  }
+}
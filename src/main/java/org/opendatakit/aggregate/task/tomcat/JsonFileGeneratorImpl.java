@@ -16,9 +16,9 @@
 
 package org.opendatakit.aggregate.task.tomcat;
 
-import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.aggregate.task.JobQueue.JobType;
 import org.opendatakit.aggregate.task.JsonFileGenerator;
 import org.opendatakit.aggregate.task.JsonFileWorkerImpl;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
@@ -39,7 +39,8 @@ public class JsonFileGeneratorImpl implements JsonFileGenerator {
     final JsonFileWorkerImpl impl;
     
     public JsonRunner( IForm form, SubmissionKey persistentResultsKey, long attemptCount, CallingContext cc) {
-       impl = new JsonFileWorkerImpl(form, persistentResultsKey, attemptCount, cc );
+       impl = new JsonFileWorkerImpl(form, persistentResultsKey, attemptCount,
+           AggregrateThreadExecutor.getAggregateThreadExecutor().getExportSliceExecutor(), cc );
     }
 
     @Override
@@ -51,11 +52,8 @@ public class JsonFileGeneratorImpl implements JsonFileGenerator {
   @Override
   public void createJsonFileTask(IForm form, SubmissionKey persistentResultsKey, long attemptCount,
       CallingContext cc) throws ODKDatastoreException {
-    WatchdogImpl wd = (WatchdogImpl) cc.getBean(BeanDefs.WATCHDOG);
-    // use watchdog's calling context in runner...
-    JsonRunner runner = new JsonRunner(form, persistentResultsKey, attemptCount, wd.getCallingContext() );
-     AggregrateThreadExecutor exec = AggregrateThreadExecutor.getAggregateThreadExecutor();
-     exec.execute(runner);
+    // the JobDispatcher runs the JsonRunner under the watchdog's calling context
+    JobDispatcher.enqueue(JobType.EXPORT, persistentResultsKey, form, attemptCount, cc);
 
   }
 
@@ -20,11 +20,11 @@ import java.util.List;
 import java.util.Map;
 
 import org.opendatakit.aggregate.client.form.KmlSelection;
-import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.form.PersistentResults;
 import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.aggregate.task.JobQueue.JobType;
 import org.opendatakit.aggregate.task.KmlGenerator;
 import org.opendatakit.aggregate.task.KmlWorkerImpl;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
@@ -47,7 +47,14 @@ public class KmlGeneratorImpl implements KmlGenerator {
     public KmlRunner(IForm form, SubmissionKey persistentResultsKey, long attemptCount,
         List<KmlSelection> kmlElementsToInclude, CallingContext cc) {
 
-      impl = new KmlWorkerImpl(form, persistentResultsKey, attemptCount, kmlElementsToInclude, cc);
+      impl = new KmlWorkerImpl(form, persistentResultsKey, attemptCount, kmlElementsToInclude,
+          AggregrateThreadExecutor.getAggregateThreadExecutor().getExportSliceExecutor(), cc);
+    }
+
+    public KmlRunner(IForm form, PersistentResults persistentResults, long attemptCount,
+        CallingContext cc) throws ODKDatastoreException {
+      this(form, persistentResults.getSubmissionKey(), attemptCount,
+          getKmlSelections(persistentResults), cc);
     }
 
     @Override
@@ -56,10 +63,8 @@ public class KmlGeneratorImpl implements KmlGenerator {
     }
   }
 
-  @Override
-  public void createKmlTask(IForm form, PersistentResults persistentResults, long attemptCount,
-      CallingContext cc) throws ODKDatastoreException, ODKFormNotFoundException {
-
+  static List<KmlSelection> getKmlSelections(PersistentResults persistentResults)
+      throws ODKDatastoreException {
     List<KmlSelection> kmlElementsToInclude = new ArrayList<KmlSelection>();
 
     Map<String, String> params = persistentResults.getRequestParameters();
@@ -76,11 +81,14 @@ public class KmlGeneratorImpl implements KmlGenerator {
       }
     }
 
-    WatchdogImpl wd = (WatchdogImpl) cc.getBean(BeanDefs.WATCHDOG);
-    // use watchdog's calling context in runner...
-    KmlRunner runner = new KmlRunner(form, persistentResults.getSubmissionKey(), attemptCount,
-        kmlElementsToInclude, wd.getCallingContext());
-    AggregrateThreadExecutor exec = AggregrateThreadExecutor.getAggregateThreadExecutor();
-    exec.execute(runner);
+    return kmlElementsToInclude;
+  }
+
+  @Override
+  public void createKmlTask(IForm form, PersistentResults persistentResults, long attemptCount,
+      CallingContext cc) throws ODKDatastoreException, ODKFormNotFoundException {
+    // the JobDispatcher runs the KmlRunner under the watchdog's calling context
+    JobDispatcher.enqueue(JobType.EXPORT, persistentResults.getSubmissionKey(), form,
+        attemptCount, cc);
   }
 }
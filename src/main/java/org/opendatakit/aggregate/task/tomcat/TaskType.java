@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task.tomcat;
+
+/**
+ * The kinds of background task run by the BackgroundTaskExecutor. Each kind
+ * has its own concurrency and queue limits. The declaration order is the
+ * priority order: when a worker thread frees up, it takes the oldest task of
+ * the first kind that has one waiting and is below its concurrency limit.
+ */
+public enum TaskType {
+  /** CSV, KML, JSON and Arrow exports requested from the UI, and their slices */
+  EXPORT(2, 50),
+  /** Google Spreadsheet worksheet creation for a new publisher */
+  WORKSHEET(1, 20),
+  /** bulk and streaming uploads to the publishers */
+  PUBLISH(2, 100),
+  /** deletion of a form and all its submissions */
+  FORM_DELETE(1, 20),
+  /** purge of the submissions older than a given date */
+  PURGE(1, 20);
+
+  /** number of tasks of this kind that may run at the same time */
+  final int defaultConcurrency;
+  /** number of tasks of this kind that may wait for a worker thread */
+  final int defaultQueueLimit;
+
+  private TaskType(int defaultConcurrency, int defaultQueueLimit) {
+    this.defaultConcurrency = defaultConcurrency;
+    this.defaultQueueLimit = defaultQueueLimit;
+  }
+}
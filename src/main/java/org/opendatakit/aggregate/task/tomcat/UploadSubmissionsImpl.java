@@ -59,6 +59,6 @@ public class UploadSubmissionsImpl implements UploadSubmissions {
     UploadSubmissionsRunner ur = new UploadSubmissionsRunner(fsc, wd.getFasterWatchdogCycleEnabled(), wd.getCallingContext());
     System.out.println("UPLOAD TASK IN TOMCAT");
     AggregrateThreadExecutor exec = AggregrateThreadExecutor.getAggregateThreadExecutor();
-    exec.execute(ur);
+    exec.execute(TaskType.PUBLISH, ur);
   }
 }
@@ -25,6 +25,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.server.ServerPreferencesProperties;
+import org.opendatakit.aggregate.task.ArrowFileGenerator;
 import org.opendatakit.aggregate.task.CsvGenerator;
 import org.opendatakit.aggregate.task.FormDelete;
 import org.opendatakit.aggregate.task.JsonFileGenerator;
@@ -75,12 +76,15 @@ public class WatchdogImpl implements Watchdog, SmartLifecycle, InitializingBean,
 
   boolean isStarted = false;
   TaskScheduler taskScheduler = null;
+  BackgroundTaskExecutor taskExecutor = null;
+  JobDispatcher jobDispatcher = null;
   Datastore datastore = null;
   UserService userService = null;
   UploadSubmissions uploadSubmissions = null;
   CsvGenerator csvGenerator = null;
   KmlGenerator kmlGenerator = null;
   JsonFileGenerator jsonFileGenerator = null;
+  ArrowFileGenerator arrowFileGenerator = null;
   PurgeOlderSubmissions purgeSubmissions = null;
   FormDelete formDelete = null;
   WorksheetCreator worksheetCreator = null;
@@ -172,6 +176,8 @@ public class WatchdogImpl implements Watchdog, SmartLifecycle, InitializingBean,
         return csvGenerator;
       } else if ( BeanDefs.JSON_FILE_BEAN.equals(beanName) ) {
         return jsonFileGenerator;
+      } else if (BeanDefs.ARROW_FILE_BEAN.equals(beanName)) {
+        return arrowFileGenerator;
       } else if (BeanDefs.DATASTORE_BEAN.equals(beanName)) {
         return datastore;
       } else if (BeanDefs.FORM_DELETE_BEAN.equals(beanName)) {
@@ -259,8 +265,23 @@ public class WatchdogImpl implements Watchdog, SmartLifecycle, InitializingBean,
         e.printStackTrace();
         // TODO: Problem - decide what to do if an exception occurs
       }
+      logTaskStatistics();
       System.out.println("EXITING WATCHDOG TASK IN TOMCAT") ;
     }
+
+    /**
+     * Log the queue depth and latency of the background task types that have
+     * tasks running or waiting. Rejections are logged when they occur.
+     */
+    private void logTaskStatistics() {
+      Logger logger = LoggerFactory.getLogger(WatchdogImpl.class);
+      for (BackgroundTaskExecutor.Statistics stats :
+          AggregrateThreadExecutor.getAggregateThreadExecutor().getTaskStatistics()) {
+        if (stats.queued != 0 || stats.active != 0) {
+          logger.info("Background tasks: " + stats.toString());
+        }
+      }
+    }
   }
 
   /**
@@ -307,7 +328,7 @@ public class WatchdogImpl implements Watchdog, SmartLifecycle, InitializingBean,
   @Override
   public void stop(Runnable signal) {
     System.out.println("stop(runnable) WATCHDOG TASK IN TOMCAT");
-    isStarted = false;
+    stop();
     signal.run();
   }
 
@@ -333,12 +354,24 @@ public class WatchdogImpl implements Watchdog, SmartLifecycle, InitializingBean,
     lastFasterWatchdogCycleEnabledFlagFetch = System.currentTimeMillis();
     // start the publisher...
     establishWatchdog(lastFasterWatchdogCycleEnabledFlag);
+    // and the puller of queued jobs
+    synchronized (this) {
+      if (jobDispatcher == null) {
+        jobDispatcher = new JobDispatcher(cc);
+      }
+      jobDispatcher.start();
+    }
     isStarted = true;
   }
 
   @Override
   public void stop() {
     System.out.println("stop WATCHDOG TASK IN TOMCAT");
+    synchronized (this) {
+      if (jobDispatcher != null) {
+        jobDispatcher.stop();
+      }
+    }
     isStarted = false;
     return;
   }
@@ -356,6 +389,22 @@ public class WatchdogImpl implements Watchdog, SmartLifecycle, InitializingBean,
     this.taskScheduler = taskScheduler;
   }
 
+  /**
+   * @return the dispatcher of the JobQueue, or null if the watchdog has not
+   *         been started.
+   */
+  public synchronized JobDispatcher getJobDispatcher() {
+    return jobDispatcher;
+  }
+
+  public BackgroundTaskExecutor getTaskExecutor() {
+    return taskExecutor;
+  }
+
+  public void setTaskExecutor(BackgroundTaskExecutor taskExecutor) {
+    this.taskExecutor = taskExecutor;
+  }
+
   public Datastore getDatastore() {
     return datastore;
   }
@@ -404,6 +453,14 @@ public class WatchdogImpl implements Watchdog, SmartLifecycle, InitializingBean,
     this.jsonFileGenerator = jsonFileGenerator;
   }
 
+  public ArrowFileGenerator getArrowFileGenerator() {
+    return arrowFileGenerator;
+  }
+
+  public void setArrowFileGenerator(ArrowFileGenerator arrowFileGenerator) {
+    this.arrowFileGenerator = arrowFileGenerator;
+  }
+
   public FormDelete getFormDelete() {
     return formDelete;
   }
@@ -449,6 +506,8 @@ public class WatchdogImpl implements Watchdog, SmartLifecycle, InitializingBean,
     System.out.println("afterPropertiesSet WATCHDOG TASK IN TOMCAT");
     if (taskScheduler == null)
       throw new IllegalStateException("no task scheduler specified");
+    if (taskExecutor == null)
+      throw new IllegalStateException("no task executor specified");
     if (datastore == null)
       throw new IllegalStateException("no datastore specified");
     if (userService == null)
@@ -461,6 +520,8 @@ public class WatchdogImpl implements Watchdog, SmartLifecycle, InitializingBean,
       throw new IllegalStateException("no kmlGenerator specified");
     if ( jsonFileGenerator == null )
       throw new IllegalStateException("no jsonFileGenerator specified");
+    if (arrowFileGenerator == null)
+      throw new IllegalStateException("no arrowFileGenerator specified");
     if (formDelete == null)
       throw new IllegalStateException("no formDelete specified");
     if (purgeSubmissions == null)
@@ -471,7 +532,7 @@ public class WatchdogImpl implements Watchdog, SmartLifecycle, InitializingBean,
       throw new IllegalStateException("no httpClientFactory specified");
     if (imageUtil == null)
       throw new IllegalStateException("no imageUtil specified");
-    AggregrateThreadExecutor.initialize(taskScheduler);
+    AggregrateThreadExecutor.initialize(taskScheduler, taskExecutor);
   }
 
   @Override
@@ -485,6 +546,11 @@ public class WatchdogImpl implements Watchdog, SmartLifecycle, InitializingBean,
     return new CallingContextImpl();
   }
 
+  @Override
+  public boolean usesJobQueue() {
+    return true;
+  }
+
   private void establishWatchdog(boolean fasterWatchdogCycleEnabled) {
     if ( fasterWatchdogCycleEnabled ) {
       createWatchdogTask(BackendActionsTable.FAST_PUBLISHING_RETRY_MILLISECONDS);
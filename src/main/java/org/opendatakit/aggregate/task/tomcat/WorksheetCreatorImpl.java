@@ -17,14 +17,13 @@ package org.opendatakit.aggregate.task.tomcat;
 
 import java.util.Map;
 
-import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.constants.ServletConsts;
 import org.opendatakit.aggregate.constants.common.ExternalServicePublicationOption;
 import org.opendatakit.aggregate.constants.externalservice.ExternalServiceConsts;
 import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.form.MiscTasks;
-import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.aggregate.task.JobQueue.JobType;
 import org.opendatakit.aggregate.task.WorksheetCreator;
 import org.opendatakit.aggregate.task.WorksheetCreatorWorkerImpl;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
@@ -44,11 +43,22 @@ public class WorksheetCreatorImpl implements WorksheetCreator {
     static class WorksheetCreatorRunner implements Runnable {
         final WorksheetCreatorWorkerImpl impl;
 
-        public WorksheetCreatorRunner(IForm form, SubmissionKey miscTasksKey,
-                long attemptCount, 
-                String spreadsheetName, ExternalServicePublicationOption esType,
-                CallingContext cc) {
-            impl = new WorksheetCreatorWorkerImpl(form, miscTasksKey,
+        public WorksheetCreatorRunner(IForm form, MiscTasks miscTasks,
+                long attemptCount, CallingContext cc) throws ODKDatastoreException {
+            Map<String,String> params = miscTasks.getRequestParameters();
+            String esTypeString = params.get(ServletConsts.EXTERNAL_SERVICE_TYPE);
+            if (esTypeString == null) {
+                throw new IllegalStateException("no external service type specified on create worksheet task");
+            }
+            ExternalServicePublicationOption esType = ExternalServicePublicationOption.valueOf(esTypeString);
+            if (esType == null) {
+                throw new IllegalStateException("external service type not recognized in create worksheet task");
+            }
+            String spreadsheetName = params.get(ExternalServiceConsts.EXT_SERV_ADDRESS);
+            if (spreadsheetName == null) {
+                throw new IllegalStateException("spreadsheet name is null in create worksheet task");
+            }
+            impl = new WorksheetCreatorWorkerImpl(form, miscTasks.getSubmissionKey(),
                     attemptCount,
                     spreadsheetName, esType, cc);
         }
@@ -67,28 +77,9 @@ public class WorksheetCreatorImpl implements WorksheetCreator {
     @Override
     public final void createWorksheetTask(IForm form, MiscTasks miscTasks, long attemptCount,
             CallingContext cc) throws ODKDatastoreException, ODKFormNotFoundException {
-        Map<String,String> params = miscTasks.getRequestParameters();
-        String esTypeString = params.get(ServletConsts.EXTERNAL_SERVICE_TYPE);
-        if (esTypeString == null) {
-            throw new IllegalStateException("no external service type specified on create worksheet task");
-        }
-        ExternalServicePublicationOption esType = ExternalServicePublicationOption.valueOf(esTypeString);
-        if (esType == null) {
-            throw new IllegalStateException("external service type not recognized in create worksheet task");
-        }
-        String spreadsheetName = params.get(ExternalServiceConsts.EXT_SERV_ADDRESS);
-        if (spreadsheetName == null) {
-            throw new IllegalStateException("spreadsheet name is null in create worksheet task");
-        }
-        WatchdogImpl wd = (WatchdogImpl) cc.getBean(BeanDefs.WATCHDOG);
-        // use watchdog's calling context in runner...
-        WorksheetCreatorRunner wr = new WorksheetCreatorRunner( form, miscTasks.getSubmissionKey(),
-                attemptCount, 
-                spreadsheetName, esType,
-                wd.getCallingContext() );
         System.out.println("THIS IS CREATE WORKSHEET IN TOMCAT");
-        AggregrateThreadExecutor exec = AggregrateThreadExecutor
-                .getAggregateThreadExecutor();
-        exec.execute(wr);
+        // the JobDispatcher runs the WorksheetCreatorRunner under the watchdog's calling context
+        JobDispatcher.enqueue(JobType.WORKSHEET_CREATE, miscTasks.getSubmissionKey(), form,
+                attemptCount, cc);
     }
 }
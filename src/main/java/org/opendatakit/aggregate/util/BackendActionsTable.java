@@ -16,14 +16,15 @@
 package org.opendatakit.aggregate.util;
 
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.server.ServerPreferencesProperties;
 import org.opendatakit.aggregate.task.Watchdog;
+import org.opendatakit.common.persistence.CacheInvalidationBus;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.Datastore;
@@ -84,7 +85,24 @@ public class BackendActionsTable extends CommonFieldsBase {
   /** last time we reloaded the publisher hashMap from the datastore */
   public static long lastHashmapCleanTimestamp = 0L;
   /** the publisher hashMap<uriFsc, lastUploadSubmissionTaskEnqueueTime> */
-  public static Map<String, Long> lastPublisherRevision = new HashMap<String, Long>();
+  public static Map<String, Long> lastPublisherRevision = new ConcurrentHashMap<String, Long>();
+
+  /** invalidation topic of a publisher revision; followed by the uriFsc */
+  private static final String PUBLISHER_TOPIC_PREFIX = "publisher:";
+
+  static {
+    // publishers triggered on this or another server
+    CacheInvalidationBus.subscribe(PUBLISHER_TOPIC_PREFIX, new CacheInvalidationBus.Listener() {
+      @Override
+      public void invalidated(String topic) {
+        if (topic == null) {
+          lastPublisherRevision.clear();
+        } else {
+          lastPublisherRevision.remove(topic.substring(PUBLISHER_TOPIC_PREFIX.length()));
+        }
+      }
+    });
+  }
 
   /** last time we reloaded the lastWatchdog... values from the datastore */
   private static long lastFetchTime = 0L;
@@ -192,6 +210,8 @@ public class BackendActionsTable extends CommonFieldsBase {
         lastPublisherRevision.clear();
         lastHashmapCleanTimestamp = now;
       }
+      // drop the revisions updated by other servers
+      CacheInvalidationBus.poll(ds, user);
 
       BackendActionsTable t = null;
       Long oldTime = lastPublisherRevision.get(uriFsc);
@@ -241,6 +261,8 @@ public class BackendActionsTable extends CommonFieldsBase {
         if (oldTime + PUBLISHING_DELAY_MILLISECONDS < now) {
           t.setLastRevisionDate(new Date(now));
           ds.putEntity(t, user);
+          // tell the other servers before recording the new revision here
+          CacheInvalidationBus.publish(PUBLISHER_TOPIC_PREFIX + uriFsc, ds, user);
           lastPublisherRevision.put(uriFsc, now);
           publish = true;
         }
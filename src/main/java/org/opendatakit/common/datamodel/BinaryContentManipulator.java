@@ -14,12 +14,19 @@
 package org.opendatakit.common.datamodel;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.Datastore;
@@ -28,6 +35,7 @@ import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.Query.Direction;
 import org.opendatakit.common.persistence.Query.FilterOperation;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
 import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
 import org.opendatakit.common.security.User;
@@ -47,6 +55,17 @@ import org.opendatakit.common.web.CallingContext;
  * attachment relations, one for each distinct attachment. For submissions, for
  * example, each binary form element gets its own set of 3 attachment relations.
  * <p>
+ * A manipulator may be constructed to share identical blob parts. A shared
+ * part is stored once, under a URI derived from the SHA-256 hash of its content,
+ * and has no top-level URI, since it may belong to several top-level entities.
+ * Every attachment containing the part references it through its own
+ * {@link BinaryContentRefBlob} row. Deleting an attachment queues a
+ * {@link SharedPartKey} for each of its shared parts; once the references are
+ * deleted, the part is deleted if no reference to it remains (see
+ * {@link #releaseSharedParts(List, CallingContext)}). Parts are only shared
+ * within one set of attachment relations (e.g., among the submissions of one
+ * form element).
+ * <p>
  *
  *
  * @author mitchellsundt@gmail.com
@@ -60,6 +79,7 @@ public class BinaryContentManipulator {
 
   private final String parentKey;
   private final String topLevelKey;
+  private final boolean shareParts;
 
   // these relations have already been asserted on the datastore...
   private final BinaryContent ctntRelation;
@@ -70,6 +90,102 @@ public class BinaryContentManipulator {
   private boolean refreshBeforeUse = true;
   private final Map<Long,BinaryContent> attachments = new HashMap<Long,BinaryContent>();
 
+  /** prefix of the URIs of shared blob parts */
+  private static final String SHARED_PART_URI_PREFIX = "sha256:";
+
+  /**
+   * Key of a shared blob part queued for deletion. Deleting it through
+   * {@link DeleteHelper#deleteEntities(List, CallingContext)} only deletes the
+   * part if no other attachment references it.
+   */
+  public static final class SharedPartKey extends EntityKey {
+    private final RefBlob part;
+    private final RefBlob blbRelation;
+    private final BinaryContentRefBlob vrefRelation;
+
+    SharedPartKey(RefBlob part, RefBlob blbRelation, BinaryContentRefBlob vrefRelation) {
+      super(blbRelation, part.getUri());
+      this.part = part;
+      this.blbRelation = blbRelation;
+      this.vrefRelation = vrefRelation;
+    }
+  }
+
+  /**
+   * @param part
+   * @return true if the blob part is shared between attachments.
+   */
+  static boolean isSharedPart(RefBlob part) {
+    return part.getTopLevelAuri() == null && part.getUri().startsWith(SHARED_PART_URI_PREFIX);
+  }
+
+  /**
+   * @param uri
+   *          the URI of a blob part, as recorded in a reference to it.
+   * @param blbRelation
+   * @param vrefRelation
+   * @param cc
+   * @return the key of the part if it is a shared part that exists, otherwise
+   *         null.
+   * @throws ODKDatastoreException
+   */
+  static SharedPartKey getSharedPartKey(String uri, RefBlob blbRelation,
+      BinaryContentRefBlob vrefRelation, CallingContext cc) throws ODKDatastoreException {
+    if (uri == null || !uri.startsWith(SHARED_PART_URI_PREFIX)) {
+      return null;
+    }
+    RefBlob part;
+    try {
+      part = cc.getDatastore().getEntity(blbRelation, uri, cc.getCurrentUser());
+    } catch (ODKEntityNotFoundException e) {
+      return null;
+    }
+    return isSharedPart(part) ? new SharedPartKey(part, blbRelation, vrefRelation) : null;
+  }
+
+  /**
+   * Delete the shared parts that are no longer referenced by any attachment.
+   * Called once the references of the deleted attachments are deleted, so that
+   * attachments deleted together do not keep each other's parts.
+   *
+   * @param keys
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public static void releaseSharedParts(List<SharedPartKey> keys, CallingContext cc)
+      throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    Set<String> released = new HashSet<String>();
+    for (SharedPartKey key : keys) {
+      // several of the deleted attachments may have shared the part
+      if (!released.add(key.blbRelation.getTableName() + "." + key.getKey())
+          || isSharedPartReferenced(key, cc)) {
+        continue;
+      }
+      try {
+        ds.deleteEntity(key, user);
+      } catch (ODKEntityNotFoundException e) {
+        continue;
+      }
+      // An attachment storing the same content may have reused the part
+      // between the check above and its deletion. That attachment checks that
+      // the part still exists after writing its reference, so either it sees
+      // the deletion or this sees its reference. Store the part again if so.
+      if (isSharedPartReferenced(key, cc)) {
+        BlobManipulator.putSharedPart(key.part.getValue(), key.blbRelation, cc);
+      }
+    }
+  }
+
+  private static boolean isSharedPartReferenced(SharedPartKey key, CallingContext cc)
+      throws ODKDatastoreException {
+    Query q = cc.getDatastore().createQuery(key.vrefRelation,
+        "BinaryContentManipulator.isSharedPartReferenced", cc.getCurrentUser());
+    q.addFilter(key.vrefRelation.subAuri, FilterOperation.EQUAL, key.getKey());
+    return !q.executeQuery().isEmpty();
+  }
+
   /**
    * Manipulator class for handling an in-memory blob
    *
@@ -80,6 +196,8 @@ public class BinaryContentManipulator {
 
     private List<BinaryContentRefBlob> dbBcbEntityList = new ArrayList<BinaryContentRefBlob>();
     private List<RefBlob> dbRefBlobList = new ArrayList<RefBlob>();
+    private final BinaryContentRefBlob bcbRef;
+    private final RefBlob ref;
 
     /**
      * Construct an blob entity and persist it into the data store
@@ -94,45 +212,209 @@ public class BinaryContentManipulator {
      * @throws ODKDatastoreException
      */
     public BlobManipulator(byte[] blob, String uriVersionedContent, BinaryContentRefBlob bcbRef,
-        RefBlob ref, String topLevelKey, CallingContext cc) throws ODKDatastoreException {
+        RefBlob ref, String topLevelKey, boolean shareParts, CallingContext cc)
+        throws ODKDatastoreException {
+      this.bcbRef = bcbRef;
+      this.ref = ref;
 
       // loop to create the VBCRB and RB entries for each part of the
       // larger blob
       long blobLimit = ref.value.getMaxCharLen();
       long part = 1L;
-      Datastore ds = cc.getDatastore();
-      User user = cc.getCurrentUser();
+      List<RefBlob> reusedParts = new ArrayList<RefBlob>();
       for (long index = 0; index < blob.length; index = index + blobLimit) {
         long endCopy = index + blobLimit;
         if (endCopy > blob.length)
           endCopy = blob.length;
         byte[] partialBlob = Arrays.copyOfRange(blob, (int) index, (int) endCopy);
-        RefBlob eBlob = ds.createEntityUsingRelation(ref, user);
+        storePart(partialBlob, part++, uriVersionedContent, bcbRef, ref, topLevelKey, shareParts,
+            dbBcbEntityList, dbRefBlobList, reusedParts, cc);
+      }
+      restoreReusedParts(reusedParts, ref, cc);
+    }
+
+    /**
+     * Store one part of a blob and the reference to it.
+     *
+     * @param partialBlob
+     * @param part
+     *          the 1-based position of the part within the blob.
+     * @param uriVersionedContent
+     * @param bcbRef
+     * @param ref
+     * @param topLevelKey
+     * @param shareParts
+     * @param bcbList
+     *          receives the stored reference.
+     * @param refBlobList
+     *          receives the stored part.
+     * @param reusedParts
+     *          receives the part if an existing shared part was reused.
+     * @param cc
+     * @throws ODKDatastoreException
+     */
+    private static void storePart(byte[] partialBlob, long part, String uriVersionedContent,
+        BinaryContentRefBlob bcbRef, RefBlob ref, String topLevelKey, boolean shareParts,
+        List<BinaryContentRefBlob> bcbList, List<RefBlob> refBlobList, List<RefBlob> reusedParts,
+        CallingContext cc) throws ODKDatastoreException {
+      Datastore ds = cc.getDatastore();
+      User user = cc.getCurrentUser();
+      RefBlob eBlob = null;
+      if (shareParts) {
+        eBlob = getSharedPart(partialBlob, ref, cc);
+        if (eBlob != null) {
+          reusedParts.add(eBlob);
+        } else {
+          eBlob = putSharedPart(partialBlob, ref, cc);
+        }
+      }
+      if (eBlob == null) {
+        eBlob = ds.createEntityUsingRelation(ref, user);
         eBlob.setTopLevelAuri(topLevelKey);
         eBlob.setValue(partialBlob);
-        dbRefBlobList.add(eBlob);
-        BinaryContentRefBlob bcb = ds.createEntityUsingRelation(bcbRef, user);
-        bcb.setTopLevelAuri(topLevelKey);
-        bcb.setDomAuri(uriVersionedContent);
-        bcb.setSubAuri(eBlob.getUri());
-        bcb.setPart(part++);
-        dbBcbEntityList.add(bcb);
         ds.putEntity(eBlob, user);
-        ds.putEntity(bcb, user);
+      }
+      refBlobList.add(eBlob);
+      BinaryContentRefBlob bcb = ds.createEntityUsingRelation(bcbRef, user);
+      bcb.setTopLevelAuri(topLevelKey);
+      bcb.setDomAuri(uriVersionedContent);
+      bcb.setSubAuri(eBlob.getUri());
+      bcb.setPart(part);
+      bcbList.add(bcb);
+      ds.putEntity(bcb, user);
+    }
+
+    /**
+     * A reused part may have been released along with its other references
+     * before ours were written. Store it again if so.
+     *
+     * @param reusedParts
+     * @param ref
+     * @param cc
+     * @throws ODKDatastoreException
+     */
+    private static void restoreReusedParts(List<RefBlob> reusedParts, RefBlob ref,
+        CallingContext cc) throws ODKDatastoreException {
+      Datastore ds = cc.getDatastore();
+      User user = cc.getCurrentUser();
+      for (RefBlob eBlob : reusedParts) {
+        try {
+          ds.getEntity(ref, eBlob.getUri(), user);
+        } catch (ODKEntityNotFoundException e) {
+          putSharedPart(eBlob.getValue(), ref, cc);
+        }
+      }
+    }
+
+    private static String getSharedPartUri(byte[] partialBlob) {
+      try {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        String sha256 = new BigInteger(1, md.digest(partialBlob)).toString(16);
+        while (sha256.length() < 64)
+          sha256 = "0" + sha256;
+        return SHARED_PART_URI_PREFIX + sha256;
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException("Unexpected problem computing sha256 hash", e);
+      }
+    }
+
+    /**
+     * @param partialBlob
+     * @param ref
+     * @param cc
+     * @return the shared part holding this content, or null if there is none.
+     * @throws ODKDatastoreException
+     */
+    private static RefBlob getSharedPart(byte[] partialBlob, RefBlob ref, CallingContext cc)
+        throws ODKDatastoreException {
+      String uri = getSharedPartUri(partialBlob);
+      try {
+        RefBlob eBlob = cc.getDatastore().getEntity(ref, uri, cc.getCurrentUser());
+        // guard against a hash collision
+        if (Arrays.equals(eBlob.getValue(), partialBlob)) {
+          return eBlob;
+        }
+      } catch (ODKEntityNotFoundException e) {
+        // not yet stored
+      }
+      return null;
+    }
+
+    /**
+     * Store a shared part under the URI derived from its content.
+     *
+     * @param partialBlob
+     * @param ref
+     * @param cc
+     * @return the stored part, or null if a different part holds that URI.
+     * @throws ODKDatastoreException
+     */
+    private static RefBlob putSharedPart(byte[] partialBlob, RefBlob ref, CallingContext cc)
+        throws ODKDatastoreException {
+      Datastore ds = cc.getDatastore();
+      User user = cc.getCurrentUser();
+      String uri = getSharedPartUri(partialBlob);
+      RefBlob eBlob = ds.createEntityUsingRelation(ref, user);
+      eBlob.setStringField(ref.primaryKey, uri);
+      eBlob.setValue(partialBlob);
+      try {
+        ds.putEntity(eBlob, user);
+        return eBlob;
+      } catch (ODKEntityPersistException e) {
+        // someone else may have stored the same part first
+        RefBlob existing = getSharedPart(partialBlob, ref, cc);
+        if (existing != null) {
+          return existing;
+        }
+        try {
+          ds.getEntity(ref, uri, user);
+        } catch (ODKEntityNotFoundException ex) {
+          throw e;
+        }
+        // a hash collision
+        return null;
       }
     }
 
     public BlobManipulator(String uriVersionedContent, BinaryContentRefBlob bcbRef, RefBlob ref,
         CallingContext cc) throws ODKDatastoreException {
+      this.bcbRef = bcbRef;
+      this.ref = ref;
 
       Datastore ds = cc.getDatastore();
       User user = cc.getCurrentUser();
       // gather the ordered list of parts...
+      dbBcbEntityList.addAll(getOrderedParts(uriVersionedContent, bcbRef, cc));
+
+      // and gather the blob parts themselves...
+      for (BinaryContentRefBlob b : dbBcbEntityList) {
+        RefBlob eBlob = ds.getEntity(ref, b.getSubAuri(), user);
+        if (eBlob == null) {
+          throw new IllegalStateException("Missing blob part!");
+        }
+        dbRefBlobList.add(eBlob);
+      }
+    }
+
+    /**
+     * Retrieve the references to the parts of a blob, in order.
+     *
+     * @param uriVersionedContent
+     * @param bcbRef
+     * @param cc
+     * @return the references to the parts of the blob.
+     * @throws ODKDatastoreException
+     */
+    private static List<BinaryContentRefBlob> getOrderedParts(String uriVersionedContent,
+        BinaryContentRefBlob bcbRef, CallingContext cc) throws ODKDatastoreException {
+      Datastore ds = cc.getDatastore();
+      User user = cc.getCurrentUser();
       Query q = ds.createQuery(bcbRef, "BinaryContentManipulator.BlobManipulator.constructor", user);
       q.addFilter(bcbRef.domAuri, FilterOperation.EQUAL, uriVersionedContent);
       q.addSort(bcbRef.domAuri, Direction.ASCENDING); // gae optimization
       q.addSort(bcbRef.part, Direction.ASCENDING);
       List<? extends CommonFieldsBase> bcbList = q.executeQuery();
+      List<BinaryContentRefBlob> parts = new ArrayList<BinaryContentRefBlob>();
       long expectedPart = 1L;
       for (CommonFieldsBase cb : bcbList) {
         BinaryContentRefBlob bcref = (BinaryContentRefBlob) cb;
@@ -144,16 +426,34 @@ public class BinaryContentManipulator {
           throw new ODKEnumeratedElementException(errString);
         }
         ++expectedPart;
-        dbBcbEntityList.add(bcref);
+        parts.add(bcref);
       }
+      return parts;
+    }
 
-      // and gather the blob parts themselves...
-      for (BinaryContentRefBlob b : dbBcbEntityList) {
+    /**
+     * Write a blob to the stream one part at a time, without reconstructing it
+     * in memory.
+     *
+     * @param uriVersionedContent
+     * @param bcbRef
+     * @param ref
+     * @param out
+     * @param cc
+     * @throws ODKDatastoreException
+     * @throws IOException
+     */
+    public static void writeBlob(String uriVersionedContent, BinaryContentRefBlob bcbRef,
+        RefBlob ref, OutputStream out, CallingContext cc) throws ODKDatastoreException,
+        IOException {
+      Datastore ds = cc.getDatastore();
+      User user = cc.getCurrentUser();
+      for (BinaryContentRefBlob b : getOrderedParts(uriVersionedContent, bcbRef, cc)) {
         RefBlob eBlob = ds.getEntity(ref, b.getSubAuri(), user);
         if (eBlob == null) {
           throw new IllegalStateException("Missing blob part!");
         }
-        dbRefBlobList.add(eBlob);
+        out.write(eBlob.getValue());
       }
     }
 
@@ -187,7 +487,8 @@ public class BinaryContentManipulator {
      * Pay attention to the order of insertion so that if
      * we reverse the resulting keyList, we can delete the
      * entities in order and not get into a bad database
-     * state. 
+     * state. Shared parts are added as {@link SharedPartKey}s,
+     * so that they are only deleted once unreferenced.
      *  
      * @param keyList
      */
@@ -202,14 +503,21 @@ public class BinaryContentManipulator {
         String sub = e.getSubAuri();
         RefBlob r = blobs.get(sub);
         if ( r != null ) {
-          keyList.add(r.getEntityKey());
+          keyList.add(getEntityKey(r));
           blobs.remove(sub);
         }
         keyList.add(e.getEntityKey());
       }
       for (RefBlob r : blobs.values()) {
-        keyList.add(r.getEntityKey());
+        keyList.add(getEntityKey(r));
+      }
+    }
+
+    private EntityKey getEntityKey(RefBlob r) {
+      if ( isSharedPart(r) ) {
+        return new SharedPartKey(r, ref, bcbRef);
       }
+      return r.getEntityKey();
     }
 
     public void persist(CallingContext cc) throws ODKEntityPersistException, ODKOverQuotaException {
@@ -223,8 +531,24 @@ public class BinaryContentManipulator {
 
   public BinaryContentManipulator(String parentKey, String topLevelKey, BinaryContent ctntRelation,
       BinaryContentRefBlob vrefRelation, RefBlob blbRelation) {
+    this(parentKey, topLevelKey, ctntRelation, vrefRelation, blbRelation, false);
+  }
+
+  /**
+   * @param parentKey
+   * @param topLevelKey
+   * @param ctntRelation
+   * @param vrefRelation
+   * @param blbRelation
+   * @param shareParts
+   *          true if the blob parts of new attachments are stored once and
+   *          shared with any other attachment having an identical part.
+   */
+  public BinaryContentManipulator(String parentKey, String topLevelKey, BinaryContent ctntRelation,
+      BinaryContentRefBlob vrefRelation, RefBlob blbRelation, boolean shareParts) {
     this.parentKey = parentKey;
     this.topLevelKey = topLevelKey;
+    this.shareParts = shareParts;
     this.ctntRelation = ctntRelation;
     this.vrefRelation = vrefRelation;
     this.blbRelation = blbRelation;
@@ -358,6 +682,176 @@ public class BinaryContentManipulator {
     return blbManipulator.getBlob();
   }
 
+  /**
+   * Write the contents of the attachment to the stream. Only one part of the
+   * attachment is held in memory at a time.
+   *
+   * @param ordinal
+   * @param out
+   * @param cc
+   * @throws ODKDatastoreException
+   * @throws IOException
+   */
+  public void writeBlob(int ordinal, OutputStream out, CallingContext cc)
+      throws ODKDatastoreException, IOException {
+    updateAttachments(cc);
+    BinaryContent b = attachments.get(Long.valueOf(ordinal));
+    if (b == null) {
+      // we are somehow out of sync!
+      throw new IllegalStateException("missing attachment declaration");
+    }
+    BlobManipulator.writeBlob(b.getUri(), vrefRelation, blbRelation, out, cc);
+  }
+
+  /**
+   * Save an attachment whose contents are written to the returned stream,
+   * replacing any existing attachment with the same file path. Each part is
+   * stored as soon as it fills, so the contents are never held in memory as a
+   * whole. The attachment has no content hash, and so is treated as
+   * incomplete, until the stream is closed.
+   *
+   * @param contentType
+   * @param unrootedFilePath
+   * @param cc
+   * @return the stream to write the attachment to.
+   * @throws ODKDatastoreException
+   */
+  public OutputStream newAttachmentOutputStream(String contentType, String unrootedFilePath,
+      CallingContext cc) throws ODKDatastoreException {
+    if (contentType == null) {
+      throw new IllegalArgumentException("unexpected null values passed into method");
+    }
+    BinaryContent matchedBc = null;
+    updateAttachments(cc);
+    for (BinaryContent bc : attachments.values()) {
+      String bcFilePath = bc.getUnrootedFilePath();
+      if ((bcFilePath == null) ? (unrootedFilePath == null)
+          : (unrootedFilePath != null && bcFilePath.equals(unrootedFilePath))) {
+        matchedBc = bc;
+        break;
+      }
+    }
+
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+
+    // same steps as setValueFromByteArray(), except that step (3) happens as
+    // the stream is written and step (4) when it is closed.
+    boolean newBc = (matchedBc == null);
+    if (newBc) {
+      // Step (0)
+      matchedBc = ds.createEntityUsingRelation(ctntRelation, user);
+      matchedBc.setTopLevelAuri(topLevelKey);
+      matchedBc.setParentAuri(parentKey);
+      matchedBc.setOrdinalNumber(internalGetAttachmentCount() + 1L);
+      matchedBc.setUnrootedFilePath(unrootedFilePath);
+    }
+
+    // Step (1)
+    matchedBc.setContentHash(null);
+    matchedBc.setContentType(contentType);
+    matchedBc.setContentLength(null);
+    ds.putEntity(matchedBc, user);
+    if (newBc) {
+      attachments.put(matchedBc.getOrdinalNumber(), matchedBc);
+    }
+
+    // Step (2)
+    BlobManipulator b = new BlobManipulator(matchedBc.getUri(), vrefRelation, blbRelation, cc);
+    List<EntityKey> keyList = new ArrayList<EntityKey>();
+    b.recursivelyAddEntityKeysForDeletion(keyList);
+    DeleteHelper.deleteEntities(keyList, cc);
+
+    return new AttachmentOutputStream(matchedBc, cc);
+  }
+
+  /**
+   * Stores the attachment one part at a time; see
+   * {@link BinaryContentManipulator#newAttachmentOutputStream}.
+   */
+  private final class AttachmentOutputStream extends OutputStream {
+    private final BinaryContent bc;
+    private final CallingContext cc;
+    private final byte[] buffer;
+    private final MessageDigest md5;
+    private final List<BinaryContentRefBlob> bcbList = new ArrayList<BinaryContentRefBlob>();
+    private final List<RefBlob> refBlobList = new ArrayList<RefBlob>();
+    private final List<RefBlob> reusedParts = new ArrayList<RefBlob>();
+    private int count = 0;
+    private long length = 0L;
+    private long part = 1L;
+    private boolean closed = false;
+
+    AttachmentOutputStream(BinaryContent bc, CallingContext cc) {
+      this.bc = bc;
+      this.cc = cc;
+      this.buffer = new byte[blbRelation.value.getMaxCharLen().intValue()];
+      try {
+        this.md5 = MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException("Unexpected problem computing md5 hash", e);
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (closed) {
+        throw new IOException("attachment stream is closed");
+      }
+      while (len > 0) {
+        int n = Math.min(len, buffer.length - count);
+        System.arraycopy(b, off, buffer, count, n);
+        md5.update(b, off, n);
+        count += n;
+        length += n;
+        off += n;
+        len -= n;
+        if (count == buffer.length) {
+          storeBufferedPart();
+        }
+      }
+    }
+
+    private void storeBufferedPart() throws IOException {
+      try {
+        BlobManipulator.storePart(Arrays.copyOf(buffer, count), part++, bc.getUri(),
+            vrefRelation, blbRelation, topLevelKey, shareParts, bcbList, refBlobList,
+            reusedParts, cc);
+      } catch (ODKDatastoreException e) {
+        throw new IOException(e);
+      }
+      count = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (count > 0) {
+        storeBufferedPart();
+      }
+      String md5Hash = new BigInteger(1, md5.digest()).toString(16);
+      while (md5Hash.length() < 32)
+        md5Hash = "0" + md5Hash;
+      try {
+        BlobManipulator.restoreReusedParts(reusedParts, blbRelation, cc);
+        // Step (4)
+        bc.setContentLength(length);
+        bc.setContentHash("md5:" + md5Hash);
+        cc.getDatastore().putEntity(bc, cc.getCurrentUser());
+      } catch (ODKDatastoreException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+
   /**
    * Atomically rename the given source file path to the destination path.
    * Will fail if the destination path already exists.
@@ -519,7 +1013,7 @@ public class BinaryContentManipulator {
         // persist the binary data
         @SuppressWarnings("unused")
         BlobManipulator subBlob = new BlobManipulator(byteArray, matchedBc.getUri(), vrefRelation,
-            blbRelation, topLevelKey, cc);
+            blbRelation, topLevelKey, shareParts, cc);
 
         // Step (4)
         matchedBc.setContentHash(md5Hash);
@@ -555,7 +1049,7 @@ public class BinaryContentManipulator {
         // persist the binary data
         @SuppressWarnings("unused")
         BlobManipulator subBlob = new BlobManipulator(byteArray, matchedBc.getUri(), vrefRelation,
-            blbRelation, topLevelKey, cc);
+            blbRelation, topLevelKey, shareParts, cc);
 
         // Step (4)
         matchedBc.setContentHash(md5Hash);
@@ -617,6 +1111,43 @@ public class BinaryContentManipulator {
     }
   }
 
+  /**
+   * Replace the attachments with those of another manipulator of the same
+   * relations and top-level entity. The attachments are moved under this
+   * parent key without copying their contents; the source is left empty.
+   *
+   * @param source
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public synchronized void replaceAttachments(BinaryContentManipulator source, CallingContext cc)
+      throws ODKDatastoreException {
+    if (!topLevelKey.equals(source.topLevelKey)) {
+      throw new IllegalArgumentException("attachments belong to another top-level entity");
+    }
+    deleteAll(cc);
+    synchronized (source) {
+      boolean success = false;
+      try {
+        source.updateAttachments(cc);
+        for (BinaryContent bc : source.attachments.values()) {
+          bc.setParentAuri(parentKey);
+          attachments.put(bc.getOrdinalNumber(), bc);
+        }
+        cc.getDatastore().putEntities(source.attachments.values(), cc.getCurrentUser());
+        success = true;
+      } finally {
+        // on failure, both are re-read from the datastore when next used
+        refreshBeforeUse = !success;
+        source.refreshBeforeUse = !success;
+        source.attachments.clear();
+        if (!success) {
+          attachments.clear();
+        }
+      }
+    }
+  }
+
   /**
    * Remove this binary content from the datastore.
    *
@@ -48,6 +48,9 @@ public final class BinaryContentRefBlob extends DynamicAssociationBase {
     public BinaryContentRefBlob(String databaseSchema, String tableName) {
         super(databaseSchema, tableName);
         fieldList.add(part = new DataField(PART));
+
+        // for counting the references to a shared blob part
+        addCompositeIndex(subAuri, domAuri);
     }
 
     /**
@@ -15,15 +15,18 @@
  */
 package org.opendatakit.common.datamodel;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
+import org.opendatakit.common.datamodel.BinaryContentManipulator.SharedPartKey;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.EntityKey;
 import org.opendatakit.common.persistence.Query;
@@ -44,7 +47,8 @@ public class DeleteHelper {
    * Delete the list of objects. Deletion is in reverse order from the ordering
    * of the keys in the supplied list (the supplied list is easier to construct
    * in retrieval order, and we generally want to delete using a
-   * reverse-retrieval order).
+   * reverse-retrieval order). Shared blob parts are released after
+   * everything else is deleted.
    * 
    * @param keys
    * @param cc
@@ -52,6 +56,14 @@ public class DeleteHelper {
    */
   public static void deleteEntities(List<EntityKey> keys, CallingContext cc)
       throws ODKDatastoreException {
+    List<SharedPartKey> sharedParts = new ArrayList<SharedPartKey>();
+    for (EntityKey key : keys) {
+      if (key instanceof SharedPartKey) {
+        sharedParts.add((SharedPartKey) key);
+      }
+    }
+    keys.removeAll(sharedParts);
+
     // reverse the list of entities so that we delete them
     // in the reverse order...
     Collections.reverse(keys);
@@ -114,10 +126,27 @@ public class DeleteHelper {
         }
       }
     }
+
+    // the references are gone; delete the shared parts no longer referenced
+    BinaryContentManipulator.releaseSharedParts(sharedParts, cc);
   }
 
+  /**
+   * Delete whatever portion of a submission is present.
+   *
+   * @param tle
+   * @param backingObjects
+   *          the relations of the form.
+   * @param attachmentRelations
+   *          the blob relation of each binary element of the form, keyed by
+   *          its reference relation.
+   * @param cc
+   * @throws ODKDatastoreException
+   */
   public static void deleteDamagedSubmission(TopLevelDynamicBase tle,
-      Set<DynamicCommonFieldsBase> backingObjects, CallingContext cc) throws ODKDatastoreException {
+      Set<DynamicCommonFieldsBase> backingObjects,
+      Map<BinaryContentRefBlob, RefBlob> attachmentRelations, CallingContext cc)
+      throws ODKDatastoreException {
     
     Logger logger = LoggerFactory.getLogger(DeleteHelper.class);
 
@@ -136,10 +165,30 @@ public class DeleteHelper {
         groups.add((DynamicBase) dcb);
       }
     }
+    associations.addAll(attachmentRelations.keySet());
+    documents.addAll(attachmentRelations.values());
 
     logger.info("deleteDamagedSubmissions begin purging records for badTopLevelEntity: "
         + tle.getUri());
 
+    // shared blob parts have no top-level URI; find them through the
+    // references, and release them once those are deleted.
+    List<SharedPartKey> sharedParts = new ArrayList<SharedPartKey>();
+    for (Map.Entry<BinaryContentRefBlob, RefBlob> e : attachmentRelations.entrySet()) {
+      BinaryContentRefBlob bcbRef = e.getKey();
+      Query q = cc.getDatastore().createQuery(bcbRef, "purge(damaged) - shared parts",
+          cc.getCurrentUser());
+      q.addFilter(bcbRef.topLevelAuri, FilterOperation.EQUAL, tle.getUri());
+      List<? extends CommonFieldsBase> results = q.executeQuery();
+      for (CommonFieldsBase c : results) {
+        SharedPartKey key = BinaryContentManipulator.getSharedPartKey(
+            ((BinaryContentRefBlob) c).getSubAuri(), e.getValue(), bcbRef, cc);
+        if (key != null) {
+          sharedParts.add(key);
+        }
+      }
+    }
+
     // delete documents
     for (DynamicDocumentBase dd : documents) {
       Query q = cc.getDatastore().createQuery(dd, "purge(damaged) - documents",
@@ -172,6 +221,8 @@ public class DeleteHelper {
       }
     }
 
+    BinaryContentManipulator.releaseSharedParts(sharedParts, cc);
+
     // delete top level entity
     cc.getDatastore().deleteEntity(tle.getEntityKey(), cc.getCurrentUser());
     logger.info("deleteDamagedSubmissions end purging records for badTopLevelEntity: "
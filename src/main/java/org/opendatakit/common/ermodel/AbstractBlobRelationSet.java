@@ -13,6 +13,8 @@
  */
 package org.opendatakit.common.ermodel;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Date;
 import java.util.List;
 
@@ -345,6 +347,12 @@ public class AbstractBlobRelationSet implements BlobRelationSet {
       return m.getBlob(ordinal, cc);
     }
 
+    @Override
+    public void writeBlob(int ordinal, OutputStream out, CallingContext cc)
+        throws ODKDatastoreException, IOException {
+      m.writeBlob(ordinal, out, cc);
+    }
+
     @Override
     public String getContentHash(int ordinal, CallingContext cc) throws ODKDatastoreException {
       return m.getContentHash(ordinal, cc);
@@ -13,6 +13,8 @@
  */
 package org.opendatakit.common.ermodel;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Date;
 
 import org.opendatakit.common.datamodel.BinaryContentManipulator.BlobSubmissionOutcome;
@@ -143,6 +145,20 @@ public interface BlobEntitySet {
    */
   public byte[] getBlob(int ordinal, CallingContext cc) throws ODKDatastoreException;
 
+  /**
+   * Write the contents of the "ordinal'th" blob to the stream without holding
+   * the whole blob in memory.
+   * 
+   * @param ordinal
+   *          [1..]
+   * @param out
+   * @param cc
+   * @throws ODKDatastoreException
+   * @throws IOException
+   */
+  public void writeBlob(int ordinal, OutputStream out, CallingContext cc)
+      throws ODKDatastoreException, IOException;
+
   /**
    * Save this BlobSet. Only useful for empty blob sets, as inserting a blob
    * always causes an immediate persist of the blob set.
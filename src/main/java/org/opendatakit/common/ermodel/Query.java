@@ -19,7 +19,9 @@ package org.opendatakit.common.ermodel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.lang3.Validate;
 import org.opendatakit.common.ermodel.Relation.RelationImpl;
@@ -413,6 +415,28 @@ public class Query {
     return this;
   }
 
+  /**
+   * Narrows the scope of the query to only include entities whose value for at
+   * least one of the given fields is in the values for that field. A null
+   * within the values matches entities whose value for that field is null.
+   *
+   * @param valuesByFieldName
+   *          the values to filter by, keyed by the name of a field in the
+   *          Relation of this query. Must not be null or empty.
+   * @return this Query, with the filter added. All entities not matching any
+   *         of the fields will be excluded from the query.
+   */
+  public Query includeAny(Map<String, ? extends Collection<?>> valuesByFieldName) {
+    Validate.notEmpty(valuesByFieldName);
+    Map<DataField, Collection<?>> valueSets = new LinkedHashMap<DataField, Collection<?>>();
+    for (Map.Entry<String, ? extends Collection<?>> entry : valuesByFieldName.entrySet()) {
+      Validate.notNull(entry.getValue());
+      valueSets.put(relation.getDataField(entry.getKey()), entry.getValue());
+    }
+    query.addValueSetDisjunctionFilter(valueSets);
+    return this;
+  }
+
   /**
    * Get the single entity result of the query.
    *
@@ -198,6 +198,20 @@ public class Relation {
     initialize(fields, cc);
   }
 
+  /**
+   * Multi-column indexes to create on the backing table, each given as the
+   * list of its column names. These may include the reserved column names
+   * (e.g., _CREATION_DATE and _URI). Override this to support the sort
+   * orders of the relation's cursor queries.
+   *
+   * NOTE: this is called from within the constructor.
+   *
+   * @return the column names of each composite index; empty by default.
+   */
+  protected List<List<String>> getCompositeIndexColumnNames() {
+    return Collections.emptyList();
+  }
+
   /**
    * Create a new entity. This entity does not exist in the database until you
    * put() it there.
@@ -357,6 +371,23 @@ public class Relation {
       super(ref, user);
     }
 
+    void addCompositeIndex(List<String> columnNames) {
+      DataField[] fields = new DataField[columnNames.size()];
+      for (int i = 0; i < fields.length; ++i) {
+        for (DataField f : getFieldList()) {
+          if (f.getName().equals(columnNames.get(i))) {
+            fields[i] = f;
+            break;
+          }
+        }
+        if (fields[i] == null) {
+          throw new IllegalArgumentException("Index column " + columnNames.get(i)
+              + " does not exist in " + getTableName());
+        }
+      }
+      addCompositeIndex(fields);
+    }
+
     @Override
     public CommonFieldsBase getEmptyRow(User user) {
       return new RelationImpl(this, user);
@@ -776,6 +807,9 @@ public class Relation {
     String schema = ds.getDefaultSchemaName();
     synchronized (Relation.class) {
       RelationImpl candidate = new RelationImpl(schema, backingTableName, definedFields);
+      for (List<String> columnNames : getCompositeIndexColumnNames()) {
+        candidate.addCompositeIndex(columnNames);
+      }
       ds.assertRelation(candidate, user);
       prototype = candidate;
     }
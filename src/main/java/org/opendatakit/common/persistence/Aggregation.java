@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * A grouped aggregation over the records matching a query, for
+ * {@link Query#executeAggregateQuery(Aggregation)}.
+ *
+ * The records of the queried relation may be joined to the records of other
+ * relations that refer to them (e.g., the choices of a multiple-choice field,
+ * or a phantom table), as a left outer join on the join field of the other
+ * relation. The joined records are then grouped by the bucketed values of the
+ * group-by fields and the measures are computed over each group.
+ */
+public final class Aggregation {
+
+  /**
+   * How the values of a group-by field are assigned to groups.
+   */
+  public enum Bucket {
+    /** one group per distinct value */
+    VALUE,
+    /** numeric ranges of the given width; the key is floor(value / width) */
+    RANGE,
+    /** dates by year; the key is yyyy */
+    YEAR,
+    /** dates by month; the key is yyyy-MM */
+    MONTH,
+    /** dates by day; the key is yyyy-MM-dd */
+    DAY
+  }
+
+  /**
+   * A field of the queried relation or of a joined relation.
+   */
+  public static class JoinedField {
+    private final CommonFieldsBase relation;
+    private final DataField joinField;
+    private final DataField field;
+
+    JoinedField(CommonFieldsBase relation, DataField joinField, DataField field) {
+      if (!relation.getFieldList().contains(field)
+          || (joinField != null && !relation.getFieldList().contains(joinField))) {
+        throw new IllegalArgumentException("Attempting to aggregate a field not belonging to "
+            + relation.getSchemaName() + "." + relation.getTableName());
+      }
+      this.relation = relation;
+      this.joinField = joinField;
+      this.field = field;
+    }
+
+    /**
+     * @return the relation holding the field.
+     */
+    public CommonFieldsBase getRelation() {
+      return relation;
+    }
+
+    /**
+     * @return the field of the relation holding the primary key of the
+     *         queried record, or null if the relation is the queried relation.
+     */
+    public DataField getJoinField() {
+      return joinField;
+    }
+
+    public DataField getField() {
+      return field;
+    }
+  }
+
+  public static final class GroupBy extends JoinedField {
+    private final Bucket bucket;
+    private final BigDecimal width;
+
+    GroupBy(CommonFieldsBase relation, DataField joinField, DataField field, Bucket bucket,
+        BigDecimal width) {
+      super(relation, joinField, field);
+      if (bucket == Bucket.RANGE && (width == null || width.signum() <= 0)) {
+        throw new IllegalArgumentException("range buckets need a positive width");
+      }
+      this.bucket = bucket;
+      this.width = width;
+    }
+
+    public Bucket getBucket() {
+      return bucket;
+    }
+
+    /**
+     * @return the width of a RANGE bucket.
+     */
+    public BigDecimal getWidth() {
+      return width;
+    }
+  }
+
+  /**
+   * The count of the non-null values of a field, and their sum (for numeric
+   * fields), minimum and maximum.
+   */
+  public static final class Measure extends JoinedField {
+    Measure(CommonFieldsBase relation, DataField joinField, DataField field) {
+      super(relation, joinField, field);
+    }
+
+    /**
+     * @return true if the values of the field can be summed.
+     */
+    public boolean isSummable() {
+      DataField.DataType type = getField().getDataType();
+      return type == DataField.DataType.INTEGER || type == DataField.DataType.DECIMAL;
+    }
+  }
+
+  /**
+   * The aggregates of one group.
+   */
+  public static final class Result {
+    private final Object[] keys;
+    private final long count;
+    private final long[] valueCounts;
+    private final WrappedBigDecimal[] sums;
+    private final Object[] mins;
+    private final Object[] maxes;
+
+    public Result(Object[] keys, long count, long[] valueCounts, WrappedBigDecimal[] sums,
+        Object[] mins, Object[] maxes) {
+      this.keys = keys;
+      this.count = count;
+      this.valueCounts = valueCounts;
+      this.sums = sums;
+      this.mins = mins;
+      this.maxes = maxes;
+    }
+
+    /**
+     * @param i
+     *          index of the group-by.
+     * @return the key of the group for the i'th group-by: the value, the range
+     *         number (a Long) or the formatted date (a String).
+     */
+    public Object getKey(int i) {
+      return keys[i];
+    }
+
+    /**
+     * @return the number of joined records in the group.
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * @param i
+     *          index of the measure.
+     * @return the number of non-null values.
+     */
+    public long getValueCount(int i) {
+      return valueCounts[i];
+    }
+
+    /**
+     * @param i
+     *          index of the measure.
+     * @return the sum of the values, or null if not summable or no values.
+     */
+    public WrappedBigDecimal getSum(int i) {
+      return sums[i];
+    }
+
+    public Object getMin(int i) {
+      return mins[i];
+    }
+
+    public Object getMax(int i) {
+      return maxes[i];
+    }
+  }
+
+  private final List<GroupBy> groupBys = new ArrayList<GroupBy>();
+  private final List<Measure> measures = new ArrayList<Measure>();
+
+  /**
+   * Group by a field.
+   *
+   * @param relation
+   *          the queried relation or a relation to join to it.
+   * @param joinField
+   *          the field of the joined relation holding the primary key of the
+   *          queried record; null for the queried relation.
+   * @param field
+   * @param bucket
+   * @param width
+   *          the width of RANGE buckets; otherwise ignored.
+   */
+  public void addGroupBy(CommonFieldsBase relation, DataField joinField, DataField field,
+      Bucket bucket, BigDecimal width) {
+    groupBys.add(new GroupBy(relation, joinField, field, bucket, width));
+  }
+
+  /**
+   * Compute the count, sum, minimum and maximum of a field over each group.
+   *
+   * @param relation
+   *          the queried relation or a relation to join to it.
+   * @param joinField
+   *          the field of the joined relation holding the primary key of the
+   *          queried record; null for the queried relation.
+   * @param field
+   */
+  public void addMeasure(CommonFieldsBase relation, DataField joinField, DataField field) {
+    measures.add(new Measure(relation, joinField, field));
+  }
+
+  public List<GroupBy> getGroupBys() {
+    return Collections.unmodifiableList(groupBys);
+  }
+
+  public List<Measure> getMeasures() {
+    return Collections.unmodifiableList(measures);
+  }
+
+  /**
+   * @return the distinct relations other than the queried relation, each with
+   *         its join field, in order of first use.
+   */
+  public List<JoinedField> getJoinedRelations() {
+    Map<String, JoinedField> joined = new LinkedHashMap<String, JoinedField>();
+    List<JoinedField> fields = new ArrayList<JoinedField>(groupBys);
+    fields.addAll(measures);
+    for (JoinedField f : fields) {
+      if (f.getJoinField() != null) {
+        String key = getRelationKey(f.getRelation());
+        if (!joined.containsKey(key)) {
+          joined.put(key, f);
+        }
+      }
+    }
+    return new ArrayList<JoinedField>(joined.values());
+  }
+
+  public static String getRelationKey(CommonFieldsBase relation) {
+    return relation.getSchemaName() + "." + relation.getTableName();
+  }
+
+  /**
+   * A description of this aggregation, for use in cache keys.
+   */
+  public String getSignature() {
+    StringBuilder b = new StringBuilder();
+    for (GroupBy g : groupBys) {
+      b.append("G|").append(getRelationKey(g.getRelation())).append('|')
+          .append(g.getField().getName()).append('|').append(g.getBucket()).append('|')
+          .append(g.getWidth()).append(';');
+    }
+    for (Measure m : measures) {
+      b.append("M|").append(getRelationKey(m.getRelation())).append('|')
+          .append(m.getField().getName()).append(';');
+    }
+    return b.toString();
+  }
+
+  /**
+   * Compute the aggregation in memory, for persistence layers without grouped
+   * queries.
+   *
+   * @param baseRows
+   *          the records matching the query.
+   * @param joinedRows
+   *          the records of each joined relation, by relation key. These may
+   *          include records not joined to any of the base rows.
+   * @return the aggregates of each group.
+   */
+  public List<Result> evaluate(List<? extends CommonFieldsBase> baseRows,
+      Map<String, List<? extends CommonFieldsBase>> joinedRows) {
+
+    List<JoinedField> joined = getJoinedRelations();
+    // relation key => (uri of queried record => joined records)
+    List<Map<String, List<CommonFieldsBase>>> indexes = new ArrayList<Map<String, List<CommonFieldsBase>>>();
+    for (JoinedField j : joined) {
+      Map<String, List<CommonFieldsBase>> index = new HashMap<String, List<CommonFieldsBase>>();
+      List<? extends CommonFieldsBase> rows = joinedRows.get(getRelationKey(j.getRelation()));
+      if (rows != null) {
+        for (CommonFieldsBase row : rows) {
+          String parent = row.getStringField(j.getJoinField());
+          List<CommonFieldsBase> siblings = index.get(parent);
+          if (siblings == null) {
+            siblings = new ArrayList<CommonFieldsBase>();
+            index.put(parent, siblings);
+          }
+          siblings.add(row);
+        }
+      }
+      indexes.add(index);
+    }
+
+    Map<List<Object>, Accumulator> groups = new LinkedHashMap<List<Object>, Accumulator>();
+    Map<String, CommonFieldsBase> combination = new HashMap<String, CommonFieldsBase>();
+    for (CommonFieldsBase base : baseRows) {
+      combination.clear();
+      accumulate(base, joined, indexes, 0, combination, groups);
+    }
+
+    List<Result> results = new ArrayList<Result>();
+    for (Map.Entry<List<Object>, Accumulator> e : groups.entrySet()) {
+      results.add(e.getValue().toResult(e.getKey()));
+    }
+    return results;
+  }
+
+  private final class Accumulator {
+    long count = 0L;
+    final long[] valueCounts = new long[measures.size()];
+    final BigDecimal[] sums = new BigDecimal[measures.size()];
+    final Object[] mins = new Object[measures.size()];
+    final Object[] maxes = new Object[measures.size()];
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    void add(Map<String, CommonFieldsBase> combination) {
+      ++count;
+      for (int i = 0; i < measures.size(); ++i) {
+        Measure m = measures.get(i);
+        CommonFieldsBase row = combination.get(getRelationKey(m.getRelation()));
+        Object value = (row == null) ? null : getValue(row, m.getField());
+        if (value == null) {
+          continue;
+        }
+        ++valueCounts[i];
+        BigDecimal bd = m.isSummable() ? toBigDecimal(value) : null;
+        if (bd != null) {
+          sums[i] = (sums[i] == null) ? bd : sums[i].add(bd);
+        }
+        if (mins[i] == null || ((Comparable) value).compareTo(mins[i]) < 0) {
+          mins[i] = value;
+        }
+        if (maxes[i] == null || ((Comparable) value).compareTo(maxes[i]) > 0) {
+          maxes[i] = value;
+        }
+      }
+    }
+
+    Result toResult(List<Object> keys) {
+      WrappedBigDecimal[] wrappedSums = new WrappedBigDecimal[sums.length];
+      for (int i = 0; i < sums.length; ++i) {
+        wrappedSums[i] = (sums[i] == null) ? null : new WrappedBigDecimal(sums[i].toString());
+      }
+      return new Result(keys.toArray(), count, valueCounts, wrappedSums, mins, maxes);
+    }
+  }
+
+  private void accumulate(CommonFieldsBase base, List<JoinedField> joined,
+      List<Map<String, List<CommonFieldsBase>>> indexes, int depth,
+      Map<String, CommonFieldsBase> combination, Map<List<Object>, Accumulator> groups) {
+    if (depth == joined.size()) {
+      combination.put(getRelationKey(base), base);
+      Object[] keys = new Object[groupBys.size()];
+      for (int i = 0; i < groupBys.size(); ++i) {
+        GroupBy g = groupBys.get(i);
+        CommonFieldsBase row = combination.get(getRelationKey(g.getRelation()));
+        keys[i] = bucket(g, (row == null) ? null : getValue(row, g.getField()));
+      }
+      List<Object> key = Arrays.asList(keys);
+      Accumulator acc = groups.get(key);
+      if (acc == null) {
+        acc = new Accumulator();
+        groups.put(key, acc);
+      }
+      acc.add(combination);
+      return;
+    }
+    String relationKey = getRelationKey(joined.get(depth).getRelation());
+    List<CommonFieldsBase> rows = indexes.get(depth).get(base.getUri());
+    if (rows == null || rows.isEmpty()) {
+      // left outer join
+      combination.remove(relationKey);
+      accumulate(base, joined, indexes, depth + 1, combination, groups);
+    } else {
+      for (CommonFieldsBase row : rows) {
+        combination.put(relationKey, row);
+        accumulate(base, joined, indexes, depth + 1, combination, groups);
+      }
+    }
+  }
+
+  private static Object getValue(CommonFieldsBase row, DataField f) {
+    switch (f.getDataType()) {
+    case BOOLEAN:
+      return row.getBooleanField(f);
+    case INTEGER:
+      return row.getLongField(f);
+    case DECIMAL:
+      return row.getNumericField(f);
+    case DATETIME:
+      return row.getDateField(f);
+    case STRING:
+    case URI:
+    case LONG_STRING:
+      return row.getStringField(f);
+    default:
+      throw new IllegalArgumentException("unable to aggregate " + f.getName());
+    }
+  }
+
+  /**
+   * @return the value, or null if it is not a number (NaN or infinite).
+   */
+  private static BigDecimal toBigDecimal(Object value) {
+    if (value instanceof WrappedBigDecimal) {
+      return ((WrappedBigDecimal) value).bd;
+    }
+    return new BigDecimal(value.toString());
+  }
+
+  private static Object bucket(GroupBy g, Object value) {
+    if (value == null) {
+      return null;
+    }
+    switch (g.getBucket()) {
+    case RANGE: {
+      BigDecimal bd = toBigDecimal(value);
+      return (bd == null) ? null : bd.divide(g.getWidth(), 0, RoundingMode.FLOOR).longValue();
+    }
+    case YEAR:
+      return formatDate("yyyy", (Date) value);
+    case MONTH:
+      return formatDate("yyyy-MM", (Date) value);
+    case DAY:
+      return formatDate("yyyy-MM-dd", (Date) value);
+    default:
+      return value;
+    }
+  }
+
+  private static String formatDate(String pattern, Date value) {
+    SimpleDateFormat formatter = new SimpleDateFormat(pattern);
+    formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return formatter.format(value);
+  }
+}
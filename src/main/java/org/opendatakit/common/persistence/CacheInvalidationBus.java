@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.security.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Invalidation messages between the server nodes sharing a database, so that
+ * in-memory caches can be kept for long periods and discarded only when the
+ * underlying data changes.
+ *
+ * A change is published as a row in a notification table naming a topic
+ * (e.g., "forms" or "publisher:" + uri). Local subscribers are told
+ * immediately. The other server nodes read the recent rows with a single
+ * query at most every POLL_INTERVAL_MILLISECONDS, whenever a cache calls
+ * {@link #poll(Datastore, User)}, and tell their subscribers of the rows they
+ * have not yet seen. Old rows are deleted after RETENTION_MILLISECONDS. The
+ * first poll of a server node reads back the whole retention period, so a node
+ * that has just started learns of the recent changes.
+ *
+ * A {@link TimedListener} is also told when each change was published: the
+ * creation date of its notification row, which every server node reads back
+ * the same.
+ *
+ * Delivery is best-effort: a node that has not polled within the retention
+ * period, or whose poll fails, is told to discard everything (a null topic).
+ * Clocks are assumed to agree to within PersistConsts.MAX_SETTLE_MILLISECONDS;
+ * caches should keep a long backstop expiry for anything beyond that.
+ *
+ * Subscribers are called on the publishing or polling thread and must not
+ * block or take locks held while accessing the datastore.
+ */
+public final class CacheInvalidationBus {
+
+  private static final Logger logger = LoggerFactory.getLogger(CacheInvalidationBus.class);
+
+  /** how often the notification table is read. 1 second. */
+  public static final long POLL_INTERVAL_MILLISECONDS = 1000L;
+
+  /** how long notifications are kept. 10 minutes. */
+  public static final long RETENTION_MILLISECONDS = 10L * 60000L;
+
+  /**
+   * Receives the invalidation messages of a topic.
+   */
+  public interface Listener {
+    /**
+     * @param topic
+     *          the changed topic, or null if everything may have changed.
+     */
+    void invalidated(String topic);
+  }
+
+  /**
+   * Receives the invalidation messages of a topic with the time each was
+   * published.
+   */
+  public interface TimedListener {
+    /**
+     * @param topic
+     *          the changed topic, or null if everything may have changed.
+     * @param publishedTime
+     *          the creation date of the notification row, in milliseconds; for
+     *          a null topic, the local time at which it was raised.
+     */
+    void invalidated(String topic, long publishedTime);
+  }
+
+  private static final class Subscription {
+    final String topicPrefix;
+    final Listener listener;
+    final TimedListener timedListener;
+
+    Subscription(String topicPrefix, Listener listener, TimedListener timedListener) {
+      this.topicPrefix = topicPrefix;
+      this.listener = listener;
+      this.timedListener = timedListener;
+    }
+  }
+
+  private static final class Notification {
+    final String topic;
+    final long publishedTime;
+
+    Notification(String topic, long publishedTime) {
+      this.topic = topic;
+      this.publishedTime = publishedTime;
+    }
+  }
+
+  private static final class CacheInvalidationTable extends CommonFieldsBase {
+
+    private static final String TABLE_NAME = "_cache_invalidation";
+
+    private static final DataField TOPIC = new DataField("TOPIC", DataField.DataType.STRING,
+        false, 255L);
+
+    private CacheInvalidationTable(String schemaName) {
+      super(schemaName, TABLE_NAME);
+      fieldList.add(TOPIC);
+    }
+
+    private CacheInvalidationTable(CacheInvalidationTable ref, User user) {
+      super(ref, user);
+    }
+
+    @Override
+    public CacheInvalidationTable getEmptyRow(User user) {
+      return new CacheInvalidationTable(this, user);
+    }
+  }
+
+  private static final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+  private static CacheInvalidationTable relation = null;
+
+  // guarded by the class lock
+  /** uri of each notification already delivered => its creation time */
+  private static final Map<String, Long> seen = new HashMap<String, Long>();
+  private static long lastPruneTime = 0L;
+
+  private static volatile long lastPollTime = 0L;
+
+  private CacheInvalidationBus() {
+  }
+
+  /**
+   * Register a listener for the topics beginning with the given prefix.
+   *
+   * @param topicPrefix
+   * @param listener
+   */
+  public static void subscribe(String topicPrefix, Listener listener) {
+    subscriptions.add(new Subscription(topicPrefix, listener, null));
+  }
+
+  /**
+   * Register a listener for the topics beginning with the given prefix that is
+   * also told when each change was published.
+   *
+   * @param topicPrefix
+   * @param listener
+   */
+  public static void subscribe(String topicPrefix, TimedListener listener) {
+    subscriptions.add(new Subscription(topicPrefix, null, listener));
+  }
+
+  private static synchronized final CacheInvalidationTable assertRelation(Datastore datastore,
+      User user) throws ODKDatastoreException {
+    if (relation == null) {
+      CacheInvalidationTable relationPrototype = new CacheInvalidationTable(
+          datastore.getDefaultSchemaName());
+      datastore.assertRelation(relationPrototype, user);
+      relation = relationPrototype;
+    }
+    return relation;
+  }
+
+  private static void deliver(List<Notification> notifications) {
+    for (Notification n : notifications) {
+      for (Subscription s : subscriptions) {
+        if (n.topic == null || n.topic.startsWith(s.topicPrefix)) {
+          if (s.timedListener != null) {
+            s.timedListener.invalidated(n.topic, n.publishedTime);
+          } else {
+            s.listener.invalidated(n.topic);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Tell the subscribers on this and every other server node that the topic
+   * has changed.
+   *
+   * @param topic
+   * @param datastore
+   * @param user
+   */
+  public static void publish(String topic, Datastore datastore, User user) {
+    CacheInvalidationTable prototype;
+    CacheInvalidationTable row;
+    try {
+      prototype = assertRelation(datastore, user);
+      row = datastore.createEntityUsingRelation(prototype, user);
+    } catch (ODKDatastoreException e) {
+      // the other nodes see the change when their caches expire
+      logger.warn("Unable to publish invalidation of " + topic, e);
+      deliver(Collections.singletonList(new Notification(topic, System.currentTimeMillis())));
+      return;
+    }
+    row.setStringField(CacheInvalidationTable.TOPIC, topic);
+    long publishedTime = row.getCreationDate().getTime();
+    synchronized (CacheInvalidationBus.class) {
+      // already delivered here
+      seen.put(row.getUri(), publishedTime);
+    }
+    deliver(Collections.singletonList(new Notification(topic, publishedTime)));
+    try {
+      datastore.putEntity(row, user);
+      prune(prototype, datastore, user);
+    } catch (ODKDatastoreException e) {
+      // the other nodes see the change when their caches expire
+      logger.warn("Unable to publish invalidation of " + topic, e);
+    }
+  }
+
+  /**
+   * Delete the notifications older than the retention period, at most once per
+   * retention period.
+   */
+  private static void prune(CacheInvalidationTable prototype, Datastore datastore, User user)
+      throws ODKDatastoreException {
+    long now = System.currentTimeMillis();
+    synchronized (CacheInvalidationBus.class) {
+      if (lastPruneTime + RETENTION_MILLISECONDS > now) {
+        return;
+      }
+      lastPruneTime = now;
+    }
+    Query query = datastore.createQuery(prototype, "CacheInvalidationBus.prune", user);
+    query.addFilter(prototype.creationDate, FilterOperation.LESS_THAN, new Date(now
+        - RETENTION_MILLISECONDS));
+    List<EntityKey> keys = new ArrayList<EntityKey>();
+    for (CommonFieldsBase cb : query.executeQuery()) {
+      keys.add(cb.getEntityKey());
+    }
+    if (!keys.isEmpty()) {
+      datastore.deleteEntities(keys, user);
+    }
+  }
+
+  /**
+   * Deliver the notifications published by other server nodes since the last
+   * poll. Does nothing if the table was read within the poll interval.
+   *
+   * @param datastore
+   * @param user
+   */
+  public static void poll(Datastore datastore, User user) {
+    if (lastPollTime + POLL_INTERVAL_MILLISECONDS > System.currentTimeMillis()) {
+      return;
+    }
+    List<Notification> notifications = new ArrayList<Notification>();
+    synchronized (CacheInvalidationBus.class) {
+      long now = System.currentTimeMillis();
+      if (lastPollTime + POLL_INTERVAL_MILLISECONDS > now) {
+        // another thread polled while we waited
+        return;
+      }
+      if (lastPollTime != 0L
+          && lastPollTime + RETENTION_MILLISECONDS - PersistConsts.MAX_SETTLE_MILLISECONDS < now) {
+        // notifications may have been pruned before we saw them
+        notifications.add(new Notification(null, now));
+      }
+      // the first poll reads back everything retained; later polls allow for
+      // clock differences and datastore settle time
+      long since = (lastPollTime == 0L) ? now - RETENTION_MILLISECONDS
+          : lastPollTime - PersistConsts.MAX_SETTLE_MILLISECONDS;
+      try {
+        CacheInvalidationTable prototype = assertRelation(datastore, user);
+        Query query = datastore.createQuery(prototype, "CacheInvalidationBus.poll", user);
+        query.addFilter(prototype.creationDate, FilterOperation.GREATER_THAN_OR_EQUAL,
+            new Date(since));
+        for (CommonFieldsBase cb : query.executeQuery()) {
+          CacheInvalidationTable row = (CacheInvalidationTable) cb;
+          if (!seen.containsKey(row.getUri())) {
+            long publishedTime = row.getCreationDate().getTime();
+            seen.put(row.getUri(), publishedTime);
+            notifications.add(new Notification(row.getStringField(CacheInvalidationTable.TOPIC),
+                publishedTime));
+          }
+        }
+        // the next poll does not look back beyond this
+        Iterator<Long> it = seen.values().iterator();
+        while (it.hasNext()) {
+          if (it.next() < now - PersistConsts.MAX_SETTLE_MILLISECONDS) {
+            it.remove();
+          }
+        }
+      } catch (ODKDatastoreException e) {
+        logger.warn("Unable to read invalidation notifications; discarding all caches", e);
+        notifications.clear();
+        notifications.add(new Notification(null, now));
+      }
+      lastPollTime = now;
+    }
+    deliver(notifications);
+  }
+}
@@ -19,9 +19,10 @@ import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -71,8 +72,17 @@ public abstract class CommonFieldsBase {
   protected final String tableName;
   private boolean fromDatabase = false;
   private Object opaquePersistenceData = null;
-  protected final List<DataField> fieldList = new ArrayList<DataField>();
-  protected final Map<DataField, Object> fieldValueMap = new HashMap<DataField, Object>();
+  /**
+   * The fields of the relation. Relation prototypes append to this list in
+   * their constructors. Rows share the (unmodifiable) list of their relation.
+   */
+  protected final List<DataField> fieldList;
+  /** field ordering shared by the relation prototype and all of its rows */
+  private FieldLayout fieldLayout = null;
+  /** field values, indexed by the ordinal of the field in fieldLayout */
+  private Object[] fieldValues;
+  /** multi-column indexes, shared by the relation prototype and all of its rows */
+  private final List<List<DataField>> compositeIndexes;
 
   public final DataField primaryKey;
   public final DataField creatorUriUser;
@@ -90,6 +100,9 @@ public abstract class CommonFieldsBase {
   protected CommonFieldsBase(String schemaName, String tableName) {
     this.schemaName = schemaName;
     this.tableName = tableName;
+    this.fieldList = new ArrayList<DataField>();
+    this.fieldValues = new Object[AUDIT_COLUMN_COUNT];
+    this.compositeIndexes = new ArrayList<List<DataField>>();
     // always primary key with the same name...
     fieldList.add(primaryKey = new DataField(URI));
 
@@ -116,14 +129,68 @@ public abstract class CommonFieldsBase {
     lastUpdateUriUser = ref.lastUpdateUriUser;
     lastUpdateDate = ref.lastUpdateDate;
 
-    fieldList.addAll(ref.fieldList);
+    // share the relation's field ordering rather than copying it per row
+    fieldLayout = ref.getFieldLayout();
+    fieldList = fieldLayout.fields;
+    fieldValues = new Object[fieldList.size()];
+    compositeIndexes = ref.compositeIndexes;
 
     // populate the audit fields...
     Date now = new Date();
-    fieldValueMap.put(creationDate, now);
-    fieldValueMap.put(lastUpdateDate, now);
-    fieldValueMap.put(creatorUriUser, user.getUriUser());
-    fieldValueMap.put(primaryKey, CommonFieldsBase.newUri());
+    fieldValues[fieldLayout.ordinals.get(creationDate)] = now;
+    fieldValues[fieldLayout.ordinals.get(lastUpdateDate)] = now;
+    fieldValues[fieldLayout.ordinals.get(creatorUriUser)] = user.getUriUser();
+    fieldValues[fieldLayout.ordinals.get(primaryKey)] = CommonFieldsBase.newUri();
+  }
+
+  /**
+   * The ordering of the fields of a relation. Computed once per relation and
+   * shared by every row constructed from it, so that a row holds only an
+   * Object[] of its values rather than its own field list and value map.
+   */
+  private static final class FieldLayout {
+    final List<DataField> fields;
+    final Map<DataField, Integer> ordinals;
+
+    FieldLayout(List<DataField> fieldList) {
+      fields = Collections.unmodifiableList(new ArrayList<DataField>(fieldList));
+      // DataField uses identity equality
+      ordinals = new IdentityHashMap<DataField, Integer>();
+      for (int i = 0; i < fields.size(); ++i) {
+        ordinals.put(fields.get(i), i);
+      }
+    }
+  }
+
+  /**
+   * Relation prototypes may add fields after the layout was first computed
+   * (e.g., within subclass constructors); recompute it when that happens.
+   * Fields are only ever appended, so existing ordinals are unchanged.
+   *
+   * @return the field layout of this relation
+   */
+  private FieldLayout getFieldLayout() {
+    FieldLayout layout = fieldLayout;
+    if (layout == null || layout.fields.size() != fieldList.size()) {
+      layout = new FieldLayout(fieldList);
+      fieldLayout = layout;
+    }
+    return layout;
+  }
+
+  private int getFieldOrdinal(DataField f, String action) {
+    if (f == null) {
+      throw new IllegalArgumentException("Field value is null!");
+    }
+    Integer ordinal = getFieldLayout().ordinals.get(f);
+    if (ordinal == null) {
+      throw new IllegalArgumentException("Attempting to " + action + " a field " + f.getName()
+          + " not belonging to " + schemaName + "." + tableName);
+    }
+    if (ordinal >= fieldValues.length) {
+      fieldValues = Arrays.copyOf(fieldValues, fieldList.size());
+    }
+    return ordinal;
   }
 
   public final EntityKey getEntityKey() {
@@ -162,29 +229,48 @@ public abstract class CommonFieldsBase {
   }
 
   public final List<DataField> getFieldList() {
-    return Collections.unmodifiableList(fieldList);
+    return getFieldLayout().fields;
   }
 
-  public final boolean hasField(DataField f) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to get a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
+  /**
+   * Declare a multi-column (ordered) index on this relation. Cursor queries
+   * filter on some columns and sort by a date and then by the primary key;
+   * an index over (filter columns..., date, primary key) lets the database
+   * return the rows in order without sorting them. Call this only from the
+   * constructor of a relation prototype, after the fields have been added.
+   *
+   * @param fields
+   *          the indexed fields, most significant first.
+   */
+  protected final void addCompositeIndex(DataField... fields) {
+    if (fields.length < 2) {
+      throw new IllegalArgumentException("A composite index requires at least two fields");
+    }
+    for (DataField f : fields) {
+      if (!fieldList.contains(f)) {
+        throw new IllegalArgumentException("Attempting to index a field " + f.getName()
+            + " not belonging to " + schemaName + "." + tableName);
+      }
     }
-    return fieldValueMap.containsKey(f);
+    compositeIndexes.add(Collections.unmodifiableList(Arrays.asList(fields.clone())));
+  }
+
+  /**
+   * @return the multi-column indexes declared on this relation. The
+   *         single-column indexes are given by {@link DataField#getIndexable()}.
+   */
+  public final List<List<DataField>> getCompositeIndexes() {
+    return Collections.unmodifiableList(compositeIndexes);
+  }
+
+  public final boolean hasField(DataField f) {
+    int ordinal = getFieldOrdinal(f, "get");
+    return (fieldValues[ordinal] != null);
   }
 
   public final String getStringField(DataField f) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to get a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
-    Object o = fieldValueMap.get(f);
+    int ordinal = getFieldOrdinal(f, "get");
+    Object o = fieldValues[ordinal];
     if (o == null)
       return null;
     return (String) o;
@@ -201,13 +287,7 @@ public abstract class CommonFieldsBase {
    * @return false if the value had to be truncated.
    */
   public final boolean setStringField(DataField f, String value) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to set a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
+    int ordinal = getFieldOrdinal(f, "set");
     if (!((f.getDataType() == DataType.STRING) || (f.getDataType() == DataType.LONG_STRING) || (f
         .getDataType() == DataType.URI))) {
       throw new IllegalArgumentException("Attempting to set non-string field " + f.getName()
@@ -219,7 +299,7 @@ public abstract class CommonFieldsBase {
         throw new IllegalStateException("Attempting to set null value in non-null field "
             + f.getName() + " in " + schemaName + "." + tableName);
       }
-      fieldValueMap.remove(f);
+      fieldValues[ordinal] = null;
       return true;
     } else if (f.getMaxCharLen().compareTo(Long.valueOf(value.length())) < 0) {
       if (f.getDataType() == DataType.LONG_STRING) {
@@ -232,32 +312,20 @@ public abstract class CommonFieldsBase {
       noOverflow = false;
       value = value.substring(0, f.getMaxCharLen().intValue());
     }
-    fieldValueMap.put(f, value);
+    fieldValues[ordinal] = value;
     return noOverflow;
   }
 
   public final Long getLongField(DataField f) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to get a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
-    Object o = fieldValueMap.get(f);
+    int ordinal = getFieldOrdinal(f, "get");
+    Object o = fieldValues[ordinal];
     if (o == null)
       return null;
     return (Long) o;
   }
 
   public final void setLongField(DataField f, Long value) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to set a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
+    int ordinal = getFieldOrdinal(f, "set");
     if (f.getDataType() != DataType.INTEGER) {
       throw new IllegalArgumentException("Attempting to set non-integer field " + f.getName()
           + " with a Long in " + schemaName + "." + tableName);
@@ -267,34 +335,22 @@ public abstract class CommonFieldsBase {
         throw new IllegalStateException("Attempting to set null value in non-null field "
             + f.getName() + " in " + schemaName + "." + tableName);
       }
-      fieldValueMap.remove(f);
+      fieldValues[ordinal] = null;
       return;
     }
-    fieldValueMap.put(f, value);
+    fieldValues[ordinal] = value;
   }
 
   public final WrappedBigDecimal getNumericField(DataField f) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to get a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
-    Object o = fieldValueMap.get(f);
+    int ordinal = getFieldOrdinal(f, "get");
+    Object o = fieldValues[ordinal];
     if (o == null)
       return null;
     return (WrappedBigDecimal) o;
   }
 
   public final void setNumericField(DataField f, WrappedBigDecimal value) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to set a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
+    int ordinal = getFieldOrdinal(f, "set");
     if (f.getDataType() != DataType.DECIMAL) {
       throw new IllegalArgumentException("Attempting to set non-decimal field " + f.getName()
           + " with a BigDecimal in " + schemaName + "." + tableName);
@@ -304,39 +360,27 @@ public abstract class CommonFieldsBase {
         throw new IllegalStateException("Attempting to set null value in non-null field "
             + f.getName() + " in " + schemaName + "." + tableName);
       }
-      fieldValueMap.remove(f);
+      fieldValues[ordinal] = null;
       return;
     }
     if ( !f.isDoublePrecision()  && !value.isSpecialValue() ) {
       // enforce scaling here...
-      fieldValueMap.put(f, value.setScale(f.getNumericScale(), BigDecimal.ROUND_HALF_UP));
+      fieldValues[ordinal] = value.setScale(f.getNumericScale(), BigDecimal.ROUND_HALF_UP);
     } else {
-      fieldValueMap.put(f, value);
+      fieldValues[ordinal] = value;
     }
   }
 
   public final Date getDateField(DataField f) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to get a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
-    Object o = fieldValueMap.get(f);
+    int ordinal = getFieldOrdinal(f, "get");
+    Object o = fieldValues[ordinal];
     if (o == null)
       return null;
     return (Date) o;
   }
 
   public final void setDateField(DataField f, Date value) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to set a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
+    int ordinal = getFieldOrdinal(f, "set");
     if (f.getDataType() != DataType.DATETIME) {
       throw new IllegalArgumentException("Attempting to set non-datetime field " + f.getName()
           + " with a Date in " + schemaName + "." + tableName);
@@ -346,34 +390,22 @@ public abstract class CommonFieldsBase {
         throw new IllegalStateException("Attempting to set null value in non-null field "
             + f.getName() + " in " + schemaName + "." + tableName);
       }
-      fieldValueMap.remove(f);
+      fieldValues[ordinal] = null;
       return;
     }
-    fieldValueMap.put(f, value);
+    fieldValues[ordinal] = value;
   }
 
   public final Boolean getBooleanField(DataField f) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to get a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
-    Object o = fieldValueMap.get(f);
+    int ordinal = getFieldOrdinal(f, "get");
+    Object o = fieldValues[ordinal];
     if (o == null)
       return null;
     return (Boolean) o;
   }
 
   public final void setBooleanField(DataField f, Boolean value) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to set a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
+    int ordinal = getFieldOrdinal(f, "set");
     if (f.getDataType() != DataType.BOOLEAN) {
       throw new IllegalArgumentException("Attempting to set non-boolean field " + f.getName()
           + " with a Boolean in " + schemaName + "." + tableName);
@@ -383,34 +415,22 @@ public abstract class CommonFieldsBase {
         throw new IllegalStateException("Attempting to set null value in non-null field "
             + f.getName() + " in " + schemaName + "." + tableName);
       }
-      fieldValueMap.remove(f);
+      fieldValues[ordinal] = null;
       return;
     }
-    fieldValueMap.put(f, value);
+    fieldValues[ordinal] = value;
   }
 
   public final byte[] getBlobField(DataField f) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to get a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
-    Object o = fieldValueMap.get(f);
+    int ordinal = getFieldOrdinal(f, "get");
+    Object o = fieldValues[ordinal];
     if (o == null)
       return null;
     return (byte[]) o;
   }
 
   public final void setBlobField(DataField f, byte[] value) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to set a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
+    int ordinal = getFieldOrdinal(f, "set");
     if (f.getDataType() != DataType.BINARY) {
       throw new IllegalArgumentException("Attempting to set non-blob field " + f.getName()
           + " with byte-array in " + schemaName + "." + tableName);
@@ -420,10 +440,10 @@ public abstract class CommonFieldsBase {
         throw new IllegalStateException("Attempting to set null value in non-null field "
             + f.getName() + " in " + schemaName + "." + tableName);
       }
-      fieldValueMap.remove(f);
+      fieldValues[ordinal] = null;
       return;
     }
-    fieldValueMap.put(f, value);
+    fieldValues[ordinal] = value;
   }
 
   public final static String newUri() {
@@ -529,8 +549,36 @@ public abstract class CommonFieldsBase {
     this.opaquePersistenceData = opaquePersistenceData;
   }
 
+  /**
+   * Copy the field values and persistence state of another row of the same
+   * relation into this row. This should only be called from within the
+   * persistence layer implementation (e.g., to hand out copies of cached
+   * rows). Dates and byte arrays are copied so the rows share no mutable
+   * values.
+   *
+   * @param row
+   */
+  public final void copyValuesFrom(CommonFieldsBase row) {
+    if (!sameTable(row)) {
+      throw new IllegalArgumentException("Attempting to copy a row of " + row.schemaName + "."
+          + row.tableName + " into " + schemaName + "." + tableName);
+    }
+    Object[] values = Arrays.copyOf(row.fieldValues, row.fieldValues.length);
+    for (int i = 0; i < values.length; ++i) {
+      if (values[i] instanceof Date) {
+        values[i] = new Date(((Date) values[i]).getTime());
+      } else if (values[i] instanceof byte[]) {
+        values[i] = ((byte[]) values[i]).clone();
+      }
+    }
+    fieldValues = values;
+    fromDatabase = row.fromDatabase;
+    opaquePersistenceData = row.opaquePersistenceData;
+  }
+
   public final boolean isNull(DataField f) {
-    return (fieldValueMap.get(f) == null);
+    Integer ordinal = getFieldLayout().ordinals.get(f);
+    return (ordinal == null || ordinal >= fieldValues.length || fieldValues[ordinal] == null);
   }
 
   public boolean sameTable(CommonFieldsBase ref) {
@@ -47,6 +47,16 @@ public interface Datastore {
      * @return the maximum length of a column name in this persistence layer implementation
      */
     public int getMaxLenColumnName();
+
+    /**
+     * Determines whether the relation can be created without exceeding the
+     * row-size and column-count limits of this persistence layer implementation.
+     * Used to lay out the tables of a form before any of them are created.
+     * 
+     * @param relation
+     * @return true if the relation is within the limits.
+     */
+    public boolean isWithinRowLimits(CommonFieldsBase relation);
     
     /**
      * Asserts that the relation exists in the datastore.  The details of the 
@@ -15,6 +15,7 @@ package org.opendatakit.common.persistence;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
@@ -76,6 +77,31 @@ public interface Query {
    * @param valueSet
    */
   public void addValueSetFilter(DataField attributeName, Collection<?> valueSet );
+
+  /**
+   * Adds a filter to the query that passes records whose value for ANY of the
+   * given attributes is IN the value set for that attribute. A null within a
+   * value set matches records where that attribute is null.
+   *
+   * @param valueSets the value sets, keyed by attribute
+   */
+  public void addValueSetDisjunctionFilter(Map<DataField, Collection<?>> valueSets );
+
+  /**
+   * Adds a filter on a child relation of the relation being queried. A record
+   * passes if at least one row of the child relation whose joinField holds the
+   * record's primary key passes the filter. Each child filter is matched
+   * independently, so two filters on a repeating group may be satisfied by
+   * different instances of that group.
+   *
+   * @param childRelation the relation holding the filtered attribute
+   * @param joinField the field of the child relation holding the primary key of the record
+   * @param attributeName the name of the attribute in the child relation to filter
+   * @param op the Query.FilterOperation to use for filtering
+   * @param value the value to filter with
+   */
+  public void addChildFilter(CommonFieldsBase childRelation, DataField joinField,
+      DataField attributeName, FilterOperation op, Object value);
   
   /**
    * Returns a list of all the entities which are the results of executing the query.
@@ -121,4 +147,15 @@ public interface Query {
    * @throws ODKOverQuotaException if the usage quota was exceeded
    */
   public List<?> executeDistinctValueForDataField(DataField dataField) throws ODKDatastoreException, ODKOverQuotaException;
+
+  /**
+   * Returns the grouped aggregates of the records matching the filters of
+   * this query. Sort criteria are ignored.
+   * 
+   * @param aggregation the joins, groupings and measures to compute
+   * @return the aggregates of each group, in no particular order
+   * @throws ODKDatastoreException
+   * @throws ODKOverQuotaException if the usage quota was exceeded
+   */
+  public List<Aggregation.Result> executeAggregateQuery(Aggregation aggregation) throws ODKDatastoreException, ODKOverQuotaException;
 }
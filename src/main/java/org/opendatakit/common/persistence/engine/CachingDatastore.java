@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.opendatakit.common.persistence.Aggregation;
+import org.opendatakit.common.persistence.CacheInvalidationBus;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.EntityKey;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.QueryResult;
+import org.opendatakit.common.persistence.QueryResumePoint;
+import org.opendatakit.common.persistence.TaskLock;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
+import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
+import org.opendatakit.common.security.User;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Read-through cache in front of another datastore for the internal tables
+ * that are re-read on nearly every request (form info, publishers, background
+ * task status, server preferences, ODK Tables definitions, ...). Only the
+ * tables named in cachedTableNames are cached; everything else is passed
+ * straight to the underlying datastore.
+ *
+ * getEntity() and unpaged executeQuery() results of the cached tables are
+ * kept in a bounded LRU cache with a time to live. Callers always receive
+ * copies of the cached rows, so modifying a row without persisting it cannot
+ * corrupt the cache. Any write to a cached table through this datastore
+ * discards that table's cached rows immediately.
+ *
+ * Writes are also published on the {@link CacheInvalidationBus}, so other
+ * server nodes discard their cached rows of the table the next time they read
+ * a cached table after polling the bus.
+ */
+public class CachingDatastore implements Datastore, InitializingBean {
+
+  private static final int DEFAULT_MAX_ROWS = 5000;
+  private static final long DEFAULT_TIME_TO_LIVE_MILLIS = 5 * 60 * 1000L;
+
+  /** invalidation topic of a table; followed by the table key (schema.table) */
+  public static final String TOPIC_PREFIX = "table:";
+
+  private Datastore datastore = null;
+  private final Set<String> cachedTableNames = new HashSet<String>();
+  private int maxRows = DEFAULT_MAX_ROWS;
+  private long timeToLiveMillis = DEFAULT_TIME_TO_LIVE_MILLIS;
+
+  private EntityCache cache = null;
+
+  public CachingDatastore() {
+  }
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    if (datastore == null) {
+      throw new IllegalStateException("datastore property must be set!");
+    }
+    cache = new EntityCache(maxRows, timeToLiveMillis);
+    CacheInvalidationBus.subscribe(TOPIC_PREFIX, new CacheInvalidationBus.Listener() {
+      @Override
+      public void invalidated(String topic) {
+        if (topic == null) {
+          cache.invalidateAll();
+        } else {
+          cache.invalidate(topic.substring(TOPIC_PREFIX.length()));
+        }
+      }
+    });
+  }
+
+  /**
+   * @param datastore
+   *          the underlying datastore.
+   */
+  public void setDatastore(Datastore datastore) {
+    this.datastore = datastore;
+  }
+
+  /**
+   * @param tableNames
+   *          the tables whose rows are cached.
+   */
+  public void setCachedTableNames(List<String> tableNames) {
+    cachedTableNames.clear();
+    cachedTableNames.addAll(tableNames);
+  }
+
+  /**
+   * @param maxRows
+   *          the maximum number of rows held by the cache.
+   */
+  public void setMaxRows(int maxRows) {
+    this.maxRows = maxRows;
+  }
+
+  /**
+   * @param timeToLiveMillis
+   *          how long cached rows may be used after they were read.
+   */
+  public void setTimeToLiveMillis(long timeToLiveMillis) {
+    this.timeToLiveMillis = timeToLiveMillis;
+  }
+
+  private static String getTableKey(CommonFieldsBase relation) {
+    return relation.getSchemaName() + "." + relation.getTableName();
+  }
+
+  private boolean isCached(CommonFieldsBase relation) {
+    return cachedTableNames.contains(relation.getTableName());
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T extends CommonFieldsBase> T copyRow(T row, User user) {
+    T copy = (T) row.getEmptyRow(user);
+    copy.copyValuesFrom(row);
+    return copy;
+  }
+
+  private static List<CommonFieldsBase> copyRows(List<? extends CommonFieldsBase> rows, User user) {
+    List<CommonFieldsBase> copies = new ArrayList<CommonFieldsBase>(rows.size());
+    for (CommonFieldsBase row : rows) {
+      copies.add(copyRow(row, user));
+    }
+    return copies;
+  }
+
+  /**
+   * Discard the cached rows of the written relations, here and on the other
+   * server nodes.
+   */
+  private void invalidate(Collection<? extends CommonFieldsBase> relations, User user) {
+    Set<String> tableKeys = new HashSet<String>();
+    for (CommonFieldsBase relation : relations) {
+      if (isCached(relation)) {
+        tableKeys.add(getTableKey(relation));
+      }
+    }
+    for (String tableKey : tableKeys) {
+      // also discards the rows cached here
+      CacheInvalidationBus.publish(TOPIC_PREFIX + tableKey, datastore, user);
+    }
+  }
+
+  private void invalidateKeys(Collection<EntityKey> keys, User user) {
+    List<CommonFieldsBase> relations = new ArrayList<CommonFieldsBase>();
+    for (EntityKey key : keys) {
+      relations.add(key.getRelation());
+    }
+    invalidate(relations, user);
+  }
+
+  // ---------------------------------------------------------------------------
+  // Datastore
+
+  @Override
+  public String getDefaultSchemaName() {
+    return datastore.getDefaultSchemaName();
+  }
+
+  @Override
+  public int getMaxLenTableName() {
+    return datastore.getMaxLenTableName();
+  }
+
+  @Override
+  public int getMaxLenColumnName() {
+    return datastore.getMaxLenColumnName();
+  }
+
+  @Override
+  public boolean isWithinRowLimits(CommonFieldsBase relation) {
+    return datastore.isWithinRowLimits(relation);
+  }
+
+  @Override
+  public void assertRelation(CommonFieldsBase relation, User user) throws ODKDatastoreException {
+    try {
+      datastore.assertRelation(relation, user);
+    } finally {
+      if (isCached(relation)) {
+        // the columns may have changed
+        cache.invalidate(getTableKey(relation));
+      }
+    }
+  }
+
+  @Override
+  public void dropRelation(CommonFieldsBase relation, User user) throws ODKDatastoreException {
+    try {
+      datastore.dropRelation(relation, user);
+    } finally {
+      invalidate(Collections.singletonList(relation), user);
+    }
+  }
+
+  @Override
+  public boolean hasRelation(String schema, String tableName, User user)
+      throws ODKDatastoreException {
+    return datastore.hasRelation(schema, tableName, user);
+  }
+
+  @Override
+  public <T extends CommonFieldsBase> T createEntityUsingRelation(T relation, User user) {
+    return datastore.createEntityUsingRelation(relation, user);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public <T extends CommonFieldsBase> T getEntity(T relation, String uri, User user)
+      throws ODKOverQuotaException, ODKEntityNotFoundException, ODKDatastoreException {
+    if (!isCached(relation)) {
+      return datastore.getEntity(relation, uri, user);
+    }
+    CacheInvalidationBus.poll(datastore, user);
+    String tableKey = getTableKey(relation);
+    String key = "E:" + tableKey + ":" + uri;
+    List<CommonFieldsBase> rows = cache.get(key);
+    if (rows != null) {
+      return copyRow((T) rows.get(0), user);
+    }
+    long generation = cache.getGeneration(tableKey);
+    T row = datastore.getEntity(relation, uri, user);
+    cache.put(key, tableKey, generation, Collections.<CommonFieldsBase> singletonList(copyRow(row,
+        user)));
+    return row;
+  }
+
+  @Override
+  public Query createQuery(CommonFieldsBase relation, String loggingContextTag, User user) {
+    Query query = datastore.createQuery(relation, loggingContextTag, user);
+    if (!isCached(relation)) {
+      return query;
+    }
+    return new CachingQuery(query, relation, user);
+  }
+
+  @Override
+  public void putEntity(CommonFieldsBase entity, User user) throws ODKEntityPersistException,
+      ODKOverQuotaException {
+    try {
+      datastore.putEntity(entity, user);
+    } finally {
+      invalidate(Collections.singletonList(entity), user);
+    }
+  }
+
+  @Override
+  public void putEntities(Collection<? extends CommonFieldsBase> entities, User user)
+      throws ODKEntityPersistException, ODKOverQuotaException {
+    try {
+      datastore.putEntities(entities, user);
+    } finally {
+      invalidate(entities, user);
+    }
+  }
+
+  @Override
+  public void deleteEntity(EntityKey key, User user) throws ODKOverQuotaException,
+      ODKDatastoreException {
+    try {
+      datastore.deleteEntity(key, user);
+    } finally {
+      invalidateKeys(Collections.singletonList(key), user);
+    }
+  }
+
+  @Override
+  public void deleteEntities(Collection<EntityKey> keys, User user)
+      throws ODKOverQuotaException, ODKDatastoreException {
+    try {
+      datastore.deleteEntities(keys, user);
+    } finally {
+      invalidateKeys(keys, user);
+    }
+  }
+
+  @Override
+  public void batchAlterData(List<? extends CommonFieldsBase> changes, User user)
+      throws ODKEntityPersistException, ODKOverQuotaException {
+    try {
+      datastore.batchAlterData(changes, user);
+    } finally {
+      invalidate(changes, user);
+    }
+  }
+
+  @Override
+  public TaskLock createTaskLock(User user) {
+    return datastore.createTaskLock(user);
+  }
+
+  /**
+   * Query against a cached table. The filters and sorts are recorded as the
+   * cache key of the unpaged result; child filters reach into other tables,
+   * so such queries are not cached. Paged, foreign-key and distinct-value
+   * queries are always passed through.
+   */
+  private final class CachingQuery implements Query {
+    private final Query query;
+    private final String tableKey;
+    private final User user;
+    private final StringBuilder signature = new StringBuilder();
+    private boolean cacheable = true;
+
+    CachingQuery(Query query, CommonFieldsBase relation, User user) {
+      this.query = query;
+      this.tableKey = getTableKey(relation);
+      this.user = user;
+    }
+
+    private void appendValue(Object value) {
+      if (value == null) {
+        signature.append("null");
+      } else if (value instanceof Date) {
+        signature.append("Date:").append(((Date) value).getTime());
+      } else {
+        signature.append(value.getClass().getSimpleName()).append(':').append(value.toString());
+      }
+      signature.append(';');
+    }
+
+    @Override
+    public void addSort(DataField attributeName, Direction direction) {
+      query.addSort(attributeName, direction);
+      signature.append("S|").append(attributeName.getName()).append('|').append(direction)
+          .append(';');
+    }
+
+    @Override
+    public void addFilter(DataField attributeName, FilterOperation op, Object value) {
+      query.addFilter(attributeName, op, value);
+      signature.append("F|").append(attributeName.getName()).append('|').append(op).append('|');
+      appendValue(value);
+    }
+
+    @Override
+    public void addValueSetFilter(DataField attributeName, Collection<?> valueSet) {
+      query.addValueSetFilter(attributeName, valueSet);
+      signature.append("V|").append(attributeName.getName()).append('|');
+      for (Object value : valueSet) {
+        appendValue(value);
+      }
+    }
+
+    @Override
+    public void addValueSetDisjunctionFilter(Map<DataField, Collection<?>> valueSets) {
+      query.addValueSetDisjunctionFilter(valueSets);
+      signature.append("D|");
+      for (Map.Entry<DataField, Collection<?>> e : valueSets.entrySet()) {
+        signature.append(e.getKey().getName()).append('|');
+        for (Object value : e.getValue()) {
+          appendValue(value);
+        }
+      }
+    }
+
+    @Override
+    public void addChildFilter(CommonFieldsBase childRelation, DataField joinField,
+        DataField attributeName, FilterOperation op, Object value) {
+      query.addChildFilter(childRelation, joinField, attributeName, op, value);
+      cacheable = false;
+    }
+
+    @Override
+    public List<? extends CommonFieldsBase> executeQuery() throws ODKDatastoreException {
+      if (!cacheable) {
+        return query.executeQuery();
+      }
+      CacheInvalidationBus.poll(datastore, user);
+      String key = "Q:" + tableKey + ":" + signature.toString();
+      List<CommonFieldsBase> rows = cache.get(key);
+      if (rows != null) {
+        return copyRows(rows, user);
+      }
+      long generation = cache.getGeneration(tableKey);
+      List<? extends CommonFieldsBase> results = query.executeQuery();
+      if (results.size() <= maxRows) {
+        cache.put(key, tableKey, generation, copyRows(results, user));
+      }
+      return results;
+    }
+
+    @Override
+    public QueryResult executeQuery(QueryResumePoint startCursor, int fetchLimit)
+        throws ODKDatastoreException, ODKOverQuotaException {
+      return query.executeQuery(startCursor, fetchLimit);
+    }
+
+    @Override
+    public Set<EntityKey> executeForeignKeyQuery(CommonFieldsBase topLevelTable,
+        DataField foreignKeyField) throws ODKDatastoreException, ODKOverQuotaException {
+      return query.executeForeignKeyQuery(topLevelTable, foreignKeyField);
+    }
+
+    @Override
+    public List<?> executeDistinctValueForDataField(DataField dataField)
+        throws ODKDatastoreException, ODKOverQuotaException {
+      return query.executeDistinctValueForDataField(dataField);
+    }
+
+    @Override
+    public List<Aggregation.Result> executeAggregateQuery(Aggregation aggregation)
+        throws ODKDatastoreException, ODKOverQuotaException {
+      return query.executeAggregateQuery(aggregation);
+    }
+  }
+}
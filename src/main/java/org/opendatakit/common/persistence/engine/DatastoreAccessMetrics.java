@@ -13,12 +13,15 @@
  */
 package org.opendatakit.common.persistence.engine;
 
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.DataField.IndexType;
 import org.opendatakit.common.persistence.EntityKey;
 import org.opendatakit.common.utils.WebUtils;
 
@@ -101,6 +104,9 @@ public final class DatastoreAccessMetrics {
   private final RingBufferCountArray countGetArray = new RingBufferCountArray();
   private final RingBufferCountArray countPutArray = new RingBufferCountArray();
   private final RingBufferCountArray countDeleteArray = new RingBufferCountArray();
+  // cursor query shapes (table, equality filters, sort) lacking a supporting
+  // index, and the number of times each was executed.
+  private final Map<String, Integer> unindexedCursorQueries = new TreeMap<String, Integer>();
 
   public DatastoreAccessMetrics() {
   }
@@ -116,6 +122,9 @@ public final class DatastoreAccessMetrics {
           + countQueryResultArray.getUsage(idx) + "," + countGetArray.getUsage(idx) + ","
           + countPutArray.getUsage(idx) + "," + countDeleteArray.getUsage(idx));
     }
+    for (Map.Entry<String, Integer> entry : unindexedCursorQueries.entrySet()) {
+      logger.info("unindexed: " + entry.getKey() + "," + entry.getValue());
+    }
     logger.info("-----------------------------------------");
     countQueryArray.clear();
     countQueryResultArray.clear();
@@ -187,6 +196,71 @@ public final class DatastoreAccessMetrics {
     recordUsage(relation, countQueryResultArray, resultCount);
   }
 
+  /**
+   * Record the shape of a cursor-style query so that queries which cannot be
+   * satisfied from an index can be reported. A query is supported if some
+   * index begins with (a subset of) its equality-filtered columns followed by
+   * its dominant sort column, or if it sorts on an indexed column without
+   * equality filters. The first execution of an unsupported shape is logged.
+   *
+   * @param relation
+   * @param equalityFilters
+   * @param sortAttr
+   */
+  public void recordCursorQuery(CommonFieldsBase relation, List<DataField> equalityFilters,
+      DataField sortAttr) {
+    if (isIndexSupported(relation, equalityFilters, sortAttr)) {
+      return;
+    }
+    StringBuilder b = new StringBuilder();
+    b.append(relation.getSchemaName()).append(".").append(relation.getTableName());
+    b.append(" WHERE");
+    for (DataField f : equalityFilters) {
+      b.append(" ").append(f.getName()).append(" =");
+    }
+    b.append(" ORDER BY ").append(sortAttr.getName());
+    String shape = b.toString();
+
+    boolean firstTime;
+    synchronized (this) {
+      Integer count = unindexedCursorQueries.get(shape);
+      firstTime = (count == null);
+      unindexedCursorQueries.put(shape, firstTime ? 1 : count + 1);
+    }
+    if (firstTime) {
+      logger.warn("No index supports cursor query: " + shape);
+    }
+  }
+
+  private static boolean isIndexSupported(CommonFieldsBase relation,
+      List<DataField> equalityFilters, DataField sortAttr) {
+    if (sortAttr == relation.primaryKey) {
+      return true;
+    }
+    if (equalityFilters.isEmpty() && sortAttr.getIndexable() != IndexType.NONE) {
+      return true;
+    }
+    for (List<DataField> index : relation.getCompositeIndexes()) {
+      for (DataField f : index) {
+        if (f == sortAttr) {
+          return true;
+        }
+        if (!equalityFilters.contains(f)) {
+          break;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the cursor query shapes that no index supports, with the number of
+   *         times each was executed.
+   */
+  public synchronized Map<String, Integer> getUnindexedCursorQueries() {
+    return new TreeMap<String, Integer>(unindexedCursorQueries);
+  }
+
   public void recordGetUsage(String specialTableName) {
     recordUsage(specialTableName, countGetArray);
   }
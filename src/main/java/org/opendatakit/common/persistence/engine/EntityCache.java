@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opendatakit.common.persistence.CommonFieldsBase;
+
+/**
+ * Bounded store of the rows read from the cached relations, for the
+ * {@link CachingDatastore}. Each entry holds the rows of one getEntity() or
+ * query against a single relation.
+ *
+ * The total number of rows held is bounded; the least recently used entries
+ * are evicted first. Entries also expire after a fixed time to live.
+ *
+ * Every relation has a generation number that is advanced whenever the
+ * relation is written. Entries remember the generation at which their rows
+ * were read and are discarded when it no longer matches, so invalidating a
+ * relation does not need to find its entries. A read that raced a write is
+ * likewise never stored, because the generation is sampled before the read.
+ */
+final class EntityCache {
+
+  private static final class Entry {
+    final String relationKey;
+    final long generation;
+    final long expiresAt;
+    final List<CommonFieldsBase> rows;
+
+    Entry(String relationKey, long generation, long expiresAt, List<CommonFieldsBase> rows) {
+      this.relationKey = relationKey;
+      this.generation = generation;
+      this.expiresAt = expiresAt;
+      this.rows = rows;
+    }
+  }
+
+  private final int maxRows;
+  private final long timeToLiveMillis;
+
+  // in access order, so the eldest entry is the least recently used
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16,
+      0.75f, true);
+  private final Map<String, Long> generations = new HashMap<String, Long>();
+  private int rowCount = 0;
+
+  /**
+   * @param maxRows
+   *          the maximum number of rows held across all entries.
+   * @param timeToLiveMillis
+   *          how long an entry may be used after its rows were read.
+   */
+  EntityCache(int maxRows, long timeToLiveMillis) {
+    this.maxRows = maxRows;
+    this.timeToLiveMillis = timeToLiveMillis;
+  }
+
+  /**
+   * @param relationKey
+   * @return the current generation of the relation. Sample this before
+   *         reading the rows to be stored.
+   */
+  synchronized long getGeneration(String relationKey) {
+    Long generation = generations.get(relationKey);
+    return (generation == null) ? 0L : generation;
+  }
+
+  /**
+   * @param key
+   * @return the cached rows, or null if there are none or they are stale.
+   */
+  synchronized List<CommonFieldsBase> get(String key) {
+    Entry e = entries.get(key);
+    if (e == null) {
+      return null;
+    }
+    if (e.expiresAt < System.currentTimeMillis() || e.generation != getGeneration(e.relationKey)) {
+      remove(key);
+      return null;
+    }
+    return e.rows;
+  }
+
+  /**
+   * Store the rows read at the given generation of their relation. They are
+   * dropped if the relation has been written since then, or if they alone
+   * would exceed the bound.
+   *
+   * @param key
+   * @param relationKey
+   * @param generation
+   * @param rows
+   */
+  synchronized void put(String key, String relationKey, long generation,
+      List<CommonFieldsBase> rows) {
+    if (generation != getGeneration(relationKey) || rows.size() > maxRows) {
+      return;
+    }
+    remove(key);
+    entries.put(key, new Entry(relationKey, generation, System.currentTimeMillis()
+        + timeToLiveMillis, rows));
+    rowCount += rows.size();
+    Iterator<Entry> it = entries.values().iterator();
+    while (rowCount > maxRows && it.hasNext()) {
+      rowCount -= it.next().rows.size();
+      it.remove();
+    }
+  }
+
+  /**
+   * Discard the cached rows of a relation.
+   *
+   * @param relationKey
+   */
+  synchronized void invalidate(String relationKey) {
+    generations.put(relationKey, getGeneration(relationKey) + 1L);
+  }
+
+  /**
+   * Discard every cached row.
+   */
+  synchronized void invalidateAll() {
+    for (Map.Entry<String, Long> e : generations.entrySet()) {
+      e.setValue(e.getValue() + 1L);
+    }
+    entries.clear();
+    rowCount = 0;
+  }
+
+  private void remove(String key) {
+    Entry e = entries.remove(key);
+    if (e != null) {
+      rowCount -= e.rows.size();
+    }
+  }
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Adds missing indexes to existing tables in the background, one index at a
+ * time, so that the request that first asserts a relation does not wait for
+ * its indexes to be built. The JDBC engines build these indexes with
+ * non-blocking DDL, so writes to the table continue during the build.
+ */
+public final class IndexBuilder {
+
+  private static final ExecutorService executor = Executors
+      .newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "index-builder");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  private IndexBuilder() {
+  }
+
+  /**
+   * Queue the creation of the missing indexes of a table.
+   *
+   * @param task
+   */
+  public static void submit(Runnable task) {
+    executor.execute(task);
+  }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+
+/**
+ * Caches the generated INSERT, UPDATE, DELETE and SELECT statements of each
+ * relation for the JDBC datastore engines. The statements depend only upon the
+ * schema, table and columns of the relation, so they are built once rather
+ * than on every putEntity(), deleteEntity() and query. Keeping the SQL text
+ * identical across calls also lets the JDBC driver reuse its server-side
+ * prepared statements.
+ *
+ * Entries are keyed by schema and table name and remember the column names
+ * they were generated from. Different prototypes of the same table share the
+ * entry; a change in the columns means the relation was redefined and the
+ * statements are rebuilt.
+ */
+public final class RelationSqlCache {
+
+  /**
+   * Builds the statements of a relation in the dialect of an engine.
+   */
+  public interface Generator {
+    String generateInsertSql(CommonFieldsBase relation);
+
+    String generateUpdateSql(CommonFieldsBase relation);
+
+    String generateDeleteSql(CommonFieldsBase relation);
+
+    String generateSelectSql(CommonFieldsBase relation);
+  }
+
+  /**
+   * The statements of one relation. Immutable once constructed.
+   */
+  public static final class Statements {
+    private final List<DataField> fields;
+    private final List<String> columnNames;
+    public final String insertSql;
+    public final String updateSql;
+    public final String deleteSql;
+    public final String selectSql;
+
+    private Statements(CommonFieldsBase relation, Generator generator) {
+      this.fields = relation.getFieldList();
+      this.columnNames = getColumnNames(fields);
+      this.insertSql = generator.generateInsertSql(relation);
+      this.updateSql = generator.generateUpdateSql(relation);
+      this.deleteSql = generator.generateDeleteSql(relation);
+      this.selectSql = generator.generateSelectSql(relation);
+    }
+
+    private boolean isFor(List<DataField> otherFields) {
+      // rows share the field list of their prototype
+      return fields == otherFields || columnNames.equals(getColumnNames(otherFields));
+    }
+  }
+
+  private static List<String> getColumnNames(List<DataField> fields) {
+    List<String> names = new ArrayList<String>(fields.size());
+    for (DataField f : fields) {
+      names.add(f.getName());
+    }
+    return names;
+  }
+
+  private final Generator generator;
+
+  private final Map<String, Statements> statements = new HashMap<String, Statements>();
+
+  public RelationSqlCache(Generator generator) {
+    this.generator = generator;
+  }
+
+  private static String getKey(String schemaName, String tableName) {
+    return schemaName + "." + tableName;
+  }
+
+  /**
+   * @param relation
+   * @return the statements for this relation; never null.
+   */
+  public Statements get(CommonFieldsBase relation) {
+    String key = getKey(relation.getSchemaName(), relation.getTableName());
+    Statements s;
+    synchronized (this) {
+      s = statements.get(key);
+    }
+    if (s != null && s.isFor(relation.getFieldList())) {
+      return s;
+    }
+    // build outside the lock; the entry is only published once complete
+    s = new Statements(relation, generator);
+    synchronized (this) {
+      statements.put(key, s);
+    }
+    return s;
+  }
+
+  /**
+   * Discard the statements of a relation (e.g., when it is dropped).
+   *
+   * @param relation
+   */
+  public synchronized void remove(CommonFieldsBase relation) {
+    statements.remove(getKey(relation.getSchemaName(), relation.getTableName()));
+  }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine.gae;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.security.User;
+
+/**
+ * Tracks a filter on a child relation of the relation being queried. GAE has
+ * no joins, so the child relation is queried first for the primary keys of the
+ * records having a passing row, and the records are then filtered locally
+ * against that key set. It has no attribute of its own, so it never
+ * participates in the dominant sort handling.
+ *
+ */
+final class ChildFilterTracker extends Tracker {
+  final CommonFieldsBase childRelation;
+  final DataField joinField;
+  final DataField childAttribute;
+  final FilterOperation op;
+  final Object value;
+  private Set<String> parentKeys = null;
+
+  ChildFilterTracker(CommonFieldsBase childRelation, DataField joinField,
+      DataField childAttribute, FilterOperation op, Object value) {
+    super(null);
+    this.childRelation = childRelation;
+    this.joinField = joinField;
+    this.childAttribute = childAttribute;
+    this.op = op;
+    this.value = value;
+  }
+
+  /**
+   * Fetch the primary keys of the records having a child row that passes the
+   * filter. Only done once per query.
+   */
+  void resolve(DatastoreImpl datastore, String loggingContextTag, User user)
+      throws ODKDatastoreException {
+    if (parentKeys != null) {
+      return;
+    }
+    Query q = datastore.createQuery(childRelation, loggingContextTag, user);
+    q.addFilter(childAttribute, op, value);
+    List<?> keys = q.executeDistinctValueForDataField(joinField);
+    Set<String> resolved = new HashSet<String>();
+    for (Object o : keys) {
+      if (o != null) {
+        resolved.add((String) o);
+      }
+    }
+    parentKeys = resolved;
+  }
+
+  @Override
+  boolean passFilter(CommonFieldsBase record) {
+    if (parentKeys == null) {
+      throw new IllegalStateException("child filter was not resolved before use");
+    }
+    return parentKeys.contains(record.getUri());
+  }
+
+  @Override
+  void setFilter(ArrayList<com.google.appengine.api.datastore.Query.Filter> filters) {
+    // applied locally -- see passFilter()
+  }
+}
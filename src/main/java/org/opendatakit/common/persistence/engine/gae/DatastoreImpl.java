@@ -124,6 +124,13 @@ public class DatastoreImpl implements Datastore {
     return MAX_IDENTIFIER_LEN;
   }
 
+  @Override
+  public boolean isWithinRowLimits(CommonFieldsBase relation) {
+    // entities are schemaless; long strings are already kept in separate
+    // entities, so no splitting is needed.
+    return true;
+  }
+
   @Override
   public void assertRelation(CommonFieldsBase relation, User user) throws ODKDatastoreException {
     int nColumns = 0;
@@ -27,6 +27,7 @@ import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.opendatakit.common.persistence.Aggregation;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.DataField.DataType;
@@ -59,6 +60,9 @@ public class QueryImpl implements org.opendatakit.common.persistence.Query {
 
   private static final boolean isWorkingZigZagEqualityFiltering = false;
 
+  // the datastore limits the number of values of an IN filter
+  private static final int MAX_VALUE_SET_SIZE = 30;
+
   static final Map<FilterOperation, FilterOperator> operationMap = new HashMap<FilterOperation, FilterOperator>();
 
   static {
@@ -235,6 +239,17 @@ public class QueryImpl implements org.opendatakit.common.persistence.Query {
     }
   }
 
+  @Override
+  public void addValueSetDisjunctionFilter(Map<DataField, Collection<?>> valueSets) {
+    filterList.add(new ValueSetDisjunctionFilterTracker(valueSets));
+  }
+
+  @Override
+  public void addChildFilter(CommonFieldsBase childRelation, DataField joinField,
+      DataField attributeName, FilterOperation op, Object value) {
+    filterList.add(new ChildFilterTracker(childRelation, joinField, attributeName, op, value));
+  }
+
   @Override
   public void addSort(DataField attribute, Direction direction) {
     // do the sort locally -- later...
@@ -433,6 +448,13 @@ public class QueryImpl implements org.opendatakit.common.persistence.Query {
   private void chunkFetch(ResultContainer odkEntities, SimpleFilterTracker startCursorFilter,
       int fetchLimit) throws ODKDatastoreException, ODKOverQuotaException {
 
+    // Step 0: resolve any child-relation filters into sets of primary keys.
+    for (Tracker t : filterList) {
+      if (t instanceof ChildFilterTracker) {
+        ((ChildFilterTracker) t).resolve(datastore, loggingContextTag, user);
+      }
+    }
+
     // Step 1: create a prepared query that we may repeatedly
     // fetch values from using a chunk size, fetch limit and
     // fetch offset until we have fetched enough records into
@@ -1012,4 +1034,30 @@ public class QueryImpl implements org.opendatakit.common.persistence.Query {
     }
     return values;
   }
+
+  @Override
+  public List<Aggregation.Result> executeAggregateQuery(Aggregation aggregation)
+      throws ODKDatastoreException, ODKOverQuotaException {
+    // the datastore has no grouped queries. Fetch the matching records and
+    // the joined records of each, and aggregate them in memory.
+    List<? extends CommonFieldsBase> baseRows = executeQuery();
+    List<String> uris = new ArrayList<String>();
+    for (CommonFieldsBase row : baseRows) {
+      uris.add(row.getUri());
+    }
+    Map<String, List<? extends CommonFieldsBase>> joinedRows = new HashMap<String, List<? extends CommonFieldsBase>>();
+    for (Aggregation.JoinedField j : aggregation.getJoinedRelations()) {
+      List<CommonFieldsBase> rows = new ArrayList<CommonFieldsBase>();
+      // the IN filter takes a limited number of values
+      for (int i = 0; i < uris.size(); i += MAX_VALUE_SET_SIZE) {
+        org.opendatakit.common.persistence.Query query = datastore.createQuery(j.getRelation(),
+            loggingContextTag, user);
+        query.addValueSetFilter(j.getJoinField(),
+            uris.subList(i, Math.min(i + MAX_VALUE_SET_SIZE, uris.size())));
+        rows.addAll(query.executeQuery());
+      }
+      joinedRows.put(Aggregation.getRelationKey(j.getRelation()), rows);
+    }
+    return aggregation.evaluate(baseRows, joinedRows);
+  }
 }
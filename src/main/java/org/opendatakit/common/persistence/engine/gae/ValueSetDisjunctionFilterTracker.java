@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine.gae;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.DataField.DataType;
+
+/**
+ * Tracks an OR of value-set ( 'IN' ) clauses across several attributes. GAE
+ * cannot express this as a single filter predicate, so it is always applied
+ * locally to the fetched records. It has no attribute of its own, so it never
+ * participates in the dominant sort handling.
+ *
+ */
+final class ValueSetDisjunctionFilterTracker extends Tracker {
+  final List<ValueSetFilterTracker> terms = new ArrayList<ValueSetFilterTracker>();
+
+  ValueSetDisjunctionFilterTracker(Map<DataField, Collection<?>> valueSets) {
+    super(null);
+    for (Map.Entry<DataField, Collection<?>> entry : valueSets.entrySet()) {
+      if (entry.getKey().getDataType() == DataType.DECIMAL) {
+        throw new IllegalStateException(
+            "addValueSetDisjunctionFilter for DECIMAL is not correctly implemented");
+      }
+      terms.add(new ValueSetFilterTracker(entry.getKey(), entry.getValue()));
+    }
+  }
+
+  @Override
+  boolean passFilter(CommonFieldsBase record) {
+    for (ValueSetFilterTracker t : terms) {
+      if (t.passFilter(record)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  void setFilter(ArrayList<com.google.appengine.api.datastore.Query.Filter> filters) {
+    // applied locally -- see passFilter()
+  }
+}
@@ -21,8 +21,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.sql.DataSource;
 
@@ -38,6 +40,8 @@ import org.opendatakit.common.persistence.Query.FilterOperation;
 import org.opendatakit.common.persistence.TaskLock;
 import org.opendatakit.common.persistence.WrappedBigDecimal;
 import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics;
+import org.opendatakit.common.persistence.engine.IndexBuilder;
+import org.opendatakit.common.persistence.engine.RelationSqlCache;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
@@ -72,9 +76,21 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   // limit on postgresql capacity (minus about 100 for where clause filters)
   private static final int MAX_BIND_PARAMS = 34300;
 
+  // limit on the number of columns in a table
+  private static final int MAX_COLUMN_COUNT = 1600;
+
+  // usable space in a heap page, less the tuple header
+  private static final long MAX_TUPLE_SIZE = 8160L - 24L;
+
+  // size of a varlena value moved out-of-line into the TOAST table
+  private static final long TOAST_POINTER_SIZE = 18L;
+
   private static final Long MAX_BLOB_SIZE = 65536 * 4096L;
 
   private final DatastoreAccessMetrics dam = new DatastoreAccessMetrics();
+  private final RelationSqlCache sqlCache = new RelationSqlCache(SQL_GENERATOR);
+  // relations whose composite indexes have been verified against the catalog
+  private final Set<String> indexedRelations = new HashSet<String>();
   private DataSource dataSource = null;
   private DataSourceTransactionManager tm = null;
 
@@ -112,6 +128,12 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   public static final String K_SELECT = "SELECT ";
   public static final String K_SELECT_DISTINCT = "SELECT DISTINCT ";
   public static final String K_CS = ", ";
+  private static final String K_INDEX_CATALOG = "pg_index";
+  // only valid indexes; a failed concurrent build leaves an invalid one
+  private static final String K_INDEX_NAMES_QUERY = "SELECT c.relname FROM pg_index i"
+      + " JOIN pg_class c ON c.oid = i.indexrelid JOIN pg_class t ON t.oid = i.indrelid"
+      + " JOIN pg_namespace n ON n.oid = t.relnamespace"
+      + " WHERE n.nspname = ? AND t.relname = ? AND i.indisvalid";
   public static final String K_COLON = ";";
   public static final String K_BQ = "\"";
   public static final String K_FROM = " FROM ";
@@ -120,6 +142,8 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   public static final String K_EQ = " = ";
   public static final String K_BIND_VALUE = "?";
   public static final String K_CREATE_INDEX = "CREATE INDEX ";
+  private static final String K_CREATE_INDEX_CONCURRENTLY = "CREATE INDEX CONCURRENTLY ";
+  private static final String K_DROP_INDEX_CONCURRENTLY = "DROP INDEX CONCURRENTLY IF EXISTS ";
   public static final String K_ON = " ON ";
   public static final String K_USING_HASH = " USING HASH ";
   public static final String K_INSERT_INTO = "INSERT INTO ";
@@ -381,6 +405,11 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     dam.recordQueryUsage(relation, recCount);
   }
 
+  void recordCursorQuery(CommonFieldsBase relation, List<DataField> equalityFilters,
+      DataField sortAttr) {
+    dam.recordCursorQuery(relation, equalityFilters, sortAttr);
+  }
+
   @Override
   public String getDefaultSchemaName() {
     return schemaName;
@@ -400,6 +429,51 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     return MAX_TABLE_NAME_LEN;
   }
 
+  @Override
+  public boolean isWithinRowLimits(CommonFieldsBase relation) {
+    List<DataField> fields = relation.getFieldList();
+    if (fields.size() > Math.min(MAX_COLUMN_COUNT, MAX_BIND_PARAMS)) {
+      return false;
+    }
+    // variable-length values are moved into the TOAST table when the row
+    // is too wide, leaving a pointer; only the remainder must fit in a page.
+    // Sizes match the column types used by assertRelation().
+    long rowSize = 0L;
+    for (DataField f : fields) {
+      switch (f.getDataType()) {
+      case BINARY:
+      case LONG_STRING:
+        rowSize += TOAST_POINTER_SIZE;
+        break;
+      case STRING:
+      case URI: {
+        Long len = f.getMaxCharLen();
+        if (len == null) {
+          len = (f.getDataType() == DataField.DataType.URI) ? PersistConsts.URI_STRING_LEN
+              : PersistConsts.DEFAULT_MAX_STRING_LENGTH;
+        }
+        rowSize += Math.min(4L * len + 4L, TOAST_POINTER_SIZE);
+        break;
+      }
+      case BOOLEAN:
+        rowSize += 1L;
+        break;
+      case INTEGER: {
+        Integer digits = f.getNumericPrecision();
+        rowSize += (digits != null && digits.compareTo(9) > 0) ? 8L : 4L;
+        break;
+      }
+      case DECIMAL:
+        rowSize += f.isDoublePrecision() ? 8L : TOAST_POINTER_SIZE;
+        break;
+      case DATETIME:
+        rowSize += 8L;
+        break;
+      }
+    }
+    return rowSize <= MAX_TUPLE_SIZE;
+  }
+
   private final boolean updateRelation(JdbcTemplate jc, CommonFieldsBase relation,
       String originalStatement) {
 
@@ -510,6 +584,8 @@ public class DatastoreImpl implements Datastore, InitializingBean {
         // it exists -- we're done!
         tm.commit(status);
         status = null;
+        // tables created before their composite indexes were declared lack them
+        assertCompositeIndexes(jc, relation);
         return;
       } else {
         tm.commit(status);
@@ -638,6 +714,11 @@ public class DatastoreImpl implements Datastore, InitializingBean {
             createIndex(jc, relation, idx, f);
           }
         }
+        List<List<DataField>> compositeIndexes = relation.getCompositeIndexes();
+        for (int i = 0; i < compositeIndexes.size(); ++i) {
+          createCompositeIndex(jc, relation, getCompositeIndexName(relation, i),
+              compositeIndexes.get(i), false);
+        }
 
         // and update the relation with actual dimensions...
         updateRelation(jc, relation, createTableStmt);
@@ -698,6 +779,109 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     jc.execute(b.toString());
   }
 
+  /**
+   * @param relation
+   * @param ordinal
+   * @return the name of the ordinal-th composite index of the relation.
+   */
+  private String getCompositeIndexName(CommonFieldsBase relation, int ordinal) {
+    return relation.getTableName() + "_x" + ordinal;
+  }
+
+  /**
+   * @param online
+   *          true to build the index without blocking writes to the table. Not
+   *          possible within a transaction.
+   */
+  private void createCompositeIndex(JdbcTemplate jc, CommonFieldsBase tbl, String idxName,
+      List<DataField> fields, boolean online) {
+    StringBuilder b = new StringBuilder();
+
+    if (online) {
+      // an interrupted concurrent build leaves an invalid index behind
+      jc.execute(K_DROP_INDEX_CONCURRENTLY + K_BQ + tbl.getSchemaName() + K_BQ + "." + K_BQ
+          + idxName + K_BQ);
+    }
+
+    b.append(online ? K_CREATE_INDEX_CONCURRENTLY : K_CREATE_INDEX);
+    b.append(K_BQ);
+    b.append(idxName);
+    b.append(K_BQ);
+    b.append(K_ON);
+    b.append(K_BQ);
+    b.append(tbl.getSchemaName());
+    b.append(K_BQ);
+    b.append(".");
+    b.append(K_BQ);
+    b.append(tbl.getTableName());
+    b.append(K_BQ);
+    b.append(" (");
+    boolean first = true;
+    for (DataField f : fields) {
+      if (!first) {
+        b.append(K_CS);
+      }
+      first = false;
+      b.append(K_BQ);
+      b.append(f.getName());
+      b.append(K_BQ);
+    }
+    b.append(" )");
+
+    jc.execute(b.toString());
+  }
+
+  /**
+   * Create any declared composite indexes that are missing from an existing
+   * table. The catalog is consulted once per relation. The indexes are built
+   * in the background, without blocking writes to the table. Failures are
+   * logged rather than thrown because the table remains usable without the
+   * index; the build is retried the next time the relation is asserted.
+   *
+   * @param jc
+   * @param relation
+   */
+  private void assertCompositeIndexes(final JdbcTemplate jc, final CommonFieldsBase relation) {
+    final List<List<DataField>> compositeIndexes = relation.getCompositeIndexes();
+    if (compositeIndexes.isEmpty()) {
+      return;
+    }
+    final String key = relation.getSchemaName() + "." + relation.getTableName();
+    synchronized (indexedRelations) {
+      // includes the relations whose indexes are being built
+      if (!indexedRelations.add(key)) {
+        return;
+      }
+    }
+    IndexBuilder.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          dam.recordQueryUsage(K_INDEX_CATALOG, 1);
+          List<String> names = jc.queryForList(K_INDEX_NAMES_QUERY,
+              new Object[] { relation.getSchemaName(), relation.getTableName() }, String.class);
+          Set<String> existing = new HashSet<String>();
+          for (String name : names) {
+            existing.add(name.toLowerCase());
+          }
+          for (int i = 0; i < compositeIndexes.size(); ++i) {
+            String idx = getCompositeIndexName(relation, i);
+            if (!existing.contains(idx.toLowerCase())) {
+              LoggerFactory.getLogger(DatastoreImpl.class).info("Creating index " + idx);
+              createCompositeIndex(jc, relation, idx, compositeIndexes.get(i), true);
+            }
+          }
+        } catch (Exception e) {
+          synchronized (indexedRelations) {
+            indexedRelations.remove(key);
+          }
+          LoggerFactory.getLogger(DatastoreImpl.class)
+              .warn("Unable to create indexes on " + key + " exception: " + e.toString());
+        }
+      }
+    });
+  }
+
   @Override
   public boolean hasRelation(String schema, String tableName, User user) {
     dam.recordQueryUsage(TableDefinition.INFORMATION_SCHEMA_COLUMNS, 1);
@@ -723,6 +907,10 @@ public class DatastoreImpl implements Datastore, InitializingBean {
       LoggerFactory.getLogger(DatastoreImpl.class)
           .info("Executing " + b.toString() + " by user " + user.getUriUser());
       getJdbcConnection().execute(b.toString());
+      sqlCache.remove(relation);
+      synchronized (indexedRelations) {
+        indexedRelations.remove(relation.getSchemaName() + "." + relation.getTableName());
+      }
     } catch (Exception e) {
       LoggerFactory.getLogger(DatastoreImpl.class)
           .warn(relation.getTableName() + " exception: " + e.toString());
@@ -857,101 +1045,182 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     }
   }
 
+  /**
+   * @param relation
+   * @return the cached SQL statements of this relation
+   */
+  RelationSqlCache.Statements getStatements(CommonFieldsBase relation) {
+    return sqlCache.get(relation);
+  }
+
+  /**
+   * Builds the statements held in the sqlCache. Needs no database, so it is
+   * package-visible for benchmarking the SQL generation.
+   */
+  static final RelationSqlCache.Generator SQL_GENERATOR = new RelationSqlCache.Generator() {
+    @Override
+    public String generateInsertSql(CommonFieldsBase relation) {
+      return DatastoreImpl.generateInsertSql(relation);
+    }
+
+    @Override
+    public String generateUpdateSql(CommonFieldsBase relation) {
+      return DatastoreImpl.generateUpdateSql(relation);
+    }
+
+    @Override
+    public String generateDeleteSql(CommonFieldsBase relation) {
+      return DatastoreImpl.generateDeleteSql(relation);
+    }
+
+    @Override
+    public String generateSelectSql(CommonFieldsBase relation) {
+      return QueryImpl.generateSelectSql(relation);
+    }
+  };
+
+  private static String generateUpdateSql(CommonFieldsBase entity) {
+    StringBuilder b = new StringBuilder();
+    b.append(K_UPDATE);
+    b.append(K_BQ);
+    b.append(entity.getSchemaName());
+    b.append(K_BQ);
+    b.append(".");
+    b.append(K_BQ);
+    b.append(entity.getTableName());
+    b.append(K_BQ);
+    b.append(K_SET);
+
+    boolean first = true;
+    // fields...
+    for (DataField f : entity.getFieldList()) {
+      // primary key goes in the where clause...
+      if (f == entity.primaryKey)
+        continue;
+      if (!first) {
+        b.append(K_CS);
+      }
+      first = false;
+      b.append(K_BQ);
+      b.append(f.getName());
+      b.append(K_BQ);
+
+      b.append(K_EQ);
+      b.append(K_BIND_VALUE);
+    }
+    b.append(K_WHERE);
+    b.append(K_BQ);
+    b.append(entity.primaryKey.getName());
+    b.append(K_BQ);
+    b.append(K_EQ);
+    b.append(K_BIND_VALUE);
+    return b.toString();
+  }
+
+  private static String generateInsertSql(CommonFieldsBase entity) {
+    StringBuilder b = new StringBuilder();
+    b.append(K_INSERT_INTO);
+    b.append(K_BQ);
+    b.append(entity.getSchemaName());
+    b.append(K_BQ);
+    b.append(".");
+    b.append(K_BQ);
+    b.append(entity.getTableName());
+    b.append(K_BQ);
+    boolean first = true;
+    b.append(K_OPEN_PAREN);
+    // fields...
+    for (DataField f : entity.getFieldList()) {
+      if (!first) {
+        b.append(K_CS);
+      }
+      first = false;
+      b.append(K_BQ);
+      b.append(f.getName());
+      b.append(K_BQ);
+    }
+    b.append(K_CLOSE_PAREN);
+    b.append(K_VALUES);
+
+    first = true;
+    b.append(K_OPEN_PAREN);
+    // fields...
+    for (int i = 0; i < entity.getFieldList().size(); ++i) {
+      if (!first) {
+        b.append(K_CS);
+      }
+      first = false;
+      b.append(K_BIND_VALUE);
+    }
+    b.append(K_CLOSE_PAREN);
+    return b.toString();
+  }
+
+  private static String generateDeleteSql(CommonFieldsBase relation) {
+    StringBuilder b = new StringBuilder();
+    b.append(K_DELETE_FROM);
+    b.append(K_BQ);
+    b.append(relation.getSchemaName());
+    b.append(K_BQ);
+    b.append(".");
+    b.append(K_BQ);
+    b.append(relation.getTableName());
+    b.append(K_BQ);
+    b.append(K_WHERE);
+    b.append(K_BQ);
+    b.append(relation.primaryKey.getName());
+    b.append(K_BQ);
+    b.append(K_EQ);
+    b.append(K_BIND_VALUE);
+    return b.toString();
+  }
+
+  private String getUpdateSql(CommonFieldsBase entity) {
+    return sqlCache.get(entity).updateSql;
+  }
+
+  private String getInsertSql(CommonFieldsBase entity) {
+    return sqlCache.get(entity).insertSql;
+  }
+
+  private String getDeleteSql(CommonFieldsBase relation) {
+    return sqlCache.get(relation).deleteSql;
+  }
+
   @Override
   public void putEntity(CommonFieldsBase entity, User user) throws ODKEntityPersistException {
     dam.recordPutUsage(entity);
     try {
-      boolean first;
-      StringBuilder b = new StringBuilder();
+      ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
       if (entity.isFromDatabase()) {
         // we need to do an update
         entity.setDateField(entity.lastUpdateDate, new Date());
         entity.setStringField(entity.lastUpdateUriUser, user.getUriUser());
 
-        b.append(K_UPDATE);
-        b.append(K_BQ);
-        b.append(entity.getSchemaName());
-        b.append(K_BQ);
-        b.append(".");
-        b.append(K_BQ);
-        b.append(entity.getTableName());
-        b.append(K_BQ);
-        b.append(K_SET);
-
-        ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
+        String sql = getUpdateSql(entity);
 
-        first = true;
         // fields...
         for (DataField f : entity.getFieldList()) {
           // primary key goes in the where clause...
           if (f == entity.primaryKey)
             continue;
-          if (!first) {
-            b.append(K_CS);
-          }
-          first = false;
-          b.append(K_BQ);
-          b.append(f.getName());
-          b.append(K_BQ);
-
-          b.append(K_EQ);
-          b.append(K_BIND_VALUE);
           buildArgumentList(pv, entity, f);
         }
-        b.append(K_WHERE);
-        b.append(K_BQ);
-        b.append(entity.primaryKey.getName());
-        b.append(K_BQ);
-        b.append(K_EQ);
-        b.append(K_BIND_VALUE);
         buildArgumentList(pv, entity, entity.primaryKey);
 
         // update...
-        String sql = b.toString();
         ReusableStatementSetter setter = new ReusableStatementSetter(sql, pv);
         getJdbcConnection().update(sql, setter);
       } else {
         // not yet in database -- insert
-        b.append(K_INSERT_INTO);
-        b.append(K_BQ);
-        b.append(entity.getSchemaName());
-        b.append(K_BQ);
-        b.append(".");
-        b.append(K_BQ);
-        b.append(entity.getTableName());
-        b.append(K_BQ);
-        first = true;
-        b.append(K_OPEN_PAREN);
-        // fields...
-        for (DataField f : entity.getFieldList()) {
-          if (!first) {
-            b.append(K_CS);
-          }
-          first = false;
-          b.append(K_BQ);
-          b.append(f.getName());
-          b.append(K_BQ);
-        }
-        b.append(K_CLOSE_PAREN);
-        b.append(K_VALUES);
-
-        ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
+        String sql = getInsertSql(entity);
 
-        first = true;
-        b.append(K_OPEN_PAREN);
         // fields...
         for (DataField f : entity.getFieldList()) {
-          if (!first) {
-            b.append(K_CS);
-          }
-          first = false;
-          b.append(K_BIND_VALUE);
           buildArgumentList(pv, entity, f);
         }
-        b.append(K_CLOSE_PAREN);
 
         // insert...
-        String sql = b.toString();
         ReusableStatementSetter setter = new ReusableStatementSetter(sql, pv);
         getJdbcConnection().update(sql, setter);
         entity.setFromDatabase(true); // now it is in the database...
@@ -1022,18 +1291,13 @@ public class DatastoreImpl implements Datastore, InitializingBean {
       return;
     }
 
-    boolean generateSQL = true;
     String sql = null;
     List<List<SqlParameterValue> > batchArgs = new ArrayList<List<SqlParameterValue> >();
-    StringBuilder b = new StringBuilder();
 
     for (int idx = idxStart ; idx < idxAfterEnd ; ++idx ) {
       CommonFieldsBase entity = allChanges.get(idx);
       dam.recordPutUsage(entity);
 
-      boolean first;
-      b.setLength(0);
-
       ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
 
       if (entity.isFromDatabase()) {
@@ -1041,100 +1305,32 @@ public class DatastoreImpl implements Datastore, InitializingBean {
         entity.setDateField(entity.lastUpdateDate, new Date());
         entity.setStringField(entity.lastUpdateUriUser, user.getUriUser());
 
-        if (generateSQL) {
-          b.append(K_UPDATE);
-          b.append(K_BQ);
-          b.append(entity.getSchemaName());
-          b.append(K_BQ);
-          b.append(".");
-          b.append(K_BQ);
-          b.append(entity.getTableName());
-          b.append(K_BQ);
-          b.append(K_SET);
+        if (sql == null) {
+          sql = getUpdateSql(entity) + K_COLON;
         }
 
-        first = true;
         // fields...
         for (DataField f : entity.getFieldList()) {
           // primary key goes in the where clause...
           if (f == entity.primaryKey)
             continue;
 
-          if (generateSQL) {
-            if (!first) {
-              b.append(K_CS);
-            }
-            first = false;
-            b.append(K_BQ);
-            b.append(f.getName());
-            b.append(K_BQ);
-            b.append(K_EQ);
-            b.append(K_BIND_VALUE);
-          }
-
           buildArgumentList(pv, entity, f);
         }
-        if (generateSQL) {
-          b.append(K_WHERE);
-          b.append(K_BQ);
-          b.append(entity.primaryKey.getName());
-          b.append(K_BQ);
-          b.append(K_EQ);
-          b.append(K_BIND_VALUE);
-        }
         buildArgumentList(pv, entity, entity.primaryKey);
 
       } else {
-        if (generateSQL) {
+        if (sql == null) {
           // not yet in database -- insert
-          b.append(K_INSERT_INTO);
-          b.append(K_BQ);
-          b.append(entity.getSchemaName());
-          b.append(K_BQ);
-          b.append(".");
-          b.append(K_BQ);
-          b.append(entity.getTableName());
-          b.append(K_BQ);
-          first = true;
-          b.append(K_OPEN_PAREN);
-          // fields...
-          for (DataField f : entity.getFieldList()) {
-            if (!first) {
-              b.append(K_CS);
-            }
-            first = false;
-            b.append(K_BQ);
-            b.append(f.getName());
-            b.append(K_BQ);
-          }
-          b.append(K_CLOSE_PAREN);
-          b.append(K_VALUES);
-          b.append(K_OPEN_PAREN);
+          sql = getInsertSql(entity) + K_COLON;
         }
 
-        first = true;
         // fields...
         for (DataField f : entity.getFieldList()) {
-          if (generateSQL) {
-            if (!first) {
-              b.append(K_CS);
-            }
-            first = false;
-            b.append(K_BIND_VALUE);
-          }
           buildArgumentList(pv, entity, f);
         }
-
-        if (generateSQL) {
-          b.append(K_CLOSE_PAREN);
-        }
       }
 
-      if (generateSQL) {
-        b.append(K_COLON);
-        sql = b.toString();
-      }
-      generateSQL = false;
       batchArgs.add(pv);
     }
 
@@ -1162,25 +1358,11 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     try {
       CommonFieldsBase d = key.getRelation();
 
-      StringBuilder b = new StringBuilder();
-      b.append(K_DELETE_FROM);
-      b.append(K_BQ);
-      b.append(d.getSchemaName());
-      b.append(K_BQ);
-      b.append(".");
-      b.append(K_BQ);
-      b.append(d.getTableName());
-      b.append(K_BQ);
-      b.append(K_WHERE);
-      b.append(K_BQ);
-      b.append(d.primaryKey.getName());
-      b.append(K_BQ);
-      b.append(K_EQ);
-      b.append(K_BIND_VALUE);
+      String sql = getDeleteSql(d);
 
-      LoggerFactory.getLogger(DatastoreImpl.class).info("Executing " + b.toString() + " with key "
+      LoggerFactory.getLogger(DatastoreImpl.class).info("Executing " + sql + " with key "
           + key.getKey() + " by user " + user.getUriUser());
-      getJdbcConnection().update(b.toString(), new Object[] { key.getKey() });
+      getJdbcConnection().update(sql, new Object[] { key.getKey() });
     } catch (Exception e) {
       throw new ODKDatastoreException("delete failed", e);
     }
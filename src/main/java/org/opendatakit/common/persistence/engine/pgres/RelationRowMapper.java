@@ -16,6 +16,7 @@ package org.opendatakit.common.persistence.engine.pgres;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Date;
+import java.util.List;
 
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.DataField;
@@ -51,21 +52,28 @@ public class RelationRowMapper implements RowMapper<CommonFieldsBase> {
     }
 
     /**
+     * Columns are fetched by position rather than by name. QueryImpl generates
+     * the SELECT list in relation.getFieldList() order, so field i is in
+     * column i+1.
+     *
      * Correct for the funky handling of nulls by the various accessors...
      */
-    for (DataField f : relation.getFieldList()) {
+    List<DataField> fields = relation.getFieldList();
+    for (int i = 0; i < fields.size(); ++i) {
+      DataField f = fields.get(i);
+      int columnIndex = i + 1;
       switch (f.getDataType()) {
       case BINARY:
-        byte[] blobBytes = rs.getBytes(f.getName());
+        byte[] blobBytes = rs.getBytes(columnIndex);
         row.setBlobField(f, blobBytes);
         break;
       case LONG_STRING:
       case URI:
       case STRING:
-        row.setStringField(f, rs.getString(f.getName()));
+        row.setStringField(f, rs.getString(columnIndex));
         break;
       case INTEGER:
-        long l = rs.getLong(f.getName());
+        long l = rs.getLong(columnIndex);
         if (rs.wasNull()) {
           row.setLongField(f, null);
         } else {
@@ -73,7 +81,7 @@ public class RelationRowMapper implements RowMapper<CommonFieldsBase> {
         }
         break;
       case DECIMAL: {
-        String value = rs.getString(f.getName());
+        String value = rs.getString(columnIndex);
         if ( value == null ) {
           row.setNumericField(f, null);
         } else {
@@ -82,7 +90,7 @@ public class RelationRowMapper implements RowMapper<CommonFieldsBase> {
       }
         break;
       case BOOLEAN:
-        Boolean b = rs.getBoolean(f.getName());
+        Boolean b = rs.getBoolean(columnIndex);
         if (rs.wasNull()) {
           row.setBooleanField(f, null);
         } else {
@@ -90,7 +98,7 @@ public class RelationRowMapper implements RowMapper<CommonFieldsBase> {
         }
         break;
       case DATETIME:
-        Date d = rs.getTimestamp(f.getName());
+        Date d = rs.getTimestamp(columnIndex);
         if (d == null) {
           row.setDateField(f, null);
         } else {
@@ -13,10 +13,12 @@
  */
 package org.opendatakit.common.persistence.engine.sqlserver;
 
+import java.math.BigDecimal;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -25,12 +27,14 @@ import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.opendatakit.common.persistence.Aggregation;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.EntityKey;
 import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.QueryResult;
 import org.opendatakit.common.persistence.QueryResumePoint;
+import org.opendatakit.common.persistence.WrappedBigDecimal;
 import org.opendatakit.common.persistence.engine.EngineUtils;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.security.User;
@@ -56,8 +60,17 @@ public class QueryImpl implements Query {
   private static final String K_AND = " AND ";
   private static final String K_IN_OPEN = " IN (";
   private static final String K_IN_CLOSE = ")";
+  private static final String K_OR = " OR ";
+  private static final String K_EXISTS = " EXISTS (SELECT 1 FROM ";
+  private static final String K_CHILD_ALIAS = "c";
   private static final String K_BIND_VALUE = " ? ";
   private static final String K_ORDER_BY = " ORDER BY ";
+  private static final String K_GROUP_BY = " GROUP BY ";
+  private static final String K_LEFT_JOIN = " LEFT JOIN ";
+  private static final String K_ON = " ON ";
+  private static final String K_BASE_ALIAS = "t";
+  private static final String K_JOIN_ALIAS = "a";
+  private static final String K_AGGREGATE_ALIAS = "x";
 
   private static Map<FilterOperation, String> operationMap = new HashMap<FilterOperation, String>();
   private static Map<Direction, String> directionMap = new HashMap<Direction, String>();
@@ -81,6 +94,8 @@ public class QueryImpl implements Query {
   private DataField dominantSortAttr = null;
   private Direction dominantSortDirection = null;
   private boolean isSortedByUri = false;
+  private final List<DataField> equalityFilters = new ArrayList<DataField>();
+  private int childFilterCount = 0;
 
   private final StringBuilder queryBindBuilder = new StringBuilder();
   private final List<Object> bindValues = new ArrayList<Object>();
@@ -96,11 +111,21 @@ public class QueryImpl implements Query {
   }
 
   private String generateQuery() {
+    return dataStoreImpl.getStatements(relation).selectSql;
+  }
+
+  /**
+   * @param relation
+   * @return the query of all the columns of the relation, without any filters.
+   */
+  static String generateSelectSql(CommonFieldsBase relation) {
     // generate the query
     StringBuilder baseQueryBuilder = new StringBuilder();
 
     baseQueryBuilder.append(K_SELECT);
 
+    // RelationRowMapper reads the columns by position, so the select list
+    // must be in getFieldList() order.
     boolean first = true;
     for (DataField f : relation.getFieldList()) {
       if (!first) {
@@ -158,6 +183,9 @@ public class QueryImpl implements Query {
     queryBindBuilder.append(K_BQ);
     queryBindBuilder.append(attributeName.getName());
     queryBindBuilder.append(K_BQ);
+    if (op.equals(FilterOperation.EQUAL)) {
+      equalityFilters.add(attributeName);
+    }
     if (op.equals(FilterOperation.EQUAL) && value == null) {
       queryBindBuilder.append(K_IS_NULL);
     } else if (op.equals(FilterOperation.NOT_EQUAL) && value == null) {
@@ -229,6 +257,125 @@ public class QueryImpl implements Query {
     queryBindBuilder.append(K_IN_CLOSE);
   }
 
+  @Override
+  public void addChildFilter(CommonFieldsBase childRelation, DataField joinField,
+      DataField attributeName, FilterOperation op, Object value) {
+    if (!childRelation.getFieldList().contains(joinField)
+        || !childRelation.getFieldList().contains(attributeName)) {
+      throw new IllegalArgumentException("Attempting to filter on a field not belonging to "
+          + childRelation.getSchemaName() + "." + childRelation.getTableName());
+    }
+    String alias = K_CHILD_ALIAS + (++childFilterCount);
+
+    if (queryBindBuilder.length() == 0) {
+      queryBindBuilder.append(K_WHERE);
+    } else {
+      queryBindBuilder.append(K_AND);
+    }
+    queryBindBuilder.append(K_EXISTS);
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(childRelation.getSchemaName());
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(".");
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(childRelation.getTableName());
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(" ");
+    queryBindBuilder.append(alias);
+    queryBindBuilder.append(K_WHERE);
+    queryBindBuilder.append(alias);
+    queryBindBuilder.append(".");
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(joinField.getName());
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(" = ");
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(relation.getSchemaName());
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(".");
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(relation.getTableName());
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(".");
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(relation.primaryKey.getName());
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(K_AND);
+    queryBindBuilder.append(alias);
+    queryBindBuilder.append(".");
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(attributeName.getName());
+    queryBindBuilder.append(K_BQ);
+    if (op.equals(FilterOperation.EQUAL) && value == null) {
+      queryBindBuilder.append(K_IS_NULL);
+    } else if (op.equals(FilterOperation.NOT_EQUAL) && value == null) {
+      queryBindBuilder.append(K_IS_NOT_NULL);
+    } else {
+      queryBindBuilder.append(operationMap.get(op));
+      queryBindBuilder.append(K_BIND_VALUE);
+      bindValues.add(DatastoreImpl.getBindValue(attributeName, value));
+    }
+    queryBindBuilder.append(") ");
+  }
+
+  @Override
+  public void addValueSetDisjunctionFilter(Map<DataField, Collection<?>> valueSets) {
+    if (queryBindBuilder.length() == 0) {
+      queryBindBuilder.append(K_WHERE);
+    } else {
+      queryBindBuilder.append(K_AND);
+    }
+    queryBindBuilder.append(" (");
+    boolean firstTerm = true;
+    for (Map.Entry<DataField, Collection<?>> entry : valueSets.entrySet()) {
+      DataField attributeName = entry.getKey();
+      boolean hasNull = false;
+      List<Object> values = new ArrayList<Object>();
+      for (Object o : entry.getValue()) {
+        if (o == null) {
+          hasNull = true;
+        } else {
+          values.add(o);
+        }
+      }
+      if (hasNull) {
+        if (!firstTerm) {
+          queryBindBuilder.append(K_OR);
+        }
+        firstTerm = false;
+        queryBindBuilder.append(K_BQ);
+        queryBindBuilder.append(attributeName.getName());
+        queryBindBuilder.append(K_BQ);
+        queryBindBuilder.append(K_IS_NULL);
+      }
+      if (!values.isEmpty()) {
+        if (!firstTerm) {
+          queryBindBuilder.append(K_OR);
+        }
+        firstTerm = false;
+        queryBindBuilder.append(K_BQ);
+        queryBindBuilder.append(attributeName.getName());
+        queryBindBuilder.append(K_BQ);
+        queryBindBuilder.append(K_IN_OPEN);
+        boolean first = true;
+        for (Object o : values) {
+          if (!first) {
+            queryBindBuilder.append(K_CS);
+          }
+          first = false;
+          queryBindBuilder.append(K_BIND_VALUE);
+          bindValues.add(DatastoreImpl.getBindValue(attributeName, o));
+        }
+        queryBindBuilder.append(K_IN_CLOSE);
+      }
+    }
+    if (firstTerm) {
+      // no values at all -- nothing can match
+      queryBindBuilder.append("1 = 0");
+    }
+    queryBindBuilder.append(") ");
+  }
+
   @Override
   public void addSort(DataField attributeName, Direction direction) {
     if (querySortBuilder.length() == 0) {
@@ -312,6 +459,194 @@ public class QueryImpl implements Query {
     return keySet;
   }
 
+  private String aggregateColumn(String alias, DataField field) {
+    return alias + "." + K_BQ + field.getName() + K_BQ;
+  }
+
+  private String bucketExpression(Aggregation.GroupBy groupBy, String column) {
+    switch (groupBy.getBucket()) {
+    case RANGE: {
+      // force a decimal division
+      BigDecimal width = groupBy.getWidth();
+      if (width.scale() < 1) {
+        width = width.setScale(1);
+      }
+      return "FLOOR(" + column + " / " + width.toPlainString() + ")";
+    }
+    case YEAR:
+      // style 126 is ISO8601; truncating it leaves the year, month or day
+      return "CONVERT(CHAR(4), " + column + ", 126)";
+    case MONTH:
+      return "CONVERT(CHAR(7), " + column + ", 126)";
+    case DAY:
+      return "CONVERT(CHAR(10), " + column + ", 126)";
+    default:
+      return column;
+    }
+  }
+
+  /**
+   * The filtered records are selected in a derived table (so that the
+   * unqualified column names of the filters remain unambiguous), joined to
+   * the other relations, and the bucketed keys and measured values of the
+   * joined records are then grouped.
+   */
+  private String generateAggregateQuery(Aggregation aggregation) {
+    Map<String, String> aliases = new HashMap<String, String>();
+    aliases.put(Aggregation.getRelationKey(relation), K_BASE_ALIAS);
+
+    StringBuilder joins = new StringBuilder();
+    int joinCount = 0;
+    for (Aggregation.JoinedField j : aggregation.getJoinedRelations()) {
+      CommonFieldsBase joined = j.getRelation();
+      String alias = K_JOIN_ALIAS + (++joinCount);
+      aliases.put(Aggregation.getRelationKey(joined), alias);
+      joins.append(K_LEFT_JOIN);
+      joins.append(K_BQ);
+      joins.append(joined.getSchemaName());
+      joins.append(K_BQ);
+      joins.append(".");
+      joins.append(K_BQ);
+      joins.append(joined.getTableName());
+      joins.append(K_BQ);
+      joins.append(" ");
+      joins.append(alias);
+      joins.append(K_ON);
+      joins.append(aggregateColumn(alias, j.getJoinField()));
+      joins.append(" = ");
+      joins.append(aggregateColumn(K_BASE_ALIAS, relation.primaryKey));
+    }
+
+    StringBuilder inner = new StringBuilder();
+    inner.append(K_SELECT);
+    StringBuilder outer = new StringBuilder();
+    outer.append(K_SELECT);
+    StringBuilder groupBy = new StringBuilder();
+    int i = 0;
+    for (Aggregation.GroupBy g : aggregation.getGroupBys()) {
+      String alias = aliases.get(Aggregation.getRelationKey(g.getRelation()));
+      inner.append(bucketExpression(g, aggregateColumn(alias, g.getField())));
+      inner.append(" AS k").append(i).append(K_CS);
+      outer.append(K_AGGREGATE_ALIAS).append(".k").append(i).append(K_CS);
+      groupBy.append((i == 0) ? K_GROUP_BY : K_CS);
+      groupBy.append(K_AGGREGATE_ALIAS).append(".k").append(i);
+      ++i;
+    }
+    outer.append("COUNT(*)");
+    i = 0;
+    for (Aggregation.Measure m : aggregation.getMeasures()) {
+      String alias = aliases.get(Aggregation.getRelationKey(m.getRelation()));
+      inner.append(aggregateColumn(alias, m.getField()));
+      inner.append(" AS v").append(i).append(K_CS);
+      String value = K_AGGREGATE_ALIAS + ".v" + i;
+      outer.append(K_CS).append("COUNT(").append(value).append(")");
+      outer.append(K_CS).append(m.isSummable() ? "SUM(" + value + ")" : "NULL");
+      outer.append(K_CS).append("MIN(").append(value).append(")");
+      outer.append(K_CS).append("MAX(").append(value).append(")");
+      ++i;
+    }
+    // every select list needs at least one column
+    inner.append("1 AS n");
+    inner.append(K_FROM);
+    inner.append("(");
+    inner.append(generateQuery());
+    inner.append(queryBindBuilder.toString());
+    inner.append(") ");
+    inner.append(K_BASE_ALIAS);
+    inner.append(joins);
+
+    outer.append(K_FROM);
+    outer.append("(");
+    outer.append(inner);
+    outer.append(") ");
+    outer.append(K_AGGREGATE_ALIAS);
+    outer.append(groupBy);
+    return outer.toString();
+  }
+
+  private static Object getAggregateValue(ResultSet rs, int columnIndex, DataField field,
+      Aggregation.Bucket bucket) throws SQLException {
+    if (bucket == Aggregation.Bucket.RANGE) {
+      long l = rs.getLong(columnIndex);
+      return rs.wasNull() ? null : Long.valueOf(l);
+    } else if (bucket != null && bucket != Aggregation.Bucket.VALUE) {
+      return rs.getString(columnIndex);
+    }
+    switch (field.getDataType()) {
+    case INTEGER: {
+      long l = rs.getLong(columnIndex);
+      return rs.wasNull() ? null : Long.valueOf(l);
+    }
+    case DECIMAL: {
+      String value = rs.getString(columnIndex);
+      return (value == null) ? null : new WrappedBigDecimal(value);
+    }
+    case BOOLEAN: {
+      boolean b = rs.getBoolean(columnIndex);
+      return rs.wasNull() ? null : Boolean.valueOf(b);
+    }
+    case DATETIME: {
+      Date d = rs.getTimestamp(columnIndex);
+      return (d == null) ? null : new Date(d.getTime());
+    }
+    default:
+      return rs.getString(columnIndex);
+    }
+  }
+
+  private static class AggregateRowMapper implements RowMapper<Aggregation.Result> {
+    private final Aggregation aggregation;
+
+    AggregateRowMapper(Aggregation aggregation) {
+      this.aggregation = aggregation;
+    }
+
+    @Override
+    public Aggregation.Result mapRow(ResultSet rs, int rowNum) throws SQLException {
+      List<Aggregation.GroupBy> groupBys = aggregation.getGroupBys();
+      List<Aggregation.Measure> measures = aggregation.getMeasures();
+      int columnIndex = 1;
+      Object[] keys = new Object[groupBys.size()];
+      for (int i = 0; i < keys.length; ++i) {
+        Aggregation.GroupBy g = groupBys.get(i);
+        keys[i] = getAggregateValue(rs, columnIndex++, g.getField(), g.getBucket());
+      }
+      long count = rs.getLong(columnIndex++);
+      long[] valueCounts = new long[measures.size()];
+      WrappedBigDecimal[] sums = new WrappedBigDecimal[measures.size()];
+      Object[] mins = new Object[measures.size()];
+      Object[] maxes = new Object[measures.size()];
+      for (int i = 0; i < measures.size(); ++i) {
+        DataField f = measures.get(i).getField();
+        valueCounts[i] = rs.getLong(columnIndex++);
+        String sum = rs.getString(columnIndex++);
+        sums[i] = (sum == null) ? null : new WrappedBigDecimal(sum);
+        mins[i] = getAggregateValue(rs, columnIndex++, f, null);
+        maxes[i] = getAggregateValue(rs, columnIndex++, f, null);
+      }
+      return new Aggregation.Result(keys, count, valueCounts, sums, mins, maxes);
+    }
+  }
+
+  @Override
+  public List<Aggregation.Result> executeAggregateQuery(Aggregation aggregation)
+      throws ODKDatastoreException {
+
+    String query = generateAggregateQuery(aggregation) + ";";
+
+    try {
+      queryStringLogger.debug(query);
+      List<Aggregation.Result> l = dataStoreImpl.getJdbcConnection().query(query,
+          bindValues.toArray(), new AggregateRowMapper(aggregation));
+      dataStoreImpl.recordQueryUsage(relation, l.size());
+      return l;
+    } catch (Exception e) {
+      dataStoreImpl.recordQueryUsage(relation, 0);
+      e.printStackTrace();
+      throw new ODKDatastoreException(e);
+    }
+  }
+
   private class CoreResult {
     final List<CommonFieldsBase> results;
     final boolean hasMoreResults;
@@ -379,6 +714,7 @@ public class QueryImpl implements Query {
     if (!isSortedByUri) {
       addSort(relation.primaryKey, dominantSortDirection);
     }
+    dataStoreImpl.recordCursorQuery(relation, equalityFilters, dominantSortAttr);
 
     // for continuation executions of queries
     StringBuilder queryContinuationBindBuilder = new StringBuilder();
@@ -17,6 +17,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 import java.util.SimpleTimeZone;
 
 import org.opendatakit.common.persistence.CommonFieldsBase;
@@ -53,21 +54,28 @@ public class RelationRowMapper implements RowMapper<CommonFieldsBase> {
     }
 
     /**
+     * Columns are fetched by position rather than by name. QueryImpl generates
+     * the SELECT list in relation.getFieldList() order, so field i is in
+     * column i+1.
+     *
      * Correct for the funky handling of nulls by the various accessors...
      */
-    for (DataField f : relation.getFieldList()) {
+    List<DataField> fields = relation.getFieldList();
+    for (int i = 0; i < fields.size(); ++i) {
+      DataField f = fields.get(i);
+      int columnIndex = i + 1;
       switch (f.getDataType()) {
       case BINARY:
-        byte[] blobBytes = rs.getBytes(f.getName());
+        byte[] blobBytes = rs.getBytes(columnIndex);
         row.setBlobField(f, blobBytes);
         break;
       case LONG_STRING:
       case URI:
       case STRING:
-        row.setStringField(f, rs.getString(f.getName()));
+        row.setStringField(f, rs.getString(columnIndex));
         break;
       case INTEGER:
-        long l = rs.getLong(f.getName());
+        long l = rs.getLong(columnIndex);
         if (rs.wasNull()) {
           row.setLongField(f, null);
         } else {
@@ -75,7 +83,7 @@ public class RelationRowMapper implements RowMapper<CommonFieldsBase> {
         }
         break;
       case DECIMAL: {
-        String value = rs.getString(f.getName());
+        String value = rs.getString(columnIndex);
         if ( value == null ) {
           row.setNumericField(f, null);
         } else {
@@ -84,7 +92,7 @@ public class RelationRowMapper implements RowMapper<CommonFieldsBase> {
       }
         break;
       case BOOLEAN:
-        Boolean b = rs.getBoolean(f.getName());
+        Boolean b = rs.getBoolean(columnIndex);
         if (rs.wasNull()) {
           row.setBooleanField(f, null);
         } else {
@@ -93,7 +101,7 @@ public class RelationRowMapper implements RowMapper<CommonFieldsBase> {
         break;
       case DATETIME:
         Calendar cal = Calendar.getInstance(new SimpleTimeZone(0, "UTC"));
-        Date d = rs.getTimestamp(f.getName(), cal);
+        Date d = rs.getTimestamp(columnIndex, cal);
         if (d == null) {
           row.setDateField(f, null);
         } else {
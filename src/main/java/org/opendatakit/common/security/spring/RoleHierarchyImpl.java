@@ -33,6 +33,7 @@ import javax.servlet.ServletContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.opendatakit.aggregate.constants.TaskLockType;
+import org.opendatakit.common.persistence.CacheInvalidationBus;
 import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.PersistConsts;
 import org.opendatakit.common.persistence.TaskLock;
@@ -66,8 +67,8 @@ public class RoleHierarchyImpl implements RoleHierarchy, InitializingBean {
     private static final Logger logger = LoggerFactory.getLogger(RoleHierarchyImpl.class);
     // look for flagged changes every CHECK_INTERVAL.
     private static final long CHECK_INTERVAL = 1000L; // 1 seconds
-    // refresh everything every UPDATE_INTERVAL.
-    private static final long UPDATE_INTERVAL = 2*60*1000L; // 2 minutes
+    // refresh everything every UPDATE_INTERVAL (backstop for unpublished changes).
+    private static final long UPDATE_INTERVAL = 10*60*1000L; // 10 minutes
     /** bean to the datastore */
     private Datastore datastore = null;
     /** bean to the userService */
@@ -80,6 +81,11 @@ public class RoleHierarchyImpl implements RoleHierarchy, InitializingBean {
     private long lastCheckTimestamp = System.currentTimeMillis();
     private long lastUpdateTimestamp = System.currentTimeMillis();
 
+    // set by the invalidation bus when this or another server changes the
+    // role hierarchy or the registered users.
+    private volatile boolean grantsChanged = false;
+    private volatile boolean usersChanged = false;
+
     /**
      * rolesReachableInOneOrMoreStepsMap is a Map that under the key of a specific role 
      * name contains a set of all roles reachable from this role in 1 or more steps.
@@ -129,6 +135,18 @@ public class RoleHierarchyImpl implements RoleHierarchy, InitializingBean {
             throw new IllegalStateException("userService cannot be unspecified");
         }
         
+        CacheInvalidationBus.subscribe(SecurityRevisionsTable.TOPIC_PREFIX, new CacheInvalidationBus.Listener() {
+            @Override
+            public void invalidated(String topic) {
+                if ( topic == null || topic.equals(SecurityRevisionsTable.ROLE_HIERARCHY_TOPIC) ) {
+                    grantsChanged = true;
+                }
+                if ( topic == null || topic.equals(SecurityRevisionsTable.REGISTERED_USERS_TOPIC) ) {
+                    usersChanged = true;
+                }
+            }
+        });
+
         refreshReachableGrantedAuthorities();
         
         CallingContext bootstrapCc = new CallingContext() {
@@ -324,14 +342,20 @@ public class RoleHierarchyImpl implements RoleHierarchy, InitializingBean {
             }
         } else if ( timeRequestStarts > lastCheckTimestamp + CHECK_INTERVAL ) {
             // check for updates to the security configuration every CHECK_INTERVAL...
+            CacheInvalidationBus.poll(datastore, userService.getDaemonAccountUser());
             try {
-                User daemon = userService.getDaemonAccountUser();
-                long lastUsersChange = SecurityRevisionsTable.getLastRegisteredUsersRevisionDate(datastore, daemon);
-                long lastGrantsChange = SecurityRevisionsTable.getLastRoleHierarchyRevisionDate(datastore, daemon);
-                if ( lastGrantsChange > lastCheckTimestamp ) {
-                    refreshReachableGrantedAuthorities();
-                    // NOTE: Timestamps updated and user permissions have been reloaded.
-                } else if ( lastUsersChange > lastCheckTimestamp ) {
+                if ( grantsChanged ) {
+                    grantsChanged = false;
+                    usersChanged = false;
+                    try {
+                        refreshReachableGrantedAuthorities();
+                        // NOTE: Timestamps updated and user permissions have been reloaded.
+                    } catch ( ODKDatastoreException e ) {
+                        grantsChanged = true;
+                        throw e;
+                    }
+                } else if ( usersChanged ) {
+                    usersChanged = false;
                     lastCheckTimestamp = System.currentTimeMillis();
                     userService.reloadPermissions();
                 } else {
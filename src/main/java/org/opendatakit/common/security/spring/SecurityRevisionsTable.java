@@ -2,6 +2,7 @@ package org.opendatakit.common.security.spring;
 
 import java.util.Date;
 
+import org.opendatakit.common.persistence.CacheInvalidationBus;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.Datastore;
@@ -17,6 +18,11 @@ public class SecurityRevisionsTable extends CommonFieldsBase {
     private static final String PERMISSIONS_VIEW_ROW_ID = "rid:permissions_view";
     
     private static final String TABLE_NAME = "_security_revisions";
+
+    /** invalidation topics of the revisions; followed by the row id */
+    public static final String TOPIC_PREFIX = "security:";
+    public static final String ROLE_HIERARCHY_TOPIC = TOPIC_PREFIX + ROLE_HIERARCHY_ROW_ID;
+    public static final String REGISTERED_USERS_TOPIC = TOPIC_PREFIX + REGISTERED_USERS_ROW_ID;
     
     private static final DataField LAST_REVISION_DATE = new DataField(
             "LAST_REVISION", DataField.DataType.DATETIME, true );
@@ -108,6 +114,7 @@ public class SecurityRevisionsTable extends CommonFieldsBase {
         SecurityRevisionsTable t = getSingletonRecord( ROLE_HIERARCHY_ROW_ID, datastore, user );
         t.setLastRevisionDate(new Date());
         datastore.putEntity(t, user);
+        CacheInvalidationBus.publish(ROLE_HIERARCHY_TOPIC, datastore, user);
     }
     
     public static final long getLastRegisteredUsersRevisionDate(Datastore datastore, User user) throws ODKDatastoreException {
@@ -119,6 +126,7 @@ public class SecurityRevisionsTable extends CommonFieldsBase {
         SecurityRevisionsTable t = getSingletonRecord( REGISTERED_USERS_ROW_ID, datastore, user );
         t.setLastRevisionDate(new Date());
         datastore.putEntity(t, user);
+        CacheInvalidationBus.publish(REGISTERED_USERS_TOPIC, datastore, user);
     }
     
     public static final long getLastSuperUserIdRevisionDate(Datastore datastore, User user) throws ODKDatastoreException {
@@ -130,6 +138,7 @@ public class SecurityRevisionsTable extends CommonFieldsBase {
         SecurityRevisionsTable t = getSingletonRecord( SUPER_USER_ID_ROW_ID, datastore, user );
         t.setLastRevisionDate(new Date());
         datastore.putEntity(t, user);
+        CacheInvalidationBus.publish(TOPIC_PREFIX + SUPER_USER_ID_ROW_ID, datastore, user);
     }
     
     public static final long getLastPermissionsViewRevisionDate(Datastore datastore, User user) throws ODKDatastoreException {
@@ -141,5 +150,6 @@ public class SecurityRevisionsTable extends CommonFieldsBase {
         SecurityRevisionsTable t = getSingletonRecord( PERMISSIONS_VIEW_ROW_ID, datastore, user );
         t.setLastRevisionDate(new Date());
         datastore.putEntity(t, user);
+        CacheInvalidationBus.publish(TOPIC_PREFIX + PERMISSIONS_VIEW_ROW_ID, datastore, user);
     }
 }
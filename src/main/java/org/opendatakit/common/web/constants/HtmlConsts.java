@@ -141,6 +141,10 @@ public final class HtmlConsts {
 
    public static final String RESP_TYPE_JSON = "application/json; charset=utf-8";
 
+   public static final String RESP_TYPE_NDJSON = "application/x-ndjson; charset=utf-8";
+
+   public static final String RESP_TYPE_ZIP = "application/zip";
+
     /**
      * Encoding scheme for servlets
      */
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.datamodel;
+
+import org.opendatakit.aggregate.datamodel.FormDataModel.ElementType;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+
+/**
+ * Builds form data models for exercising queries without a database.
+ */
+public final class TestFormDataModel {
+
+  private TestFormDataModel() {
+  }
+
+  /**
+   * @param schema
+   * @param type
+   * @param elementName
+   * @param backingObject
+   *          the relation holding the element's value.
+   * @param backingKey
+   *          the column holding the element's value; null for a group or a
+   *          select choice.
+   * @return an element stored in the given relation and column.
+   */
+  public static FormDataModel create(String schema, ElementType type, String elementName,
+      CommonFieldsBase backingObject, DataField backingKey) {
+    FormDataModel m = new FormDataModel(schema);
+    m.setElementType(type);
+    m.setElementName(elementName);
+    m.setBackingObject(backingObject);
+    m.setBackingKey(backingKey);
+    return m;
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.form;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class FormResponseCacheTest {
+
+  @Before
+  public void setUp() {
+    FormResponseCache.clear();
+  }
+
+  @Test
+  public void testETagMatching() {
+    String key = FormResponseCache.getKey("xformList", "http://localhost", null, false);
+    FormResponseCache.CachedResponse r = FormResponseCache.put(key, "<xforms/>", null);
+
+    assertTrue(r.getETag().startsWith("\"") && r.getETag().endsWith("\""));
+    assertTrue(r.matches(r.getETag()));
+    assertTrue(r.matches("\"abc\", " + r.getETag()));
+    assertTrue(r.matches("*"));
+    assertFalse(r.matches(null));
+    assertFalse(r.matches("\"abc\""));
+  }
+
+  @Test
+  public void testETagFollowsContent() {
+    String key = FormResponseCache.getKey("xformsManifest", "http://localhost", "form1");
+    String etag = FormResponseCache.put(key, "<manifest/>", null).getETag();
+    assertEquals(etag, FormResponseCache.put(key, "<manifest/>", null).getETag());
+    assertNotEquals(etag, FormResponseCache.put(key, "<manifest>x</manifest>", null).getETag());
+  }
+
+  @Test
+  public void testClear() {
+    String key = FormResponseCache.getKey("formXml", "http://localhost", "form1");
+    FormResponseCache.CachedResponse r = FormResponseCache.put(key, "<h:html/>", "form1.xml");
+    assertSame(r, FormResponseCache.get(key));
+    assertEquals("form1.xml", r.getFilename());
+
+    FormResponseCache.clear();
+    assertNull(FormResponseCache.get(key));
+  }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.format.table;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+import org.opendatakit.aggregate.format.table.ArrowStreamWriter.ColumnType;
+
+/**
+ * Reads the output of the writer back with a minimal decoder of the Arrow IPC
+ * stream format (see format/Message.fbs and format/Schema.fbs) and checks the
+ * schema, the record batches, the null bitmaps and the end-of-stream marker.
+ */
+public class ArrowStreamWriterTest {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final List<String> NAMES = Arrays.asList("count", "ratio", "flag", "label",
+      "when");
+  private static final List<ColumnType> TYPES = Arrays.asList(ColumnType.INT64,
+      ColumnType.FLOAT64, ColumnType.BOOLEAN, ColumnType.UTF8, ColumnType.TIMESTAMP_MILLIS);
+
+  @Test
+  public void testSchemaAndEndOfStream() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ArrowStreamWriter writer = new ArrowStreamWriter(out, NAMES, TYPES);
+    writer.finish();
+
+    ByteBuffer in = wrap(out);
+    Message schemaMessage = readMessage(in);
+    assertEquals(4, schemaMessage.message.getShort(0, (short) 0)); // V5
+    assertEquals(1, schemaMessage.message.getByte(1, (byte) 0)); // Schema
+    assertEquals(0L, schemaMessage.message.getLong(3, -1L));
+
+    FlatTable schema = schemaMessage.message.getTable(2);
+    int fields = schema.getVector(1);
+    assertEquals(NAMES.size(), in.getInt(fields));
+    int[] typeIds = { 2, 3, 6, 5, 10 };
+    for (int i = 0; i < NAMES.size(); ++i) {
+      FlatTable field = schema.getVectorTable(fields, i);
+      assertEquals(NAMES.get(i), field.getString(0));
+      assertEquals(1, field.getByte(1, (byte) 0)); // nullable
+      assertEquals(typeIds[i], field.getByte(2, (byte) 0));
+      assertEquals(0, in.getInt(field.getVector(5))); // no children
+    }
+    FlatTable intType = schema.getVectorTable(fields, 0).getTable(3);
+    assertEquals(64, intType.getInt(0, 0));
+    assertEquals(1, intType.getByte(1, (byte) 0));
+    FlatTable floatType = schema.getVectorTable(fields, 1).getTable(3);
+    assertEquals(2, floatType.getShort(0, (short) 0)); // DOUBLE
+    FlatTable timestampType = schema.getVectorTable(fields, 4).getTable(3);
+    assertEquals(1, timestampType.getShort(0, (short) 0)); // MILLISECOND
+    assertEquals("UTC", timestampType.getString(1));
+
+    // no rows: no record batch, just the end-of-stream marker
+    assertNull(readMessage(in));
+    assertFalse(in.hasRemaining());
+  }
+
+  @Test
+  public void testRecordBatchValuesAndNulls() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ArrowStreamWriter writer = new ArrowStreamWriter(out, NAMES, TYPES);
+    writer.addRow(new Object[] { 7L, 1.5, true, "äb", new Date(1000L) });
+    writer.addRow(new Object[] { null, null, null, null, null });
+    writer.addRow(new Object[] { -3L, -0.25, false, "", new Date(0L) });
+    writer.finish();
+
+    ByteBuffer in = wrap(out);
+    readMessage(in);
+    Message batch = readMessage(in);
+    assertEquals(3, batch.message.getByte(1, (byte) 0)); // RecordBatch
+    FlatTable recordBatch = batch.message.getTable(2);
+    assertEquals(3L, recordBatch.getLong(0, -1L));
+
+    int nodes = recordBatch.getVector(1);
+    assertEquals(NAMES.size(), in.getInt(nodes));
+    for (int i = 0; i < NAMES.size(); ++i) {
+      assertEquals(3L, in.getLong(nodes + 4 + 16 * i));
+      assertEquals(1L, in.getLong(nodes + 4 + 16 * i + 8));
+    }
+
+    List<ByteBuffer> buffers = readBuffers(in, recordBatch, batch);
+    // validity and values for each column; UTF8 also has offsets
+    assertEquals(11, buffers.size());
+    for (int column : new int[] { 0, 2, 4, 6, 9 }) {
+      assertEquals(0x05, buffers.get(column).get(0));
+    }
+    ByteBuffer longs = buffers.get(1);
+    assertEquals(7L, longs.getLong(0));
+    assertEquals(-3L, longs.getLong(16));
+    ByteBuffer doubles = buffers.get(3);
+    assertEquals(1.5, doubles.getDouble(0), 0.0);
+    assertEquals(-0.25, doubles.getDouble(16), 0.0);
+    assertEquals(0x01, buffers.get(5).get(0));
+    ByteBuffer offsets = buffers.get(7);
+    assertEquals(16, offsets.remaining());
+    assertEquals(0, offsets.getInt(0));
+    assertEquals(3, offsets.getInt(4));
+    assertEquals(3, offsets.getInt(8));
+    assertEquals(3, offsets.getInt(12));
+    assertEquals("äb", string(buffers.get(8)));
+    ByteBuffer timestamps = buffers.get(10);
+    assertEquals(1000L, timestamps.getLong(0));
+    assertEquals(0L, timestamps.getLong(16));
+
+    assertNull(readMessage(in));
+    assertFalse(in.hasRemaining());
+  }
+
+  @Test
+  public void testBatchesSplitAtBatchRows() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ArrowStreamWriter writer = new ArrowStreamWriter(out, Arrays.asList("n"),
+        Arrays.asList(ColumnType.INT64));
+    for (long i = 0; i <= ArrowStreamWriter.BATCH_ROWS; ++i) {
+      writer.addRow(new Object[] { i });
+    }
+    writer.finish();
+
+    ByteBuffer in = wrap(out);
+    readMessage(in);
+    long expected = 0L;
+    for (long length : new long[] { ArrowStreamWriter.BATCH_ROWS, 1L }) {
+      Message batch = readMessage(in);
+      FlatTable recordBatch = batch.message.getTable(2);
+      assertEquals(length, recordBatch.getLong(0, -1L));
+      List<ByteBuffer> buffers = readBuffers(in, recordBatch, batch);
+      ByteBuffer values = buffers.get(1);
+      for (int i = 0; i < length; ++i) {
+        assertEquals(expected++, values.getLong(8 * i));
+      }
+    }
+    assertNull(readMessage(in));
+    assertFalse(in.hasRemaining());
+  }
+
+  private static ByteBuffer wrap(ByteArrayOutputStream out) {
+    return ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static String string(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  /** An encapsulated message: its Message flatbuffer and its body. */
+  private static final class Message {
+    FlatTable message;
+    int bodyStart;
+  }
+
+  /**
+   * Read the next encapsulated message and skip over its body.
+   *
+   * @return null at the end-of-stream marker.
+   */
+  private static Message readMessage(ByteBuffer in) {
+    assertEquals(0xFFFFFFFF, in.getInt());
+    int length = in.getInt();
+    if (length == 0) {
+      return null;
+    }
+    assertEquals(0, length % 8);
+    Message m = new Message();
+    int root = in.position();
+    m.message = new FlatTable(in, root + in.getInt(root));
+    m.bodyStart = root + length;
+    assertEquals(0, m.bodyStart % 8);
+    in.position(m.bodyStart + (int) m.message.getLong(3, 0L));
+    return m;
+  }
+
+  private static List<ByteBuffer> readBuffers(ByteBuffer in, FlatTable recordBatch, Message m) {
+    int vector = recordBatch.getVector(2);
+    List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+    long end = 0L;
+    for (int i = 0; i < in.getInt(vector); ++i) {
+      long offset = in.getLong(vector + 4 + 16 * i);
+      long length = in.getLong(vector + 4 + 16 * i + 8);
+      assertEquals(0L, offset % 8);
+      assertTrue(offset >= end);
+      end = offset + length;
+      ByteBuffer buffer = in.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      buffer.position(m.bodyStart + (int) offset);
+      buffer.limit(m.bodyStart + (int) end);
+      buffers.add(buffer.slice().order(ByteOrder.LITTLE_ENDIAN));
+    }
+    assertTrue(end <= m.message.getLong(3, 0L));
+    return buffers;
+  }
+
+  /** A flatbuffer table, read through its vtable. */
+  private static final class FlatTable {
+    final ByteBuffer bb;
+    final int position;
+
+    FlatTable(ByteBuffer bb, int position) {
+      this.bb = bb;
+      this.position = position;
+    }
+
+    /** @return the offset of the field within the table, 0 if absent. */
+    int field(int id) {
+      int vtable = position - bb.getInt(position);
+      int entry = 4 + 2 * id;
+      return (entry < bb.getShort(vtable)) ? bb.getShort(vtable + entry) : 0;
+    }
+
+    byte getByte(int id, byte defaultValue) {
+      int o = field(id);
+      return (o == 0) ? defaultValue : bb.get(position + o);
+    }
+
+    short getShort(int id, short defaultValue) {
+      int o = field(id);
+      return (o == 0) ? defaultValue : bb.getShort(position + o);
+    }
+
+    int getInt(int id, int defaultValue) {
+      int o = field(id);
+      return (o == 0) ? defaultValue : bb.getInt(position + o);
+    }
+
+    long getLong(int id, long defaultValue) {
+      int o = field(id);
+      return (o == 0) ? defaultValue : bb.getLong(position + o);
+    }
+
+    private int indirect(int id) {
+      int o = field(id);
+      assertTrue("missing field " + id, o != 0);
+      return position + o + bb.getInt(position + o);
+    }
+
+    FlatTable getTable(int id) {
+      return new FlatTable(bb, indirect(id));
+    }
+
+    String getString(int id) {
+      int s = indirect(id);
+      byte[] bytes = new byte[bb.getInt(s)];
+      for (int i = 0; i < bytes.length; ++i) {
+        bytes[i] = bb.get(s + 4 + i);
+      }
+      assertEquals(0, bb.get(s + 4 + bytes.length));
+      return new String(bytes, UTF8);
+    }
+
+    /** @return the position of the vector's length; the elements follow. */
+    int getVector(int id) {
+      return indirect(id);
+    }
+
+    FlatTable getVectorTable(int vector, int index) {
+      int element = vector + 4 + 4 * index;
+      return new FlatTable(bb, element + bb.getInt(element));
+    }
+  }
+}
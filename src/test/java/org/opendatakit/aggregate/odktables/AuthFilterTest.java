@@ -34,6 +34,7 @@ import org.opendatakit.aggregate.odktables.rest.entity.TableRole;
 import org.opendatakit.aggregate.odktables.rest.entity.TableRole.TablePermission;
 import org.opendatakit.aggregate.odktables.security.AuthFilter;
 import org.opendatakit.aggregate.odktables.security.TablesUserPermissions;
+import org.opendatakit.common.ermodel.Query;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKTaskLockException;
@@ -75,6 +76,11 @@ public class AuthFilterTest {
       return true;
     }
 
+    @Override
+    public boolean addRowFilterScope(String appId, String tableId, TablePermission permission, Query query) {
+      return false;
+    }
+
   }
 
   @Before
@@ -42,6 +42,7 @@ import org.opendatakit.aggregate.odktables.rest.entity.Scope;
 import org.opendatakit.aggregate.odktables.rest.entity.TableEntry;
 import org.opendatakit.aggregate.odktables.rest.entity.TableRole.TablePermission;
 import org.opendatakit.aggregate.odktables.security.TablesUserPermissions;
+import org.opendatakit.common.ermodel.Query;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.PersistConsts;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
@@ -77,6 +78,11 @@ public class DataManagerTest {
       return true;
     }
 
+    @Override
+    public boolean addRowFilterScope(String appId, String tableId, TablePermission permission, Query query) {
+      return false;
+    }
+
   }
 
   private CallingContext cc;
@@ -30,6 +30,7 @@ import org.opendatakit.aggregate.odktables.rest.entity.TableEntry;
 import org.opendatakit.aggregate.odktables.rest.entity.TableRole;
 import org.opendatakit.aggregate.odktables.rest.entity.TableRole.TablePermission;
 import org.opendatakit.aggregate.odktables.security.TablesUserPermissions;
+import org.opendatakit.common.ermodel.Query;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKTaskLockException;
@@ -70,6 +71,11 @@ public class TableAclManagerTest {
       return true;
     }
 
+    @Override
+    public boolean addRowFilterScope(String appId, String tableId, TablePermission permission, Query query) {
+      return false;
+    }
+
   }
 
   @Before
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.query.submission;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.aggregate.datamodel.FormDataModel;
+import org.opendatakit.aggregate.datamodel.FormDataModel.ElementType;
+import org.opendatakit.aggregate.datamodel.FormElementModel;
+import org.opendatakit.aggregate.datamodel.SelectChoice;
+import org.opendatakit.aggregate.datamodel.TestFormDataModel;
+import org.opendatakit.aggregate.datamodel.TopLevelInstanceData;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.submission.Submission;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.web.CallingContext;
+
+public class QueryBaseTest {
+
+  private static final String SCHEMA = "test";
+
+  private TopLevelInstanceData core;
+  private SelectChoice colour;
+  private DataField name;
+  private FormElementModel nameElement;
+  private FormElementModel colourElement;
+  private QueryBase queryBase;
+
+  @Before
+  public void setUp() {
+    core = new TopLevelInstanceData(SCHEMA, "FORM_CORE");
+    name = new DataField("NAME", DataField.DataType.STRING, true, 255L);
+    colour = new SelectChoice(SCHEMA, "FORM_COLOUR");
+
+    FormDataModel top = TestFormDataModel.create(SCHEMA, ElementType.GROUP, "data", core, null);
+    top.setChild(1L, TestFormDataModel.create(SCHEMA, ElementType.STRING, "name", core, name));
+    top.setChild(2L,
+        TestFormDataModel.create(SCHEMA, ElementType.SELECT1, "colour", colour, null));
+
+    FormElementModel tree = FormElementModel.buildFormElementModelTree(top);
+    for (FormElementModel e : tree.getChildren()) {
+      if (!e.isMetadata()) {
+        if (e.getFormDataModel().getBackingObjectPrototype() == colour) {
+          colourElement = e;
+        } else {
+          nameElement = e;
+        }
+      }
+    }
+
+    IForm form = mock(IForm.class);
+    when(form.getTopLevelGroupElement()).thenReturn(tree);
+    queryBase = new QueryBase(form) {
+      @Override
+      public List<Submission> getResultSubmissions(CallingContext cc) {
+        throw new UnsupportedOperationException();
+      }
+    };
+    queryBase.query = mock(Query.class);
+  }
+
+  @Test
+  public void testFilterOnTopLevelColumn() {
+    queryBase.addFilter(nameElement, FilterOperation.EQUAL, "Ada");
+
+    verify(queryBase.query).addFilter(name, FilterOperation.EQUAL, "Ada");
+  }
+
+  @Test
+  public void testFilterOnSelectOneColumn() {
+    queryBase.addFilter(colourElement, FilterOperation.EQUAL, "red");
+
+    // the choice table holds the selected value; it has no backing key
+    verify(queryBase.query).addChildFilter(colour, colour.topLevelAuri, colour.value,
+        FilterOperation.EQUAL, "red");
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.opendatakit.common.persistence.CacheInvalidationBus;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.security.User;
+
+/**
+ * The versions must be those every server node reads back from the
+ * notification rows, not the local time at which a node saw a change.
+ */
+public class ChangeVersionsTest {
+
+  /** notifications "published by another node", returned by the next poll */
+  private final List<Object[]> remote = new ArrayList<Object[]>();
+
+  private final User user = mock(User.class);
+
+  private Datastore mockDatastore() throws Exception {
+    Datastore ds = mock(Datastore.class);
+    when(ds.createEntityUsingRelation(any(CommonFieldsBase.class), any(User.class))).thenAnswer(
+        new Answer<CommonFieldsBase>() {
+          @Override
+          public CommonFieldsBase answer(InvocationOnMock invocation) {
+            return ((CommonFieldsBase) invocation.getArgument(0)).getEmptyRow(user);
+          }
+        });
+    when(ds.createQuery(any(CommonFieldsBase.class), anyString(), any(User.class))).thenAnswer(
+        new Answer<Query>() {
+          @Override
+          public Query answer(InvocationOnMock invocation) throws Exception {
+            CommonFieldsBase prototype = invocation.getArgument(0);
+            List<CommonFieldsBase> rows = new ArrayList<CommonFieldsBase>();
+            for (Object[] n : remote) {
+              CommonFieldsBase row = prototype.getEmptyRow(user);
+              row.setStringField(topicField(prototype), (String) n[0]);
+              row.setDateField(row.creationDate, new Date((Long) n[1]));
+              rows.add(row);
+            }
+            remote.clear();
+            Query query = mock(Query.class);
+            when(query.executeQuery()).thenAnswer(new RowsAnswer(rows));
+            return query;
+          }
+        });
+    return ds;
+  }
+
+  private static final class RowsAnswer implements Answer<List<CommonFieldsBase>> {
+    private final List<CommonFieldsBase> rows;
+
+    RowsAnswer(List<CommonFieldsBase> rows) {
+      this.rows = rows;
+    }
+
+    @Override
+    public List<CommonFieldsBase> answer(InvocationOnMock invocation) {
+      return rows;
+    }
+  }
+
+  private static DataField topicField(CommonFieldsBase prototype) {
+    for (DataField f : prototype.getFieldList()) {
+      if (f.getName().equals("TOPIC")) {
+        return f;
+      }
+    }
+    throw new IllegalStateException("no TOPIC field");
+  }
+
+  @BeforeClass
+  public static void subscribe() {
+    // as the ChangeVersionServlet does at startup
+    ChangeVersions.getVersion(ChangeVersions.FORMS);
+  }
+
+  @Test
+  public void testVersionsFollowPublicationTimes() throws Exception {
+    Datastore ds = mockDatastore();
+    String local = ChangeVersions.SUBMISSIONS_PREFIX + "localForm";
+    String other = ChangeVersions.SUBMISSIONS_PREFIX + "otherForm";
+    String old = ChangeVersions.SUBMISSIONS_PREFIX + "oldForm";
+    String unchanged = ChangeVersions.SUBMISSIONS_PREFIX + "unchangedForm";
+
+    // a local change takes the creation date of its notification row
+    CacheInvalidationBus.publish(local, ds, user);
+    ArgumentCaptor<CommonFieldsBase> published = ArgumentCaptor.forClass(CommonFieldsBase.class);
+    verify(ds).putEntity(published.capture(), any(User.class));
+    assertEquals(published.getValue().getCreationDate().getTime(),
+        ChangeVersions.getVersion(local));
+
+    // a change from another node takes the time that node published it
+    long otherTime = System.currentTimeMillis() - 5000L;
+    remote.add(new Object[] { other, otherTime });
+    CacheInvalidationBus.poll(ds, user);
+    assertEquals(otherTime, ChangeVersions.getVersion(other));
+
+    Thread.sleep(CacheInvalidationBus.POLL_INTERVAL_MILLISECONDS + 50L);
+    // an earlier change seen later does not move the version back
+    remote.add(new Object[] { other, otherTime - 1000L });
+    // a change older than the retention period is unknown to new nodes
+    remote.add(new Object[] { old,
+        System.currentTimeMillis() - CacheInvalidationBus.RETENTION_MILLISECONDS - 1000L });
+    CacheInvalidationBus.poll(ds, user);
+    assertEquals(otherTime, ChangeVersions.getVersion(other));
+    assertEquals(0L, ChangeVersions.getVersion(old));
+    assertEquals(0L, ChangeVersions.getVersion(unchanged));
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.task.PartitionedExportWriter.SliceExecutor;
+import org.opendatakit.aggregate.task.PartitionedExportWriter.SliceWriter;
+import org.opendatakit.common.web.CallingContext;
+
+public class PartitionedExportWriterTest {
+
+  private ExecutorService pool;
+
+  /** runs every offered slice on the pool */
+  private SliceExecutor concurrent;
+
+  /** never has spare capacity */
+  private final SliceExecutor busy = new SliceExecutor() {
+    @Override
+    public boolean offer(Runnable slice) {
+      return false;
+    }
+  };
+
+  @Before
+  public void setUp() {
+    pool = Executors.newFixedThreadPool(3);
+    concurrent = new SliceExecutor() {
+      @Override
+      public boolean offer(Runnable slice) {
+        pool.execute(slice);
+        return true;
+      }
+    };
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    pool.shutdownNow();
+    pool.awaitTermination(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testSliceBoundsCoverRange() {
+    List<long[]> bounds = PartitionedExportWriter.getSliceBounds(1000L, 2001L, 1000L, 100L);
+    assertEquals(10, bounds.size());
+    assertContiguous(bounds, 1000L, 2001L);
+
+    // one slice per millisecond at most
+    bounds = PartitionedExportWriter.getSliceBounds(5L, 8L, 1000L, 100L);
+    assertEquals(3, bounds.size());
+    assertContiguous(bounds, 5L, 8L);
+
+    // the number of slices is capped
+    bounds = PartitionedExportWriter.getSliceBounds(0L, 10000000L, 10000000L, 100L);
+    assertTrue(bounds.size() <= 256);
+    assertContiguous(bounds, 0L, 10000000L);
+  }
+
+  @Test
+  public void testConcurrentSlicesWrittenInOrder() throws Exception {
+    List<SliceWriter> slices = new ArrayList<SliceWriter>();
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 20; ++i) {
+      // later slices finish first
+      slices.add(new RowSlice(i, 3, (20 - i) % 4));
+      expected.append((i == 0) ? "" : ",").append(i).append("a").append(i).append("b")
+          .append(i).append("c");
+    }
+    assertEquals(expected.toString(), write(concurrent, ",", slices));
+  }
+
+  @Test
+  public void testSlicesWrittenInlineWithoutCapacity() throws Exception {
+    List<SliceWriter> slices = new ArrayList<SliceWriter>();
+    for (int i = 0; i < 5; ++i) {
+      slices.add(new RowSlice(i, 1, 0));
+    }
+    assertEquals("0a,1a,2a,3a,4a", write(busy, ",", slices));
+  }
+
+  @Test
+  public void testEmptySlicesHaveNoDelimiter() throws Exception {
+    List<SliceWriter> slices = new ArrayList<SliceWriter>();
+    for (int i = 0; i < 12; ++i) {
+      slices.add(new RowSlice(i, (i % 3 == 0) ? 1 : 0, 0));
+    }
+    assertEquals("0a,3a,6a,9a", write(concurrent, ",", slices));
+    assertEquals("0a,3a,6a,9a", write(busy, ",", slices));
+    assertEquals("", write(concurrent, ",", slices.subList(1, 3)));
+  }
+
+  @Test
+  public void testEachSliceWrittenOnce() throws Exception {
+    final AtomicInteger writes = new AtomicInteger();
+    List<SliceWriter> slices = new ArrayList<SliceWriter>();
+    for (int i = 0; i < 50; ++i) {
+      final RowSlice row = new RowSlice(i, 1, 0);
+      slices.add(new SliceWriter() {
+        @Override
+        public boolean write(PrintWriter pw, String delimiter, CallingContext cc)
+            throws Exception {
+          writes.incrementAndGet();
+          return row.write(pw, delimiter, cc);
+        }
+      });
+    }
+    String out = write(concurrent, null, slices);
+    assertEquals(50, writes.get());
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 50; ++i) {
+      expected.append(i).append("a");
+    }
+    assertEquals(expected.toString(), out);
+  }
+
+  @Test
+  public void testSliceFailureIsRethrown() throws Exception {
+    final IllegalStateException failure = new IllegalStateException("slice failed");
+    List<SliceWriter> slices = new ArrayList<SliceWriter>();
+    for (int i = 0; i < 10; ++i) {
+      slices.add(new RowSlice(i, 1, 0));
+    }
+    slices.set(6, new SliceWriter() {
+      @Override
+      public boolean write(PrintWriter pw, String delimiter, CallingContext cc) {
+        throw failure;
+      }
+    });
+    for (SliceExecutor executor : new SliceExecutor[] { concurrent, busy }) {
+      try {
+        write(executor, ",", slices);
+        fail("expected the slice failure");
+      } catch (IllegalStateException e) {
+        assertSame(failure, e);
+      }
+    }
+  }
+
+  private String write(SliceExecutor executor, String delimiter, List<SliceWriter> slices)
+      throws Exception {
+    PartitionedExportWriter writer = new PartitionedExportWriter(mock(IForm.class), null,
+        executor, mock(CallingContext.class));
+    writer.setSegmentDelimiter(delimiter);
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    PrintWriter pw = new PrintWriter(new OutputStreamWriter(stream, "UTF-8"));
+    writer.writeSlices(slices, pw, stream);
+    pw.close();
+    return stream.toString("UTF-8");
+  }
+
+  private static void assertContiguous(List<long[]> bounds, long start, long end) {
+    long expected = start;
+    for (long[] b : bounds) {
+      assertEquals(expected, b[0]);
+      assertTrue(b[1] > b[0]);
+      expected = b[1];
+    }
+    assertEquals(end, expected);
+  }
+
+  /**
+   * Writes rows "<n>a", "<n>b", ... after an optional delay.
+   */
+  private static final class RowSlice implements SliceWriter {
+    private final int n;
+    private final int rows;
+    private final long delayMillis;
+
+    RowSlice(int n, int rows, long delayMillis) {
+      this.n = n;
+      this.rows = rows;
+      this.delayMillis = delayMillis;
+    }
+
+    @Override
+    public boolean write(PrintWriter pw, String delimiter, CallingContext cc) throws Exception {
+      Thread.sleep(delayMillis);
+      for (int i = 0; i < rows; ++i) {
+        if (i == 0 && delimiter != null) {
+          pw.append(delimiter);
+        }
+        pw.append(Integer.toString(n)).append((char) ('a' + i));
+      }
+      return rows > 0;
+    }
+  }
+}
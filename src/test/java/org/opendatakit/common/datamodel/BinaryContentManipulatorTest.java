@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.datamodel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.opendatakit.aggregate.datamodel.TopLevelInstanceData;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.EntityKey;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+
+/**
+ * Identical attachment parts are stored once, and deleted once no attachment
+ * references them, however the attachments are deleted.
+ */
+public class BinaryContentManipulatorTest {
+
+  private static final String SCHEMA = "test";
+
+  private static final byte[] CONTENT = "identical image".getBytes();
+
+  private final User user = mock(User.class);
+
+  /** the rows of each table, by URI */
+  private final Map<String, Map<String, CommonFieldsBase>> tables =
+      new HashMap<String, Map<String, CommonFieldsBase>>();
+
+  private BinaryContent ctnt;
+  private BinaryContentRefBlob ref;
+  private RefBlob blb;
+  private CallingContext cc;
+
+  @Before
+  public void setUp() throws Exception {
+    ctnt = new BinaryContent(SCHEMA, "IMAGE_BN");
+    ref = new BinaryContentRefBlob(SCHEMA, "IMAGE_REF");
+    blb = new RefBlob(SCHEMA, "IMAGE_BLB");
+    // store the content in several parts
+    blb.value.setMaxCharLen(4L);
+    assertRelation(ctnt);
+    assertRelation(ref);
+
+    cc = mock(CallingContext.class);
+    Datastore ds = mockDatastore();
+    when(cc.getDatastore()).thenReturn(ds);
+    when(cc.getCurrentUser()).thenReturn(user);
+  }
+
+  /** as the datastore does, give the fields their lengths */
+  private static void assertRelation(CommonFieldsBase relation) {
+    for (DataField f : relation.getFieldList()) {
+      if (f.getMaxCharLen() == null) {
+        f.setMaxCharLen(255L);
+      }
+    }
+  }
+
+  private Map<String, CommonFieldsBase> rows(CommonFieldsBase relation) {
+    Map<String, CommonFieldsBase> rows = tables.get(relation.getTableName());
+    if (rows == null) {
+      rows = new LinkedHashMap<String, CommonFieldsBase>();
+      tables.put(relation.getTableName(), rows);
+    }
+    return rows;
+  }
+
+  private void delete(EntityKey key) {
+    rows(key.getRelation()).remove(key.getKey());
+  }
+
+  /** an in-memory datastore supporting the queries of the attachment code */
+  @SuppressWarnings("unchecked")
+  private Datastore mockDatastore() throws Exception {
+    Datastore ds = mock(Datastore.class);
+    when(ds.createEntityUsingRelation(any(CommonFieldsBase.class), any(User.class))).thenAnswer(
+        new Answer<CommonFieldsBase>() {
+          @Override
+          public CommonFieldsBase answer(InvocationOnMock invocation) {
+            return ((CommonFieldsBase) invocation.getArgument(0)).getEmptyRow(user);
+          }
+        });
+    when(ds.getEntity(any(CommonFieldsBase.class), anyString(), any(User.class))).thenAnswer(
+        new Answer<CommonFieldsBase>() {
+          @Override
+          public CommonFieldsBase answer(InvocationOnMock invocation) throws Exception {
+            CommonFieldsBase row = rows((CommonFieldsBase) invocation.getArgument(0))
+                .get((String) invocation.getArgument(1));
+            if (row == null) {
+              throw new ODKEntityNotFoundException();
+            }
+            return row;
+          }
+        });
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        CommonFieldsBase row = invocation.getArgument(0);
+        rows(row).put(row.getUri(), row);
+        return null;
+      }
+    }).when(ds).putEntity(any(CommonFieldsBase.class), any(User.class));
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        for (CommonFieldsBase row : (Collection<? extends CommonFieldsBase>) invocation
+            .getArgument(0)) {
+          rows(row).put(row.getUri(), row);
+        }
+        return null;
+      }
+    }).when(ds).putEntities(any(Collection.class), any(User.class));
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        delete((EntityKey) invocation.getArgument(0));
+        return null;
+      }
+    }).when(ds).deleteEntity(any(EntityKey.class), any(User.class));
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        for (EntityKey key : (Collection<EntityKey>) invocation.getArgument(0)) {
+          delete(key);
+        }
+        return null;
+      }
+    }).when(ds).deleteEntities(any(Collection.class), any(User.class));
+    when(ds.createQuery(any(CommonFieldsBase.class), anyString(), any(User.class))).thenAnswer(
+        new Answer<Query>() {
+          @Override
+          public Query answer(InvocationOnMock invocation) throws Exception {
+            return mockQuery((CommonFieldsBase) invocation.getArgument(0));
+          }
+        });
+    return ds;
+  }
+
+  /** a query supporting EQUAL filters; rows are returned in insertion order */
+  private Query mockQuery(final CommonFieldsBase relation) throws Exception {
+    final Map<DataField, Object> filters = new HashMap<DataField, Object>();
+    Query query = mock(Query.class);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        assertEquals(FilterOperation.EQUAL, invocation.getArgument(1));
+        filters.put((DataField) invocation.getArgument(0), invocation.getArgument(2));
+        return null;
+      }
+    }).when(query).addFilter(any(DataField.class), any(FilterOperation.class), any());
+    when(query.executeQuery()).thenAnswer(new Answer<List<CommonFieldsBase>>() {
+      @Override
+      public List<CommonFieldsBase> answer(InvocationOnMock invocation) {
+        List<CommonFieldsBase> matches = new ArrayList<CommonFieldsBase>();
+        for (CommonFieldsBase row : rows(relation).values()) {
+          boolean match = true;
+          for (Map.Entry<DataField, Object> f : filters.entrySet()) {
+            match = match && f.getValue().equals(row.getStringField(f.getKey()));
+          }
+          if (match) {
+            matches.add(row);
+          }
+        }
+        return matches;
+      }
+    });
+    return query;
+  }
+
+  private BinaryContentManipulator attach(String topLevelKey) throws Exception {
+    BinaryContentManipulator bcm = new BinaryContentManipulator(topLevelKey, topLevelKey, ctnt,
+        ref, blb, true);
+    bcm.setValueFromByteArray(CONTENT, "image/jpeg", "image.jpg", false, cc);
+    return bcm;
+  }
+
+  @Test
+  public void testIdenticalAttachmentsShareParts() throws Exception {
+    BinaryContentManipulator a = attach("uuid:a");
+    BinaryContentManipulator b = attach("uuid:b");
+
+    int parts = (CONTENT.length + 3) / 4;
+    assertEquals(parts, rows(blb).size());
+    assertEquals(2 * parts, rows(ref).size());
+    for (String uri : rows(blb).keySet()) {
+      assertTrue(uri.startsWith("sha256:"));
+    }
+    assertArrayEquals(CONTENT, a.getBlob(1, cc));
+    assertArrayEquals(CONTENT, b.getBlob(1, cc));
+  }
+
+  @Test
+  public void testDeleteKeepsPartsReferencedElsewhere() throws Exception {
+    BinaryContentManipulator a = attach("uuid:a");
+    BinaryContentManipulator b = attach("uuid:b");
+
+    a.deleteAll(cc);
+    assertEquals((CONTENT.length + 3) / 4, rows(blb).size());
+    assertArrayEquals(CONTENT, b.getBlob(1, cc));
+
+    b.deleteAll(cc);
+    assertTrue(rows(blb).isEmpty());
+    assertTrue(rows(ref).isEmpty());
+    assertTrue(rows(ctnt).isEmpty());
+  }
+
+  @Test
+  public void testBatchDeleteReleasesSharedParts() throws Exception {
+    BinaryContentManipulator a = attach("uuid:a");
+    BinaryContentManipulator b = attach("uuid:b");
+
+    // as when deleting several submissions: all keys are gathered first
+    List<EntityKey> keys = new ArrayList<EntityKey>();
+    a.recursivelyAddEntityKeysForDeletion(keys, cc);
+    b.recursivelyAddEntityKeysForDeletion(keys, cc);
+    DeleteHelper.deleteEntities(keys, cc);
+
+    assertTrue(rows(blb).isEmpty());
+    assertTrue(rows(ref).isEmpty());
+    assertTrue(rows(ctnt).isEmpty());
+  }
+
+  @Test
+  public void testReplaceAttachmentsWithStagedOnes() throws Exception {
+    BinaryContentManipulator result = attach("uuid:export");
+    BinaryContentManipulator staged = new BinaryContentManipulator("uuid:export:attempt:2",
+        "uuid:export", ctnt, ref, blb);
+    byte[] newer = "newer export file".getBytes();
+    OutputStream out = staged.newAttachmentOutputStream("text/csv", "export.csv", cc);
+    out.write(newer);
+    out.close();
+    // the staged file is not a result until it replaces the old one
+    assertEquals(2, rows(ctnt).size());
+    assertArrayEquals(CONTENT, result.getBlob(1, cc));
+
+    result.replaceAttachments(staged, cc);
+
+    assertEquals(1, result.getAttachmentCount(cc));
+    assertEquals("export.csv", result.getUnrootedFilename(1, cc));
+    assertArrayEquals(newer, result.getBlob(1, cc));
+    assertEquals(0, staged.getAttachmentCount(cc));
+    BinaryContentManipulator reread = new BinaryContentManipulator("uuid:export", "uuid:export",
+        ctnt, ref, blb);
+    assertArrayEquals(newer, reread.getBlob(1, cc));
+    assertEquals(0, new BinaryContentManipulator("uuid:export:attempt:2", "uuid:export", ctnt,
+        ref, blb).getAttachmentCount(cc));
+  }
+
+  @Test
+  public void testDamagedSubmissionReleasesSharedParts() throws Exception {
+    TopLevelInstanceData tbl = new TopLevelInstanceData(SCHEMA, "FORM_CORE");
+    assertRelation(tbl);
+    Set<DynamicCommonFieldsBase> backingObjects = new HashSet<DynamicCommonFieldsBase>();
+    backingObjects.add(tbl);
+    backingObjects.add(ctnt);
+    Map<BinaryContentRefBlob, RefBlob> attachmentRelations = Collections.singletonMap(ref, blb);
+
+    List<TopLevelInstanceData> submissions = new ArrayList<TopLevelInstanceData>();
+    for (String uri : new String[] { "uuid:a", "uuid:b" }) {
+      TopLevelInstanceData tle = tbl.getEmptyRow(user);
+      tle.setStringField(tle.primaryKey, uri);
+      rows(tbl).put(uri, tle);
+      attach(uri);
+      submissions.add(tle);
+    }
+
+    DeleteHelper.deleteDamagedSubmission(submissions.get(0), backingObjects,
+        attachmentRelations, cc);
+    assertEquals((CONTENT.length + 3) / 4, rows(blb).size());
+    assertEquals(1, rows(ctnt).size());
+
+    DeleteHelper.deleteDamagedSubmission(submissions.get(1), backingObjects,
+        attachmentRelations, cc);
+    assertTrue(rows(blb).isEmpty());
+    assertTrue(rows(ref).isEmpty());
+    assertTrue(rows(ctnt).isEmpty());
+    assertTrue(rows(tbl).isEmpty());
+  }
+}
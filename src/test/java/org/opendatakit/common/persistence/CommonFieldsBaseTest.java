@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.common.security.User;
+
+public class CommonFieldsBaseTest {
+
+  private TestTable relation;
+  private User user;
+
+  @Before
+  public void setUp() {
+    relation = new TestTable("TEST_SCHEMA");
+    user = mock(User.class);
+    when(user.getUriUser()).thenReturn("mailto:someone@example.org");
+  }
+
+  @Test
+  public void testRowsShareFieldList() {
+    CommonFieldsBase row1 = relation.getEmptyRow(user);
+    CommonFieldsBase row2 = relation.getEmptyRow(user);
+
+    assertSame(relation.getFieldList(), row1.getFieldList());
+    assertSame(row1.getFieldList(), row2.getFieldList());
+  }
+
+  @Test
+  public void testAuditFieldsPopulated() {
+    CommonFieldsBase row = relation.getEmptyRow(user);
+
+    assertNotNull(row.getUri());
+    assertNotNull(row.getCreationDate());
+    assertEquals(row.getCreationDate(), row.getLastUpdateDate());
+    assertEquals("mailto:someone@example.org", row.getCreatorUriUser());
+    assertNull(row.getLastUpdateUriUser());
+  }
+
+  @Test
+  public void testValuesAreIndependentPerRow() {
+    CommonFieldsBase row1 = relation.getEmptyRow(user);
+    CommonFieldsBase row2 = relation.getEmptyRow(user);
+
+    Date now = new Date();
+    row1.setStringField(TestTable.stringField, "a");
+    row1.setLongField(TestTable.integerField, 5L);
+    row1.setBooleanField(TestTable.booleanField, true);
+    row1.setDateField(TestTable.dateField, now);
+
+    assertEquals("a", row1.getStringField(TestTable.stringField));
+    assertEquals(Long.valueOf(5L), row1.getLongField(TestTable.integerField));
+    assertTrue(row1.getBooleanField(TestTable.booleanField));
+    assertEquals(now, row1.getDateField(TestTable.dateField));
+    assertTrue(row1.hasField(TestTable.stringField));
+
+    assertTrue(row2.isNull(TestTable.stringField));
+    assertFalse(row2.hasField(TestTable.integerField));
+
+    row1.setStringField(TestTable.stringField, null);
+    assertTrue(row1.isNull(TestTable.stringField));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testForeignFieldRejected() {
+    CommonFieldsBase row = relation.getEmptyRow(user);
+    row.getStringField(new DataField("OTHER_FIELD", DataField.DataType.STRING, true, 10L));
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.security.User;
+
+public class RelationSqlCacheTest {
+
+  private AtomicInteger generated;
+  private RelationSqlCache cache;
+
+  @Before
+  public void setUp() {
+    generated = new AtomicInteger();
+    cache = new RelationSqlCache(new RelationSqlCache.Generator() {
+      @Override
+      public String generateInsertSql(CommonFieldsBase relation) {
+        generated.incrementAndGet();
+        return "INSERT " + relation.getTableName() + " " + relation.getFieldList().size();
+      }
+
+      @Override
+      public String generateUpdateSql(CommonFieldsBase relation) {
+        return "UPDATE " + relation.getTableName();
+      }
+
+      @Override
+      public String generateDeleteSql(CommonFieldsBase relation) {
+        return "DELETE " + relation.getTableName();
+      }
+
+      @Override
+      public String generateSelectSql(CommonFieldsBase relation) {
+        return "SELECT " + relation.getTableName();
+      }
+    });
+  }
+
+  @Test
+  public void testStatementsAreBuiltOnce() {
+    SqlTestTable relation = new SqlTestTable("S", "T", 3);
+    RelationSqlCache.Statements s = cache.get(relation);
+
+    assertEquals("INSERT T 8", s.insertSql);
+    assertEquals("UPDATE T", s.updateSql);
+    assertEquals("DELETE T", s.deleteSql);
+    assertEquals("SELECT T", s.selectSql);
+    assertSame(s, cache.get(relation));
+    assertSame(s, cache.get(relation.getEmptyRow(mock(User.class))));
+    assertEquals(1, generated.get());
+  }
+
+  @Test
+  public void testPrototypesOfTheSameTableShareStatements() {
+    RelationSqlCache.Statements s = cache.get(new SqlTestTable("S", "T", 3));
+
+    assertSame(s, cache.get(new SqlTestTable("S", "T", 3)));
+    assertEquals(1, generated.get());
+  }
+
+  @Test
+  public void testRedefinedRelationIsRebuilt() {
+    RelationSqlCache.Statements s = cache.get(new SqlTestTable("S", "T", 3));
+    RelationSqlCache.Statements redefined = cache.get(new SqlTestTable("S", "T", 4));
+
+    assertNotSame(s, redefined);
+    assertEquals("INSERT T 9", redefined.insertSql);
+    assertSame(redefined, cache.get(new SqlTestTable("S", "T", 4)));
+  }
+
+  @Test
+  public void testTablesAreKeyedBySchemaAndName() {
+    RelationSqlCache.Statements s = cache.get(new SqlTestTable("S", "T", 3));
+
+    assertNotSame(s, cache.get(new SqlTestTable("S2", "T", 3)));
+    assertNotSame(s, cache.get(new SqlTestTable("S", "T2", 3)));
+  }
+
+  @Test
+  public void testRemove() {
+    SqlTestTable relation = new SqlTestTable("S", "T", 3);
+    RelationSqlCache.Statements s = cache.get(relation);
+    cache.remove(relation);
+
+    assertNotSame(s, cache.get(relation));
+    assertEquals(2, generated.get());
+  }
+}
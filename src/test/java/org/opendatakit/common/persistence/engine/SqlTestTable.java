@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine;
+
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.security.User;
+
+/**
+ * A relation for exercising SQL generation without a database.
+ */
+public class SqlTestTable extends CommonFieldsBase {
+
+  private final int columnCount;
+
+  /**
+   * Construct a relation prototype.
+   *
+   * @param schema
+   * @param tableName
+   * @param columnCount
+   *          number of string columns in addition to the common fields.
+   */
+  public SqlTestTable(String schema, String tableName, int columnCount) {
+    super(schema, tableName);
+    this.columnCount = columnCount;
+    for (int i = 0; i < columnCount; ++i) {
+      fieldList.add(new DataField("COLUMN_" + i, DataField.DataType.STRING, true, 255L));
+    }
+  }
+
+  /**
+   * @param i
+   * @return the i-th column added by the constructor.
+   */
+  public DataField getColumn(int i) {
+    return getFieldList().get(getFieldList().size() - columnCount + i);
+  }
+
+  /**
+   * Construct an empty entity.
+   */
+  private SqlTestTable(SqlTestTable ref, User user) {
+    super(ref, user);
+    this.columnCount = ref.columnCount;
+  }
+
+  @Override
+  public SqlTestTable getEmptyRow(User user) {
+    return new SqlTestTable(this, user);
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine.gae;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.engine.SqlTestTable;
+import org.opendatakit.common.security.User;
+
+/**
+ * The in-memory evaluation of Query.addValueSetDisjunctionFilter() on GAE.
+ */
+public class ValueSetDisjunctionFilterTrackerTest {
+
+  private SqlTestTable relation;
+  private DataField access;
+  private DataField owner;
+  private User user;
+
+  @Before
+  public void setUp() {
+    relation = new SqlTestTable("odk_prod", "TABLE_ROWS", 2);
+    access = relation.getColumn(0);
+    owner = relation.getColumn(1);
+    user = mock(User.class);
+  }
+
+  private CommonFieldsBase row(String accessValue, String ownerValue) {
+    CommonFieldsBase row = relation.getEmptyRow(user);
+    row.setStringField(access, accessValue);
+    row.setStringField(owner, ownerValue);
+    return row;
+  }
+
+  private static Map<DataField, Collection<?>> valueSets() {
+    return new LinkedHashMap<DataField, Collection<?>>();
+  }
+
+  @Test
+  public void testAnyTermPasses() {
+    Map<DataField, Collection<?>> valueSets = valueSets();
+    valueSets.put(access, Arrays.asList("FULL", "READ_ONLY"));
+    valueSets.put(owner, Collections.singletonList("me"));
+    ValueSetDisjunctionFilterTracker t = new ValueSetDisjunctionFilterTracker(valueSets);
+
+    assertTrue(t.passFilter(row("FULL", "someone")));
+    assertTrue(t.passFilter(row("HIDDEN", "me")));
+    assertFalse(t.passFilter(row("HIDDEN", "someone")));
+    assertFalse(t.passFilter(row("HIDDEN", null)));
+  }
+
+  @Test
+  public void testNullValueMatchesNull() {
+    Map<DataField, Collection<?>> valueSets = valueSets();
+    valueSets.put(access, Arrays.asList(null, "FULL"));
+    ValueSetDisjunctionFilterTracker t = new ValueSetDisjunctionFilterTracker(valueSets);
+
+    assertTrue(t.passFilter(row(null, "someone")));
+    assertFalse(t.passFilter(row("HIDDEN", "someone")));
+  }
+
+  @Test
+  public void testEmptyValueSetMatchesNothing() {
+    Map<DataField, Collection<?>> valueSets = valueSets();
+    valueSets.put(access, Collections.emptyList());
+    valueSets.put(owner, Collections.singletonList("me"));
+    ValueSetDisjunctionFilterTracker t = new ValueSetDisjunctionFilterTracker(valueSets);
+
+    assertFalse(t.passFilter(row(null, "someone")));
+    assertTrue(t.passFilter(row(null, "me")));
+
+    assertFalse(new ValueSetDisjunctionFilterTracker(valueSets()).passFilter(row("FULL", "me")));
+  }
+
+  @Test
+  public void testNotPushedToTheDatastore() {
+    Map<DataField, Collection<?>> valueSets = valueSets();
+    valueSets.put(access, Arrays.asList("FULL"));
+    ArrayList<com.google.appengine.api.datastore.Query.Filter> filters =
+        new ArrayList<com.google.appengine.api.datastore.Query.Filter>();
+    new ValueSetDisjunctionFilterTracker(valueSets).setFilter(filters);
+
+    assertEquals(0, filters.size());
+  }
+}
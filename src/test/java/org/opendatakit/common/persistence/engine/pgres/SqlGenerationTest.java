@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine.pgres;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.opendatakit.common.persistence.engine.RelationSqlCache;
+import org.opendatakit.common.persistence.engine.SqlTestTable;
+
+/**
+ * The statements the PostgreSQL engine caches per relation are exactly the
+ * ones it would generate on each call.
+ */
+public class SqlGenerationTest {
+
+  private static final String COLUMNS = "\"_URI\", \"_CREATOR_URI_USER\", \"_CREATION_DATE\", "
+      + "\"_LAST_UPDATE_URI_USER\", \"_LAST_UPDATE_DATE\", \"COLUMN_0\"";
+
+  @Test
+  public void testGeneratedStatements() {
+    SqlTestTable t = new SqlTestTable("odk_prod", "T", 1);
+
+    assertEquals("INSERT INTO \"odk_prod\".\"T\" ( " + COLUMNS
+        + " )  VALUES  ( ?, ?, ?, ?, ?, ? ) ", DatastoreImpl.SQL_GENERATOR.generateInsertSql(t));
+    assertEquals("UPDATE \"odk_prod\".\"T\" SET \"_CREATOR_URI_USER\" = ?, \"_CREATION_DATE\" = ?, "
+        + "\"_LAST_UPDATE_URI_USER\" = ?, \"_LAST_UPDATE_DATE\" = ?, \"COLUMN_0\" = ? "
+        + "WHERE \"_URI\" = ?", DatastoreImpl.SQL_GENERATOR.generateUpdateSql(t));
+    assertEquals("DELETE FROM \"odk_prod\".\"T\" WHERE \"_URI\" = ?",
+        DatastoreImpl.SQL_GENERATOR.generateDeleteSql(t));
+    assertEquals("SELECT " + COLUMNS + " FROM \"odk_prod\".\"T\"",
+        DatastoreImpl.SQL_GENERATOR.generateSelectSql(t));
+  }
+
+  @Test
+  public void testCachedStatementsMatchGeneratedOnes() {
+    RelationSqlCache cache = new RelationSqlCache(DatastoreImpl.SQL_GENERATOR);
+    for (int i = 0; i < 3; ++i) {
+      SqlTestTable t = new SqlTestTable("odk_prod", "TABLE_" + i, 20 * i);
+      RelationSqlCache.Statements s = cache.get(t);
+
+      assertEquals(DatastoreImpl.SQL_GENERATOR.generateInsertSql(t), s.insertSql);
+      assertEquals(DatastoreImpl.SQL_GENERATOR.generateUpdateSql(t), s.updateSql);
+      assertEquals(DatastoreImpl.SQL_GENERATOR.generateDeleteSql(t), s.deleteSql);
+      assertEquals(DatastoreImpl.SQL_GENERATOR.generateSelectSql(t), s.selectSql);
+      assertSame(s, cache.get(new SqlTestTable("odk_prod", "TABLE_" + i, 20 * i)));
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine.pgres;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.engine.RelationSqlCache;
+import org.opendatakit.common.persistence.engine.SqlTestTable;
+import org.opendatakit.common.security.User;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.SqlParameterValue;
+
+/**
+ * The SQL emitted for Query.addValueSetDisjunctionFilter(), as used to apply
+ * the ODK Tables row-level access rules. Needs no database.
+ */
+public class ValueSetDisjunctionFilterTest {
+
+  private SqlTestTable relation;
+  private DataField access;
+  private DataField owner;
+  private DatastoreImpl datastore;
+  private JdbcTemplate jdbc;
+
+  @Before
+  public void setUp() {
+    relation = new SqlTestTable("odk_prod", "TABLE_ROWS", 3);
+    access = relation.getColumn(0);
+    owner = relation.getColumn(1);
+
+    datastore = mock(DatastoreImpl.class);
+    jdbc = mock(JdbcTemplate.class);
+    when(datastore.getStatements(relation))
+        .thenReturn(new RelationSqlCache(DatastoreImpl.SQL_GENERATOR).get(relation));
+    when(datastore.getJdbcConnection()).thenReturn(jdbc);
+  }
+
+  private QueryImpl createQuery() {
+    return new QueryImpl(relation, "ValueSetDisjunctionFilterTest", datastore, mock(User.class));
+  }
+
+  /**
+   * Execute the query and capture the where clause and bind values.
+   */
+  @SuppressWarnings("unchecked")
+  private String execute(QueryImpl query, List<Object> bindValues) throws Exception {
+    query.executeQuery();
+    ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+    ArgumentCaptor<Object[]> args = ArgumentCaptor.forClass(Object[].class);
+    verify(jdbc).query(sql.capture(), args.capture(), any(RowMapper.class));
+    for (Object o : args.getValue()) {
+      bindValues.add(((SqlParameterValue) o).getValue());
+    }
+    String s = sql.getValue().replaceAll("\\s+", " ");
+    return s.substring(s.indexOf(" FROM "));
+  }
+
+  private static Map<DataField, Collection<?>> valueSets() {
+    return new LinkedHashMap<DataField, Collection<?>>();
+  }
+
+  @Test
+  public void testOrOfInSets() throws Exception {
+    Map<DataField, Collection<?>> valueSets = valueSets();
+    valueSets.put(access, Arrays.asList("FULL", "READ_ONLY"));
+    valueSets.put(owner, Collections.singletonList("mailto:user@example.org"));
+    QueryImpl query = createQuery();
+    query.addValueSetDisjunctionFilter(valueSets);
+
+    List<Object> bindValues = new ArrayList<Object>();
+    assertEquals(" FROM \"odk_prod\".\"TABLE_ROWS\" WHERE (\"COLUMN_0\" IN ( ? , ? ) OR"
+        + " \"COLUMN_1\" IN ( ? )) ;", execute(query, bindValues));
+    assertEquals(Arrays.<Object> asList("FULL", "READ_ONLY", "mailto:user@example.org"),
+        bindValues);
+  }
+
+  @Test
+  public void testNullValueMatchesNull() throws Exception {
+    Map<DataField, Collection<?>> valueSets = valueSets();
+    valueSets.put(access, Arrays.asList(null, "FULL"));
+    QueryImpl query = createQuery();
+    query.addValueSetDisjunctionFilter(valueSets);
+
+    List<Object> bindValues = new ArrayList<Object>();
+    assertEquals(" FROM \"odk_prod\".\"TABLE_ROWS\" WHERE (\"COLUMN_0\" IS NULL OR"
+        + " \"COLUMN_0\" IN ( ? )) ;", execute(query, bindValues));
+    assertEquals(Arrays.<Object> asList("FULL"), bindValues);
+  }
+
+  @Test
+  public void testEmptyValueSetIsSkipped() throws Exception {
+    Map<DataField, Collection<?>> valueSets = valueSets();
+    valueSets.put(access, Collections.emptyList());
+    valueSets.put(owner, Collections.singletonList("mailto:user@example.org"));
+    QueryImpl query = createQuery();
+    query.addValueSetDisjunctionFilter(valueSets);
+
+    List<Object> bindValues = new ArrayList<Object>();
+    assertEquals(" FROM \"odk_prod\".\"TABLE_ROWS\" WHERE (\"COLUMN_1\" IN ( ? )) ;",
+        execute(query, bindValues));
+  }
+
+  @Test
+  public void testAllValueSetsEmptyMatchesNothing() throws Exception {
+    Map<DataField, Collection<?>> valueSets = valueSets();
+    valueSets.put(access, Collections.emptyList());
+    QueryImpl query = createQuery();
+    query.addValueSetDisjunctionFilter(valueSets);
+
+    List<Object> bindValues = new ArrayList<Object>();
+    assertEquals(" FROM \"odk_prod\".\"TABLE_ROWS\" WHERE (1 = 0) ;",
+        execute(query, bindValues));
+    assertEquals(0, bindValues.size());
+  }
+
+  @Test
+  public void testAndedWithOtherFilters() throws Exception {
+    Map<DataField, Collection<?>> valueSets = valueSets();
+    valueSets.put(owner, Collections.singletonList("mailto:user@example.org"));
+    QueryImpl query = createQuery();
+    query.addFilter(relation.getColumn(2), FilterOperation.EQUAL, "x");
+    query.addValueSetDisjunctionFilter(valueSets);
+
+    List<Object> bindValues = new ArrayList<Object>();
+    assertEquals(" FROM \"odk_prod\".\"TABLE_ROWS\" WHERE \"COLUMN_2\" = ? AND"
+        + " (\"COLUMN_1\" IN ( ? )) ;", execute(query, bindValues));
+    assertEquals(Arrays.<Object> asList("x", "mailto:user@example.org"), bindValues);
+  }
+}